@@ -0,0 +1,95 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.client.InsertContext.CompatibilityMode;
+
+/**
+ * Compares OnionFECCodec with FastFECCodec on full 32KB CHK blocks, for the segment sizes we
+ * actually use: a full segment (128 data blocks, 128 check blocks), the largest segment with
+ * cross-segment redundancy (136 + 120), and smaller last segments, with the check block count
+ * from getCheckBlocks(). Decode is the worst case: all the data blocks are missing, except for
+ * the check blocks we don't need.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FECCodecBenchmark {
+
+    private static final int BLOCK_SIZE = 32768;
+
+    @Param({ "onion", "fast" })
+    public String impl;
+
+    @Param({ "128", "136", "64", "32", "8", "2" })
+    public int dataBlocks;
+
+    private FECCodec codec;
+    private byte[][] data;
+    private byte[][] check;
+    private boolean[] dataPresent;
+    private boolean[] checkPresent;
+    private byte[][] decodeData;
+    private boolean[] decodeDataPresent;
+    private boolean[] decodeCheckPresent;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = "fast".equals(impl) ? new FastFECCodec() : new OnionFECCodec();
+        int checkBlocks = dataBlocks == HighLevelSimpleClientImpl.SPLITFILE_BLOCKS_PER_SEGMENT ?
+                FECCodec.MAX_TOTAL_BLOCKS_PER_SEGMENT - dataBlocks :
+                codec.getCheckBlocks(dataBlocks, CompatibilityMode.COMPAT_CURRENT);
+        Random random = new Random(dataBlocks);
+        data = new byte[dataBlocks][BLOCK_SIZE];
+        for(byte[] block : data)
+            random.nextBytes(block);
+        check = new byte[checkBlocks][BLOCK_SIZE];
+        dataPresent = new boolean[dataBlocks];
+        checkPresent = new boolean[checkBlocks];
+        codec.encode(data, check, checkPresent, BLOCK_SIZE);
+        decodeData = new byte[dataBlocks][BLOCK_SIZE];
+        decodeDataPresent = new boolean[dataBlocks];
+        decodeCheckPresent = new boolean[checkBlocks];
+        // Use the last check blocks, so there are as few zeros in the decode matrix as possible.
+        int needed = Math.min(dataBlocks, checkBlocks);
+        for(int i=0;i<needed;i++)
+            decodeCheckPresent[checkBlocks - 1 - i] = true;
+        for(int i=needed;i<dataBlocks;i++) {
+            decodeDataPresent[i] = true;
+            decodeData[i] = data[i].clone();
+        }
+    }
+
+    @Benchmark
+    public byte[][] encode() {
+        codec.encode(data, check, checkPresent, BLOCK_SIZE);
+        return check;
+    }
+
+    @Benchmark
+    public byte[][] decode() {
+        codec.decode(decodeData, check, decodeDataPresent, decodeCheckPresent, BLOCK_SIZE);
+        return decodeData;
+    }
+
+}
@@ -0,0 +1,172 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SendableGet;
+import freenet.support.CountingBloomFilter;
+
+/**
+ * Cost of checking a block which passes through the node against the download queue, as the
+ * number of queued splitfiles grows. Each download has a counting Bloom filter over its keys,
+ * like the main filter in SplitFileFetcherKeyListener. With impl=scan the listeners are plain
+ * KeyListener's, so every filter is checked for every block, as before; with impl=index they are
+ * IndexedKeyListener's, so KeyListenerTracker only checks the ones in its SaltedKeyIndex. Almost
+ * all blocks are not wanted, so that is what we measure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyListenerTrackerBenchmark {
+
+	private static final int KEYS_PER_DOWNLOAD = 256;
+	private static final int BLOOM_ELEMENTS_PER_KEY = SplitFileFetcherKeyListener.DEFAULT_MAIN_BLOOM_ELEMENTS_PER_KEY;
+
+	@Param({ "scan", "index" })
+	public String impl;
+
+	@Param({ "10", "100", "1000", "5000" })
+	public int downloads;
+
+	private KeyListenerTracker tracker;
+	private NodeCHK[] blocks;
+	private int next;
+
+	private static class BloomListener implements KeyListener {
+		final CountingBloomFilter filter;
+		final byte[][] saltedKeys;
+
+		BloomListener(byte[][] saltedKeys) {
+			this.saltedKeys = saltedKeys;
+			filter = new CountingBloomFilter(saltedKeys.length * BLOOM_ELEMENTS_PER_KEY, (int) (BLOOM_ELEMENTS_PER_KEY * 0.7));
+			for(byte[] key : saltedKeys)
+				filter.addKey(key);
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return filter.checkFilter(saltedKey);
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+			return -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass() {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return saltedKeys.length;
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			// Ignore.
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+		@Override
+		public byte[] getWantedKey() {
+			return null;
+		}
+	}
+
+	private static class IndexedBloomListener extends BloomListener implements IndexedKeyListener {
+
+		IndexedBloomListener(byte[][] saltedKeys) {
+			super(saltedKeys);
+		}
+
+		@Override
+		public void addWantedKeys(KeySalter salter, SaltedKeyIndex.Batch batch) {
+			for(byte[] key : saltedKeys)
+				batch.add(key);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(downloads);
+		byte[] globalSalt = new byte[32];
+		random.nextBytes(globalSalt);
+		tracker = new KeyListenerTracker(false, false, false, null, null, globalSalt, false);
+		boolean indexed = "index".equals(impl);
+		for(int i=0;i<downloads;i++) {
+			byte[][] saltedKeys = new byte[KEYS_PER_DOWNLOAD][];
+			for(int j=0;j<KEYS_PER_DOWNLOAD;j++)
+				saltedKeys[j] = tracker.saltKey(randomKey(random));
+			tracker.addPendingKeys(indexed ? new IndexedBloomListener(saltedKeys) : new BloomListener(saltedKeys));
+		}
+		blocks = new NodeCHK[1024];
+		for(int i=0;i<blocks.length;i++)
+			blocks[i] = randomKey(random);
+	}
+
+	private static NodeCHK randomKey(Random random) {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+	@Benchmark
+	public boolean anyProbablyWantKey() {
+		NodeCHK block = blocks[next++ & (blocks.length - 1)];
+		return tracker.anyProbablyWantKey(block, null);
+	}
+
+}
@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filtering a freesite's index page with HTMLFilter, and its stylesheet with CSSReadFilter (which
+ * runs CSSTokenizerFilter), as fproxy does for every page it serves. The page and stylesheet are
+ * generated, with the mix of links, inline styles and markup of a typical index site; "size" is
+ * the number of entries, each about 500 bytes of HTML and 150 bytes of CSS.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentFilterBenchmark {
+
+	private static final String BASE_URI = "/USK@7UJzLvH4pa1MfDr1NvjhmJ2Sqoyb6C1Fm1J7yXpZ-Tg,1dpnbFYTXXA0frXDvz2JbNXDTxXVumw9NhjpVn6dTkE,AQACAAE/index/42/";
+
+	@Param({ "10", "200" })
+	public int size;
+
+	private byte[] html;
+	private byte[] css;
+	private URI baseURI;
+
+	@Setup(Level.Trial)
+	public void setUp() throws URISyntaxException {
+		baseURI = new URI(BASE_URI);
+		StringBuilder sb = new StringBuilder();
+		sb.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n");
+		sb.append("<html xmlns=\"http://www.w3.org/1999/xhtml\" lang=\"en\">\n<head>\n");
+		sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />\n");
+		sb.append("<title>Index of freesites</title>\n");
+		sb.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\" />\n");
+		sb.append("<style type=\"text/css\">body { margin: 0 auto; max-width: 60em; }</style>\n");
+		sb.append("</head>\n<body>\n<h1 id=\"top\">Index of freesites</h1>\n");
+		sb.append("<form action=\"/\" method=\"get\"><input type=\"text\" name=\"key\" size=\"40\" /><input type=\"submit\" value=\"Go\" /></form>\n");
+		sb.append("<table class=\"index\" summary=\"freesites\">\n");
+		for(int i=0;i<size;i++) {
+			sb.append("<tr class=\"").append(i % 2 == 0 ? "even" : "odd").append("\">");
+			sb.append("<td><img src=\"/CHK@Xe2NV3lKvTgPtJHdQ6aA1JwBmhVXrL9Te0oSF0Ie~jg,lrAxkJuZ8wHkHAcpVv4Ij1pVTmVi-QgpkAQmNbEdZ2c,AAMC--8/activelink")
+				.append(i).append(".png\" alt=\"\" width=\"108\" height=\"36\" /></td>");
+			sb.append("<td><a href=\"/USK@site").append(i).append("~abcdefghijklmnopqrstuvwxyz0123456789,ABCDEFGHIJKLMNOPQRSTUVWXYZ,AQACAAE/site")
+				.append(i).append("/").append(i % 17).append("/\" title=\"Site ").append(i).append("\">Site number ").append(i).append("</a>");
+			sb.append("<br /><span style=\"color: #666; font-size: 0.8em\">Updated &amp; checked ").append(i % 28 + 1)
+				.append(" days ago &mdash; <em>").append(i * 3 % 100).append(" pages</em></span></td>");
+			sb.append("<td><a href=\"#top\">top</a> <a href=\"http://example.com/").append(i).append("\">external</a></td></tr>\n");
+		}
+		sb.append("</table>\n<p>Generated by a spider. <script type=\"text/javascript\">alert('x');</script></p>\n</body>\n</html>\n");
+		html = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+		sb.setLength(0);
+		sb.append("@charset \"UTF-8\";\n@import url(\"base.css\");\n");
+		sb.append("body { font-family: Verdana, \"DejaVu Sans\", sans-serif; background: #fff url(bg.png) repeat-x; }\n");
+		for(int i=0;i<size;i++) {
+			sb.append("table.index tr.row").append(i).append(" td > a:hover, #item").append(i).append(" { color: #")
+				.append(String.format("%06x", i * 2654435761L & 0xffffff)).append("; margin: ").append(i % 5).append("px 1em 0 ")
+				.append(i % 3).append("%; border: 1px solid rgb(").append(i % 256).append(", 10, 20); }\n");
+		}
+		sb.append("@media print { .index { display: none } }\n");
+		css = sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] html() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(html.length);
+		new HTMLFilter().readFilter(new ByteArrayInputStream(html), out, "UTF-8", null, null,
+			new GenericReadFilterCallback(baseURI, null, null, null));
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] css() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(css.length);
+		new CSSReadFilter().readFilter(new ByteArrayInputStream(css), out, "UTF-8", null, null,
+			new GenericReadFilterCallback(baseURI, null, null, null));
+		return out.toByteArray();
+	}
+
+}
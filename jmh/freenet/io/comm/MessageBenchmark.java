@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+/**
+ * Decoding, dispatching and encoding the messages of a CHK request and an insert: the request
+ * itself, and the usual replies. Dispatch is what happens to a reply once it has been decoded:
+ * read the fields, and match it against the filter of the request waiting for it, by type and
+ * UID. Results are per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+	private static final int MESSAGES = 8;
+
+	private Message[] messages;
+	private byte[][] packets;
+	private MessageFilter[] filters;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+		random.nextBytes(routingKey);
+		byte[] headers = new byte[36];
+		random.nextBytes(headers);
+		long uid = random.nextLong();
+		messages = new Message[] {
+			DMT.createFNPCHKDataRequest(uid, (short) 18, new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256)),
+			DMT.createFNPAccepted(uid),
+			DMT.createFNPRejectedOverload(uid, false, true, false),
+			DMT.createFNPCHKDataFound(uid, headers),
+			DMT.createFNPDataNotFound(uid),
+			DMT.createFNPRouteNotFound(uid, (short) 3),
+			DMT.createFNPInsertReply(uid),
+			DMT.createFNPSSKAccepted(uid, true),
+		};
+		packets = new byte[MESSAGES][];
+		filters = new MessageFilter[MESSAGES];
+		for(int i=0;i<MESSAGES;i++) {
+			packets[i] = messages[i].encodeToPacket();
+			filters[i] = MessageFilter.create().setType(messages[i].getSpec()).setField(DMT.UID, uid).setTimeout(Integer.MAX_VALUE);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void decode(Blackhole bh) {
+		for(byte[] packet : packets)
+			bh.consume(Message.decodeMessageLax(packet, null, 0));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void dispatch(Blackhole bh) {
+		long now = System.currentTimeMillis();
+		for(int i=0;i<MESSAGES;i++) {
+			Message m = Message.decodeMessageLax(packets[i], null, 0);
+			MessageType spec = m.getSpec();
+			bh.consume(m.getLong(DMT.UID));
+			if(spec == DMT.FNPCHKDataRequest) {
+				bh.consume(m.getShort(DMT.HTL));
+				bh.consume(m.getDouble(DMT.NEAREST_LOCATION));
+				bh.consume(m.getObject(DMT.FREENET_ROUTING_KEY));
+			} else if(spec == DMT.FNPRouteNotFound) {
+				bh.consume(m.getShort(DMT.HTL));
+			} else if(spec == DMT.FNPSSKAccepted) {
+				bh.consume(m.getBoolean(DMT.NEED_PUB_KEY));
+			} else if(spec == DMT.FNPCHKDataFound) {
+				bh.consume(m.getShortBufferBytes(DMT.BLOCK_HEADERS));
+			} else if(spec == DMT.FNPRejectedOverload) {
+				bh.consume(m.getBoolean(DMT.IS_LOCAL));
+			}
+			bh.consume(filters[i].match(m, now));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void encode(Blackhole bh) {
+		for(Message m : messages)
+			bh.consume(m.encodeToPacket());
+	}
+
+}
@@ -0,0 +1,115 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.SHA256;
+
+/**
+ * Throughput of encoding and decoding splitfile blocks, one at a time as before (a new Cipher and
+ * Mac for every block) and with SplitfileBlockCodec, singly and in batches of a segment's worth of
+ * blocks, with and without helper threads. Results are per block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientCHKBlockBenchmark {
+
+	private static final int BLOCKS = 128;
+
+	private byte[][] data;
+	private byte[][] cryptoKeys;
+	private byte[] splitfileKey;
+	private ClientCHKBlock[] blocks;
+	private ExecutorService executor;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws CHKEncodeException {
+		Random random = new Random(42);
+		data = new byte[BLOCKS][CHKBlock.DATA_LENGTH];
+		for(byte[] block : data)
+			random.nextBytes(block);
+		splitfileKey = new byte[32];
+		random.nextBytes(splitfileKey);
+		cryptoKeys = new byte[BLOCKS][];
+		for(int i=0;i<BLOCKS;i++)
+			cryptoKeys[i] = splitfileKey;
+		blocks = SplitfileBlockCodec.encode(data, cryptoKeys, Key.ALGO_AES_CTR_256_SHA256, null);
+		executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	public ClientCHKBlock encodeOld() throws CHKEncodeException {
+		byte[] buf = data[next++ & (BLOCKS - 1)];
+		return ClientCHKBlock.encodeNew(buf, CHKBlock.DATA_LENGTH, SHA256.getMessageDigest(), splitfileKey,
+				false, (short)-1, Key.ALGO_AES_CTR_256_SHA256, KeyBlock.HASH_SHA256);
+	}
+
+	@Benchmark
+	public ClientCHKBlock encodeSingle() throws CHKEncodeException {
+		return SplitfileBlockCodec.encode(data[next++ & (BLOCKS - 1)], splitfileKey, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public ClientCHKBlock[] encodeBatch() throws CHKEncodeException {
+		return SplitfileBlockCodec.encode(data, cryptoKeys, Key.ALGO_AES_CTR_256_SHA256, null);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public ClientCHK[] encodeKeysBatch() throws CHKEncodeException {
+		return SplitfileBlockCodec.encodeKeys(data, cryptoKeys, Key.ALGO_AES_CTR_256_SHA256, null);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public ClientCHK[] encodeKeysBatchParallel() throws CHKEncodeException {
+		return SplitfileBlockCodec.encodeKeys(data, cryptoKeys, Key.ALGO_AES_CTR_256_SHA256, executor);
+	}
+
+	@Benchmark
+	public byte[] decodeOld() throws CHKDecodeException {
+		return blocks[next++ & (BLOCKS - 1)].memoryDecode();
+	}
+
+	@Benchmark
+	public byte[] decodeSingle() throws CHKDecodeException {
+		return SplitfileBlockCodec.decode(blocks[next++ & (BLOCKS - 1)]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public byte[][] decodeBatchParallel() {
+		return SplitfileBlockCodec.decode(blocks, executor);
+	}
+
+}
@@ -0,0 +1,199 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Packing messages into packets and unpacking them. "pack" and "unpack" are just the packet
+ * format (NPFPacket) for a packet holding one message. "roundTrip" is the whole of NewPacketFormat
+ * between two peers, as on a busy connection: each side always has more than a packet's worth of
+ * messages queued, packs a full packet with acks for the other side's packets, encrypts and MACs
+ * it, and the other side decrypts, unpacks, acks and reassembles the messages. Results are per
+ * packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NewPacketFormatBenchmark {
+
+	private static final int MAX_PACKET_SIZE = 1280;
+
+	/** Size of each message. */
+	@Param({ "100", "1000" })
+	public int messageSize;
+
+	private byte[] message;
+	private NPFPacket packet;
+	private byte[] packetBytes;
+	private Random paddingGen;
+	private Side alice;
+	private Side bob;
+
+	/**
+	 * One end of the connection, and the BasePeerNode for it: everything we don't need returns
+	 * null, false or zero.
+	 */
+	private static final class Side implements InvocationHandler, DecodingMessageGroup {
+		final BasePeerNode pn;
+		final SessionKey key;
+		final PeerMessageQueue queue = new PeerMessageQueue();
+		final Random paddingGen = new Random(44);
+		final NewPacketFormat npf;
+		byte[] sent;
+		long receivedBytes;
+
+		Side(SessionKey key) {
+			this.key = key;
+			pn = (BasePeerNode) Proxy.newProxyInstance(BasePeerNode.class.getClassLoader(),
+					new Class<?>[] { BasePeerNode.class }, this);
+			npf = new NewPacketFormat(pn, 0, 0);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch(method.getName()) {
+			case "getCurrentKeyTracker":
+				return key;
+			case "getMessageQueue":
+				return queue;
+			case "getMaxPacketSize":
+				return MAX_PACKET_SIZE;
+			case "isConnected":
+				return true;
+			case "averagePingTime":
+			case "averagePingTimeCorrected":
+				return 250.0;
+			case "getThrottleWindowSize":
+				return 10;
+			case "paddingGen":
+				return paddingGen;
+			case "sendEncryptedPacket":
+				sent = (byte[]) args[0];
+				return null;
+			case "startProcessingDecryptedMessages":
+				return this;
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+			case "shortToString":
+				return "peer";
+			}
+			Class<?> type = method.getReturnType();
+			if(type == boolean.class) return false;
+			if(type == int.class) return 0;
+			if(type == long.class) return 0L;
+			if(type == double.class) return 0.0;
+			if(type == short.class) return (short) 0;
+			if(type == byte.class) return (byte) 0;
+			if(type == float.class) return 0.0f;
+			return null;
+		}
+
+		@Override
+		public void processDecryptedMessage(byte[] data, int offset, int length, int overhead) {
+			receivedBytes += length;
+		}
+
+		@Override
+		public void complete() {
+			// Do nothing.
+		}
+
+		/** Top up the queue to more than a packet's worth, so the packet is sent at once rather
+		 * than waiting to coalesce, and send one packet. */
+		void send(Side to, byte[] message) throws BlockedTooLongException {
+			while(!queue.mustSendSize(0, MAX_PACKET_SIZE))
+				queue.queueAndEstimateSize(new MessageItem(message, null, false, null, (short) 0, false, false), MAX_PACKET_SIZE);
+			if(!npf.maybeSendPacket(false, key))
+				throw new IllegalStateException("Didn't send a packet");
+			if(!to.npf.handleReceivedPacket(sent, 0, sent.length, System.currentTimeMillis(), null))
+				throw new IllegalStateException("Couldn't decrypt the packet");
+		}
+	}
+
+	private static BlockCipher cipher(Random random) throws UnsupportedCipherException {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		BlockCipher cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		return cipher;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws UnsupportedCipherException {
+		Random random = new Random(42);
+		message = new byte[messageSize];
+		random.nextBytes(message);
+
+		packet = new NPFPacket();
+		packet.setSequenceNumber(1234);
+		packet.addMessageFragment(new MessageFragment(messageSize <= 255, false, true, 17, messageSize, messageSize, 0, message, null));
+		packetBytes = new byte[packet.getLength()];
+		paddingGen = new Random(43);
+		packet.toBytes(packetBytes, 0, paddingGen);
+
+		BlockCipher aliceToBob = cipher(random);
+		BlockCipher bobToAlice = cipher(random);
+		BlockCipher ivCipher = cipher(random);
+		byte[] ivNonce = new byte[32];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+		int aliceSeqNum = random.nextInt() & Integer.MAX_VALUE;
+		int bobSeqNum = random.nextInt() & Integer.MAX_VALUE;
+		alice = new Side(new SessionKey(null, aliceToBob, null, bobToAlice, null, ivCipher, ivNonce, hmacKey,
+				new NewPacketFormatKeyContext(aliceSeqNum, bobSeqNum), 1));
+		bob = new Side(new SessionKey(null, bobToAlice, null, aliceToBob, null, ivCipher, ivNonce, hmacKey,
+				new NewPacketFormatKeyContext(bobSeqNum, aliceSeqNum), 2));
+	}
+
+	@Benchmark
+	public byte[] pack() {
+		byte[] buf = new byte[packet.getLength()];
+		packet.toBytes(buf, 0, paddingGen);
+		return buf;
+	}
+
+	@Benchmark
+	public NPFPacket unpack() {
+		return NPFPacket.create(packetBytes, alice.pn);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(2)
+	public long roundTrip() throws BlockedTooLongException {
+		alice.send(bob, message);
+		bob.send(alice, message);
+		return bob.receivedBytes;
+	}
+
+}
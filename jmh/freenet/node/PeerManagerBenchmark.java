@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.node.DarknetPeerNode.FRIEND_TRUST;
+import freenet.node.DarknetPeerNode.FRIEND_VISIBILITY;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.FileUtil;
+
+/**
+ * Routing a request: PeerManager.closerPeer() choosing the peer to send it to, on a node with
+ * PEERS connected darknet peers, for a random target location. The peers are real nodes in this
+ * JVM, talking over UDP on localhost, so setting up takes a while.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeerManagerBenchmark {
+
+	private static final int PEERS = 20;
+	private static final int PORT_BASE = 5700;
+	private static final short MAX_HTL = 18;
+	private static final int TARGETS = 1024;
+
+	private File dir;
+	private Node hub;
+	private final Set<PeerNode> routedTo = Collections.emptySet();
+	private double[] targets;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("peermanager-bench").toFile();
+		NodeStarter.globalTestInit(dir, false, LogLevel.ERROR, "", true, null);
+		DummyRandomSource random = new DummyRandomSource(3142);
+		Executor executor = new PooledExecutor();
+		Node[] nodes = new Node[PEERS + 1];
+		for(int i=0;i<nodes.length;i++)
+			nodes[i] = NodeStarter.createTestNode(PORT_BASE + i, 0, dir.getPath(), true, MAX_HTL, 0, random, executor,
+					500 * nodes.length, 65536, true, false, false, false, false, false, true, 0, false, false, true, false, null);
+		hub = nodes[0];
+		for(int i=1;i<nodes.length;i++) {
+			hub.connect(nodes[i], FRIEND_TRUST.LOW, FRIEND_VISIBILITY.NO);
+			nodes[i].connect(hub, FRIEND_TRUST.LOW, FRIEND_VISIBILITY.NO);
+		}
+		for(Node node : nodes)
+			node.start(false);
+		long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+		while(hub.getPeers().countConnectedDarknetPeers() < PEERS) {
+			if(System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("Only "+hub.getPeers().countConnectedDarknetPeers()+" of "+PEERS+" peers connected");
+			Thread.sleep(100);
+		}
+		Random r = new Random(42);
+		targets = new double[TARGETS];
+		for(int i=0;i<TARGETS;i++)
+			targets[i] = r.nextDouble();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	@Benchmark
+	public PeerNode closerPeer() {
+		double target = targets[next++ & (TARGETS - 1)];
+		return hub.getPeers().closerPeer(null, routedTo, target, true, false, -1, null, 2.0, null, MAX_HTL, 0, true,
+				false, null, false, System.currentTimeMillis(), false);
+	}
+
+}
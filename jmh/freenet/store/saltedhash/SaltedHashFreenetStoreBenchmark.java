@@ -0,0 +1,119 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.keys.SplitfileBlockCodec;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.TrivialTicker;
+import freenet.support.io.FileUtil;
+
+/**
+ * Fetching and storing CHK blocks in a SaltedHashFreenetStore with a slot filter, as a node's
+ * datastore is set up, with and without memory mapping. The store is a quarter full: a fetch
+ * either finds a block, or misses (usually answered by the slot filter without reading the
+ * store), and a put writes a block which is already there, which is what a popular block costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaltedHashFreenetStoreBenchmark {
+
+	private static final int BLOCKS = 512;
+	private static final int MAX_KEYS = BLOCKS * 4;
+
+	@Param({ "false", "true" })
+	public boolean mmap;
+
+	private File dir;
+	private PooledExecutor executor;
+	private CHKStore store;
+	private SaltedHashFreenetStore<CHKBlock> saltStore;
+	private CHKBlock[] blocks;
+	private NodeCHK[] missing;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, CHKEncodeException {
+		Random random = new Random(42);
+		byte[][] data = new byte[BLOCKS][CHKBlock.DATA_LENGTH];
+		byte[][] cryptoKeys = new byte[BLOCKS][32];
+		for(int i=0;i<BLOCKS;i++) {
+			random.nextBytes(data[i]);
+			random.nextBytes(cryptoKeys[i]);
+		}
+		ClientCHKBlock[] encoded = SplitfileBlockCodec.encode(data, cryptoKeys, Key.ALGO_AES_CTR_256_SHA256, null);
+		blocks = new CHKBlock[BLOCKS];
+		missing = new NodeCHK[BLOCKS];
+		for(int i=0;i<BLOCKS;i++) {
+			blocks[i] = encoded[i].getBlock();
+			byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+			random.nextBytes(routingKey);
+			missing[i] = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+		}
+
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		dir = Files.createTempDirectory("saltstore-bench").toFile();
+		executor = new PooledExecutor();
+		executor.start();
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(dir, "bench", store, new Random(43), MAX_KEYS, true,
+				SemiOrderedShutdownHook.get(), false, false, new TrivialTicker(executor), null, mmap);
+		saltStore.start(null, true);
+		for(CHKBlock block : blocks)
+			store.put(block, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		saltStore.close();
+		FileUtil.removeAll(dir);
+	}
+
+	@Benchmark
+	public CHKBlock fetchHit() throws IOException {
+		CHKBlock block = blocks[next++ & (BLOCKS - 1)];
+		return store.fetch(block.getKey(), false, false, null);
+	}
+
+	@Benchmark
+	public CHKBlock fetchMiss() throws IOException {
+		return store.fetch(missing[next++ & (BLOCKS - 1)], false, false, null);
+	}
+
+	@Benchmark
+	public void put() throws IOException {
+		store.put(blocks[next++ & (BLOCKS - 1)], false);
+	}
+
+}
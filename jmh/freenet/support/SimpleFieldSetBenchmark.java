@@ -0,0 +1,150 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import freenet.support.io.LineReader;
+import freenet.support.io.LineReadingInputStream;
+
+/**
+ * Parsing an FCP session from a bulk client, the way FCPConnectionInputHandler does: the message
+ * type line, then a SimpleFieldSet, then looking up the fields the message's constructor needs.
+ * The session is modelled on captured traffic from a client which re-syncs its queue
+ * (ListPersistentRequests, then a ClientGet/ClientPut per request) and uploads a site with
+ * ClientPutComplexDir. "lines" is the old parser, a String per line and the tree built as we go;
+ * "table" parses into a FieldTable and only looks up the fields which are used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimpleFieldSetBenchmark {
+
+	/** Number of files in the ClientPutComplexDir. */
+	@Param({"10", "1000"})
+	public int files;
+
+	private byte[] session;
+	/** Where the fields of the ClientPutComplexDir are in session. */
+	private int dirStart;
+	private int dirLength;
+
+	private static final String[] SMALL_MESSAGES = {
+		"ClientHello\nName=BulkClient-1634\nExpectedVersion=2.0\nEndMessage\n",
+		"WatchGlobal\nEnabled=true\nVerbosityMask=1023\nEndMessage\n",
+		"ListPersistentRequests\nEndMessage\n",
+		"ClientGet\nIdentifier=get-1634-00017\nURI=CHK@Xe2NV3lKvTgPtJHdQ6aA1JwBmhVXrL9Te0oSF0Ie~jg,lrAxkJuZ8wHkHAcpVv4Ij1pVTmVi-QgpkAQmNbEdZ2c,AAMC--8/song.ogg\n" +
+			"Verbosity=1\nMaxRetries=-1\nPriorityClass=2\nPersistence=forever\nGlobal=true\nClientToken=queue-17\n" +
+			"ReturnType=disk\nFilename=/home/user/Downloads/song.ogg\nTempFilename=/home/user/Downloads/song.ogg.freenet-tmp\n" +
+			"RealTimeFlag=false\nIgnoreDS=false\nDSOnly=false\nEndMessage\n",
+		"ClientPut\nIdentifier=put-1634-00018\nURI=CHK@\nMetadata.ContentType=image/png\nVerbosity=1\nMaxRetries=-1\n" +
+			"PriorityClass=3\nGetCHKOnly=false\nGlobal=true\nPersistence=forever\nClientToken=queue-18\nDontCompress=false\n" +
+			"UploadFrom=disk\nFilename=/home/user/Pictures/photo.png\nTargetFilename=photo.png\nEarlyEncode=false\n" +
+			"RealTimeFlag=false\nCompatibilityMode=COMPAT_CURRENT\nExtraInsertsSingleBlock=2\n" +
+			"ExtraInsertsSplitfileHeaderBlock=2\nEndMessage\n",
+		"ModifyPersistentRequest\nIdentifier=get-1634-00017\nGlobal=true\nPriorityClass=1\nClientToken=queue-17\nEndMessage\n",
+		"RemoveRequest\nIdentifier=put-1634-00018\nGlobal=true\nEndMessage\n",
+	};
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<10;i++)
+			for(String message : SMALL_MESSAGES)
+				sb.append(message);
+		sb.append("ClientPutComplexDir\n");
+		int start = sb.length();
+		sb.append("Identifier=site-1634\nURI=USK@7UJzLvH4pa1MfDr1NvjhmJ2Sqoyb6C1Fm1J7yXpZ-Tg,")
+			.append("1dpnbFYTXXA0frXDvz2JbNXDTxXVumw9NhjpVn6dTkE,AQECAAE/site/12/\n")
+			.append("Verbosity=1\nMaxRetries=-1\nPriorityClass=2\nGlobal=true\nPersistence=forever\nDefaultName=index.html\n")
+			.append("ClientToken=site\nEarlyEncode=false\nGetCHKOnly=false\n");
+		for(int i=0;i<files;i++) {
+			sb.append("Files.").append(i).append(".Name=pages/page").append(i).append(".html\n");
+			sb.append("Files.").append(i).append(".UploadFrom=disk\n");
+			sb.append("Files.").append(i).append(".Filename=/home/user/site/pages/page").append(i).append(".html\n");
+			sb.append("Files.").append(i).append(".Metadata.ContentType=text/html\n");
+		}
+		sb.append("EndMessage\n");
+		session = sb.toString().getBytes(StandardCharsets.UTF_8);
+		dirStart = sb.substring(0, start).getBytes(StandardCharsets.UTF_8).length;
+		dirLength = session.length - dirStart;
+	}
+
+	/** What the FCP message constructors look at. */
+	private static void useFields(String type, SimpleFieldSet fs, Blackhole bh) throws IOException {
+		bh.consume(fs.get("Identifier"));
+		bh.consume(fs.getBoolean("Global", false));
+		bh.consume(fs.get("URI"));
+		bh.consume(fs.get("ClientToken"));
+		bh.consume(fs.get("Persistence"));
+		bh.consume(fs.getInt("Verbosity", 0));
+		bh.consume(fs.getInt("MaxRetries", 0));
+		bh.consume(fs.get("PriorityClass"));
+		bh.consume(fs.get("UploadFrom"));
+		bh.consume(fs.get("Filename"));
+		bh.consume(fs.getBoolean("RealTimeFlag", false));
+		if(type.equals("ClientPutComplexDir")) {
+			SimpleFieldSet filesFS = fs.subset("Files");
+			Iterator<String> it = filesFS.directSubsetNameIterator();
+			while(it.hasNext()) {
+				SimpleFieldSet file = filesFS.subset(it.next());
+				bh.consume(file.get("Name"));
+				bh.consume(file.get("UploadFrom"));
+				bh.consume(file.get("Filename"));
+				bh.consume(file.get("Metadata.ContentType"));
+			}
+		}
+	}
+
+	@Benchmark
+	public void lines(Blackhole bh) throws IOException {
+		final LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(session));
+		// Not a LineReadingInputStream, so SimpleFieldSet reads a line at a time as before.
+		LineReader lines = new LineReader() {
+			@Override
+			public String readLine(int maxLength, int bufferSize, boolean utf) throws IOException {
+				return lis.readLine(maxLength, bufferSize, utf);
+			}
+		};
+		String type;
+		while((type = lis.readLine(128, 128, true)) != null)
+			useFields(type, new SimpleFieldSet(lines, 4096, 128, true, true, true), bh);
+	}
+
+	@Benchmark
+	public void table(Blackhole bh) throws IOException {
+		LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(session));
+		String type;
+		while((type = lis.readLine(128, 128, true)) != null)
+			useFields(type, new SimpleFieldSet(lis, 4096, 128, true, true, true), bh);
+	}
+
+	/** Parse only the ClientPutComplexDir, from a buffer which already holds it. */
+	@Benchmark
+	public FieldTable tableFromBuffer() throws IOException {
+		return FieldTable.parse(session, dirStart, dirLength, true, true, false, false);
+	}
+
+}
@@ -0,0 +1,151 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares PrioritizedTicker with TimerWheelTicker with a large number of jobs outstanding,
+ * as on a busy node with many peers and requests. The outstanding jobs are queued between one
+ * minute and one hour ahead, so none of them run during the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TickerBenchmark {
+
+	@Param({ "prioritized", "wheel" })
+	public String impl;
+
+	@Param({ "100000" })
+	public int outstanding;
+
+	private Ticker ticker;
+	private Runnable[] jobs;
+
+	/** Never actually used, since nothing becomes due. */
+	private static class InlineExecutor implements Executor {
+
+		@Override
+		public void execute(Runnable job) {
+			job.run();
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName) {
+			job.run();
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			job.run();
+		}
+
+		@Override
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+	}
+
+	@Setup
+	public void setUp() {
+		Executor executor = new InlineExecutor();
+		if(impl.equals("wheel")) {
+			TimerWheelTicker wheel = new TimerWheelTicker(executor, 0);
+			wheel.start();
+			ticker = wheel;
+		} else {
+			PrioritizedTicker prioritized = new PrioritizedTicker(executor, 0);
+			prioritized.start();
+			ticker = prioritized;
+		}
+		jobs = new Runnable[outstanding];
+		for(int i=0;i<outstanding;i++) {
+			jobs[i] = new Runnable() {
+				@Override
+				public void run() {
+					// Do nothing.
+				}
+			};
+			ticker.queueTimedJob(jobs[i], "outstanding", randomOffset(), true, false);
+		}
+	}
+
+	private static long randomOffset() {
+		return ThreadLocalRandom.current().nextLong(TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1));
+	}
+
+	/** Queue a job and remove it again, e.g. a request timeout which isn't needed. */
+	@Benchmark
+	public void scheduleAndCancel() {
+		Runnable job = new Runnable() {
+			@Override
+			public void run() {
+				// Do nothing.
+			}
+		};
+		ticker.queueTimedJob(job, "timeout", randomOffset(), true, false);
+		ticker.removeQueuedJob(job);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void scheduleAndCancelContended() {
+		scheduleAndCancel();
+	}
+
+	/** Queue an outstanding job again with noDupes, e.g. the announcer or a periodic check. */
+	@Benchmark
+	public void rescheduleNoDupes() {
+		Runnable job = jobs[ThreadLocalRandom.current().nextInt(jobs.length)];
+		ticker.queueTimedJob(job, "outstanding", TimeUnit.HOURS.toMillis(2), true, true);
+	}
+
+	/** A job belonging to one thread, e.g. the resend check for one peer. */
+	@State(Scope.Thread)
+	public static class ThreadJob {
+		final Runnable job = new Runnable() {
+			@Override
+			public void run() {
+				// Do nothing.
+			}
+		};
+	}
+
+	/** Queue a job which runs almost immediately, e.g. a packet resend. */
+	@Benchmark
+	@Threads(4)
+	public void scheduleSoonContended(ThreadJob job) {
+		ticker.queueTimedJob(job.job, "soon", 1, true, false);
+	}
+
+}
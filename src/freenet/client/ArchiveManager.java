@@ -9,9 +9,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
@@ -27,14 +29,15 @@ import freenet.support.ExceptionWrapper;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
-import freenet.support.MutableBoolean;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
 import freenet.support.io.SkipShieldingInputStream;
 import net.contrapunctus.lzma.LzmaInputStream;
 
@@ -42,8 +45,10 @@ import net.contrapunctus.lzma.LzmaInputStream;
  * Cache of recently decoded archives:
  * - Keep up to N ArchiveHandler's in RAM (this can be large; we don't keep the
  * files open due to the limitations of the java.util.zip API)
- * - Keep up to Y bytes (after padding and overheads) of decoded data on disk
- * (the OS is quite capable of determining what to keep in actual RAM)
+ * - Keep up to Y bytes of decoded data on disk (the OS is quite capable of
+ * determining what to keep in actual RAM), a whole archive at a time: the files in
+ * an archive are written one after another to one temp file, with an index of where
+ * each one is, and read straight from there. See IndexedArchive.
  *
  * Always take the lock on ArchiveStoreContext before the lock on ArchiveManager, NOT the other way around.
  */
@@ -116,14 +121,16 @@ public class ArchiveManager {
 	private final LRUMap<FreenetURI, ArchiveStoreContext> archiveHandlers;
 
 	// Data cache
-	/** Maximum number of cached ArchiveStoreItems */
+	/** Maximum number of files in cached archives */
 	final int maxCachedElements;
 	/** Maximum cached data in bytes */
 	final long maxCachedData;
 	/** Currently cached data in bytes */
 	private long cachedData;
-	/** Map from ArchiveKey to ArchiveStoreElement */
-	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
+	/** Number of files in cached archives */
+	private int cachedElements;
+	/** Extracted archives, by the key they were fetched from */
+	private final LRUMap<FreenetURI, IndexedArchive> storedData;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
@@ -136,8 +143,7 @@ public class ArchiveManager {
 	 * @param maxArchivedFileSize The maximum extracted size of a single file in any
 	 * archive.
 	 * @param maxCachedElements The maximum number of cached elements (an element is a
-	 * file extracted from an archive. It is stored, encrypted and padded, in a single
-	 * file.
+	 * file extracted from an archive) in all the cached archives.
 	 * @param tempBucketFactory
 	 */
 	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
@@ -211,33 +217,34 @@ public class ArchiveManager {
 	 */
 	public Bucket getCached(FreenetURI key, String filename) throws ArchiveFailureException {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
-		ArchiveKey k = new ArchiveKey(key, filename);
-		ArchiveStoreItem asi = null;
+		IndexedArchive archive;
 		synchronized (this) {
-			asi = storedData.get(k);
-			if(asi == null) return null;
+			archive = storedData.get(key);
+			if(archive == null) return null;
 			// Promote to top of LRU
-			storedData.push(k, asi);
+			storedData.push(key, archive);
 		}
+		ArchiveStoreItem item = archive.get(filename);
+		if(item == null) return null;
 		if(logMINOR) Logger.minor(this, "Found data");
-		return asi.getReaderBucket();
+		return item.getReaderBucket();
 	}
 
 	/**
-	 * Remove a file from the cache. Called after it has been removed from its
-	 * ArchiveHandler.
-	 * @param item The ArchiveStoreItem to remove.
+	 * Remove an archive from the cache. Its data is freed once nobody is reading it.
+	 * @param key The key the archive was fetched from.
 	 */
-	synchronized void removeCachedItem(ArchiveStoreItem item) {
-		long size = item.spaceUsed();
-		storedData.removeKey(item.key);
-		// Hard disk space limit = remove it here.
-		// Soft disk space limit would be to remove it outside the lock.
-		// Soft disk space limit = we go over the limit significantly when we
-		// are overloaded.
-		cachedData -= size;
-		if(logMINOR) Logger.minor(this, "removeCachedItem: "+item);
-		item.close();
+	void removeCached(FreenetURI key) {
+		IndexedArchive archive;
+		synchronized(this) {
+			archive = storedData.get(key);
+			if(archive == null) return;
+			storedData.removeKey(key);
+			cachedData -= archive.spaceUsed();
+			cachedElements -= archive.size();
+		}
+		if(logMINOR) Logger.minor(this, "removeCached: "+archive);
+		archive.drop();
 	}
 
 	/**
@@ -257,10 +264,8 @@ public class ArchiveManager {
 	public void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 
-		MutableBoolean gotElement = element != null ? new MutableBoolean() : null;
-
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
-		ctx.removeAllCachedItems(this); // flush cache anyway
+		removeCached(key); // flush cache anyway
 		final long expectedSize = ctx.getLastSize();
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
@@ -291,8 +296,15 @@ public class ArchiveManager {
 		else if(logMINOR)
 			Logger.minor(this, "Container size (possibly compressed): "+archiveSize+" for "+data);
 
+		IndexedArchive archive = new IndexedArchive(key);
+		/** The element the caller asked for, if it isn't stored in the archive's data. */
+		Bucket tooBig = null;
 		InputStream is = null;
+		RandomAccessBucket packed = null;
+		CountedOutputStream out = null;
 		try {
+			packed = tempBucketFactory.makeBucket(-1);
+			out = new CountedOutputStream(packed.getOutputStream());
 			final ExceptionWrapper wrapper;
 			if((ctype == null) || (ARCHIVE_TYPE.ZIP == archiveType)) {
 				if(logMINOR) Logger.minor(this, "No compression");
@@ -348,27 +360,61 @@ public class ArchiveManager {
 			}
 
 			if(ARCHIVE_TYPE.ZIP == archiveType) {
-				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
+				tooBig = handleZIPArchive(archive, key, is, out, element);
 			} else if(ARCHIVE_TYPE.TAR == archiveType) {
 				 // COMPRESS-449 workaround, see https://freenet.mantishub.io/view.php?id=6921
-				handleTARArchive(ctx, key, new SkipShieldingInputStream(is), element, callback, gotElement, throwAtExit, context);
+				tooBig = handleTARArchive(archive, key, new SkipShieldingInputStream(is), out, element);
 			} else {
 				throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
 			}
 			if(wrapper != null) {
 				Exception e = wrapper.get();
-				if(e != null) throw new ArchiveFailureException("An exception occured decompressing: "+e.getMessage(), e);
+				if(e != null) {
+					if(tooBig != null) tooBig.free();
+					throw new ArchiveFailureException("An exception occured decompressing: "+e.getMessage(), e);
+				}
 			}
+			out.close();
+			out = null;
+			archive.setData(packed.toRandomAccessBuffer());
+			packed = null;
 		} catch (IOException ioe) {
+			if(tooBig != null) tooBig.free();
 			throw new ArchiveFailureException("An IOE occured: "+ioe.getMessage(), ioe);
 		} finally {
 			Closer.close(is);
-	}
+			Closer.close(out);
+			if(packed != null) packed.free();
+		}
+
+		Bucket elementData = tooBig;
+		if(element != null && elementData == null) {
+			ArchiveStoreItem item = archive.get(element);
+			// Before it goes in the cache, so it can't be freed before it reaches the client.
+			if(item != null) elementData = item.getReaderBucket();
+		}
+		if(archive.isIncomplete() || archive.spaceUsed() > maxCachedData || archive.size() > maxCachedElements) {
+			// It would only push everything else out of the cache, and then be dropped itself.
+			if(logMINOR) Logger.minor(this, "Not caching "+archive+" : "+archive.spaceUsed()+" bytes");
+			archive.drop();
+		} else {
+			putArchive(archive);
+		}
+		if(elementData != null)
+			callback.gotBucket(elementData, context);
+		if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+		if(element != null && elementData == null)
+			callback.notInArchive(context);
 	}
 
-	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	/**
+	 * Read a TAR archive into the packed data.
+	 * @return The element the caller asked for, if it isn't stored in the packed data, or null.
+	 */
+	private Bucket handleTARArchive(IndexedArchive archive, FreenetURI key, InputStream data, CountedOutputStream out, String element) throws ArchiveFailureException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarArchiveInputStream tarIS = null;
+		Bucket tooBig = null;
 		try {
 			tarIS = new TarArchiveInputStream(data);
 
@@ -379,7 +425,7 @@ public class ArchiveManager {
 			HashSet<String> names = new HashSet<>();
 			boolean gotMetadata = false;
 
-outerTAR:		while(true) {
+			while(true) {
 				try {
 				entry = tarIS.getNextEntry();
 				} catch (IllegalArgumentException e) {
@@ -389,71 +435,38 @@ outerTAR:		while(true) {
 				if(entry == null) break;
 				if(entry.isDirectory()) continue;
 				String name = stripLeadingSlashes(entry.getName());
-				if(names.contains(name)) {
+				if(archive.contains(name) || names.contains(name)) {
 					Logger.error(this, "Duplicate key "+name+" in archive "+key);
 					continue;
 				}
-				long size = entry.getSize();
-				if(name.equals(".metadata"))
+				if(name.equals(METADATA_NAME))
 					gotMetadata = true;
-				if(size > maxArchivedFileSize && !name.equals(element)) {
-					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-
-					try {
-						int readBytes;
-						while((readBytes = tarIS.read(buf)) > 0) {
-							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerTAR;
-							}
-						}
-						
-					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file.
-						callback.gotBucket(output, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-					}
-				}
+				Bucket b = packElement(archive, key, name, entry.getSize(), tarIS, out, buf, element, names);
+				if(b != null) tooBig = b;
 			}
 
 			// If no metadata, generate some
-			if(!gotMetadata) {
-				generateMetadata(ctx, key, names, gotElement, element, callback, context);
-				trimStoredData();
-			}
-			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
-
-			if((!gotElement.value) && element != null)
-				callback.notInArchive(context);
-
+			if(!gotMetadata)
+				generateMetadata(archive, names, out);
+			Bucket ret = tooBig;
+			tooBig = null;
+			return ret;
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(tooBig != null) tooBig.free();
 			Closer.close(tarIS);
 		}
 	}
 
-	private void handleZIPArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	/**
+	 * Read a ZIP archive into the packed data.
+	 * @return The element the caller asked for, if it isn't stored in the packed data, or null.
+	 */
+	private Bucket handleZIPArchive(IndexedArchive archive, FreenetURI key, InputStream data, CountedOutputStream out, String element) throws ArchiveFailureException {
 		if(logMINOR) Logger.minor(this, "Handling a ZIP Archive");
 		ZipInputStream zis = null;
+		Bucket tooBig = null;
 		try {
 			zis = new ZipInputStream(data);
 
@@ -464,69 +477,31 @@ outerTAR:		while(true) {
 			HashSet<String> names = new HashSet<>();
 			boolean gotMetadata = false;
 
-outerZIP:		while(true) {
+			while(true) {
 				entry = zis.getNextEntry();
 				if(entry == null) break;
 				if(entry.isDirectory()) continue;
 				String name = stripLeadingSlashes(entry.getName());
-				if(names.contains(name)) {
+				if(archive.contains(name) || names.contains(name)) {
 					Logger.error(this, "Duplicate key "+name+" in archive "+key);
 					continue;
 				}
-				long size = entry.getSize();
-				if(name.equals(".metadata"))
+				if(name.equals(METADATA_NAME))
 					gotMetadata = true;
-				if(size > maxArchivedFileSize && !name.equals(element)) {
-					addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-					try {
-						
-						int readBytes;
-						while((readBytes = zis.read(buf)) > 0) {
-							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerZIP;
-							}
-						}
-						
-					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file.
-						callback.gotBucket(output, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-					}
-				}
+				Bucket b = packElement(archive, key, name, entry.getSize(), zis, out, buf, element, names);
+				if(b != null) tooBig = b;
 			}
 
 			// If no metadata, generate some
-			if(!gotMetadata) {
-				generateMetadata(ctx, key, names, gotElement, element, callback, context);
-				trimStoredData();
-			}
-			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
-
-			if((!gotElement.value) && element != null)
-				callback.notInArchive(context);
-
+			if(!gotMetadata)
+				generateMetadata(archive, names, out);
+			Bucket ret = tooBig;
+			tooBig = null;
+			return ret;
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(tooBig != null) tooBig.free();
 			if(zis != null) {
 				try {
 					zis.close();
@@ -537,6 +512,78 @@ outerZIP:		while(true) {
 		}
 	}
 
+	/**
+	 * Copy one file from an archive to the end of the packed data, and index it, or index an
+	 * error if it is too big.
+	 *
+	 * Once the packed data is too big to cache, we stop storing files, and only copy the one the
+	 * caller asked for, to a bucket of its own. So an archive bigger than the cache costs no more
+	 * than that one file, plus what we had stored before we found out.
+	 * @param size The size the archive says the file is, or -1 if it doesn't say.
+	 * @param names The names of the files in the archive, to add this one to.
+	 * @return The data, if this is the element the caller asked for but it isn't stored in the
+	 * packed data. Otherwise null.
+	 */
+	private Bucket packElement(IndexedArchive archive, FreenetURI key, String name, long size, InputStream in, CountedOutputStream out, byte[] buf, String element, Set<String> names) throws IOException {
+		if(size > maxArchivedFileSize) {
+			addErrorElement(archive, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize);
+			if(!name.equals(element)) return null;
+			// We are here because they asked for this file.
+			return copyElement(size, in, buf);
+		}
+		if(!archive.isIncomplete() && (out.written() + Math.max(size, 0) > maxCachedData || archive.size() >= maxCachedElements)) {
+			if(logMINOR) Logger.minor(this, "Archive "+key+" too big to cache, only extracting "+element);
+			archive.setIncomplete();
+		}
+		if(archive.isIncomplete()) {
+			names.add(name);
+			if(!name.equals(element)) return null;
+			return copyElement(size, in, buf);
+		}
+		long offset = out.written();
+		long length = 0;
+		int readBytes;
+		while((readBytes = in.read(buf)) > 0) {
+			length += readBytes;
+			if(length > maxArchivedFileSize) {
+				// Bigger than it said. What we have written of it stays in the data, unused.
+				addErrorElement(archive, key, name, "File too big: "+length+" greater than current archived file size limit "+maxArchivedFileSize);
+				return null;
+			}
+			out.write(buf, 0, readBytes);
+		}
+		archive.addElement(name, offset, length);
+		names.add(name);
+		return null;
+	}
+
+	/** Copy one file from an archive to a bucket of its own. */
+	private Bucket copyElement(long size, InputStream in, byte[] buf) throws IOException {
+		Bucket output = tempBucketFactory.makeBucket(size);
+		OutputStream os = null;
+		try {
+			os = output.getOutputStream();
+			int readBytes;
+			while((readBytes = in.read(buf)) > 0)
+				os.write(buf, 0, readBytes);
+			os.close();
+			os = null;
+			Bucket ret = output;
+			output = null;
+			return ret;
+		} finally {
+			Closer.close(os);
+			if(output != null) output.free();
+		}
+	}
+
+	/** Add a file we generated to the end of the packed data, and index it. */
+	private void packBytes(IndexedArchive archive, String name, byte[] data, CountedOutputStream out) throws IOException {
+		long offset = out.written();
+		out.write(data);
+		archive.addElement(name, offset, data.length);
+	}
+
 	private String stripLeadingSlashes(String name) {
 		while(name.length() > 1 && name.charAt(0) == '/')
 			name = name.substring(1);
@@ -545,15 +592,12 @@ outerZIP:		while(true) {
 
 	/**
 	 * Generate fake metadata for an archive which doesn't have any.
-	 * @param ctx The context object.
-	 * @param key The key from which the archive we are unpacking was fetched.
+	 * @param archive The archive we are unpacking.
 	 * @param names Set of names in the archive.
-	 * @param element2
-	 * @param gotElement
-	 * @param callbackName If we generate a
+	 * @param out The packed data to write the metadata to.
 	 * @throws ArchiveFailureException
 	 */
-	private ArchiveStoreItem generateMetadata(ArchiveStoreContext ctx, FreenetURI key, Set<String> names, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
+	private void generateMetadata(IndexedArchive archive, Set<String> names, CountedOutputStream out) throws ArchiveFailureException, IOException {
 		/* What we have to do is to:
 		 * - Construct a filesystem tree of the names.
 		 * - Turn each level of the tree into a Metadata object, including those below it, with
@@ -569,31 +613,22 @@ outerZIP:		while(true) {
 		}
 		Metadata metadata = new Metadata(dir, "");
 		int x = 0;
-		Bucket bucket = null;
 		while(true) {
 			try {
-				bucket = metadata.toBucket(tempBucketFactory);
-				return addStoreElement(ctx, key, ".metadata", bucket, gotElement, element2, callback, context);
+				packBytes(archive, METADATA_NAME, metadata.writeToByteArray(), out);
+				return;
 			} catch (MetadataUnresolvedException e) {
-				try {
-					x = resolve(e, x, tempBucketFactory, ctx, key, gotElement, element2, callback, context);
-				} catch (IOException e1) {
-					throw new ArchiveFailureException("Failed to create metadata: "+e1, e1);
-				}
-			} catch (IOException e1) {
-				Logger.error(this, "Failed to create metadata: "+e1, e1);
-				throw new ArchiveFailureException("Failed to create metadata: "+e1, e1);
+				x = resolve(e, x, archive, out);
 			}
 		}
 	}
 
-	private int resolve(MetadataUnresolvedException e, int x, BucketFactory bf, ArchiveStoreContext ctx, FreenetURI key, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ClientContext context) throws IOException, ArchiveFailureException {
+	private int resolve(MetadataUnresolvedException e, int x, IndexedArchive archive, CountedOutputStream out) throws IOException {
 		for(Metadata m: e.mustResolve) {
 			try {
-			    addStoreElement(ctx, key, ".metadata-"+(x++), m.toBucket(bf), gotElement, element2, callback, context);
+				packBytes(archive, METADATA_NAME+"-"+(x++), m.writeToByteArray(), out);
 			} catch (MetadataUnresolvedException e1) {
-				x = resolve(e, x, bf, ctx, key, gotElement, element2, callback, context);
-				continue;
+				x = resolve(e1, x, archive, out);
 			}
 		}
 		return x;
@@ -625,92 +660,54 @@ outerZIP:		while(true) {
 	}
 
 	/**
-	 * Add an error element to the cache. This happens when a single file in the archive
+	 * Add an error element to the index. This happens when a single file in the archive
 	 * is invalid (usually because it is too large).
-	 * @param ctx The ArchiveStoreContext which must be notified about this element's creation.
+	 * @param archive The archive which is being extracted.
 	 * @param key The key from which the archive was fetched.
 	 * @param name The name of the file within the archive.
 	 * @param error The error message to be included on the eventual exception thrown,
 	 * if anyone tries to extract the data for this element.
 	 */
-	private void addErrorElement(ArchiveStoreContext ctx, FreenetURI key, String name, String error, boolean tooBig) {
-		ErrorArchiveStoreItem element = new ErrorArchiveStoreItem(ctx, key, name, error, tooBig);
-		element.addToContext();
-		if(logMINOR) Logger.minor(this, "Adding error element: "+element+" for "+key+ ' ' +name);
-		ArchiveStoreItem oldItem;
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			if(oldItem != null) {
-				oldItem.close();
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-			}
-		}
-	}
-
-	/**
-	 * Add a store element.
-	 * @param callbackName If set, the name of the file for which we must call the callback if this file happens to
-	 * match.
-	 * @param gotElement Flag indicating whether we've already found the file for the callback. If so we must not call
-	 * it again.
-	 * @param callback Callback to be called if we do find it. We must getReaderBucket() before adding the data to the
-	 * LRU, otherwise it may be deleted before it reaches the client.
-	 * @throws ArchiveFailureException If a failure occurred resulting in the data not being readable. Only happens if
-	 * callback != null.
-	 */
-	private ArchiveStoreItem addStoreElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket temp, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
-		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
-		element.addToContext();
-		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
-		ArchiveStoreItem oldItem;
-		// Let it throw, if it does something is drastically wrong
-		Bucket matchBucket = null;
-		if((!gotElement.value) && name.equals(callbackName)) {
-			matchBucket = element.getReaderBucket();
-		}
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			cachedData += element.spaceUsed();
-			if(oldItem != null) {
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-				oldItem.close();
-			}
-		}
-		if(matchBucket != null) {
-			callback.gotBucket(matchBucket, context);
-			gotElement.value = true;
-		}
-		return element;
+	private void addErrorElement(IndexedArchive archive, FreenetURI key, String name, String error) {
+		if(logMINOR) Logger.minor(this, "Adding error element for "+key+ ' ' +name+" : "+error);
+		archive.addError(name, error, true);
 	}
 
 	/**
-	 * Drop any stored data beyond the limit.
-	 * Call synchronized on storedData.
+	 * Add a newly extracted archive to the cache, replacing any older copy, and drop the least
+	 * recently used archives if we are over the limits.
 	 */
-	private void trimStoredData() {
+	private void putArchive(IndexedArchive archive) {
+		List<IndexedArchive> dropped = new ArrayList<>();
 		synchronized(this) {
-		while(true) {
-			ArchiveStoreItem item;
-				if(cachedData <= maxCachedData && storedData.size() <= maxCachedElements) return;
+			IndexedArchive old = storedData.get(archive.key);
+			if(old != null) {
+				storedData.removeKey(archive.key);
+				cachedData -= old.spaceUsed();
+				cachedElements -= old.size();
+				dropped.add(old);
+			}
+			storedData.push(archive.key, archive);
+			cachedData += archive.spaceUsed();
+			cachedElements += archive.size();
+			if(logMINOR) Logger.minor(this, "Added "+archive+" ( "+archive.spaceUsed()+" bytes )");
+			while(cachedData > maxCachedData || cachedElements > maxCachedElements) {
 				if(storedData.isEmpty()) {
 					// Race condition? cachedData out of sync?
 					Logger.error(this, "storedData is empty but still over limit: cachedData="+cachedData+" / "+maxCachedData);
-					return;
+					break;
 				}
-				item = storedData.popValue();
-				long space = item.spaceUsed();
-				cachedData -= space;
-				// Hard limits = delete file within lock, soft limits = delete outside of lock
-				// Here we use a hard limit
-			if(logMINOR)
-				Logger.minor(this, "Dropping "+item+" : cachedData="+cachedData+" of "+maxCachedData+" stored items : "+storedData.size()+" of "+maxCachedElements);
-			item.close();
-		}
+				IndexedArchive item = storedData.popValue();
+				cachedData -= item.spaceUsed();
+				cachedElements -= item.size();
+				if(logMINOR)
+					Logger.minor(this, "Dropping "+item+" : cachedData="+cachedData+" of "+maxCachedData+" stored items : "+cachedElements+" of "+maxCachedElements);
+				dropped.add(item);
+			}
 		}
+		// Each is freed once nobody is reading from it.
+		for(IndexedArchive item : dropped)
+			item.drop();
 	}
 
 }
@@ -11,6 +11,18 @@ public abstract class FECCodec {
     public static final long MIN_MEMORY_ALLOCATION = 8*1024*1024+256*1024;
     public static final int MAX_TOTAL_BLOCKS_PER_SEGMENT = 256;
     
+    /** If true, use FastFECCodec rather than the onion-fec library. They produce the same 
+     * output, so this can be changed at any time. */
+    private static volatile boolean useFastCodec = true;
+    
+    public static void setUseFastCodec(boolean val) {
+        useFastCodec = val;
+    }
+    
+    public static boolean getUseFastCodec() {
+        return useFastCodec;
+    }
+    
     /** Maximum memory usage with the given number of data blocks and check blocks, not including 
      * the blocks themselves. */
     public abstract long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks);
@@ -48,7 +60,7 @@ public abstract class FECCodec {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
-            return new OnionFECCodec();
+            return useFastCodec ? new FastFECCodec() : new OnionFECCodec();
         default:
             throw new IllegalArgumentException();
         }
@@ -0,0 +1,290 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * An extracted archive: the files in it, stored one after another in a single buffer, and an
+ * index of where each one is. Files are read straight from the buffer, so extracting an archive
+ * writes one temp file however many files are in it, and the archive cache only has to keep
+ * track of archives rather than of every file in them.
+ *
+ * The buffer is freed when the archive has been dropped from the cache and the last Bucket read
+ * from it has been freed: each Bucket counts as a reader until its free() is called. A Bucket
+ * which is never freed keeps the buffer until the archive is garbage collected, when the temp
+ * buffer frees itself like any other.
+ */
+final class IndexedArchive {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	final FreenetURI key;
+	/** Name of a file in the archive to where it is, or why it isn't there. */
+	private final HashMap<String, ArchiveStoreItem> items = new HashMap<>();
+	/** The files. Null until setData(). */
+	private LockableRandomAccessBuffer data;
+	/** Buckets handed out and not yet freed. */
+	private int readers;
+	/** No longer in the cache: free the data when the last reader is done. */
+	private boolean dropped;
+	private boolean freed;
+	/** Set if we stopped storing files part way through extracting, because the archive is too
+	 * big to cache. It is then only used for the file the caller asked for. Not thread-safe:
+	 * only used while extracting. */
+	private boolean incomplete;
+
+	IndexedArchive(FreenetURI key) {
+		this.key = key;
+	}
+
+	/** Index a file which has been written to the data at the given offset. Not thread-safe:
+	 * only called while extracting, before the archive is shared. */
+	void addElement(String name, long offset, long length) {
+		items.put(name, new RealArchiveStoreItem(this, offset, length));
+	}
+
+	/** Index a file which we couldn't extract, usually because it is too big.
+	 * @param error The message for the exception thrown if somebody tries to get it. */
+	void addError(String name, String error, boolean tooBig) {
+		items.put(name, new ErrorArchiveStoreItem(error, tooBig));
+	}
+
+	/** Stop storing files: the archive won't be cached. */
+	void setIncomplete() {
+		incomplete = true;
+	}
+
+	boolean isIncomplete() {
+		return incomplete;
+	}
+
+	boolean contains(String name) {
+		return items.containsKey(name);
+	}
+
+	/** @return What we know about the given file, or null if it isn't in the archive. */
+	ArchiveStoreItem get(String name) {
+		return items.get(name);
+	}
+
+	/** Number of files indexed, including those we couldn't extract. */
+	int size() {
+		return items.size();
+	}
+
+	/** Set the buffer the files were written to, once extraction has finished. */
+	synchronized void setData(LockableRandomAccessBuffer data) {
+		this.data = data;
+	}
+
+	/** Bytes of stored data. */
+	synchronized long spaceUsed() {
+		return data == null ? 0 : data.size();
+	}
+
+	/**
+	 * Get one file from the data, which won't be freed until the Bucket has been freed.
+	 * @return The Bucket, or null if the archive has already been dropped and freed.
+	 */
+	synchronized Bucket open(long offset, long length) {
+		if(freed || data == null) return null;
+		readers++;
+		return new SliceBucket(offset, length);
+	}
+
+	/** Called when the archive has been removed from the cache. */
+	void drop() {
+		synchronized(this) {
+			dropped = true;
+			if(readers > 0) return;
+		}
+		free();
+	}
+
+	private void release() {
+		synchronized(this) {
+			readers--;
+			if(!(dropped && readers == 0)) return;
+		}
+		free();
+	}
+
+	private void free() {
+		LockableRandomAccessBuffer toFree;
+		synchronized(this) {
+			if(freed) return;
+			freed = true;
+			toFree = data;
+		}
+		if(logMINOR) Logger.minor(this, "Freeing "+this);
+		if(toFree != null) toFree.free();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+key+":"+items.size()+" files";
+	}
+
+	/** One file, read straight from the data. */
+	private class SliceBucket implements Bucket {
+
+		private final long offset;
+		private final long length;
+		private boolean released;
+
+		SliceBucket(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return getInputStreamUnbuffered();
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			synchronized(this) {
+				if(released) throw new IOException("Already freed");
+			}
+			return new SliceInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public String getName() {
+			return key+" @ "+offset;
+		}
+
+		@Override
+		public long size() {
+			return length;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(released) return;
+				released = true;
+			}
+			release();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) throws ResumeFailedException {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		@Override
+		public void storeTo(DataOutputStream dos) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		private class SliceInputStream extends InputStream {
+
+			/** Bytes read so far. */
+			private long read;
+			private long mark;
+
+			@Override
+			public int read() throws IOException {
+				byte[] buf = new byte[1];
+				return read(buf, 0, 1) < 0 ? -1 : (buf[0] & 0xFF);
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				if(read >= length) return -1;
+				len = (int) Math.min(len, length - read);
+				if(len == 0) return 0;
+				checkOpen();
+				data.pread(offset + read, buf, off, len);
+				read += len;
+				return len;
+			}
+
+			@Override
+			public long skip(long n) {
+				if(n <= 0) return 0;
+				n = Math.min(n, length - read);
+				read += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return (int) Math.min(Integer.MAX_VALUE, length - read);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return true;
+			}
+
+			@Override
+			public void mark(int readLimit) {
+				mark = read;
+			}
+
+			@Override
+			public void reset() {
+				read = mark;
+			}
+
+			private void checkOpen() throws IOException {
+				synchronized(SliceBucket.this) {
+					if(released) throw new IOException("Already freed");
+				}
+			}
+		}
+
+	}
+
+}
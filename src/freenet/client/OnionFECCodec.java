@@ -71,7 +71,7 @@ public class OnionFECCodec extends FECCodec {
     
     private static final LRUMap<CodecKey, SoftReference<PureCode>> recentlyUsedCodecs = LRUMap.createSafeMap();
 
-    private static class CodecKey implements Comparable<CodecKey> {
+    static class CodecKey implements Comparable<CodecKey> {
         /** Number of input blocks */
         int k;
         /** Number of output blocks, including input blocks */
@@ -0,0 +1,383 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
+import freenet.keys.CHKBlock;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.CompressionOutputSizeException;
+import freenet.support.compress.CompressionRatioException;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Tries all the codecs for an insert at once, rather than one after another as InsertCompressor
+ * normally does, so a large insert only takes as long as its slowest useful codec, not the sum
+ * of all of them.
+ *
+ * We compress a sample of the data first to guess which codec will do best. The calling thread
+ * runs that one, and the others go to the executor; if they haven't started by the time the
+ * caller is free, the caller runs them itself, so we never wait for a thread that isn't coming.
+ * As soon as a codec has written enough that it can't be chosen, we abandon it.
+ *
+ * The codec chosen is always the one the sequential loop in InsertCompressor would choose, and
+ * its output is exactly the same, so the Metadata and the keys don't depend on which we used:
+ * the first codec in the list whose output fits in minSize, or failing that, the first codec
+ * with the fewest blocks, provided that is fewer than the original data.
+ */
+class CompressionTrials {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(CompressionTrials.class);
+	}
+
+	/** Don't bother for less than this; the sequential loop will be fast anyway. */
+	static final long MIN_SIZE = 1024 * 1024;
+	/** We compress this many pieces of the data, spread evenly through it, to rank the codecs. */
+	static final int SAMPLE_CHUNKS = 4;
+	static final int SAMPLE_CHUNK_SIZE = 64 * 1024;
+
+	private final RandomAccessBucket origData;
+	private final BucketFactory bucketFactory;
+	/** In the order we would try them sequentially. This decides ties. */
+	private final COMPRESSOR_TYPE[] comps;
+	private final int minSize;
+	private final long amountOfDataToCheckCompressionRatio;
+	private final int minimumCompressionPercentage;
+	private final long generateHashes;
+	private final Executor executor;
+	private final long origSize;
+	private final long origNumberOfBlocks;
+
+	/** Compressed sizes, by position in comps, or -1 if not finished or failed. */
+	private final long[] sizes;
+	/** How much each codec can write before it can no longer be chosen. Replaced when a codec
+	 * finishes. */
+	private volatile long[] limits;
+
+	CompressionTrials(RandomAccessBucket origData, BucketFactory bf, COMPRESSOR_TYPE[] comps, int minSize,
+			long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage, long generateHashes,
+			Executor executor) {
+		this.origData = origData;
+		this.bucketFactory = bf;
+		this.comps = comps;
+		this.minSize = minSize;
+		this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+		this.minimumCompressionPercentage = minimumCompressionPercentage;
+		this.generateHashes = generateHashes;
+		this.executor = executor;
+		origSize = origData.size();
+		origNumberOfBlocks = origSize / CHKBlock.DATA_LENGTH;
+		sizes = new long[comps.length];
+		Arrays.fill(sizes, -1);
+		long[] l = new long[comps.length];
+		Arrays.fill(l, origSize);
+		limits = l;
+	}
+
+	/** Called when we start trying a codec. May be called from any thread. */
+	protected void onStartCompression(COMPRESSOR_TYPE comp) {
+		// Do nothing.
+	}
+
+	/** Thrown by LimitedOutputStream when the codec can no longer be chosen. */
+	private static class TrialAbandonedException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private class LimitedOutputStream extends FilterOutputStream {
+		private final int index;
+		private long written;
+		private boolean abandoned;
+
+		LimitedOutputStream(OutputStream os, int index) {
+			super(os);
+			this.index = index;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			check(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			check(length);
+			out.write(buf, offset, length);
+		}
+
+		private void check(int length) throws IOException {
+			written += length;
+			if(written > limits[index]) {
+				abandoned = true;
+				throw new TrialAbandonedException();
+			}
+		}
+	}
+
+	/**
+	 * Compress the data with all the codecs and choose the best.
+	 * @return The chosen data and codec. If no codec helps, the original data with a null codec.
+	 * @throws IOException If we can't read the data or write the compressed data.
+	 */
+	CompressionOutput run() throws IOException {
+		Integer[] order = rank();
+		List<FutureTask<RandomAccessBucket>> tasks = new ArrayList<FutureTask<RandomAccessBucket>>(comps.length);
+		final HashResult[][] hashes = new HashResult[1][];
+		for(int i=0;i<comps.length;i++) {
+			final int index = i;
+			// The calling thread generates the hashes, the same way as the sequential loop.
+			final boolean hash = generateHashes != 0 && i == order[0];
+			tasks.add(new FutureTask<RandomAccessBucket>(new Callable<RandomAccessBucket>() {
+				@Override
+				public RandomAccessBucket call() throws IOException {
+					return compress(index, hash, hashes);
+				}
+			}));
+		}
+		for(int i=1;i<order.length;i++) {
+			try {
+				executor.execute(tasks.get(order[i]));
+			} catch (RejectedExecutionException e) {
+				// Shutting down. We'll run it ourselves.
+			}
+		}
+		RandomAccessBucket[] results = new RandomAccessBucket[comps.length];
+		IOException failure = null;
+		for(int i : order) {
+			FutureTask<RandomAccessBucket> task = tasks.get(i);
+			task.run();
+			try {
+				results[i] = getUninterruptibly(task);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException) {
+					if(failure == null) failure = (IOException) cause;
+				} else {
+					// ArithmeticException has been seen in bzip2 codec.
+					Logger.error(this, "Compression failed with codec "+comps[i]+" : "+cause, cause);
+				}
+			}
+		}
+		if(failure != null) {
+			for(RandomAccessBucket b : results)
+				if(b != null) b.free();
+			throw failure;
+		}
+		int chosen = choose();
+		for(int i=0;i<results.length;i++) {
+			if(i != chosen && results[i] != null)
+				results[i].free();
+		}
+		HashResult[] hashResults = hashes[0];
+		if(hashResults == null && generateHashes != 0)
+			hashResults = hash();
+		if(logMINOR)
+			Logger.minor(this, "Compressed "+origSize+" bytes: sizes "+Arrays.toString(sizes)+" for "+Arrays.toString(comps)+" chose "+(chosen == -1 ? "none" : comps[chosen]));
+		if(chosen == -1)
+			return new CompressionOutput(origData, null, hashResults);
+		return new CompressionOutput(results[chosen], comps[chosen], hashResults);
+	}
+
+	private static RandomAccessBucket getUninterruptibly(FutureTask<RandomAccessBucket> task) throws ExecutionException {
+		while(true) {
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+	}
+
+	/** Run one codec.
+	 * @return The compressed data, or null if the codec can't be chosen. */
+	private RandomAccessBucket compress(int index, boolean hash, HashResult[][] hashes) throws IOException {
+		COMPRESSOR_TYPE comp = comps[index];
+		if(limits[index] < 0) return null;
+		onStartCompression(comp);
+		InputStream is = null;
+		LimitedOutputStream os = null;
+		MultiHashInputStream hasher = null;
+		RandomAccessBucket result = bucketFactory.makeBucket(-1);
+		boolean success = false;
+		try {
+			is = origData.getInputStream();
+			if(hash)
+				is = hasher = new MultiHashInputStream(is, generateHashes);
+			os = new LimitedOutputStream(result.getOutputStream(), index);
+			try {
+				comp.compress(is, os, origSize, origSize, amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+			} catch (CompressionOutputSizeException | CompressionRatioException e) {
+				if(hasher != null) {
+					is.skip(Long.MAX_VALUE);
+					hashes[0] = hasher.getResults();
+				}
+				return null;
+			} catch (IOException e) {
+				if(!os.abandoned) throw e;
+				if(logMINOR) Logger.minor(this, "Abandoned "+comp+" after "+os.written+" bytes");
+				if(hasher != null) {
+					is.skip(Long.MAX_VALUE);
+					hashes[0] = hasher.getResults();
+				}
+				return null;
+			}
+			if(hasher != null)
+				hashes[0] = hasher.getResults();
+			os.close();
+			os = null;
+			success = true;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+			if(!success) result.free();
+		}
+		finished(index, result.size());
+		return result;
+	}
+
+	/** Record that a codec has finished, and tighten the limits on the others. */
+	private synchronized void finished(int index, long size) {
+		sizes[index] = size;
+		long[] l = new long[comps.length];
+		for(int j=0;j<comps.length;j++)
+			l[j] = limit(j);
+		limits = l;
+	}
+
+	/** How many bytes can codec j write and still be chosen? -1 if it can't be chosen at all. */
+	private long limit(int j) {
+		// A codec must have fewer blocks than the original data.
+		long blocks = origNumberOfBlocks;
+		for(int i=0;i<comps.length;i++) {
+			if(i == j || sizes[i] < 0) continue;
+			if(i < j) {
+				// An earlier codec which fits in minSize always wins.
+				if(sizes[i] <= minSize) return -1;
+				// Earlier codecs win ties.
+				blocks = Math.min(blocks, sizes[i] / CHKBlock.DATA_LENGTH);
+			} else {
+				blocks = Math.min(blocks, sizes[i] / CHKBlock.DATA_LENGTH + 1);
+			}
+		}
+		// Once we have written this many blocks, we can't get below the best so far, but if we
+		// fit in minSize we win anyway.
+		return Math.max(minSize, blocks * CHKBlock.DATA_LENGTH - 1);
+	}
+
+	/** Choose a codec in the same way as the sequential loop in InsertCompressor.
+	 * @return The index of the codec, or -1 to use the original data. */
+	private synchronized int choose() {
+		int best = -1;
+		long bestNumberOfBlocks = origNumberOfBlocks;
+		for(int i=0;i<comps.length;i++) {
+			if(sizes[i] < 0) continue;
+			if(sizes[i] <= minSize) return i;
+			long blocks = sizes[i] / CHKBlock.DATA_LENGTH;
+			if(blocks < bestNumberOfBlocks) {
+				best = i;
+				bestNumberOfBlocks = blocks;
+			}
+		}
+		return best;
+	}
+
+	/** Compress a sample of the data with each codec, to guess which will do best.
+	 * @return Indexes into comps, best first. */
+	private Integer[] rank() {
+		Integer[] order = new Integer[comps.length];
+		for(int i=0;i<order.length;i++)
+			order[i] = i;
+		final long[] sampleSizes = new long[comps.length];
+		byte[] sample;
+		try {
+			sample = readSample();
+		} catch (IOException e) {
+			// We'll find out properly when we compress it.
+			Logger.normal(this, "Unable to read sample for "+origData+" : "+e, e);
+			return order;
+		}
+		for(int i=0;i<comps.length;i++) {
+			try {
+				sampleSizes[i] = comps[i].compress(new ByteArrayInputStream(sample), new NullOutputStream(),
+						sample.length, Long.MAX_VALUE);
+			} catch (Throwable t) {
+				sampleSizes[i] = Long.MAX_VALUE;
+			}
+		}
+		// Stable, so ties keep the normal order.
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(sampleSizes[a], sampleSizes[b]);
+			}
+		});
+		if(logMINOR)
+			Logger.minor(this, "Sample sizes "+Arrays.toString(sampleSizes)+" for "+Arrays.toString(comps));
+		return order;
+	}
+
+	private byte[] readSample() throws IOException {
+		int chunks = (int) Math.min(SAMPLE_CHUNKS, origSize / SAMPLE_CHUNK_SIZE);
+		if(chunks == 0) chunks = 1;
+		int chunkSize = (int) Math.min(SAMPLE_CHUNK_SIZE, origSize);
+		byte[] sample = new byte[chunks * chunkSize];
+		long gap = (origSize - (long)chunks * chunkSize) / chunks;
+		DataInputStream dis = new DataInputStream(origData.getInputStream());
+		try {
+			for(int i=0;i<chunks;i++) {
+				if(i > 0) skipFully(dis, gap);
+				dis.readFully(sample, i * chunkSize, chunkSize);
+			}
+		} finally {
+			dis.close();
+		}
+		return sample;
+	}
+
+	private static void skipFully(InputStream is, long length) throws IOException {
+		while(length > 0) {
+			long skipped = is.skip(length);
+			if(skipped <= 0) {
+				if(is.read() == -1) throw new IOException("Unexpected end of data");
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	/** Generate the hashes separately, if the codec which was going to failed. */
+	private HashResult[] hash() throws IOException {
+		MultiHashInputStream hasher = new MultiHashInputStream(origData.getInputStream(), generateHashes);
+		try {
+			hasher.skip(Long.MAX_VALUE);
+			return hasher.getResults();
+		} finally {
+			hasher.close();
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+
+/**
+ * A KeyListener for many keys, e.g. a splitfile, which can list the keys it wants.
+ * KeyListenerTracker registers them in its SaltedKeyIndex, so it only asks this listener about
+ * keys it might want, instead of asking every listener about every block.
+ */
+interface IndexedKeyListener extends KeyListener {
+
+	/**
+	 * Add every key we might still want to the batch, salted with the salter. It doesn't matter
+	 * if we include some keys we no longer want, probablyWantKey() will still be called.
+	 * LOCKING: Called without holding the KeyListenerTracker lock, as it may need to read the keys
+	 * from disk.
+	 * @throws IOException If we can't read the keys. The listener will then be asked about every
+	 * key, as with other KeyListener's.
+	 */
+	void addWantedKeys(KeySalter salter, SaltedKeyIndex.Batch batch) throws IOException;
+
+}
@@ -3,6 +3,7 @@ package freenet.client.async;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
@@ -107,30 +108,34 @@ public class InsertCompressor implements CompressJob {
 			boolean first = true;
 			long amountOfDataToCheckCompressionRatio = config.get("node").getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
+			Executor trialExecutor = context.rc.getTrialExecutor();
+			if(comps.length > 1 && origSize >= CompressionTrials.MIN_SIZE && trialExecutor != null &&
+					config.get("node").getBoolean("compressInParallel")) {
+				CompressionTrials trials = new CompressionTrials(origData, bucketFactory, comps, minSize,
+						amountOfDataToCheckCompressionRatio, minimumCompressionPercentage, generateHashes, trialExecutor) {
+
+					@Override
+					protected void onStartCompression(COMPRESSOR_TYPE comp) {
+						try {
+							startCompression(comp, context);
+						} catch (PersistenceDisabledException e) {
+							// We will find out when we have finished.
+						}
+					}
+
+				};
+				CompressionOutput output = trials.run();
+				bestCompressedData = output.data;
+				onCompressed(output, context);
+				return;
+			}
 			for (final COMPRESSOR_TYPE comp : comps) {
 				boolean shouldFreeOnFinally = true;
 				RandomAccessBucket result = null;
 				try {
 					if(logMINOR)
 						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+					startCompression(comp, context);
 
 					InputStream is = null;
 					OutputStream os = null;
@@ -210,40 +215,7 @@ public class InsertCompressor implements CompressJob {
 			}
 
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
-
-			if(persistent) {
-
-				context.jobRunner.queue(new PersistentJob() {
-
-				    // This can wait until after the next checkpoint, because it's still in the
-				    // persistentInsertCompressors list, so will be restarted if necessary.
-					@Override
-					public boolean run(ClientContext context) {
-						inserter.onCompressed(output, context);
-						return true;
-					}
-
-				}, NativeThread.NORM_PRIORITY+1);
-			} else {
-				// We do it off thread so that RealCompressor can release the semaphore
-				context.mainExecutor.execute(new PrioRunnable() {
-
-					@Override
-					public int getPriority() {
-						return NativeThread.NORM_PRIORITY;
-					}
-
-					@Override
-					public void run() {
-						try {
-							inserter.onCompressed(output, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Caught "+t+" running compression job", t);
-						}
-					}
-
-				}, "Insert thread for "+this);
-			}
+			onCompressed(output, context);
 		} catch (PersistenceDisabledException e) {
 			Logger.error(this, "Database disabled compressing data", new Exception("error"));
 			if(bestCompressedData != null && bestCompressedData != origData)
@@ -255,6 +227,63 @@ public class InsertCompressor implements CompressJob {
 		}
 	}
 
+	private void startCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		// Only produce if we are compressing *the original data*
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	private void onCompressed(final CompressionOutput output, final ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+
+			context.jobRunner.queue(new PersistentJob() {
+
+			    // This can wait until after the next checkpoint, because it's still in the
+			    // persistentInsertCompressors list, so will be restarted if necessary.
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onCompressed(output, context);
+					return true;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			// We do it off thread so that RealCompressor can release the semaphore
+			context.mainExecutor.execute(new PrioRunnable() {
+
+				@Override
+				public int getPriority() {
+					return NativeThread.NORM_PRIORITY;
+				}
+
+				@Override
+				public void run() {
+					try {
+						inserter.onCompressed(output, context);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" running compression job", t);
+					}
+				}
+
+			}, "Insert thread for "+this);
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -5,6 +5,7 @@ package freenet.client.async;
 
 import static java.lang.String.format;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -69,6 +70,9 @@ class KeyListenerTracker implements KeySalter {
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
 	protected final ArrayList<KeyListener> keyListeners;
 	protected final Map<ByteArrayWrapper,Object> singleKeyListeners;
+	/** The keys wanted by IndexedKeyListener's. These are not in keyListeners unless we couldn't
+	 * get their keys. */
+	private final SaltedKeyIndex keyIndex;
 
 	final boolean persistent;
 	
@@ -83,6 +87,7 @@ class KeyListenerTracker implements KeySalter {
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
 		singleKeyListeners = this.isSSKScheduler ? new TreeMap<ByteArrayWrapper,Object>(ByteArrayWrapper.FAST_COMPARATOR) : new HashMap<ByteArrayWrapper,Object>();
+		keyIndex = new SaltedKeyIndex();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -115,6 +120,20 @@ class KeyListenerTracker implements KeySalter {
 		byte[] wantedKey = listener.getWantedKey();
 		ByteArrayWrapper wrapper = wantedKey != null ? new ByteArrayWrapper(saltKey(wantedKey)) : null;
 		assert(Arrays.equals(wantedKey, listener.getHasKeyListener().getWantedKey()));
+		SaltedKeyIndex.Batch batch = null;
+		if(wantedKey == null && listener instanceof IndexedKeyListener) {
+			// Get the keys before taking the lock, this may involve disk I/O.
+			batch = new SaltedKeyIndex.Batch();
+			try {
+				((IndexedKeyListener)listener).addWantedKeys(this, batch);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to read keys for "+listener+" : "+e+" - will check every block with it", e);
+				batch = null;
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in addWantedKeys callback for %s", listener), t);
+				batch = null;
+			}
+		}
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
 			if(wantedKey != null) {
@@ -134,13 +153,16 @@ class KeyListenerTracker implements KeySalter {
 					singleKeyListeners.put(wrapper, newListeners);
 				}
 			} else {
-				if(keyListeners.contains(listener))
+				if(keyListeners.contains(listener) || keyIndex.contains(listener))
 					return;
-				keyListeners.add(listener);
+				if(batch != null)
+					keyIndex.add(listener, batch);
+				else
+					keyListeners.add(listener);
 			}
 		}
 		if (logMINOR)
-			Logger.minor(this, "Added pending keys to "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
+			Logger.minor(this, "Added pending keys to "+this+" : size now "+sizeString()+" : "+listener+(batch == null ? "" : " with "+batch.size()+" keys indexed"));
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
@@ -186,13 +208,13 @@ class KeyListenerTracker implements KeySalter {
 					}
 				}
 			} else {
-				ret = keyListeners.remove(listener);
+				ret = keyIndex.removeAll(listener) || keyListeners.remove(listener);
 			}
 			listener.onRemove();
 		}
 		listener.onRemove();
 		if (logMINOR)
-			Logger.minor(this, "Removed pending keys from "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener, new Exception("debug"));
+			Logger.minor(this, "Removed pending keys from "+this+" : size now "+sizeString()+" : "+listener, new Exception("debug"));
 		return ret;
 	}
 	
@@ -243,11 +265,22 @@ class KeyListenerTracker implements KeySalter {
 							singleKeyListeners.put(wrapper,newListeners);
 						}
 						if (logMINOR)
-							Logger.minor(this, "Removed pending keys from " + this + " : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size() + msg);
+							Logger.minor(this, "Removed pending keys from " + this + " : size now "+sizeString() + msg);
 					}
 				}
 				return ret;
 			}
+			ArrayList<KeyListener> indexed = new ArrayList<KeyListener>();
+			keyIndex.getListeners(indexed);
+			for(KeyListener listener : indexed) {
+				if(listener.getHasKeyListener() == hasListener) {
+					ret = true;
+					keyIndex.removeAll(listener);
+					listener.onRemove();
+					if (logMINOR)
+						Logger.minor(this, "Removed pending keys from "+this+" : size now "+sizeString()+" : "+listener);
+				}
+			}
 			for(Iterator<KeyListener> i = keyListeners.iterator();i.hasNext();) {
 				KeyListener listener = i.next();
 				if(listener.getHasKeyListener() == hasListener) {
@@ -255,7 +288,7 @@ class KeyListenerTracker implements KeySalter {
 					i.remove();
 					listener.onRemove();
 					if (logMINOR)
-						Logger.minor(this, "Removed pending keys from "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
+						Logger.minor(this, "Removed pending keys from "+this+" : size now "+sizeString()+" : "+listener);
 				}
 			}
 		}
@@ -284,6 +317,14 @@ class KeyListenerTracker implements KeySalter {
 				matches.add(listener);
 			}
 		}
+		ArrayList<KeyListener> candidates = indexCandidates(saltedKey);
+		if(candidates != null) {
+			for(KeyListener listener : candidates) {
+				if(!listener.probablyWantKey(key, saltedKey)) continue;
+				if(matches == null) matches = new ArrayList<KeyListener> ();
+				matches.add(listener);
+			}
+		}
 		for(KeyListener listener : keyListeners) {
 			if(!listener.probablyWantKey(key, saltedKey)) continue;
 			if(matches == null) matches = new ArrayList<KeyListener> ();
@@ -291,6 +332,20 @@ class KeyListenerTracker implements KeySalter {
 		}
 		return matches;
 	}
+
+	/** Get the IndexedKeyListener's which might want a key, or null if there are none. The caller
+	 * must still check them with probablyWantKey(). Caller must hold the lock. */
+	private ArrayList<KeyListener> indexCandidates(byte[] saltedKey) {
+		if(keyIndex.size() == 0) return null;
+		ArrayList<KeyListener> candidates = new ArrayList<KeyListener>(1);
+		keyIndex.getCandidates(saltedKey, candidates);
+		return candidates.isEmpty() ? null : candidates;
+	}
+
+	private String sizeString() {
+		return keyListeners.size()+"/"+singleKeyListeners.size()+"/"+keyIndex.listenerCount()+" ("+keyIndex.size()+" keys)";
+	}
+
 	public short getKeyPrio(Key key, short priority, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
@@ -324,7 +379,9 @@ class KeyListenerTracker implements KeySalter {
 					count += listener.countKeys();
 			}
 		}
-		for (KeyListener listener : keyListeners) {
+		ArrayList<KeyListener> listeners = new ArrayList<KeyListener>(keyListeners);
+		keyIndex.getListeners(listeners);
+		for (KeyListener listener : listeners) {
 			try {
 				count += listener.countKeys();
 			} catch (Throwable t) {
@@ -370,6 +427,18 @@ class KeyListenerTracker implements KeySalter {
 					return true;
 			}
 		}
+		ArrayList<KeyListener> candidates = indexCandidates(saltedKey);
+		if(candidates != null) {
+			for (KeyListener listener : candidates) {
+				try {
+					if (listener.probablyWantKey(key, saltedKey)) {
+						return true;
+					}
+				} catch (Throwable t) {
+					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+				}
+			}
+		}
 		for (KeyListener listener : keyListeners) {
 			try {
 				if (listener.probablyWantKey(key, saltedKey)) {
@@ -399,6 +468,12 @@ class KeyListenerTracker implements KeySalter {
 				try {
 					if (listener.handleBlock(key, saltedKey, block, context)) {
 						ret = true;
+						if (listener instanceof IndexedKeyListener) {
+							// It has removed the key from its own filter, so remove it from ours.
+							synchronized(this) {
+								keyIndex.remove(listener, saltedKey);
+							}
+						}
 					}
 				} catch (Throwable t) {
 					Logger.error(this, format("Error in handleBlock callback for %s", listener), t);
@@ -485,18 +560,26 @@ class KeyListenerTracker implements KeySalter {
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
-				try {
-					if (!listener.probablyWantKey(key, saltedKey)) {
-						continue;
-					}
-				} catch (Throwable t) {
-					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+			ArrayList<KeyListener> candidates = indexCandidates(saltedKey);
+			if (candidates != null) {
+				addProbablyWanted(candidates, key, saltedKey, matches);
+			}
+			addProbablyWanted(keyListeners, key, saltedKey, matches);
+		}
+		return matches;
+	}
+
+	private void addProbablyWanted(List<KeyListener> listeners, Key key, byte[] saltedKey, List<KeyListener> matches) {
+		for (KeyListener listener : listeners) {
+			try {
+				if (!listener.probablyWantKey(key, saltedKey)) {
 					continue;
 				}
-				matches.add(listener);
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+				continue;
 			}
+			matches.add(listener);
 		}
-		return matches;
 	}
 }
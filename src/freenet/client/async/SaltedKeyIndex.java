@@ -0,0 +1,289 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the salted keys wanted by all the IndexedKeyListener's on a KeyListenerTracker, so that
+ * when a block arrives we only need to ask the listeners which might want it, rather than checking
+ * every listener's Bloom filters in turn.
+ *
+ * This is a compact multimap from salted key to listener: an open-addressed hash table of longs,
+ * each holding a 32-bit fingerprint of the salted key and the number of the listener. A key can be
+ * registered more than once, by the same or different listeners, and each registration must be
+ * removed separately, like a counting Bloom filter. Different keys can have the same fingerprint,
+ * so the caller must still check each candidate with probablyWantKey(), but since the salted keys
+ * are hashes, this is very rare. For the same reason, removing a key which was not registered may
+ * remove a different key with the same fingerprint; the worst that can happen is that we don't
+ * notice that block if it passes through the node.
+ *
+ * Removing a listener doesn't touch the table: its entries stay behind as tombstones, which
+ * lookups skip, and its number isn't reused until they have gone. They are cleared out when the
+ * table is resized, or when there are more of them than live entries, so removing a listener
+ * costs nothing under the lock and the cleanup is spread over many removals.
+ *
+ * LOCKING: Not thread-safe, protected by the KeyListenerTracker lock.
+ */
+final class SaltedKeyIndex {
+
+	/** Keys to add to or remove from the index in one go. */
+	static final class Batch {
+		private int[] fingerprints = new int[16];
+		private int size;
+
+		void add(byte[] saltedKey) {
+			if(size == fingerprints.length)
+				fingerprints = Arrays.copyOf(fingerprints, size * 2);
+			fingerprints[size++] = fingerprint(saltedKey);
+		}
+
+		int size() {
+			return size;
+		}
+	}
+
+	private static final int MIN_CAPACITY = 16;
+
+	/** Entries: fingerprint in the top 32 bits, listener number plus one in the bottom 32 bits, or
+	 * 0 for an empty slot. */
+	private long[] table = new long[MIN_CAPACITY];
+	private int mask = MIN_CAPACITY - 1;
+	private int entries;
+	/** Entries left behind by removed listeners. They still take up slots in the table. */
+	private int staleEntries;
+	/** Listeners by number. Null for a free number, or one whose entries are still stale. */
+	private KeyListener[] listeners = new KeyListener[4];
+	/** Number of keys registered by each listener. */
+	private int[] keyCounts = new int[4];
+	private final Map<KeyListener, Integer> listenerNumbers = new IdentityHashMap<KeyListener, Integer>();
+	/** Listener numbers which can be reused. */
+	private int[] freeNumbers = new int[4];
+	private int freeCount;
+	/** Numbers of removed listeners whose entries are still in the table. */
+	private int[] staleNumbers = new int[4];
+	private int staleCount;
+	/** Listener numbers allocated so far. */
+	private int numbers;
+
+	static int fingerprint(byte[] saltedKey) {
+		return ((saltedKey[0] & 0xFF) << 24) | ((saltedKey[1] & 0xFF) << 16) |
+			((saltedKey[2] & 0xFF) << 8) | (saltedKey[3] & 0xFF);
+	}
+
+	/** Where an entry with the given fingerprint should go, if there is no collision. Salted keys
+	 * are already hashes, but mix the fingerprint anyway in case the low bits are not random. */
+	private int home(int fingerprint) {
+		return ((fingerprint * 0x9E3779B9) >>> 16 ^ fingerprint) & mask;
+	}
+
+	private static long entry(int fingerprint, int listener) {
+		return ((long)fingerprint << 32) | ((listener + 1) & 0xFFFFFFFFL);
+	}
+
+	private static int fingerprintOf(long entry) {
+		return (int)(entry >>> 32);
+	}
+
+	private static int listenerOf(long entry) {
+		return (int)entry - 1;
+	}
+
+	boolean contains(KeyListener listener) {
+		return listenerNumbers.containsKey(listener);
+	}
+
+	/** Number of listeners in the index. */
+	int listenerCount() {
+		return listenerNumbers.size();
+	}
+
+	/** Number of keys in the index, counting each registration separately. */
+	int size() {
+		return entries;
+	}
+
+	/** Copy the listeners into a list. */
+	void getListeners(List<KeyListener> list) {
+		list.addAll(listenerNumbers.keySet());
+	}
+
+	/** Register a batch of keys for a listener. The listener is added if necessary. */
+	void add(KeyListener listener, Batch batch) {
+		int number = numberFor(listener);
+		ensureCapacity(entries + batch.size);
+		for(int i=0;i<batch.size;i++)
+			insert(entry(batch.fingerprints[i], number));
+		entries += batch.size;
+		keyCounts[number] += batch.size;
+	}
+
+	/** Remove one registration of each of a batch of keys for a listener. Keys which are not
+	 * registered are ignored. The listener is not removed even if it has no keys left.
+	 * @return The number of registrations removed. */
+	int remove(KeyListener listener, Batch batch) {
+		Integer number = listenerNumbers.get(listener);
+		if(number == null) return 0;
+		int removed = 0;
+		for(int i=0;i<batch.size;i++) {
+			if(delete(batch.fingerprints[i], number))
+				removed++;
+		}
+		entries -= removed;
+		keyCounts[number] -= removed;
+		return removed;
+	}
+
+	/** Remove one registration of a key for a listener, e.g. because the listener has found the
+	 * block.
+	 * @return True if the key was registered. */
+	boolean remove(KeyListener listener, byte[] saltedKey) {
+		Integer number = listenerNumbers.get(listener);
+		if(number == null) return false;
+		if(!delete(fingerprint(saltedKey), number)) return false;
+		entries--;
+		keyCounts[number]--;
+		return true;
+	}
+
+	/** Remove a listener and all its keys. Its entries are left as tombstones.
+	 * @return False if the listener was not in the index. */
+	boolean removeAll(KeyListener listener) {
+		Integer number = listenerNumbers.remove(listener);
+		if(number == null) return false;
+		int n = number;
+		listeners[n] = null;
+		if(keyCounts[n] == 0) {
+			freeNumber(n);
+			return true;
+		}
+		entries -= keyCounts[n];
+		staleEntries += keyCounts[n];
+		keyCounts[n] = 0;
+		if(staleCount == staleNumbers.length)
+			staleNumbers = Arrays.copyOf(staleNumbers, staleCount * 2);
+		staleNumbers[staleCount++] = n;
+		// Clearing them out costs a pass over the table, so only do it once they are most of it,
+		// shrinking the table if it is mostly empty.
+		if(staleEntries > entries)
+			rebuild(capacityFor(entries));
+		return true;
+	}
+
+	/** Number of entries left behind by removed listeners and not yet cleared out. */
+	int staleEntries() {
+		return staleEntries;
+	}
+
+	/** Add each listener which might want the key to the list, if it is not already in it. */
+	void getCandidates(byte[] saltedKey, List<KeyListener> candidates) {
+		int fingerprint = fingerprint(saltedKey);
+		for(int pos = home(fingerprint);;pos = (pos + 1) & mask) {
+			long e = table[pos];
+			if(e == 0) return;
+			if(fingerprintOf(e) != fingerprint) continue;
+			KeyListener listener = listeners[listenerOf(e)];
+			if(listener == null) continue; // Removed.
+			if(!candidates.contains(listener))
+				candidates.add(listener);
+		}
+	}
+
+	private int numberFor(KeyListener listener) {
+		Integer number = listenerNumbers.get(listener);
+		if(number != null) return number;
+		int n;
+		if(freeCount > 0) {
+			n = freeNumbers[--freeCount];
+		} else {
+			n = numbers++;
+			if(n == listeners.length) {
+				listeners = Arrays.copyOf(listeners, n * 2);
+				keyCounts = Arrays.copyOf(keyCounts, n * 2);
+			}
+		}
+		listeners[n] = listener;
+		listenerNumbers.put(listener, n);
+		return n;
+	}
+
+	/** Keep the table at most 3/4 full. */
+	private static int capacityFor(int entries) {
+		int capacity = MIN_CAPACITY;
+		while(capacity - (capacity >> 2) < entries) {
+			capacity <<= 1;
+			if(capacity < 0) throw new IllegalStateException("Too many keys");
+		}
+		return capacity;
+	}
+
+	private void ensureCapacity(int newEntries) {
+		if(capacityFor(newEntries + staleEntries) <= table.length) return;
+		// Clearing out the stale entries may be enough.
+		rebuild(Math.max(table.length, capacityFor(newEntries)));
+	}
+
+	/** Copy the live entries into a new table, dropping the stale ones, and free the numbers of
+	 * the removed listeners. */
+	private void rebuild(int capacity) {
+		long[] oldTable = table;
+		allocate(capacity);
+		for(long e : oldTable) {
+			if(e != 0 && listeners[listenerOf(e)] != null)
+				insert(e);
+		}
+		for(int i=0;i<staleCount;i++)
+			freeNumber(staleNumbers[i]);
+		staleCount = 0;
+		staleEntries = 0;
+	}
+
+	private void freeNumber(int n) {
+		if(freeCount == freeNumbers.length)
+			freeNumbers = Arrays.copyOf(freeNumbers, freeCount * 2);
+		freeNumbers[freeCount++] = n;
+	}
+
+	private void allocate(int capacity) {
+		table = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	private void insert(long e) {
+		int pos = home(fingerprintOf(e));
+		while(table[pos] != 0)
+			pos = (pos + 1) & mask;
+		table[pos] = e;
+	}
+
+	private boolean delete(int fingerprint, int number) {
+		long target = entry(fingerprint, number);
+		int pos = home(fingerprint);
+		while(true) {
+			long e = table[pos];
+			if(e == 0) return false;
+			if(e == target) break;
+			pos = (pos + 1) & mask;
+		}
+		// Shift back any later entries in the run which would no longer be found.
+		int hole = pos;
+		while(true) {
+			pos = (pos + 1) & mask;
+			long e = table[pos];
+			if(e == 0) break;
+			int h = home(fingerprintOf(e));
+			// Move e into the hole if its home is not cyclically in (hole, pos].
+			if(((pos - h) & mask) >= ((pos - hole) & mask)) {
+				table[hole] = e;
+				hole = pos;
+			}
+		}
+		table[hole] = 0;
+		return true;
+	}
+
+}
@@ -22,7 +22,7 @@ import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexedKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -256,6 +256,26 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return false;
     }
 
+    @Override
+    public void addWantedKeys(KeySalter salter, SaltedKeyIndex.Batch batch) throws IOException {
+        if(storage.hasFinished()) return;
+        boolean checkMainFilter;
+        synchronized(this) {
+            // If the main filter is being regenerated, it may not have all the keys yet.
+            checkMainFilter = !mustRegenerateMainFilter;
+        }
+        for(SplitFileFetcherSegmentStorage segment : storage.segments) {
+            if(segment.isFinished()) continue;
+            SplitFileSegmentKeys keys = segment.getSegmentKeys();
+            for(int i=0;i<keys.totalKeys();i++) {
+                byte[] saltedKey = salter.saltKey(keys.getNodeKey(i, null, false));
+                // Keys we have already found have been removed from the main filter.
+                if(checkMainFilter && !filter.checkFilter(saltedKey)) continue;
+                batch.add(saltedKey);
+            }
+        }
+    }
+
     @Override
     public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
         // Caller has already called probablyWantKey(), so don't do it again.
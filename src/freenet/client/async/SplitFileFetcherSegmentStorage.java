@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -24,6 +25,7 @@ import freenet.keys.ClientCHK;
 import freenet.keys.ClientCHKBlock;
 import freenet.keys.Key;
 import freenet.keys.NodeCHK;
+import freenet.keys.SplitfileBlockCodec;
 import freenet.node.KeysFetchingLocally;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedChunk;
@@ -415,16 +417,46 @@ public class SplitFileFetcherSegmentStorage {
         byte[][] dataBlocks = new byte[blocksForDecode()][];
         byte[][] checkBlocks = new byte[this.checkBlocks][];
         
-        for(SplitFileFetcherBlock test : maybeBlocks) {
+        // Encode them all to check whether the keys are the same.
+        int count = maybeBlocks.size();
+        byte[][] bufs = new byte[count][];
+        byte[][] cryptoKeys = new byte[count][];
+        ClientCHK[] decodeKeys = new ClientCHK[count];
+        byte cryptoAlgorithm = 0;
+        for(int i=0;i<count;i++) {
+            SplitFileFetcherBlock test = maybeBlocks.get(i);
+            bufs[i] = test.buf;
+            decodeKeys[i] = test.blockNumber == -1 ? null : keys.getKey(test.blockNumber, null, false);
+            cryptoKeys[i] = decodeKeys[i].getCryptoKey();
+            cryptoAlgorithm = decodeKeys[i].getCryptoAlgorithm();
+        }
+        ClientCHK[] actualKeys;
+        try {
+            actualKeys = SplitfileBlockCodec.encodeKeys(bufs, cryptoKeys, cryptoAlgorithm, 
+                    parent.memoryLimitedJobRunner.getExecutor());
+        } catch (CHKEncodeException e) {
+            // Encode them one at a time, so only the blocks which can't be encoded fail.
+            Logger.error(this, "Blocks for segment "+this+" cannot be encoded: "+e, e);
+            actualKeys = new ClientCHK[count];
+            for(int i=0;i<count;i++) {
+                try {
+                    actualKeys[i] = SplitfileBlockCodec.encode(bufs[i], cryptoKeys[i], decodeKeys[i].getCryptoAlgorithm()).getClientKey();
+                } catch (CHKEncodeException e1) {
+                    // Leave it null, so it fails below.
+                }
+            }
+        }
+        for(int i=0;i<count;i++) {
+            SplitFileFetcherBlock test = maybeBlocks.get(i);
             boolean failed = false;
             int blockNumber = test.blockNumber;
             byte[] buf = test.buf;
-            ClientCHK decodeKey = blockNumber == -1 ? null : keys.getKey(blockNumber, null, false);
-            // Encode it to check whether the key is the same.
-            try {
-                ClientCHKBlock block =
-                    ClientCHKBlock.encodeSplitfileBlock(buf, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
+            ClientCHK decodeKey = decodeKeys[i];
+            ClientCHK actualKey = actualKeys[i];
+            if(actualKey == null) {
+                Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
+                failed = true;
+            } else {
                 if(decodeKey == null || !decodeKey.equals(actualKey)) {
                     // Is it a different block?
                     blockNumber = (short)keys.getBlockNumber(actualKey, null);
@@ -445,10 +477,6 @@ public class SplitFileFetcherSegmentStorage {
                         }
                     }
                 }
-                
-            } catch (CHKEncodeException e) {
-                Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
-                failed = true;
             }
             if(!failed) {
                 validBlocks++;
@@ -537,62 +565,95 @@ public class SplitFileFetcherSegmentStorage {
 
     private void checkDecodedDataBlocks(byte[][] dataBlocks, boolean[] dataBlocksPresent, 
             SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
+        ClientCHK[] decodeKeys = new ClientCHK[dataBlocks.length];
+        ClientCHKBlock[] blocks = capturingBinaryBlob ? new ClientCHKBlock[dataBlocks.length] : null;
+        ClientCHK[] actualKeys;
+        try {
+            actualKeys = encodeMissingBlocks(dataBlocks, dataBlocksPresent, 0, keys, decodeKeys, blocks);
+        } catch (CHKEncodeException e) {
+            // Impossible!
+            parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
+            Logger.error(this, "Impossible: Decoded block could not be encoded");
+            return;
+        }
         for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocksPresent[i]) continue;
-            ClientCHK decodeKey = keys.getKey(i, null, false);
-            // Encode it to check whether the key is the same.
-            ClientCHKBlock block;
-            try {
-                block = ClientCHKBlock.encodeSplitfileBlock(dataBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(!actualKey.equals(decodeKey)) {
-                    if(i == dataBlocks.length-1 && this.segNo == parent.segments.length-1 && 
-                            parent.lastBlockMightNotBePadded()) {
-                        // Ignore.
-                        return;
-                    } else {
-                        // Usual case.
-                        parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Decoded block does not match expected key"));
-                        return;
-                    }
+            if(!actualKeys[i].equals(decodeKeys[i])) {
+                if(i == dataBlocks.length-1 && this.segNo == parent.segments.length-1 && 
+                        parent.lastBlockMightNotBePadded()) {
+                    // Ignore.
+                    return;
+                } else {
+                    // Usual case.
+                    parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Decoded block does not match expected key"));
+                    return;
                 }
-                if(capturingBinaryBlob)
-                    parent.fetcher.maybeAddToBinaryBlob(block);
-            } catch (CHKEncodeException e) {
-                // Impossible!
-                parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
-                Logger.error(this, "Impossible: Decoded block could not be encoded");
-                return;
             }
+            if(capturingBinaryBlob)
+                parent.fetcher.maybeAddToBinaryBlob(blocks[i]);
         }
     }
 
     private boolean checkEncodedDataBlocks(byte[][] checkBlocks, boolean[] checkBlocksPresent, 
             SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
+        ClientCHK[] decodeKeys = new ClientCHK[checkBlocks.length];
+        ClientCHKBlock[] blocks = capturingBinaryBlob ? new ClientCHKBlock[checkBlocks.length] : null;
+        ClientCHK[] actualKeys;
+        try {
+            actualKeys = encodeMissingBlocks(checkBlocks, checkBlocksPresent, blocksForDecode(), keys, 
+                    decodeKeys, blocks);
+        } catch (CHKEncodeException e) {
+            // Impossible!
+            parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
+            Logger.error(this, "Impossible: Decoded block could not be encoded");
+            return false;
+        }
         for(int i=0;i<checkBlocks.length;i++) {
             if(checkBlocksPresent[i]) continue;
-            ClientCHK decodeKey = keys.getKey(i+blocksForDecode(), null, false);
-            // Encode it to check whether the key is the same.
-            ClientCHKBlock block;
-            try {
-                block = ClientCHKBlock.encodeSplitfileBlock(checkBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(!actualKey.equals(decodeKey)) {
-                    Logger.error(this, "Splitfile check block "+i+" does not encode to expected key for "+this+" for "+parent);
-                    return false;
-                }
-                if(capturingBinaryBlob)
-                    parent.fetcher.maybeAddToBinaryBlob(block);
-            } catch (CHKEncodeException e) {
-                // Impossible!
-                parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
-                Logger.error(this, "Impossible: Decoded block could not be encoded");
+            if(!actualKeys[i].equals(decodeKeys[i])) {
+                Logger.error(this, "Splitfile check block "+i+" does not encode to expected key for "+this+" for "+parent);
                 return false;
             }
+            if(capturingBinaryBlob)
+                parent.fetcher.maybeAddToBinaryBlob(blocks[i]);
         }
         return true;
     }
 
+    /** Encode the blocks which were reconstructed by FEC rather than fetched, in one batch, so we 
+     * can check them against the keys we expected.
+     * @param blocks The data or check blocks.
+     * @param present Which blocks were fetched. These are not encoded.
+     * @param offset The block number of blocks[0].
+     * @param decodeKeys Filled in with the expected key for each block encoded.
+     * @param encoded If not null, filled in with the encoded blocks. Otherwise we only compute the 
+     * keys, which needs less memory.
+     * @return The actual key for each block encoded, null for blocks which were present. */
+    private ClientCHK[] encodeMissingBlocks(byte[][] blocks, boolean[] present, int offset, 
+            SplitFileSegmentKeys keys, ClientCHK[] decodeKeys, ClientCHKBlock[] encoded) 
+    throws CHKEncodeException {
+        byte[][] toEncode = new byte[blocks.length][];
+        byte[][] cryptoKeys = new byte[blocks.length][];
+        byte cryptoAlgorithm = 0;
+        for(int i=0;i<blocks.length;i++) {
+            if(present[i]) continue;
+            decodeKeys[i] = keys.getKey(i+offset, null, false);
+            toEncode[i] = blocks[i];
+            cryptoKeys[i] = decodeKeys[i].getCryptoKey();
+            cryptoAlgorithm = decodeKeys[i].getCryptoAlgorithm();
+        }
+        Executor executor = parent.memoryLimitedJobRunner.getExecutor();
+        if(encoded == null)
+            return SplitfileBlockCodec.encodeKeys(toEncode, cryptoKeys, cryptoAlgorithm, executor);
+        ClientCHKBlock[] result = SplitfileBlockCodec.encode(toEncode, cryptoKeys, cryptoAlgorithm, executor);
+        ClientCHK[] actualKeys = new ClientCHK[blocks.length];
+        for(int i=0;i<blocks.length;i++) {
+            encoded[i] = result[i];
+            if(result[i] != null) actualKeys[i] = result[i].getClientKey();
+        }
+        return actualKeys;
+    }
+
     /**
      * queue up for healing all blocks that either failed or needed more than one try to retrieve. 
      */
@@ -627,10 +688,7 @@ public class SplitFileFetcherSegmentStorage {
         RAFLock lock = parent.lockRAFOpen();
         try {
             // FIXME consider using a single big byte[].
-            byte[][] ret = new byte[blocksForDecode()][];
-            for(int i=0;i<ret.length;i++)
-                ret[i] = readBlock(i);
-            return ret;
+            return parent.readBlocks(this, blocksForDecode());
         } finally {
             lock.unlock();
         }
@@ -704,7 +762,7 @@ public class SplitFileFetcherSegmentStorage {
         byte[] decodedData;
         try {
             decodedBlock = new ClientCHKBlock(block, decodeKey);
-            decodedData = decodedBlock.memoryDecode();
+            decodedData = SplitfileBlockCodec.decode(decodedBlock);
         } catch (CHKVerifyException e) {
             Logger.error(this, "Verify failed on block for "+decodeKey);
             return false;
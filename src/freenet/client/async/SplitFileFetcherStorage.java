@@ -1743,6 +1743,20 @@ public class SplitFileFetcherStorage {
         return buf;
     }
 
+    /** Read the first count blocks of a segment in one call. */
+    byte[][] readBlocks(SplitFileFetcherSegmentStorage segment, int count)
+    throws IOException {
+        long[] offsets = new long[count];
+        byte[][] bufs = new byte[count][];
+        for(int i=0;i<count;i++) {
+            offsets[i] = segment.blockOffset(i);
+            bufs[i] = new byte[CHKBlock.DATA_LENGTH];
+        }
+        if(logDEBUG) Logger.minor(this, "Reading "+count+" blocks for "+segment.segNo+"/"+segments.length);
+        raf.preadv(offsets, bufs);
+        return bufs;
+    }
+
     /** Needed for resuming. */
     LockableRandomAccessBuffer getRAF() {
         return raf;
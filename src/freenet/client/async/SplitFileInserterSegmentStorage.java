@@ -18,6 +18,7 @@ import freenet.keys.CHKBlock;
 import freenet.keys.CHKEncodeException;
 import freenet.keys.ClientCHK;
 import freenet.keys.ClientCHKBlock;
+import freenet.keys.SplitfileBlockCodec;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
@@ -475,8 +476,20 @@ public class SplitFileInserterSegmentStorage {
     /** Generate keys for each block and record them. 
      * @throws IOException */
     private void generateKeys(byte[][] dataBlocks, int offset) throws IOException {
+        byte[][] cryptoKeys = null;
+        if(splitfileCryptoKey != null) {
+            cryptoKeys = new byte[dataBlocks.length][];
+            Arrays.fill(cryptoKeys, splitfileCryptoKey);
+        }
+        ClientCHK[] keys;
+        try {
+            keys = SplitfileBlockCodec.encodeKeys(dataBlocks, cryptoKeys, splitfileCryptoAlgorithm,
+                    parent.memoryLimitedJobRunner.getExecutor());
+        } catch (CHKEncodeException e) {
+            throw new Error(e); // Impossible!
+        }
         for(int i=0;i<dataBlocks.length;i++) {
-            setKey(i + offset, encodeBlock(dataBlocks[i]).getClientKey());
+            setKey(i + offset, keys[i]);
         }
     }
 
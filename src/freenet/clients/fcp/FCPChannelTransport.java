@@ -0,0 +1,138 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import freenet.io.ChannelConnection;
+import freenet.io.ChannelSelector;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.LineReadingInputStream;
+
+/**
+ * Non-blocking transport for an FCP connection, used instead of the two threads started by
+ * FCPConnectionInputHandler and FCPConnectionOutputHandler. Messages are parsed and run exactly as
+ * the input thread would, by FCPConnectionInputHandler.processMessage(), once FCPHeaderScanner
+ * says the header has arrived. Similarly, a job only runs to write messages while there are
+ * messages queued. So an idle connection, e.g. one waiting for SubscribeUSK updates, doesn't need
+ * a thread.
+ */
+final class FCPChannelTransport extends ChannelConnection {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** We start parsing a header anyway once it gets this big; the parser will give up. */
+	static final int MAX_HEADER_SIZE = 1024 * 1024;
+
+	private final FCPConnectionHandler handler;
+	private final Executor executor;
+	private final FCPHeaderScanner scanner = new FCPHeaderScanner();
+	private final LineReadingInputStream lis;
+
+	// Protected by (this)
+	private boolean writerRunning;
+	private boolean writeRequested;
+
+	FCPChannelTransport(FCPConnectionHandler handler, SocketChannel channel, ChannelSelector selector, Executor executor) {
+		super(channel, selector, executor, MAX_HEADER_SIZE, "FCP connection from "+handler.getSocket().getRemoteSocketAddress());
+		this.handler = handler;
+		this.executor = executor;
+		this.lis = new LineReadingInputStream(getInputStream());
+	}
+
+	@Override
+	public void start() throws IOException {
+		super.start();
+		handler.getOutputHandler().startNonBlocking(this);
+		// In case anything was queued before startNonBlocking().
+		startWriter();
+	}
+
+	@Override
+	protected void resetHeader() {
+		scanner.reset();
+	}
+
+	@Override
+	protected boolean isHeaderComplete(byte[] buf, int start, int end) {
+		return scanner.scan(buf, start, end);
+	}
+
+	@Override
+	protected boolean processMessage() throws IOException {
+		return handler.inputHandler.processMessage(lis);
+	}
+
+	@Override
+	protected void onInputClosed() {
+		handler.close();
+		handler.closedInput();
+	}
+
+	@Override
+	protected void onOutputFailed() {
+		// Let the writer notice, even if it's not running at the moment.
+		startWriter();
+	}
+
+	/** Called when a message is queued, or the connection is closed. Starts the writer if
+	 * necessary. */
+	void startWriter() {
+		synchronized(this) {
+			writeRequested = true;
+			if(writerRunning) return;
+			writerRunning = true;
+		}
+		executor.execute(writer, "FCP output handler for "+name);
+	}
+
+	private final Runnable writer = new Runnable() {
+
+		@Override
+		public void run() {
+			FCPConnectionOutputHandler outputHandler = handler.getOutputHandler();
+			try {
+				while(true) {
+					synchronized(FCPChannelTransport.this) {
+						writeRequested = false;
+					}
+					if(!outputHandler.sendQueued(getOutputStream())) {
+						// Closed and everything sent.
+						closeOutput();
+						break;
+					}
+					synchronized(FCPChannelTransport.this) {
+						if(!writeRequested) {
+							writerRunning = false;
+							return;
+						}
+					}
+				}
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+			outputHandler.onOutputClosed();
+			handler.close();
+			handler.closedOutput();
+		}
+
+	};
+
+}
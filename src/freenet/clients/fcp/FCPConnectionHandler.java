@@ -21,6 +21,7 @@ import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
 import freenet.client.async.TooManyFilesInsertException;
 import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.io.ChannelSelector;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
 import freenet.pluginmanager.PluginManager;
@@ -189,6 +190,15 @@ public class FCPConnectionHandler implements Closeable {
     }
 
 	void start() {
+		ChannelSelector selector = sock == null ? null : server.getSelector(sock);
+		if(selector != null) {
+			try {
+				new FCPChannelTransport(this, sock.getChannel(), selector, server.getNode().getExecutor()).start();
+				return;
+			} catch (IOException e) {
+				Logger.error(this, "Unable to use selector for "+sock+", using threads instead: "+e, e);
+			}
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -32,6 +32,8 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	/** Only accessed by whichever thread is reading messages at the time. */
+	private boolean firstMessage = true;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -64,90 +66,92 @@ public class FCPConnectionInputHandler implements Runnable {
 	public void realRun() throws IOException {
 		InputStream is = new BufferedInputStream(handler.getSocket().getInputStream(), 4096);
 		LineReadingInputStream lis = new LineReadingInputStream(is);
-
-		boolean firstMessage = true;
-
-		while(true) {
-			SimpleFieldSet fs;
-			if(WrapperManager.hasShutdownHookBeenTriggered()) {
-				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
-				handler.send(msg);
-				Closer.close(is);
-				return;
-			}
-			// Read a message
-			String messageType = lis.readLine(128, 128, true);
-			if(messageType == null) {
-				Closer.close(is);
-				return;
+		try {
+			while(processMessage(lis)) {
+				// Keep going.
 			}
-			if(messageType.isEmpty())
-				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+		} finally {
+			Closer.close(is);
+		}
+	}
 
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.send(err);
-				continue;
-			}
+	/**
+	 * Read, parse and run one message. Used by both the thread per connection and the
+	 * non-blocking transport (FCPChannelTransport).
+	 * @return False if we should stop reading from the connection.
+	 */
+	boolean processMessage(LineReadingInputStream lis) throws IOException {
+		SimpleFieldSet fs;
+		if(WrapperManager.hasShutdownHookBeenTriggered()) {
+			FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+			handler.send(msg);
+			return false;
+		}
+		// Read a message
+		String messageType = lis.readLine(128, 128, true);
+		if(messageType == null)
+			return false;
+		if(messageType.isEmpty())
+			return true;
+		fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
 
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.getServer().getCore().getPersistentTempBucketFactory());
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.send(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
-				}
-				continue;
-			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.send(err);
+			return true;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.getServer().getCore().getPersistentTempBucketFactory());
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
 				handler.send(err);
 				handler.close();
-				Closer.close(is);
-				return;
-			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.getServer());
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.send(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.getServer().getNode());
+				((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.getServer());
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
-			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+				return true;
 			}
 		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.send(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.getServer().getNode());
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.send(err);
+			return true;
+		}
+		firstMessage = false;
+		return !handler.isClosed();
 	}
 
 }
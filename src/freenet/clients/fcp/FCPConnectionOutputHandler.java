@@ -20,6 +20,8 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final Deque<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** If set, the connection is handled by a ChannelSelector rather than by run(). */
+	private volatile FCPChannelTransport transport;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -65,6 +67,50 @@ public class FCPConnectionOutputHandler implements Runnable {
 		handler.close();
 		handler.closedOutput();
 	}
+
+	/** Used instead of start() when the connection is handled by a ChannelSelector. Messages are
+	 * then written by sendQueued(), which the transport only runs while there is something to
+	 * send. */
+	void startNonBlocking(FCPChannelTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Write everything in the queue. Must only be called by one thread at a time.
+	 * @param os The stream to write to. It is flushed once the queue is empty.
+	 * @return False if the connection has been closed and everything has been written, so the
+	 * caller should close the output.
+	 */
+	boolean sendQueued(OutputStream os) throws IOException {
+		while(true) {
+			boolean closed = handler.isClosed();
+			FCPMessage msg;
+			synchronized(outQueue) {
+				msg = outQueue.pollFirst();
+				if(msg == null) {
+					if(closed)
+						closedOutputQueue = true;
+					outQueue.notifyAll();
+				}
+			}
+			if(msg == null) {
+				if(logMINOR) Logger.minor(this, "Flushing");
+				os.flush();
+				return !closed;
+			}
+			if(logMINOR) Logger.minor(this, "Sending "+msg);
+			msg.send(os);
+		}
+	}
+
+	/** Called by the non-blocking transport when the output has been closed, whether cleanly or
+	 * because of an error. */
+	void onOutputClosed() {
+		synchronized(outQueue) {
+			closedOutputQueue = true;
+			outQueue.notifyAll();
+		}
+	}
  
 	private void realRun() throws IOException {
 		OutputStream os = new BufferedOutputStream(handler.getSocket().getOutputStream(), 4096);
@@ -156,9 +202,13 @@ public class FCPConnectionOutputHandler implements Runnable {
 			outQueue.add(msg);
 			outQueue.notifyAll();
 		}
+		FCPChannelTransport t = transport;
+		if(t != null) t.startWriter();
 	}
 
 	public void onClosed() {
+		FCPChannelTransport t = transport;
+		if(t != null) t.startWriter();
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
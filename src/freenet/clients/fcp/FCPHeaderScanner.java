@@ -0,0 +1,91 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+/**
+ * Finds the end of an FCP message header in a buffer which is filled a bit at a time, so that a
+ * non-blocking transport knows when FCPConnectionInputHandler.processMessage() can read the header
+ * without blocking. This only finds the boundary; the header is parsed as before.
+ *
+ * A header is any number of empty lines, the message type, then lines which are empty, comments
+ * (starting with #) or key=value pairs, until a line which is none of these, the end marker.
+ * A line longer than the parser accepts also counts as the end, as the parser will then give up
+ * without reading any further.
+ *
+ * LOCKING: Not thread-safe.
+ */
+final class FCPHeaderScanner {
+
+	/** Maximum length of the message type line, as passed to readLine(). */
+	static final int MAX_TYPE_LINE_LENGTH = 128;
+	/** Maximum length of the other lines, as passed to SimpleFieldSet. */
+	static final int MAX_FIELD_LINE_LENGTH = 4096;
+
+	/** Number of bytes scanned, from the start of the header. */
+	private int scanned;
+	private boolean gotType;
+	private boolean complete;
+	/** The current line. */
+	private int lineLength;
+	private byte firstByte;
+	private byte lastByte;
+	private boolean lineHasEquals;
+
+	/** Start looking for a new header. */
+	void reset() {
+		scanned = 0;
+		gotType = false;
+		complete = false;
+		resetLine();
+	}
+
+	private void resetLine() {
+		lineLength = 0;
+		firstByte = 0;
+		lastByte = 0;
+		lineHasEquals = false;
+	}
+
+	/**
+	 * Scan any bytes we haven't seen yet.
+	 * @param buf The buffer.
+	 * @param start Where the header starts. This can change between calls if the buffer has
+	 * been compacted, but the bytes from start onwards must be the same.
+	 * @param end The end of the data in the buffer.
+	 * @return True if there is a complete header, or at least enough of one for the parser to
+	 * finish with it.
+	 */
+	boolean scan(byte[] buf, int start, int end) {
+		if(complete) return true;
+		for(int i=start+scanned;i<end;i++) {
+			scanned++;
+			byte b = buf[i];
+			if(b == '\n') {
+				int length = lastByte == '\r' ? lineLength - 1 : lineLength;
+				if(length != 0) {
+					if(!gotType) {
+						gotType = true;
+					} else if(firstByte != '#' && !lineHasEquals) {
+						// End marker.
+						complete = true;
+						return true;
+					}
+				}
+				resetLine();
+			} else {
+				if(lineLength == 0) firstByte = b;
+				lastByte = b;
+				if(b == '=') lineHasEquals = true;
+				lineLength++;
+				// Allow for a \r before the \n.
+				if(lineLength > (gotType ? MAX_FIELD_LINE_LENGTH : MAX_TYPE_LINE_LENGTH) + 1) {
+					complete = true;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+}
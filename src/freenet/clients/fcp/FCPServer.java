@@ -33,6 +33,8 @@ import freenet.config.InvalidConfigValueException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
+import freenet.io.ChannelSelector;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
@@ -114,6 +116,10 @@ public class FCPServer implements Runnable, DownloadCache {
 	private boolean assumeUploadDDAIsAllowed;
 	private boolean neverDropAMessage;
 	private int maxMessageQueueLength;
+	/** If true, new connections are handled by a ChannelSelector rather than two threads each. */
+	private volatile boolean useSelector;
+	/** Created when first needed. Protected by (this). */
+	private ChannelSelector selector;
 
 	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
 		this.bindTo = ipToBindTo;
@@ -153,7 +159,9 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.getExecutor(), true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.getExecutor(), true);
+				// Sockets with channels work with or without the selector, so useSelector can be
+				// changed without a restart.
+				tempNetworkInterface = ChannelNetworkInterface.create(port, bindTo, allowedHosts, node.getExecutor(), true);
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -210,6 +218,26 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	/**
+	 * Get the selector to handle a new connection, creating and starting it if necessary.
+	 * @return Null if the connection should be handled by threads as before, e.g. because it is
+	 * an SSL connection or the selector is disabled.
+	 */
+	synchronized ChannelSelector getSelector(Socket sock) {
+		if(!useSelector || sock.getChannel() == null) return null;
+		if(selector == null || !selector.isRunning()) {
+			try {
+				selector = new ChannelSelector("FCP selector");
+			} catch (IOException e) {
+				Logger.error(this, "Unable to open selector for FCP, using threads instead: "+e, e);
+				selector = null;
+				return null;
+			}
+			selector.start(node.getExecutor());
+		}
+		return selector;
+	}
+
 	private void realRun() throws IOException {
 		if(!node.isHasStarted()) return;
 		// Accept a connection
@@ -435,6 +463,23 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class UseSelectorCallback extends BooleanCallback {
+		FCPServer server;
+
+		@Override
+		public Boolean get() {
+			return server.useSelector;
+		}
+
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException {
+			if (get().equals(val))
+				return;
+			// Only affects new connections.
+			server.useSelector = val;
+		}
+	}
+
 	static class MaxMessageQueueLengthCallback extends IntCallback {
 		FCPServer server;
 
@@ -466,10 +511,12 @@ public class FCPServer implements Runnable, DownloadCache {
 		AssumeDDAUploadIsAllowedCallback cb5;
 		NeverDropAMessageCallback cb6;
 		MaxMessageQueueLengthCallback cb7;
+		UseSelectorCallback cb8;
 		fcpConfig.register("assumeDownloadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeDownloadDDAIsAllowed", "FcpServer.assumeDownloadDDAIsAllowedLong", cb4 = new AssumeDDADownloadIsAllowedCallback());
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		fcpConfig.register("useSelector", false, sortOrder++, true, false, "FcpServer.useSelector", "FcpServer.useSelectorLong", cb8 = new UseSelectorCallback());
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
@@ -482,6 +529,8 @@ public class FCPServer implements Runnable, DownloadCache {
 			cb5.server = fcp;
 			cb6.server = fcp;
 			cb7.server = fcp;
+			cb8.server = fcp;
+			fcp.useSelector = fcpConfig.getBoolean("useSelector");
 		}
 
 		fcpConfig.finishedInitialization();
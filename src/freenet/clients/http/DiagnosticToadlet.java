@@ -54,7 +54,7 @@ public class DiagnosticToadlet extends Toadlet {
 	private final NumberFormat thousandPoint = NumberFormat.getInstance();
 	private final FCPServer fcp;
 	//private final DecimalFormat fix1p1 = new DecimalFormat("0.0");
-	//private final DecimalFormat fix1p2 = new DecimalFormat("0.00");
+	private final DecimalFormat fix1p2 = new DecimalFormat("0.00");
 	private final DecimalFormat fix1p4 = new DecimalFormat("0.0000");
 	//private final DecimalFormat fix1p6sci = new DecimalFormat("0.######E0");
 	private final DecimalFormat fix3p1pct = new DecimalFormat("##0.0%");
@@ -155,6 +155,10 @@ public class DiagnosticToadlet extends Toadlet {
 				textBuilder.append("\n");
 			} catch (StatsNotAvailableException e) {
 			}
+			if(sessionAccess.writeQueueDepth() >= 0) {
+				textBuilder.append("  ").append(l10n("writeQueueDepth")).append(": ").append(thousandPoint.format(sessionAccess.writeQueueDepth())).append("\n");
+				textBuilder.append("  ").append(l10n("flushLatency")).append(": ").append(fix1p2.format(sessionAccess.averageFlushLatency())).append(" ms\n");
+			}
 		}
 		textBuilder.append("\n");
 
@@ -121,6 +121,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private int fetched = 0;
 	/** Stores the fetch context this class was created with*/
 	private FetchContext fctx;
+	/** Key in the tracker's FilteredDataCache, or null if the output can't be cached. */
+	private final String filteredCacheKey;
 	private boolean cancelled = false;
 	private final RequestClient rc;
 
@@ -132,6 +134,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		this.timeStarted = System.currentTimeMillis();
 		this.fctx = fctx;
         this.rc = rc;
+		this.filteredCacheKey = FilteredDataCache.key(key, fctx);
 		FetchContext alteredFctx = new FetchContext(fctx, FetchContext.IDENTICAL_MASK);
 		alteredFctx.maxOutputLength = fctx.maxTempLength = maxSize;
 		alteredFctx.eventProducer.addEventListener(this);
@@ -194,6 +197,15 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	/** Look up the key in the downloads queue.
 	 * @return True if it was found and we don't need to start the request. */
 	private boolean checkCache(ClientContext context) {
+		if(filteredCacheKey != null) {
+			FilteredDataCache.Entry e = tracker.filteredCache.get(filteredCacheKey, maxSize);
+			if(e != null) {
+				// Our own copy, released when we are done with it, so we can stay in the tracker.
+				if(logMINOR) Logger.minor(this, "Already filtered "+uri);
+				onSuccess(new FetchResult(new ClientMetadata(e.mimeType), tracker.filteredCache.open(e)), null);
+				return true;
+			}
+		}
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
 		if(bogusUSK(context)) return false;
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
@@ -266,6 +278,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				os.close();
 				os = null;
 				// Since we are not re-using the data bucket, we can happily stay in the FProxyFetchTracker.
+				output = cacheFiltered(output, fullMimeType);
 				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
 				output = null;
 				return true;
@@ -388,8 +401,19 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		wakeWaiters(true);
 	}
 
+	/** Put freshly filtered data into the tracker's FilteredDataCache, if it can be cached.
+	 * @return The Bucket to use instead of the one passed in. */
+	private Bucket cacheFiltered(Bucket output, String mimeType) {
+		if(filteredCacheKey == null) return output;
+		return tracker.filteredCache.put(filteredCacheKey, output, mimeType, FProxyToadlet.MAX_FILTERED_CACHE_SIZE);
+	}
+
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
+		if(state != null) {
+			// From the network, so ours and filtered according to fctx.
+			result = new FetchResult(result, cacheFiltered(result.asBucket(), result.getMimeType()));
+		}
 		Bucket droppedData = null;
 		synchronized(this) {
 			if(cancelled)
@@ -30,6 +30,8 @@ public class FProxyFetchTracker implements Runnable {
 	
 	final MultiValueTable<FreenetURI, FProxyFetchInProgress> fetchers;
 	final ClientContext context;
+	/** Filtered data, shared by all fetches, so it outlives the FProxyFetchInProgress's. */
+	final FilteredDataCache filteredCache = new FilteredDataCache();
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
 	private final RequestClient rc;
@@ -6,8 +6,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
@@ -74,7 +72,6 @@ import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
@@ -99,6 +96,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	/** Maximum size for transparent pass-through. See config passthroughMaxSizeProgress */
 	public static long MAX_LENGTH_WITH_PROGRESS = (100*1024*1024) * 11 / 10; // 100MiB plus a bit due to buggy inserts, because our Windows installer is >70 MiB nowadays
 	public static long MAX_LENGTH_NO_PROGRESS = (2*1024*1024) * 11 / 10; // 2MiB plus a bit due to buggy inserts
+	/** Maximum total size of filtered pages and images kept for re-use. See config filteredDataCacheSize */
+	public static long MAX_FILTERED_CACHE_SIZE = 16*1024*1024;
 
 	static final URI welcome;
 	public static final short PRIORITY = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
@@ -149,7 +148,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
-	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
+	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset, String etag) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
 		String extrasNoMime = extras; // extras will not include MIME type to start with - REDFLAG maybe it should be an array
@@ -254,43 +253,40 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			 * See https://developer.mozilla.org/en-US/docs/Mozilla/How_Mozilla_determines_MIME_Types#HTTP
 			 */
 			retHdr.put("Content-Encoding", "identity");
+			if (etag != null)
+				retHdr.put("ETag", etag);
 
 			String rangeStr = hdr.get("range");
+			List<HTTPRange> ranges = null;
 			// was a range request
 			if (rangeStr != null) {
-
-				long range[];
 				try {
-					range = parseRange(rangeStr);
+					ranges = HTTPRange.resolve(HTTPRange.parse(rangeStr), size);
 				} catch (HTTPRangeException e) {
 					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
 					return;
 				}
-				if (range[1] == -1 || range[1] >= size) {
-					range[1] = size - 1;
-				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
-					os.close(); os = null; // If we can't write, we need to throw, so we don't send too little data.
-				} finally {
-					Closer.close(is);
-					Closer.close(os);
+				String ifRange = hdr.get("if-range");
+				if (ranges != null && ifRange != null && !ifRangeMatches(ifRange, key, etag)) {
+					if(logMINOR) Logger.minor(this, "If-Range doesn't match, sending all of "+key);
+					ranges = null;
 				}
-				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
-                retHdr.put("X-Content-Type-Options", "nosniff");
-				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
+			}
+			retHdr.put("X-Content-Type-Options", "nosniff");
+			if (ranges != null && ranges.isEmpty()) {
+				MultiValueTable<String, String> unsatisfiable = new MultiValueTable<String, String>();
+				unsatisfiable.put("Content-Range", "bytes */" + size);
+				ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", unsatisfiable, null, 0);
+			} else if (ranges != null && ranges.size() == 1) {
+				// Straight from the data: seeking in a video shouldn't copy it to a temp bucket first.
+				HTTPRange range = ranges.get(0);
+				retHdr.put("Content-Range", range.contentRange(size));
+				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, range.length());
+				context.writeData(data, range.first, range.length());
+			} else if (ranges != null) {
+				writeRanges(context, data, ranges, size, mimeType, retHdr, core);
 			} else {
-                retHdr.put("X-Content-Type-Options", "nosniff");
+				retHdr.put("Accept-Ranges", "bytes");
                 if (container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
                     context.sendReplyHeadersStatic(200, "OK", retHdr, mimeType, size, new Date());
                 } else {
@@ -301,6 +297,56 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
+	/**
+	 * If-Range: only send the ranges if the client's copy is the same as ours, otherwise send all
+	 * of it. An entity tag must be the one we sent, a date only matches for CHKs and SSKs, which
+	 * can't change.
+	 */
+	private static boolean ifRangeMatches(String ifRange, FreenetURI key, String etag) {
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("W/"))
+			return false; // Weak tags never match here.
+		if (ifRange.startsWith("\""))
+			return ifRange.equals(etag);
+		return key.isCHK() || key.isSSK();
+	}
+
+	/** @return True if an If-None-Match header lists our entity tag, so the client's copy is
+	 * still good. Weak comparison, as RFC 7232 requires for If-None-Match. Not "*": we don't
+	 * know whether the key can be fetched without fetching it. */
+	static boolean ifNoneMatchMatches(String ifNoneMatch, String etag) {
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) tag = tag.substring(2);
+			if (tag.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	/** Send several ranges as a multipart/byteranges response. */
+	private static void writeRanges(ToadletContext context, Bucket data, List<HTTPRange> ranges, long size, String mimeType, MultiValueTable<String, String> retHdr, NodeClientCore core) throws ToadletContextClosedException, IOException {
+		byte[] boundaryBytes = new byte[12];
+		core.getNode().fastWeakRandom.nextBytes(boundaryBytes);
+		String boundary = "freenet-" + HexUtil.bytesToHex(boundaryBytes);
+		byte[][] partHeaders = new byte[ranges.size()][];
+		long length = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			HTTPRange range = ranges.get(i);
+			partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: " +
+					range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+			length += partHeaders[i].length + range.length();
+		}
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+		length += end.length;
+		context.sendReplyHeadersFProxy(206, "Partial content", retHdr, "multipart/byteranges; boundary=" + boundary, length);
+		for (int i = 0; i < ranges.size(); i++) {
+			HTTPRange range = ranges.get(i);
+			context.writeData(partHeaders[i]);
+			context.writeData(data, range.first, range.length());
+		}
+		context.writeData(end);
+	}
+
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
 
 	private static void addDownloadOptions(ToadletContext ctx, HTMLNode optionList, FreenetURI key, String mimeType,
@@ -553,7 +599,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		String rangeStr = ctx.getHeaders().get("range");
 		if (rangeStr != null) {
 			try {
-				parseRange(rangeStr);
+				HTTPRange.parse(rangeStr);
 			} catch (HTTPRangeException e) {
 				Logger.normal(this, "Invalid Range Header: "+rangeStr, e);
 				ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
@@ -655,6 +701,17 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		String override = (requestedMimeType == null) ? "" : "?type="+URLEncoder.encode(requestedMimeType,true);
 		String maybeCharset = httprequest.isParameterSet("maybecharset") ? httprequest.getParam("maybecharset", null) : null;
 		fctx.charset = maybeCharset;
+		// Only if the browser may cache the key at all: the ETag is no use otherwise.
+		String etag = container.enableCachingForChkAndSskKeys() ? FilteredDataCache.etag(key, fctx) : null;
+		String ifNoneMatch = ctx.getHeaders().get("if-none-match");
+		if (etag != null && ifNoneMatch != null && ifNoneMatchMatches(ifNoneMatch, etag)) {
+			// Same key, same filter, same build: same response. No need to fetch it.
+			if(logMINOR) Logger.minor(this, "Not modified: "+key);
+			MultiValueTable<String, String> notModified = new MultiValueTable<String, String>();
+			notModified.put("ETag", etag);
+			ctx.sendReplyHeadersStatic(304, "Not Modified", notModified, null, 0, new Date());
+			return;
+		}
 		if(override.isEmpty() && maybeCharset != null)
 			override = "?maybecharset="+URLEncoder.encode(maybeCharset, true);
 		// No point passing ?force= across a redirect, since the key will change.
@@ -809,7 +866,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 
-			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset);
+			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset, etag);
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
 			String msg = e.getMessage();
@@ -1300,35 +1357,6 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return DefaultMIMETypes.forceExtension(uri.getPreferredFilename(), expectedMimeType);
 	}
 
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
-
-		long result[] = new long[2];
-		try {
-			String[] units = hdrrange.split("=", 2);
-			// FIXME are MBytes and co valid? if so, we need to adjust the values and
-			// return always bytes
-			if (!"bytes".equals(units[0])) {
-				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
-			}
-			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
-			if (result[0] < 0)
-				throw new HTTPRangeException("Negative 'from' value");
-			if (range[1].trim().length() > 0) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
-			} else {
-				result[1] = -1;
-			}
-		} catch (NumberFormatException nfe) {
-			throw new HTTPRangeException(nfe);
-		} catch (IndexOutOfBoundsException ioobe) {
-			throw new HTTPRangeException(ioobe);
-		}
-		return result;
-	}
-
 	@Override
 	public boolean persistent() {
 		return false;
@@ -0,0 +1,218 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import freenet.client.FetchContext;
+import freenet.crypt.SHA256;
+import freenet.keys.FreenetURI;
+import freenet.node.Version;
+import freenet.support.HexUtil;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.io.NoFreeBucket;
+
+/**
+ * Content-filtered fproxy responses, so that a page or image which was filtered a moment ago is
+ * not fetched and filtered again when it is requested again. Only for CHKs and SSKs, which can't
+ * change, so an entry never goes stale, and the same request always gets the same response: see
+ * etag().
+ *
+ * Bounded by the total size of the data, dropping the least recently used first. The cache takes
+ * over the filtered temp bucket rather than copying it, so the data is encrypted on disk if the
+ * temp bucket factory encrypts. Each user gets a Bucket whose free() releases the entry, and an
+ * entry which is dropped while in use is only freed when the last user releases it.
+ */
+final class FilteredDataCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** One entry may use at most this fraction of the cache, so one big file doesn't push out
+	 * everything else. */
+	static final int MAX_ENTRY_FRACTION = 4;
+
+	static final class Entry {
+		final String key;
+		final Bucket data;
+		final String mimeType;
+		final long size;
+		/** Buckets handed out and not yet freed. */
+		private int users;
+		/** No longer in the cache: free the data when the last user is done. */
+		private boolean dropped;
+
+		Entry(String key, Bucket data, String mimeType) {
+			this.key = key;
+			this.data = data;
+			this.mimeType = mimeType;
+			this.size = data.size();
+		}
+	}
+
+	/** Access order, so the first entry is the least recently used. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long totalSize;
+
+	/**
+	 * @return The cache key for a fetch, or null if its output can't be cached: it isn't
+	 * filtered, the key can change, or the filter output depends on more than the fetch context
+	 * (web pushing puts per-page element IDs into it).
+	 */
+	static String key(FreenetURI uri, FetchContext fctx) {
+		if(!fctx.filterData) return null;
+		if(fctx.tagReplacer != null) return null;
+		if(!(uri.isCHK() || uri.isSSK())) return null;
+		return uri.toString() + '\n' + filterConfigHash(fctx);
+	}
+
+	/**
+	 * @return A hash of the content filter settings in the fetch context: everything apart from
+	 * the key which decides what the filter produces, or whether it accepts the data at all.
+	 */
+	static String filterConfigHash(FetchContext fctx) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(fctx.filterData).append('\n');
+		sb.append(fctx.overrideMIME).append('\n');
+		sb.append(fctx.charset).append('\n');
+		sb.append(fctx.getSchemeHostAndPort()).append('\n');
+		if(fctx.allowedMIMETypes != null) {
+			for(String type : new TreeSet<String>(fctx.allowedMIMETypes))
+				sb.append(type).append(',');
+		}
+		return hash(sb.toString());
+	}
+
+	/**
+	 * @return The ETag for the response to a fetch, or null if there is none: the same as the
+	 * cache key, so it covers the filter settings, but also depends on the build, since a new
+	 * build may filter differently.
+	 */
+	static String etag(FreenetURI uri, FetchContext fctx) {
+		String key = key(uri, fctx);
+		if(key == null) return null;
+		return '"' + hash(Version.buildNumber() + "\n" + Version.cvsRevision() + "\n" + key) + '"';
+	}
+
+	private static String hash(String s) {
+		byte[] hash = SHA256.digest(s.getBytes(StandardCharsets.UTF_8));
+		return HexUtil.bytesToHex(hash, 0, 16);
+	}
+
+	/**
+	 * Look up filtered data.
+	 * @param maxSize Don't return data bigger than this.
+	 * @return The entry, or null. The caller must open() it, or release() it if it doesn't.
+	 */
+	synchronized Entry get(String key, long maxSize) {
+		Entry e = entries.get(key);
+		if(e == null || e.size > maxSize) return null;
+		e.users++;
+		if(logMINOR) Logger.minor(this, "Hit for "+key);
+		return e;
+	}
+
+	/**
+	 * Add filtered data to the cache. The cache takes over the bucket if it fits, and returns a
+	 * Bucket for the caller to use instead, which releases the entry when freed.
+	 * @param maxCacheSize The most data the cache may hold.
+	 * @return The Bucket to use, which is the one passed in if it wasn't cached.
+	 */
+	Bucket put(String key, Bucket data, String mimeType, long maxCacheSize) {
+		if(maxCacheSize <= 0 || data.size() > maxCacheSize / MAX_ENTRY_FRACTION) return data;
+		Entry e = new Entry(key, data, mimeType);
+		List<Bucket> toFree;
+		synchronized(this) {
+			if(entries.containsKey(key)) return data; // Someone else was faster.
+			e.users++;
+			entries.put(key, e);
+			totalSize += e.size;
+			toFree = trim(maxCacheSize);
+		}
+		if(logMINOR) Logger.minor(this, "Cached "+e.size+" bytes for "+key);
+		freeAll(toFree);
+		return open(e);
+	}
+
+	/** @return A Bucket for the entry's data, which releases the entry when freed. */
+	Bucket open(final Entry e) {
+		return new NoFreeBucket(e.data) {
+			private static final long serialVersionUID = 1L;
+			private boolean released;
+
+			@Override
+			public void free() {
+				synchronized(this) {
+					if(released) return;
+					released = true;
+				}
+				release(e);
+			}
+		};
+	}
+
+	void release(Entry e) {
+		synchronized(this) {
+			e.users--;
+			if(!(e.dropped && e.users == 0)) return;
+		}
+		e.data.free();
+	}
+
+	/** Drop everything, freeing the data as soon as it isn't in use. */
+	void clear() {
+		List<Bucket> toFree;
+		synchronized(this) {
+			toFree = trim(0);
+		}
+		freeAll(toFree);
+	}
+
+	synchronized long totalSize() {
+		return totalSize;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/** Drop the least recently used entries until we are within the limit.
+	 * @return The data to free, outside the lock. */
+	private List<Bucket> trim(long maxCacheSize) {
+		List<Bucket> toFree = new ArrayList<Bucket>();
+		for(Iterator<Entry> i = entries.values().iterator(); i.hasNext() && totalSize > maxCacheSize;) {
+			Entry e = i.next();
+			i.remove();
+			totalSize -= e.size;
+			e.dropped = true;
+			if(logMINOR) Logger.minor(this, "Dropping "+e.key);
+			if(e.users == 0)
+				toFree.add(e.data);
+		}
+		return toFree;
+	}
+
+	private static void freeAll(List<Bucket> toFree) {
+		for(Bucket b : toFree)
+			b.free();
+	}
+
+}
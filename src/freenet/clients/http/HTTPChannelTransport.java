@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import freenet.clients.http.bookmark.BookmarkManager;
+import freenet.io.ChannelConnection;
+import freenet.io.ChannelSelector;
+import freenet.node.useralerts.UserAlertManager;
+import freenet.support.Executor;
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NativeThread;
+
+/**
+ * Non-blocking transport for an HTTP connection to fproxy, used instead of a thread for the life
+ * of the connection. Requests are handled by ToadletContextImpl.handleRequest() as before, but
+ * only once HTTPHeaderScanner says the request header has arrived, so a browser holding a
+ * keep-alive connection open doesn't need a thread. Pipelined requests already in the buffer are
+ * handled one after the other by the same job. File-backed replies are sent with
+ * FileChannel.transferTo().
+ */
+final class HTTPChannelTransport extends ChannelConnection {
+
+	/** We start parsing a header anyway once it gets this big; the parser will give up if a
+	 * line is too long. */
+	static final int MAX_HEADER_SIZE = 256 * 1024;
+
+	private final ToadletContainer container;
+	/** Called once the connection has been closed. */
+	private final Runnable onClosed;
+	private final PageMaker pageMaker;
+	private final UserAlertManager userAlertManager;
+	private final BookmarkManager bookmarkManager;
+	private final InetAddress remoteAddr;
+	private final HTTPHeaderScanner scanner = new HTTPHeaderScanner();
+	private final LineReadingInputStream lis;
+
+	private final ToadletContextImpl.FileSender fileSender = new ToadletContextImpl.FileSender() {
+
+		@Override
+		public void sendFile(FileChannel file, long position, long count) throws IOException {
+			transferFrom(file, position, count);
+		}
+
+	};
+
+	HTTPChannelTransport(SocketChannel channel, ChannelSelector selector, Executor executor, ToadletContainer container,
+			PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, Runnable onClosed) {
+		super(channel, selector, executor, MAX_HEADER_SIZE, "HTTP connection from "+channel.socket().getRemoteSocketAddress());
+		this.container = container;
+		this.onClosed = onClosed;
+		this.pageMaker = pageMaker;
+		this.userAlertManager = userAlertManager;
+		this.bookmarkManager = bookmarkManager;
+		this.remoteAddr = channel.socket().getInetAddress();
+		this.lis = new LineReadingInputStream(getInputStream());
+	}
+
+	@Override
+	protected void resetHeader() {
+		scanner.reset();
+	}
+
+	@Override
+	protected boolean isHeaderComplete(byte[] buf, int start, int end) {
+		return scanner.scan(buf, start, end);
+	}
+
+	@Override
+	protected boolean processMessage() throws IOException {
+		boolean keepAlive = ToadletContextImpl.handleRequest(lis, getOutputStream(), remoteAddr, fileSender, container,
+				pageMaker, userAlertManager, bookmarkManager);
+		// Send the reply. Don't wait for it to be written, we can read the next request meanwhile.
+		getOutputStream().flush();
+		return keepAlive;
+	}
+
+	@Override
+	protected void onInputClosed() {
+		try {
+			closeOutput();
+		} catch (IOException e) {
+			// Ignore.
+		}
+		close();
+		onClosed.run();
+	}
+
+	@Override
+	protected int getPriority() {
+		return NativeThread.HIGH_PRIORITY-1;
+	}
+
+}
@@ -0,0 +1,77 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+/**
+ * Finds the end of an HTTP request header in a buffer which is filled a bit at a time, so that
+ * HTTPChannelTransport knows when ToadletContextImpl.handleRequest() can read the header without
+ * blocking. This only finds the boundary; the header is parsed as before.
+ *
+ * A header is any number of empty lines, the request line, then header fields up to an empty
+ * line. A line longer than the parser accepts also counts as the end, as the parser will then give
+ * up without reading any further.
+ *
+ * LOCKING: Not thread-safe.
+ */
+final class HTTPHeaderScanner {
+
+	/** Maximum length of a line, as passed to readLine(). */
+	static final int MAX_LINE_LENGTH = 32768;
+
+	/** Number of bytes scanned, from the start of the header. */
+	private int scanned;
+	private boolean gotRequestLine;
+	private boolean complete;
+	/** Length of the current line. */
+	private int lineLength;
+	private byte lastByte;
+
+	/** Start looking for a new header. */
+	void reset() {
+		scanned = 0;
+		gotRequestLine = false;
+		complete = false;
+		lineLength = 0;
+		lastByte = 0;
+	}
+
+	/**
+	 * Scan any bytes we haven't seen yet.
+	 * @param buf The buffer.
+	 * @param start Where the header starts. This can change between calls if the buffer has
+	 * been compacted, but the bytes from start onwards must be the same.
+	 * @param end The end of the data in the buffer.
+	 * @return True if there is a complete header, or at least enough of one for the parser to
+	 * finish with it.
+	 */
+	boolean scan(byte[] buf, int start, int end) {
+		if(complete) return true;
+		for(int i=start+scanned;i<end;i++) {
+			scanned++;
+			byte b = buf[i];
+			if(b == '\n') {
+				int length = lastByte == '\r' ? lineLength - 1 : lineLength;
+				if(length != 0) {
+					gotRequestLine = true;
+				} else if(gotRequestLine) {
+					// Empty line after the fields.
+					complete = true;
+					return true;
+				}
+				lineLength = 0;
+				lastByte = 0;
+			} else {
+				lastByte = b;
+				lineLength++;
+				// Allow for a \r before the \n.
+				if(lineLength > MAX_LINE_LENGTH + 1) {
+					complete = true;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A byte range from an HTTP Range header (RFC 7233), e.g. "bytes=0-499,1000-,-500".
+ */
+final class HTTPRange {
+
+	/** More ranges than this after merging overlapping ones, and we send the whole file
+	 * instead: lots of tiny ranges cost far more to send than the data in them. */
+	static final int MAX_RANGES = 32;
+
+	/** First byte, or -1 for a suffix range ("the last N bytes"). */
+	final long first;
+	/** Last byte, inclusive, or -1 if it runs to the end. For a suffix range, N. */
+	final long last;
+
+	HTTPRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	long length() {
+		return last - first + 1;
+	}
+
+	/**
+	 * Parse a Range header, without knowing the size of the data yet.
+	 * @throws HTTPRangeException If the header is not a valid byte range set.
+	 */
+	static List<HTTPRange> parse(String header) throws HTTPRangeException {
+		String[] units = header.split("=", 2);
+		// FIXME are MBytes and co valid? if so, we need to adjust the values and
+		// return always bytes
+		if (units.length != 2 || !"bytes".equals(units[0].trim())) {
+			throw new HTTPRangeException("Unknown unit, only 'bytes' supported yet");
+		}
+		List<HTTPRange> ranges = new ArrayList<HTTPRange>();
+		try {
+			for (String spec : units[1].split(",")) {
+				spec = spec.trim();
+				if (spec.isEmpty()) continue;
+				int dash = spec.indexOf('-');
+				if (dash < 0)
+					throw new HTTPRangeException("No '-' in range "+spec);
+				String from = spec.substring(0, dash).trim();
+				String to = spec.substring(dash + 1).trim();
+				if (from.isEmpty()) {
+					long suffix = Long.parseLong(to);
+					if (suffix < 0)
+						throw new HTTPRangeException("Negative suffix length");
+					ranges.add(new HTTPRange(-1, suffix));
+				} else {
+					long first = Long.parseLong(from);
+					if (first < 0)
+						throw new HTTPRangeException("Negative 'from' value");
+					long last = -1;
+					if (!to.isEmpty()) {
+						last = Long.parseLong(to);
+						if (last < first)
+							throw new HTTPRangeException("'to' value must not be less than 'from' value");
+					}
+					ranges.add(new HTTPRange(first, last));
+				}
+			}
+		} catch (NumberFormatException nfe) {
+			throw new HTTPRangeException(nfe);
+		}
+		if (ranges.isEmpty())
+			throw new HTTPRangeException("No ranges");
+		return ranges;
+	}
+
+	/**
+	 * Work out which bytes the ranges refer to for data of the given size. Ranges which start
+	 * beyond the end are dropped, the rest are clipped to the end, and overlapping or adjacent
+	 * ranges are merged.
+	 * @return The ranges in order, or an empty list if none of them can be satisfied, or null if
+	 * there are too many to be worth sending separately.
+	 */
+	static List<HTTPRange> resolve(List<HTTPRange> ranges, long size) {
+		List<HTTPRange> resolved = new ArrayList<HTTPRange>(ranges.size());
+		for (HTTPRange range : ranges) {
+			long first, last;
+			if (range.first == -1) {
+				if (range.last == 0) continue;
+				first = Math.max(0, size - range.last);
+				last = size - 1;
+			} else {
+				first = range.first;
+				last = (range.last == -1 || range.last >= size) ? size - 1 : range.last;
+			}
+			if (first >= size) continue;
+			resolved.add(new HTTPRange(first, last));
+		}
+		if (resolved.size() > 1) {
+			Collections.sort(resolved, new Comparator<HTTPRange>() {
+				@Override
+				public int compare(HTTPRange a, HTTPRange b) {
+					return Long.compare(a.first, b.first);
+				}
+			});
+			List<HTTPRange> merged = new ArrayList<HTTPRange>(resolved.size());
+			HTTPRange current = resolved.get(0);
+			for (int i = 1; i < resolved.size(); i++) {
+				HTTPRange next = resolved.get(i);
+				if (next.first <= current.last + 1) {
+					if (next.last > current.last)
+						current = new HTTPRange(current.first, next.last);
+				} else {
+					merged.add(current);
+					current = next;
+				}
+			}
+			merged.add(current);
+			resolved = merged;
+		}
+		if (resolved.size() > MAX_RANGES) return null;
+		return resolved;
+	}
+
+	/** @return The value of the Content-Range header for this range. */
+	String contentRange(long size) {
+		return "bytes " + first + "-" + last + "/" + size;
+	}
+
+	@Override
+	public String toString() {
+		return first + "-" + last;
+	}
+
+}
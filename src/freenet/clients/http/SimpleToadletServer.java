@@ -28,6 +28,8 @@ import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
+import freenet.io.ChannelSelector;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
@@ -122,6 +124,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private int maxFproxyConnections;
 	
 	private int fproxyConnections;
+	/** If true, connections are handled by a ChannelSelector rather than a thread each. */
+	private volatile boolean useSelector;
+	/** Created when first needed. Protected by (this). */
+	private ChannelSelector selector;
 	
 	private boolean finishedStartup;
 
@@ -196,6 +202,20 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}
 	}
 
+	private static class FProxyFilteredDataCacheSize extends LongCallback {
+		@Override
+		public Long get() {
+			return FProxyToadlet.MAX_FILTERED_CACHE_SIZE;
+		}
+
+		@Override
+		public void set(Long val) throws InvalidConfigValueException {
+			if (val < 0)
+				throw new InvalidConfigValueException(l10n("filteredDataCacheSizeNegative"));
+			FProxyToadlet.MAX_FILTERED_CACHE_SIZE = val;
+		}
+	}
+
 	private class FProxyPortCallback extends IntCallback  {
 		@Override
 		public Integer get() {
@@ -657,6 +677,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		fproxyConfig.register("passthroughMaxSizeProgress", FProxyToadlet.MAX_LENGTH_WITH_PROGRESS, configItemOrder++, true, false, "SimpleToadletServer.passthroughMaxSizeProgress", "SimpleToadletServer.passthroughMaxSizeProgressLong", new FProxyPassthruMaxSizeProgress(), true);
 		FProxyToadlet.MAX_LENGTH_WITH_PROGRESS = fproxyConfig.getLong("passthroughMaxSizeProgress");
 		System.out.println("Set fproxy max length to "+FProxyToadlet.MAX_LENGTH_NO_PROGRESS+" and max length with progress to "+FProxyToadlet.MAX_LENGTH_WITH_PROGRESS+" = "+fproxyConfig.getLong("passthroughMaxSizeProgress"));
+		fproxyConfig.register("filteredDataCacheSize", FProxyToadlet.MAX_FILTERED_CACHE_SIZE, configItemOrder++, true, false, "SimpleToadletServer.filteredDataCacheSize", "SimpleToadletServer.filteredDataCacheSizeLong", new FProxyFilteredDataCacheSize(), true);
+		FProxyToadlet.MAX_FILTERED_CACHE_SIZE = fproxyConfig.getLong("filteredDataCacheSize");
 
 		fproxyConfig.register("enableCachingForChkAndSskKeys", false, configItemOrder++, true, true, "SimpleToadletServer.enableCachingForChkAndSskKeys", "SimpleToadletServer.enableCachingForChkAndSskKeysLong", new BooleanCallback() {
 			@Override
@@ -727,6 +749,22 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}, false);
 		maxFproxyConnections = fproxyConfig.getInt("maxFproxyConnections");
 		
+		fproxyConfig.register("useSelector", false, configItemOrder++, true, false, "SimpleToadletServer.useSelector", "SimpleToadletServer.useSelectorLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return useSelector;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						// Only affects new connections.
+						useSelector = val;
+					}
+		});
+		useSelector = fproxyConfig.getBoolean("useSelector");
+		
 		fproxyConfig.register("metaRefreshSamePageInterval", 1, configItemOrder++, true, false, "SimpleToadletServer.metaRefreshSamePageInterval", "SimpleToadletServer.metaRefreshSamePageIntervalLong",
 				new IntCallback() {
 
@@ -866,7 +904,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			// Sockets with channels work with or without the selector.
+			this.networkInterface = ChannelNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
 	}		
 
@@ -1048,6 +1087,41 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}
 	}
 	
+	/**
+	 * Get the selector to handle a new connection, creating and starting it if necessary.
+	 * @return Null if the connection should have a thread to itself as before, e.g. because it
+	 * is an SSL connection or the selector is disabled.
+	 */
+	private synchronized ChannelSelector getSelector(Socket sock) {
+		if(!useSelector || sock.getChannel() == null) return null;
+		if(selector == null || !selector.isRunning()) {
+			try {
+				selector = new ChannelSelector("HTTP selector");
+			} catch (IOException e) {
+				Logger.error(this, "Unable to open selector for fproxy, using threads instead: "+e, e);
+				selector = null;
+				return null;
+			}
+			selector.start(executor);
+		}
+		return selector;
+	}
+
+	/** Called when a connection has been handled and closed. */
+	private synchronized void onConnectionClosed() {
+		fproxyConnections--;
+		notifyAll();
+	}
+
+	private final Runnable connectionClosed = new Runnable() {
+
+		@Override
+		public void run() {
+			onConnectionClosed();
+		}
+
+	};
+
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -1059,13 +1133,26 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}
 
 		void start() {
-			if(finishedStartup)
+			// Count it first: the selector may close it, and call onConnectionClosed(), at once.
+			synchronized(SimpleToadletServer.this) {
+				fproxyConnections++;
+			}
+			if(finishedStartup) {
+				ChannelSelector selector = getSelector(sock);
+				if(selector != null) {
+					try {
+						new HTTPChannelTransport(sock.getChannel(), selector, executor, SimpleToadletServer.this,
+								pageMaker, getUserAlertManager(), bookmarkManager, connectionClosed).start();
+						return;
+					} catch (IOException e) {
+						// Not registered, so connectionClosed won't run: run() takes over the
+						// connection, and calls onConnectionClosed() when done with it.
+						Logger.error(this, "Unable to use selector for "+sock+", using a thread instead: "+e, e);
+					}
+				}
 				executor.execute(this, "HTTP socket handler@"+hashCode());
-			else
+			} else
 				new Thread(this).start();
-            synchronized(SimpleToadletServer.this) {
-            	fproxyConnections++;
-            }
 		}
 		
 		@Override
@@ -1079,10 +1166,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				t.printStackTrace();
 				Logger.error(this, "Caught in SimpleToadletServer: "+t, t);
 			} finally {
-	            synchronized(SimpleToadletServer.this) {
-	            	fproxyConnections--;
-	            	SimpleToadletServer.this.notifyAll();
-	            }
+				onConnectionClosed();
 			}
 			if(logMINOR) Logger.minor(this, "Handled connection");
 		}
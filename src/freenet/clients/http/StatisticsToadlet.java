@@ -647,6 +647,15 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
 		}
+
+		HTMLNode executorList = threadsInfoboxContent.addChild("ul");
+		executorList.addChild("li", l10n("queuedJobs", "count", thousandPoint.format(stats.getQueuedJobsCount())));
+		double latency = stats.getAverageJobLatency();
+		if(latency >= 0)
+			executorList.addChild("li", l10n("jobLatency", "time", fix1p2.format(latency)));
+		double creationRate = stats.getThreadCreationRate();
+		if(creationRate >= 0)
+			executorList.addChild("li", l10n("threadCreationRate", "rate", fix1p2.format(creationRate)));
 	}
 
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
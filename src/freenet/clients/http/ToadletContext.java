@@ -111,6 +111,17 @@ public interface ToadletContext {
 	 * @see freenet.support.io.NoFreeBucket
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
+
+	/**
+	 * Write part of a bucket, e.g. for a Range request, reading it in place rather than copying
+	 * the part somewhere first. You must send reply headers first. Unlike
+	 * {@link #writeData(Bucket)}, this does not free the bucket, so several parts can be sent
+	 * from it.
+	 *
+	 * @param offset Where to start in the bucket.
+	 * @param length How many bytes to write.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
 	
 	/**
 	 * Get the page maker object.
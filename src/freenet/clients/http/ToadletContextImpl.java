@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -12,6 +13,8 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.text.ParseException;
@@ -39,9 +42,13 @@ import freenet.support.URIPreEncoder;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.BaseFileBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NoFreeBucket;
 import freenet.support.io.TooLongException;
 
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -64,11 +71,19 @@ public class ToadletContextImpl implements ToadletContext {
 	private static final String METHODS_MUST_HAVE_DATA = "POST";
 	private static final String METHODS_CANNOT_HAVE_DATA = "GET";
 	private static final String METHODS_RESTRICTED_MODE = "GET POST";
+	/** Size of the buffer for copying part of a bucket for a Range request. */
+	private static final int RANGE_BUFFER_SIZE = 32 * 1024;
 	
 	private final MultiValueTable<String,String> headers;
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
 	private ArrayList<Cookie> replyCookies; // Null until the first time the user sets a Cookie.
 	private final OutputStream sockOutputStream;
+	/** Null if we can't send files directly. */
+	private final FileSender fileSender;
+	/** The bucket the last range was read from, and the buffer we read it with, so that all the
+	 * parts of a multipart response share one buffer. There is only one response per context. */
+	private Bucket rangeBucket;
+	private LockableRandomAccessBuffer rangeBuffer;
 	private final PageMaker pagemaker;
 	private final BucketFactory bf;
 	private final ToadletContainer container;
@@ -102,13 +117,18 @@ public class ToadletContextImpl implements ToadletContext {
 	private boolean shouldDisconnect;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
+		this(sock.getOutputStream(), sock.getInetAddress(), null, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, uniqueID);
+	}
+
+	ToadletContextImpl(OutputStream sockOutputStream, InetAddress remoteAddr, FileSender fileSender, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
-		remoteAddr = sock.getInetAddress();
+		this.sockOutputStream = sockOutputStream;
+		this.remoteAddr = remoteAddr;
+		this.fileSender = fileSender;
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
@@ -504,6 +524,12 @@ public class ToadletContextImpl implements ToadletContext {
 		return sb.toString();
 	}
 	
+	/** Sends part of a file to the client without copying it through the heap, e.g. with
+	 * FileChannel.transferTo(). */
+	interface FileSender {
+		void sendFile(FileChannel file, long position, long count) throws IOException;
+	}
+
 	/**
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
@@ -513,194 +539,225 @@ public class ToadletContextImpl implements ToadletContext {
 			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
-			while(true) {
-				
-				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
-				if (firstLine == null) {
-					sock.close();
-					return;
-				} else if (firstLine.isEmpty()) {
-					continue;
-				}
-				
-				if(logMINOR)
-					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
-				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
-				
-				URI uri;
-				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
-				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
-				}
-				String method = split[0];
-				
-				MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
-				
-				while(true) {
-					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
-					if (line == null) {
-						sock.close();
-						return;
-					}
-					//System.out.println("Length="+line.length()+": "+line);
-					if(line.length() == 0) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
+			final SocketChannel channel = sock.getChannel();
+			FileSender fileSender = null;
+			if(channel != null) {
+				// Blocking, so we can just transferTo() it.
+				fileSender = new FileSender() {
+
+					@Override
+					public void sendFile(FileChannel file, long position, long count) throws IOException {
+						while(count > 0) {
+							long sent = file.transferTo(position, count, channel);
+							if(sent <= 0) throw new IOException("File truncated while sending it");
+							position += sent;
+							count -= sent;
+						}
 					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
+
+				};
+			}
+			
+			while(handleRequest(lis, sock.getOutputStream(), sock.getInetAddress(), fileSender, container, pageMaker, userAlertManager, bookmarkManager)) {
+				// Keep-alive.
+			}
+		} catch (IOException e) {
+			// Ignore and close.
+		}
+		try {
+			sock.close();
+		} catch (IOException e) {
+			// Ignore.
+		}
+	}
+	
+	/**
+	 * Read, parse and handle one request. Used both with a thread per connection, by handle(), and
+	 * by HTTPChannelTransport, which only calls it once the request headers have arrived.
+	 * @param fileSender Used to send file-backed buckets without copying them, or null.
+	 * @return True if the connection should be kept open for another request.
+	 */
+	static boolean handleRequest(LineReadingInputStream lis, OutputStream os, InetAddress remoteAddr, FileSender fileSender, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		try {
+			String firstLine;
+			do {
+				firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
+				if (firstLine == null)
+					return false;
+			} while (firstLine.isEmpty());
+			
+			if(logMINOR)
+				Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
+			
+			String[] split = firstLine.split(" ");
+			
+			if(split.length != 3)
+				throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+			
+			if(!split[2].startsWith("HTTP/1."))
+				throw new ParseException("Unrecognized protocol "+split[2], -1);
+			
+			URI uri;
+			try {
+				uri = URIPreEncoder.encodeURI(split[1]).normalize();
+				if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+			} catch (URISyntaxException e) {
+				sendURIParseError(os, true, e);
+				return false;
+			}
+			String method = split[0];
+			
+			MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
+			
+			while(true) {
+				String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
+				if (line == null)
+					return false;
+				//System.out.println("Length="+line.length()+": "+line);
+				if(line.length() == 0) break;
+				int index = line.indexOf(':');
+				if (index < 0) {
+					throw new ParseException("Missing ':' in request header field", -1);
 				}
-				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				String before = line.substring(0, index).toLowerCase();
+				String after = line.substring(index+1);
+				after = after.trim();
+				headers.put(before, after);
+			}
+			
+			boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
 
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
+			boolean allowPost = container.allowPosts();
+			BucketFactory bf = container.getBucketFactory();
+			
+			ToadletContextImpl ctx = new ToadletContextImpl(os, remoteAddr, fileSender, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
+			ctx.shouldDisconnect = disconnect;
+			
+			/*
+			 * copy the data into a bucket now,
+			 * before we go into the redirect loop
+			 */
+			
+			Bucket data;
 
 
-				String slen = headers.get("content-length");
+			String slen = headers.get("content-length");
 
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
+			if (METHODS_MUST_HAVE_DATA.contains(method)) {
+				// <method> must have data
+				if (slen == null) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
 				}
-
+			} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+				// <method> can not have data
 				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+			}
+
+			if (slen != null) {
+				long len;
+				try {
+					len = Integer.parseInt(slen);
+					if(len < 0) throw new NumberFormatException("content-length less than 0");
+				} catch (NumberFormatException e) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+				if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
+					data = bf.makeBucket(len);
+					BucketTools.copyFrom(data, lis, len);
+				} else {
+					FileUtil.skipFully(lis, len);
+					if (method.equals("POST")) {
+						ctx.sendMethodNotAllowed("POST", true);
 					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
+						sendError(os, 403, "Forbidden", "Content not allowed in this configuration", true, null);
 					}
-				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
+					ctx.close();
+					return false;
 				}
+			} else {
+				// we're not doing to use it, but we have to keep
+				// the compiler happy
+				data = null;
+			}
 
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
+			if (!container.enableExtendedMethodHandling()) {
+				if (!METHODS_RESTRICTED_MODE.contains(method)) {
+					sendError(os, 403, "Forbidden", "Method not allowed in this configuration", true, null);
+					return false;
 				}
+			}
 
-				// Handle it.
-				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
+			// Handle it.
+			try {
+				boolean redirect = true;
+				while (redirect) {
+					// don't go around the loop unless set explicitly
+					redirect = false;
 					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
+					Toadlet t;
+					try {
+						t = container.findToadlet(uri);
+					} catch (PermanentRedirectException e) {
+						Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+						break;
+					}
+				
+					if(t == null) {
+						ctx.sendNoToadletError(ctx.shouldDisconnect);
+						break;
+					}
 
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
+					// if the Toadlet does not support the method, we don't need to parse the data
+					// also due this pre check a 'NoSuchMethodException' should never appear
+					if (!(t.findSupportedMethods().contains(method))) {
+						ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+						break;
+					}
 
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						
-						// require form password if it's a POST, unless the toadlet requests otherwise
-						if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
-							if (!ctx.checkFormPassword(req, t.path())) {
-								break;
-							}
-						}
-						
-						if(ctx.isAllowedFullAccess()) {
-							ctx.getPageMaker().parseMode(req, container);
-						}
-						
-						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
+					HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+					
+					// require form password if it's a POST, unless the toadlet requests otherwise
+					if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
+						if (!ctx.checkFormPassword(req, t.path())) {
+							break;
 						}
 					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+					
+					if(ctx.isAllowedFullAccess()) {
+						ctx.getPageMaker().parseMode(req, container);
+					}
+					
+					try {
+						callToadletMethod(t, method, uri, req, ctx, data, os, redirect);
+					} catch (RedirectException re) {
+						uri = re.newuri;
+						redirect = true;
+					} finally {
+						req.freeParts();
 					}
-				} finally {
-					if(data != null) data.free();
 				}
+				return !ctx.shouldDisconnect;
+			} finally {
+				if(data != null) data.free();
 			}
 			
 		} catch (ParseException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+				sendError(os, 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
 		} catch (TooLongException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+				sendError(os, 400, "Bad Request", l10n("headersLineTooLong"), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
@@ -719,21 +776,22 @@ public class ToadletContextImpl implements ToadletContext {
 				pw.flush();
 				msg = msg + sw + "</pre></body></html>";
 				byte[] messageBytes = msg.getBytes(StandardCharsets.UTF_8);
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
-				sock.getOutputStream().write(messageBytes);
+				sendReplyHeaders(os, 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
+				os.write(messageBytes);
 			} catch (IOException e1) {
 				// ignore and return
 			}
 		}
+		return false;
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
-			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
+			ToadletContextImpl ctx, Bucket data, OutputStream os, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 		if("GET".equals(method)) {
 			// Short cut the common case.
 			if (data != null) {
-				sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+				sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 				ctx.close();
 				return;
 			}
@@ -748,13 +806,13 @@ public class ToadletContextImpl implements ToadletContext {
 				AllowData anno = m.getAnnotation(AllowData.class);
 				if (anno == null) {
 					if (data != null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+						sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 						ctx.close();
 						return;
 					}
 				} else if (anno.value()) {
 					if (data == null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+						sendError(os, 400, "Bad Request", "Missing Content", true, null);
 						ctx.close();
 						return;
 					}
@@ -821,9 +879,98 @@ public class ToadletContextImpl implements ToadletContext {
 	@Override
 	public void writeData(Bucket data) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
-		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
+		if(fileSender != null && data instanceof BaseFileBucket) {
+			sendFile((BaseFileBucket) data);
+		} else {
+			BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
+		}
 		data.free();
 	}
+
+	@Override
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
+		if(closed) throw new ToadletContextClosedException();
+		// Callers usually keep ownership by wrapping the data, so look at what is inside.
+		Bucket inner = data;
+		while(inner instanceof NoFreeBucket)
+			inner = ((NoFreeBucket) inner).getProxy();
+		if(inner instanceof BaseFileBucket) {
+			if(fileSender != null)
+				sendFile((BaseFileBucket) inner, offset, length);
+			else
+				copyFile((BaseFileBucket) inner, offset, length);
+			return;
+		}
+		if(inner instanceof RandomAccessBucket) {
+			LockableRandomAccessBuffer raf = rangeBuffer(inner);
+			if(raf != null) {
+				copy(raf, offset, length);
+				return;
+			}
+		}
+		// Last resort: each part reads everything before it again.
+		try(InputStream is = data.getInputStream()) {
+			FileUtil.skipFully(is, offset);
+			FileUtil.copy(is, sockOutputStream, length);
+		}
+	}
+
+	/**
+	 * @return A buffer for reading the bucket in place, the same one for each part of the
+	 * response, or null if we can't read it in place.
+	 */
+	private LockableRandomAccessBuffer rangeBuffer(Bucket data) {
+		if(rangeBucket == data) return rangeBuffer;
+		LockableRandomAccessBuffer raf = null;
+		try {
+			// Shares the data with the bucket, which the caller frees, so we don't close it.
+			raf = ((RandomAccessBucket) data).toRandomAccessBuffer();
+		} catch (IOException e) {
+			// E.g. somebody else is reading it with a stream.
+			if(logMINOR) Logger.minor(this, "Can't read "+data+" in place, skipping instead: "+e);
+		}
+		rangeBucket = data;
+		rangeBuffer = raf;
+		return raf;
+	}
+
+	/** Copy part of a buffer to the client with positional reads. */
+	private void copy(LockableRandomAccessBuffer raf, long offset, long length) throws IOException {
+		byte[] buf = new byte[(int) Math.min(length, RANGE_BUFFER_SIZE)];
+		while(length > 0) {
+			int read = (int) Math.min(length, buf.length);
+			raf.pread(offset, buf, 0, read);
+			sockOutputStream.write(buf, 0, read);
+			offset += read;
+			length -= read;
+		}
+	}
+
+	/** Copy part of a file to the client when we can't send it directly, e.g. over SSL. */
+	private void copyFile(BaseFileBucket data, long offset, long length) throws IOException {
+		try(RandomAccessFile raf = new RandomAccessFile(data.getFile(), "r")) {
+			raf.seek(offset);
+			byte[] buf = new byte[(int) Math.min(length, RANGE_BUFFER_SIZE)];
+			while(length > 0) {
+				int read = (int) Math.min(length, buf.length);
+				raf.readFully(buf, 0, read);
+				sockOutputStream.write(buf, 0, read);
+				length -= read;
+			}
+		}
+	}
+
+	/** Send a file without copying it through the heap. */
+	private void sendFile(BaseFileBucket data) throws IOException {
+		sendFile(data, 0, data.size());
+	}
+
+	private void sendFile(BaseFileBucket data, long offset, long length) throws IOException {
+		try(RandomAccessFile raf = new RandomAccessFile(data.getFile(), "r")) {
+			sockOutputStream.flush();
+			fileSender.sendFile(raf.getChannel(), offset, length);
+		}
+	}
 	
 	@Override
 	public BucketFactory getBucketFactory() {
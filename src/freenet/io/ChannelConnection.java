@@ -0,0 +1,609 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+import freenet.support.io.TooLongException;
+
+/**
+ * A connection to a line-based protocol such as FCP or HTTP, handled by a {@link ChannelSelector}
+ * rather than a thread of its own. The selector reads whatever arrives into a buffer, and the
+ * subclass checks whether a whole message header has arrived. Only then do we start a job on the
+ * executor, which parses and runs messages, reading from {@link #getInputStream()}, until there
+ * are no more complete headers in the buffer. So an idle connection only costs its buffers.
+ *
+ * Replies written to {@link #getOutputStream()} are collected into chunks, which are written
+ * straight away if possible, otherwise by the selector when the socket can take more, using
+ * gathering writes. Files can be sent without copying them through the heap with
+ * {@link #transferFrom(FileChannel, long, long)}.
+ *
+ * The job reading a message blocks if it needs more data than has arrived, e.g. while reading
+ * the data for an upload; likewise anything writing blocks if the client is slow to read. Neither
+ * holds up any other connection.
+ *
+ * LOCKING: Input state is protected by inputLock, output state by outputLock. Never take one
+ * while holding the other. The subclass's header scanning methods are called with inputLock held.
+ */
+public abstract class ChannelConnection {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+	/** Size of the read buffer while reading data, and of the chunks we write. */
+	private static final int BUFFER_SIZE = 32 * 1024;
+	/** If there is more than this waiting to be written, writers wait. */
+	private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+	/** Maximum number of buffers in one gathering write. */
+	private static final int MAX_GATHER = 64;
+
+	private final SocketChannel channel;
+	private final ChannelSelector selector;
+	private final Executor executor;
+	/** The read buffer grows to hold a whole header, but no further. */
+	private final int maxHeaderSize;
+	protected final String name;
+	/** Set once registered, used by the selector thread only. */
+	private SelectionKey key;
+
+	private final Object inputLock = new Object();
+	private byte[] inBuf = new byte[INITIAL_READ_BUFFER_SIZE];
+	/** Unread data is inBuf[inStart, inEnd). */
+	private int inStart;
+	private int inEnd;
+	/** Where the stream was marked, or -1. */
+	private int markPos = -1;
+	private int markLimit;
+	private boolean inputClosed;
+	/** The header is bigger than maxHeaderSize. Let the parser deal with it. */
+	private boolean forceReader;
+	/** True if the buffer is full and we are waiting for the reader to catch up. */
+	private boolean readPaused;
+	private boolean readerRunning;
+
+	private final Object outputLock = new Object();
+	/** ByteBuffer's and FileRegion's waiting to be written. */
+	private final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+	private int pendingBytes;
+	private boolean writeFailed;
+
+	/**
+	 * @param maxHeaderSize If a header is bigger than this, we start parsing it anyway, and let
+	 * the parser decide what to do. This limits the size of the buffer.
+	 * @param name Used for logging and to name jobs.
+	 */
+	protected ChannelConnection(SocketChannel channel, ChannelSelector selector, Executor executor, int maxHeaderSize, String name) {
+		this.channel = channel;
+		this.selector = selector;
+		this.executor = executor;
+		this.maxHeaderSize = maxHeaderSize;
+		this.name = name;
+	}
+
+	public void start() throws IOException {
+		channel.configureBlocking(false);
+		selector.register(this, channel);
+	}
+
+	/** Start looking for a new header, at inStart. Called with inputLock held. */
+	protected abstract void resetHeader();
+
+	/** Is there a complete header at the start of the buffer? Called with inputLock held. The
+	 * bytes from start onwards will be the same on every call until resetHeader(), but start
+	 * can move if the buffer is compacted. */
+	protected abstract boolean isHeaderComplete(byte[] buf, int start, int end);
+
+	/**
+	 * Read and run one message from getInputStream(). Called by a job on the executor, once there
+	 * is a whole header in the buffer.
+	 * @return False to stop reading from the connection.
+	 */
+	protected abstract boolean processMessage() throws IOException;
+
+	/** Called by the job reading messages when it stops, e.g. because the other side has closed
+	 * the connection. */
+	protected abstract void onInputClosed();
+
+	/** Called when writing fails, or the connection is closed, so anything waiting to write can
+	 * give up. */
+	protected void onOutputFailed() {
+		// Do nothing.
+	}
+
+	/** Priority of the job reading messages. */
+	protected int getPriority() {
+		return NativeThread.NORM_PRIORITY;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/** What the selector should wait for. */
+	int interestOps() {
+		int ops = 0;
+		synchronized(inputLock) {
+			if(!inputClosed && !readPaused) ops |= SelectionKey.OP_READ;
+		}
+		synchronized(outputLock) {
+			if(!pending.isEmpty() && !writeFailed) ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+
+	/** Close the channel. Anything still waiting to be written is lost, see closeOutput(). */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore.
+		}
+		// Wake up the selector, which will notice the key has been cancelled.
+		selector.updateInterest(this);
+	}
+
+	// Input
+
+	/** Called by the selector when there is data to read. */
+	void onReadable() {
+		boolean startReader = false;
+		boolean updateInterest = false;
+		synchronized(inputLock) {
+			if(inputClosed) return;
+			if(!makeRoom()) {
+				readPaused = true;
+				updateInterest = true;
+			} else {
+				try {
+					int read = channel.read(ByteBuffer.wrap(inBuf, inEnd, inBuf.length - inEnd));
+					if(read < 0) {
+						inputClosed = true;
+						updateInterest = true;
+					} else {
+						inEnd += read;
+					}
+				} catch (IOException e) {
+					if(logMINOR) Logger.minor(this, "Caught "+e+" reading from "+name, e);
+					inputClosed = true;
+					updateInterest = true;
+				}
+				inputLock.notifyAll();
+			}
+			if(!readerRunning && (inputClosed || forceReader || isHeaderComplete(inBuf, inStart, inEnd))) {
+				readerRunning = true;
+				startReader = true;
+			}
+		}
+		if(updateInterest) selector.updateInterest(this);
+		if(startReader) executor.execute(reader, name);
+	}
+
+	/** Make sure there is space at the end of the buffer, if we can.
+	 * @return False if the buffer is full and we must wait for the reader. */
+	private boolean makeRoom() {
+		if(inEnd < inBuf.length) return true;
+		if(markPos >= 0 && inStart - markPos > markLimit)
+			markPos = -1;
+		int keepFrom = markPos >= 0 ? Math.min(markPos, inStart) : inStart;
+		if(keepFrom > 0) {
+			System.arraycopy(inBuf, keepFrom, inBuf, 0, inEnd - keepFrom);
+			inStart -= keepFrom;
+			inEnd -= keepFrom;
+			if(markPos >= 0) markPos -= keepFrom;
+			return true;
+		}
+		if(readerRunning) {
+			// Reading data or a header, will free up space shortly.
+			if(inBuf.length >= BUFFER_SIZE) return false;
+		} else if(inBuf.length >= maxHeaderSize) {
+			// Waiting for the end of a header, but it's too big.
+			forceReader = true;
+			return false;
+		}
+		inBuf = Arrays.copyOf(inBuf, inBuf.length * 2);
+		return true;
+	}
+
+	/** Reads messages while there are complete headers in the buffer. */
+	private final PrioRunnable reader = new PrioRunnable() {
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					boolean stop = false;
+					boolean resume = false;
+					synchronized(inputLock) {
+						resetHeader();
+						if(!inputClosed && !forceReader && !isHeaderComplete(inBuf, inStart, inEnd)) {
+							// Wait for the selector to read the rest. It can grow the buffer now.
+							readerRunning = false;
+							stop = true;
+							resume = readPaused;
+							readPaused = false;
+						}
+						forceReader = false;
+					}
+					if(stop) {
+						if(resume) selector.updateInterest(ChannelConnection.this);
+						return;
+					}
+					if(!processMessage()) break;
+				}
+			} catch (TooLongException e) {
+				Logger.normal(this, "Caught "+e.getMessage()+" from "+name, e);
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e+" from "+name, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" from "+name, t);
+			}
+			synchronized(inputLock) {
+				inputClosed = true;
+			}
+			selector.updateInterest(ChannelConnection.this);
+			onInputClosed();
+		}
+
+		@Override
+		public int getPriority() {
+			return ChannelConnection.this.getPriority();
+		}
+
+	};
+
+	/** The data read so far. Blocks if it is empty, until the selector reads more. Only for use by
+	 * processMessage(). */
+	protected final InputStream getInputStream() {
+		return input;
+	}
+
+	private final InputStream input = new InputStream() {
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int x = read(buf, 0, 1);
+			if(x <= 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			boolean resume = false;
+			int read;
+			synchronized(inputLock) {
+				while(inStart == inEnd) {
+					if(inputClosed) return -1;
+					if(readPaused) {
+						// Can't happen with an empty buffer, but just in case.
+						readPaused = false;
+						selector.updateInterest(ChannelConnection.this);
+					}
+					try {
+						inputLock.wait();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+				read = Math.min(length, inEnd - inStart);
+				System.arraycopy(inBuf, inStart, buf, offset, read);
+				inStart += read;
+				if(readPaused) {
+					readPaused = false;
+					resume = true;
+				}
+			}
+			if(resume) selector.updateInterest(ChannelConnection.this);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			synchronized(inputLock) {
+				return inEnd - inStart;
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Usually used by LineReadingInputStream after reset(), so the bytes are in the buffer.
+			if(n <= 0) return 0;
+			synchronized(inputLock) {
+				if(inStart == inEnd) {
+					int x = read();
+					return x < 0 ? 0 : 1;
+				}
+				int skipped = (int) Math.min(n, inEnd - inStart);
+				inStart += skipped;
+				return skipped;
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(int readLimit) {
+			synchronized(inputLock) {
+				markPos = inStart;
+				markLimit = readLimit;
+			}
+		}
+
+		@Override
+		public void reset() throws IOException {
+			synchronized(inputLock) {
+				if(markPos < 0) throw new IOException("Mark invalid");
+				inStart = markPos;
+			}
+		}
+
+	};
+
+	// Output
+
+	/** Collects what is written into chunks. flush() sends the current chunk, but doesn't wait
+	 * for it to be written; close() does, but doesn't close the connection. Only one thread may
+	 * write at a time. */
+	protected final OutputStream getOutputStream() {
+		return output;
+	}
+
+	/** Wait until everything written so far has been sent.
+	 * @throws IOException If writing has failed. */
+	protected final void closeOutput() throws IOException {
+		output.close();
+	}
+
+	private final OutputStream output = new OutputStream() {
+
+		private byte[] chunk = new byte[BUFFER_SIZE];
+		private int chunkLength;
+
+		@Override
+		public void write(int b) throws IOException {
+			if(chunkLength == chunk.length) sendChunk();
+			chunk[chunkLength++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			while(length > 0) {
+				if(chunkLength == chunk.length) sendChunk();
+				int copy = Math.min(length, chunk.length - chunkLength);
+				System.arraycopy(buf, offset, chunk, chunkLength, copy);
+				chunkLength += copy;
+				offset += copy;
+				length -= copy;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(chunkLength > 0) sendChunk();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			synchronized(outputLock) {
+				while(!pending.isEmpty() && !writeFailed) {
+					try {
+						outputLock.wait();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+				if(writeFailed) throw new IOException("Write failed");
+			}
+		}
+
+		private void sendChunk() throws IOException {
+			ByteBuffer buf;
+			if(chunkLength < chunk.length / 2) {
+				// Flushing a small chunk, e.g. a single message. Keep the rest of the buffer.
+				buf = ByteBuffer.wrap(Arrays.copyOf(chunk, chunkLength));
+			} else {
+				buf = ByteBuffer.wrap(chunk, 0, chunkLength);
+				chunk = new byte[BUFFER_SIZE];
+			}
+			chunkLength = 0;
+			queueOutput(buf);
+		}
+
+	};
+
+	/** Queue a buffer to be written. If nothing else is waiting, try to write it straight away.
+	 * Otherwise, wait if there is too much waiting already. */
+	private void queueOutput(ByteBuffer buf) throws IOException {
+		synchronized(outputLock) {
+			while(pendingBytes >= MAX_PENDING_OUTPUT && !writeFailed) {
+				try {
+					outputLock.wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			if(writeFailed) throw new IOException("Write failed");
+			if(pending.isEmpty()) {
+				try {
+					channel.write(buf);
+				} catch (IOException e) {
+					writeFailed = true;
+					outputLock.notifyAll();
+					throw e;
+				}
+				if(!buf.hasRemaining()) return;
+			}
+			pending.add(buf);
+			pendingBytes += buf.remaining();
+		}
+		selector.updateInterest(this);
+	}
+
+	/** Part of a file waiting to be sent. */
+	private static class FileRegion {
+		final FileChannel file;
+		long position;
+		long remaining;
+
+		FileRegion(FileChannel file, long position, long remaining) {
+			this.file = file;
+			this.position = position;
+			this.remaining = remaining;
+		}
+
+		/** Send as much as the socket will take.
+		 * @return True if the whole region has been sent. */
+		boolean transferTo(SocketChannel channel) throws IOException {
+			while(remaining > 0) {
+				long sent = file.transferTo(position, remaining, channel);
+				if(sent == 0) {
+					if(position >= file.size()) throw new IOException("File truncated while sending it");
+					return false;
+				}
+				position += sent;
+				remaining -= sent;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Send part of a file, after anything already written to getOutputStream(), without copying
+	 * it through the heap. Blocks until it has been sent, so the caller can then close the file.
+	 * Only one thread may write at a time.
+	 */
+	public void transferFrom(FileChannel file, long position, long count) throws IOException {
+		output.flush();
+		FileRegion region = new FileRegion(file, position, count);
+		synchronized(outputLock) {
+			if(writeFailed) throw new IOException("Write failed");
+			if(pending.isEmpty()) {
+				try {
+					if(region.transferTo(channel)) return;
+				} catch (IOException e) {
+					writeFailed = true;
+					outputLock.notifyAll();
+					throw e;
+				}
+			}
+			pending.add(region);
+		}
+		selector.updateInterest(this);
+		synchronized(outputLock) {
+			while(pending.contains(region) && !writeFailed) {
+				try {
+					outputLock.wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			if(writeFailed) throw new IOException("Write failed");
+		}
+	}
+
+	/** Called by the selector when we can write. */
+	void onWritable() {
+		boolean updateInterest = false;
+		boolean failed = false;
+		synchronized(outputLock) {
+			try {
+				while(!pending.isEmpty()) {
+					Object first = pending.peekFirst();
+					if(first instanceof FileRegion) {
+						if(!((FileRegion) first).transferTo(channel)) break;
+						pending.removeFirst();
+						continue;
+					}
+					ByteBuffer[] bufs = new ByteBuffer[Math.min(pending.size(), MAX_GATHER)];
+					int count = 0;
+					for(Object o : pending) {
+						if(count == bufs.length || !(o instanceof ByteBuffer)) break;
+						bufs[count++] = (ByteBuffer) o;
+					}
+					pendingBytes -= channel.write(bufs, 0, count);
+					while(!pending.isEmpty() && pending.peekFirst() instanceof ByteBuffer &&
+							!((ByteBuffer) pending.peekFirst()).hasRemaining())
+						pending.removeFirst();
+					if(bufs[count-1].hasRemaining()) break;
+				}
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Caught "+e+" writing to "+name, e);
+				writeFailed = true;
+				pending.clear();
+				pendingBytes = 0;
+				failed = true;
+			}
+			if(pending.isEmpty()) updateInterest = true;
+			outputLock.notifyAll();
+		}
+		if(updateInterest) selector.updateInterest(this);
+		if(failed) onOutputFailed();
+	}
+
+	/** Called by the selector if the channel has been closed or the selector is shutting down. */
+	void onClosed() {
+		boolean startReader = false;
+		synchronized(inputLock) {
+			if(!inputClosed) {
+				inputClosed = true;
+				inputLock.notifyAll();
+				if(!readerRunning) {
+					readerRunning = true;
+					startReader = true;
+				}
+			}
+		}
+		boolean failed = false;
+		synchronized(outputLock) {
+			if(!writeFailed) {
+				writeFailed = true;
+				failed = true;
+			}
+			pending.clear();
+			pendingBytes = 0;
+			outputLock.notifyAll();
+		}
+		if(failed) onOutputFailed();
+		if(startReader) executor.execute(reader, name);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+": "+name;
+	}
+
+}
@@ -0,0 +1,149 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * One thread which waits for many {@link ChannelConnection}'s, so an idle connection doesn't need
+ * a thread of its own. Only moves bytes between the sockets and the connections' buffers; messages
+ * are parsed, run and written on the executor.
+ */
+public final class ChannelSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private final Selector selector;
+	private final String name;
+	/** Jobs to run on the selector thread, e.g. registering a channel. */
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+	/** False once the selector thread has exited, e.g. because of an error. */
+	private volatile boolean running = true;
+
+	/**
+	 * @param name The name of the selector thread.
+	 */
+	public ChannelSelector(String name) throws IOException {
+		selector = Selector.open();
+		this.name = name;
+	}
+
+	public void start(Executor executor) {
+		executor.execute(this, name);
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/** Start waiting for a connection. */
+	void register(final ChannelConnection conn, final SocketChannel channel) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					SelectionKey key = channel.register(selector, conn.interestOps(), conn);
+					conn.setKey(key);
+				} catch (ClosedChannelException e) {
+					conn.onClosed();
+				}
+			}
+
+		});
+	}
+
+	/** Update what we are waiting for on a connection, from ChannelConnection.interestOps(). */
+	void updateInterest(final ChannelConnection conn) {
+		execute(new Runnable() {
+
+			@Override
+			public void run() {
+				SelectionKey key = conn.getKey();
+				if(key == null) return; // Not registered yet, will be set when it is.
+				try {
+					key.interestOps(conn.interestOps());
+				} catch (CancelledKeyException e) {
+					conn.onClosed();
+				}
+			}
+
+		});
+	}
+
+	private void execute(Runnable task) {
+		synchronized(tasks) {
+			tasks.add(task);
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		try {
+			while(true) {
+				while(true) {
+					Runnable task;
+					synchronized(tasks) {
+						task = tasks.poll();
+					}
+					if(task == null) break;
+					task.run();
+				}
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					ChannelConnection conn = (ChannelConnection) key.attachment();
+					try {
+						if(key.isReadable())
+							conn.onReadable();
+						if(key.isValid() && key.isWritable())
+							conn.onWritable();
+					} catch (CancelledKeyException e) {
+						conn.onClosed();
+					}
+				}
+			}
+		} catch (IOException e) {
+			Logger.error(this, name+" failed: "+e, e);
+		} catch (Throwable t) {
+			Logger.error(this, name+" failed: "+t, t);
+		} finally {
+			if(logMINOR) Logger.minor(this, name+" exiting");
+			running = false;
+			for(SelectionKey key : selector.keys())
+				((ChannelConnection) key.attachment()).onClosed();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore.
+			}
+		}
+	}
+
+}
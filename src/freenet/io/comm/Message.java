@@ -20,13 +20,12 @@
 package freenet.io.comm;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
@@ -49,6 +48,10 @@ import freenet.support.Logger.LogLevel;
  * 
  * FIXME we should get rid of sub-messages.
  *
+ * The fields are stored by their index in the MessageType: primitives unboxed in a long[], and
+ * everything else in an Object[]. The indexed getters and setters don't look up the field name;
+ * the ones taking a name look up the index and are kept for compatibility.
+ *
  * @author ian
  */
 public class Message {
@@ -70,7 +73,12 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<>(8);
+	/** Primitive fields by index, floats and doubles as their bits. Null if there are none. */
+	private final long[] _primitives;
+	/** Other fields by index. Null if there are none. */
+	private final Object[] _objects;
+	/** Bit i is set if field i has been set. */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,14 +115,9 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
+			int fields = mspec.fieldCount();
+			for (int i = 0; i < fields; i++) {
+				m.readField(i, bb);
 			}
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
@@ -167,6 +170,9 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		int fields = spec.fieldCount();
+		_primitives = spec.hasPrimitiveFields() ? new long[fields] : null;
+		_objects = spec.hasObjectFields() ? new Object[fields] : null;
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -174,7 +180,9 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives == null ? null : m._primitives.clone();
+		_objects = m._objects == null ? null : m._objects.clone();
+		_set = m._set;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +191,280 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	private void readField(int field, DataInput dis) throws IOException {
+		long value;
+		switch (_spec.fieldKind(field)) {
+		case MessageType.KIND_BOOLEAN:
+			// Only 0 and 1 are written, as in Serializer.
+			value = dis.readByte();
+			if (value != 0 && value != 1) throw new IOException("Boolean is non boolean value: " + value);
+			break;
+		case MessageType.KIND_BYTE:
+			value = dis.readByte();
+			break;
+		case MessageType.KIND_SHORT:
+			value = dis.readShort();
+			break;
+		case MessageType.KIND_INT:
+		case MessageType.KIND_FLOAT: // Same bits as readFloat().
+			value = dis.readInt();
+			break;
+		case MessageType.KIND_LONG:
+		case MessageType.KIND_DOUBLE: // Same bits as readDouble().
+			value = dis.readLong();
+			break;
+		default:
+			Class<?> listType = _spec.fieldListType(field);
+			if (listType != null) { // Special handling for LinkedList to deal with element type
+				set(field, Serializer.readListFromDataInputStream(listType, dis));
+			} else {
+				set(field, Serializer.readFromDataInputStream(_spec.fieldType(field), dis));
+			}
+			return;
+		}
+		_primitives[field] = value;
+		_set |= 1L << field;
+	}
+
+	private void writeField(int field, DataOutputStream dos) throws IOException {
+		if ((_set & (1L << field)) == 0) {
+			throw new FieldNotSetException(_spec.fieldName(field) + " not set in " + _spec.getName());
+		}
+		switch (_spec.fieldKind(field)) {
+		case MessageType.KIND_BOOLEAN:
+			dos.writeBoolean(_primitives[field] != 0);
+			break;
+		case MessageType.KIND_BYTE:
+			dos.write((byte) _primitives[field]);
+			break;
+		case MessageType.KIND_SHORT:
+			dos.writeShort((short) _primitives[field]);
+			break;
+		case MessageType.KIND_INT:
+			dos.writeInt((int) _primitives[field]);
+			break;
+		case MessageType.KIND_LONG:
+			dos.writeLong(_primitives[field]);
+			break;
+		case MessageType.KIND_FLOAT:
+			dos.writeFloat(Float.intBitsToFloat((int) _primitives[field]));
+			break;
+		case MessageType.KIND_DOUBLE:
+			dos.writeDouble(Double.longBitsToDouble(_primitives[field]));
+			break;
+		default:
+			Serializer.writeToDataOutputStream(_objects[field], dos);
+		}
+	}
+
+	/** @return True if the field is set and is stored as the given kind of primitive. */
+	private boolean isPrimitive(int field, byte kind) {
+		return field >= 0 && _spec.fieldKind(field) == kind && (_set & (1L << field)) != 0;
+	}
+
+	private long getPrimitive(int field, byte kind) {
+		if (_spec.fieldKind(field) != kind) {
+			throw new IncorrectTypeException(_spec.fieldName(field) + " is a " + _spec.fieldType(field).getName());
+		}
+		if ((_set & (1L << field)) == 0) {
+			throw new FieldNotSetException(_spec.fieldName(field) + " not set");
+		}
+		return _primitives[field];
+	}
+
+	private void setPrimitive(int field, byte kind, long value, Object boxed) {
+		if (_spec.fieldKind(field) != kind) {
+			// Wrong type, unless the field is e.g. a Number.
+			set(field, boxed);
+			return;
+		}
+		_primitives[field] = value;
+		_set |= 1L << field;
+	}
+
+	// Getters and setters by field index, see MessageType.fieldIndex().
+	// The getters throw FieldNotSetException if the field is not set.
+
+	public boolean isSet(int field) {
+		return (_set & (1L << field)) != 0;
+	}
+
+	public boolean getBoolean(int field) {
+		return getPrimitive(field, MessageType.KIND_BOOLEAN) != 0;
+	}
+
+	public byte getByte(int field) {
+		return (byte) getPrimitive(field, MessageType.KIND_BYTE);
+	}
+
+	public short getShort(int field) {
+		return (short) getPrimitive(field, MessageType.KIND_SHORT);
+	}
+
+	public int getInt(int field) {
+		return (int) getPrimitive(field, MessageType.KIND_INT);
+	}
+
+	public long getLong(int field) {
+		return getPrimitive(field, MessageType.KIND_LONG);
+	}
+
+	public double getDouble(int field) {
+		return Double.longBitsToDouble(getPrimitive(field, MessageType.KIND_DOUBLE));
+	}
+
+	public float getFloat(int field) {
+		return Float.intBitsToFloat((int) getPrimitive(field, MessageType.KIND_FLOAT));
+	}
+
+	/** @return The value, boxed if it is a primitive, or null if it is not set. */
+	public Object getObject(int field) {
+		if ((_set & (1L << field)) == 0) return null;
+		long value = _primitives == null ? 0 : _primitives[field];
+		switch (_spec.fieldKind(field)) {
+		case MessageType.KIND_BOOLEAN:
+			return value != 0;
+		case MessageType.KIND_BYTE:
+			return (byte) value;
+		case MessageType.KIND_SHORT:
+			return (short) value;
+		case MessageType.KIND_INT:
+			return (int) value;
+		case MessageType.KIND_LONG:
+			return value;
+		case MessageType.KIND_FLOAT:
+			return Float.intBitsToFloat((int) value);
+		case MessageType.KIND_DOUBLE:
+			return Double.longBitsToDouble(value);
+		default:
+			return _objects[field];
+		}
+	}
+
+	public void set(int field, boolean b) {
+		setPrimitive(field, MessageType.KIND_BOOLEAN, b ? 1 : 0, b);
+	}
+
+	public void set(int field, byte b) {
+		setPrimitive(field, MessageType.KIND_BYTE, b, b);
+	}
+
+	public void set(int field, short s) {
+		setPrimitive(field, MessageType.KIND_SHORT, s, s);
+	}
+
+	public void set(int field, int i) {
+		setPrimitive(field, MessageType.KIND_INT, i, i);
+	}
+
+	public void set(int field, long l) {
+		setPrimitive(field, MessageType.KIND_LONG, l, l);
+	}
+
+	public void set(int field, double d) {
+		setPrimitive(field, MessageType.KIND_DOUBLE, Double.doubleToRawLongBits(d), d);
+	}
+
+	public void set(int field, float f) {
+		setPrimitive(field, MessageType.KIND_FLOAT, Float.floatToRawIntBits(f), f);
+	}
+
+	public void set(int field, Object value) {
+		if (!_spec.checkType(field, value)) {
+			if (value == null) {
+				throw new IncorrectTypeException("Got null for " + _spec.fieldName(field));
+			}
+			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.fieldType(field));
+		}
+		switch (_spec.fieldKind(field)) {
+		case MessageType.KIND_BOOLEAN:
+			_primitives[field] = ((Boolean) value) ? 1 : 0;
+			break;
+		case MessageType.KIND_BYTE:
+			_primitives[field] = (Byte) value;
+			break;
+		case MessageType.KIND_SHORT:
+			_primitives[field] = (Short) value;
+			break;
+		case MessageType.KIND_INT:
+			_primitives[field] = (Integer) value;
+			break;
+		case MessageType.KIND_LONG:
+			_primitives[field] = (Long) value;
+			break;
+		case MessageType.KIND_FLOAT:
+			_primitives[field] = Float.floatToRawIntBits((Float) value);
+			break;
+		case MessageType.KIND_DOUBLE:
+			_primitives[field] = Double.doubleToRawLongBits((Double) value);
+			break;
+		default:
+			_objects[field] = value;
+		}
+		_set |= 1L << field;
+	}
+
+	// Getters and setters by field name. Errors are as when the fields were kept in a map:
+	// a primitive getter throws NullPointerException if the field is not set, and
+	// ClassCastException if it is of a different type.
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		if (isPrimitive(field, MessageType.KIND_BOOLEAN)) return _primitives[field] != 0;
+		return (Boolean) getObject(key);
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		if (isPrimitive(field, MessageType.KIND_BYTE)) return (byte) _primitives[field];
+		return (Byte) getObject(key);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		if (isPrimitive(field, MessageType.KIND_SHORT)) return (short) _primitives[field];
+		return (Short) getObject(key);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		if (isPrimitive(field, MessageType.KIND_INT)) return (int) _primitives[field];
+		return (Integer) getObject(key);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		if (isPrimitive(field, MessageType.KIND_LONG)) return _primitives[field];
+		return (Long) getObject(key);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		if (isPrimitive(field, MessageType.KIND_DOUBLE)) return Double.longBitsToDouble(_primitives[field]);
+		return (Double) getObject(key);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		if (isPrimitive(field, MessageType.KIND_FLOAT)) return Float.intBitsToFloat((int) _primitives[field]);
+		return (Float) getObject(key);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int field = _spec.fieldIndex(key);
+		return field < 0 ? null : getObject(field);
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -233,31 +473,45 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		int field = _spec.fieldIndex(key);
+		if (field >= 0) set(field, b);
+		else set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		int field = _spec.fieldIndex(key);
+		if (field >= 0) set(field, b);
+		else set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		int field = _spec.fieldIndex(key);
+		if (field >= 0) set(field, s);
+		else set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		int field = _spec.fieldIndex(key);
+		if (field >= 0) set(field, i);
+		else set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		int field = _spec.fieldIndex(key);
+		if (field >= 0) set(field, l);
+		else set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		int field = _spec.fieldIndex(key);
+		if (field >= 0) set(field, d);
+		else set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		int field = _spec.fieldIndex(key);
+		if (field >= 0) set(field, f);
+		else set(key, Float.valueOf(f));
 	}
 
 	public void set(String key, Object value) {
@@ -267,7 +521,7 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		set(_spec.fieldIndex(key), value);
 	}
 
 	public byte[] encodeToPacket() {
@@ -281,8 +535,9 @@ public class Message {
 		DataOutputStream dos = new DataOutputStream(baos);
 		try {
 			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+			int fields = _spec.fieldCount();
+			for (int i = 0; i < fields; i++) {
+				writeField(i, dos);
 			}
 			dos.flush();
 		} catch (IOException e) {
@@ -315,7 +570,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,17 +590,51 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int field = _spec.fieldIndex(fieldName);
+		return field >= 0 && isSet(field);
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
 		return r;
 	}
 
+	/**
+	 * @return True if the field is set and equal to the value, which is boxed if the field is a
+	 * primitive. Used by MessageFilter, and doesn't box the message's value.
+	 */
+	boolean fieldEquals(String fieldName, Object value) {
+		int field = _spec.fieldIndex(fieldName);
+		if (field < 0 || !isSet(field)) return false;
+		long v = _primitives == null ? 0 : _primitives[field];
+		switch (_spec.fieldKind(field)) {
+		case MessageType.KIND_BOOLEAN:
+			return value instanceof Boolean && ((Boolean) value) == (v != 0);
+		case MessageType.KIND_BYTE:
+			return value instanceof Byte && (Byte) value == v;
+		case MessageType.KIND_SHORT:
+			return value instanceof Short && (Short) value == v;
+		case MessageType.KIND_INT:
+			return value instanceof Integer && (Integer) value == v;
+		case MessageType.KIND_LONG:
+			return value instanceof Long && (Long) value == v;
+		case MessageType.KIND_FLOAT:
+			// Same as Float.equals().
+			return value instanceof Float &&
+				Float.floatToIntBits((Float) value) == Float.floatToIntBits(Float.intBitsToFloat((int) v));
+		case MessageType.KIND_DOUBLE:
+			return value instanceof Double &&
+				Double.doubleToLongBits((Double) value) == Double.doubleToLongBits(Double.longBitsToDouble(v));
+		default:
+			Object o = _objects[field];
+			// Check the cheaper hashCode before the full equals.
+			return value.hashCode() == o.hashCode() && value.equals(o);
+		}
+	}
+
 	public static class FieldNotSetException extends RuntimeException {
 		private static final long serialVersionUID = 1L;
 
@@ -23,8 +23,8 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 
@@ -55,15 +55,15 @@ public class MessageCore {
 
 	private Dispatcher _dispatcher;
 	private Executor _executor;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<>();
+	/** _filters serves as lock for both. Indexed by type, source and UID so that checkFilters()
+	 * does not have to try every pending filter. */
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
 	private final LinkedList<Message> _unclaimed = new LinkedList<>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
-	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
 	// FIXME may not work well for newly added filters with timeouts close to the minimum, or filters with timeouts close to the minimum in general.
 	private static final long MAX_FILTER_REMOVE_TIME = SECONDS.toMillis(10);
-	private static final long MIN_FILTER_REMOVE_TIME = SECONDS.toMillis(1);
+	private static final long MIN_FILTER_REMOVE_TIME = MessageFilterIndex.WHEEL_TICK;
 	private long startedTime;
 	
 	public synchronized long getStartedTime() {
@@ -122,45 +122,30 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		List<MessageFilter> timedOutFilters = new ArrayList<>();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-                        for (Message m : _unclaimed) {
-                            MATCHED status = f.match(m, true, tStart);
-                            if (status == MATCHED.MATCHED) {
-                                // Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-                                Logger.error(this, "Timed out but should have matched in _unclaimed: " + m + " for " + f);
-                                break;
-                            }
-                        }
+			// Filters without callbacks come off the timer wheel when due. Filters with callbacks
+			// are all checked, because they may be timed out because their client callbacks say
+			// they should be. See also the end of waitFor() for another weird case.
+			nextTimeout = _filters.removeTimedOut(tStart, nextTimeout, timedOutFilters);
+			if(logMINOR) {
+				for (MessageFilter f : timedOutFilters) {
+					Logger.minor(this, "Removing "+f);
+					for (Message m : _unclaimed) {
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: " + m + " for " + f);
+							break;
+						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
-		if(timedOutFilters != null) {
-			for(MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for(MessageFilter f : timedOutFilters) {
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		
 		long tEnd = System.currentTimeMillis();
@@ -193,39 +178,20 @@ public class MessageCore {
 					+ m.getSource() + " : " + m);
 		}
 		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
+		List<MessageFilter> timedOut = new ArrayList<>(0);
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, false, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
-			}
+			match = _filters.match(m, tStart, timedOut);
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
+			} else if(logDEBUG) Logger.minor(this, "Did not match any filter: "+m);
 		}
-		if(timedOut != null) {
-			for(MessageFilter f : timedOut) {
-				if(logMINOR) Logger.minor(this, "Timed out "+f);
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for(MessageFilter f : timedOut) {
+			if(logMINOR) Logger.minor(this, "Timed out "+f);
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		if(match != null) {
 			match.onMatched(_executor);
@@ -239,7 +205,7 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -266,23 +232,11 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, false, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				match = _filters.match(m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
 				}
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
@@ -301,11 +255,9 @@ public class MessageCore {
 			if(match != null) {
 				match.onMatched(_executor);
 			}
-			if(timedOut != null) {
-				for(MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+			for(MessageFilter f : timedOut) {
+				f.setMessage(null);
+				f.onTimedOut(_executor);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -320,18 +272,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeForConnection(ctx, false);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -342,18 +285,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeForConnection(ctx, true);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -411,22 +345,10 @@ public class MessageCore {
 			}
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				// Filters which match the same message are prioritised by timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+timeout);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -494,22 +416,9 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				// Filters which match the same message are prioritised by timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+filter.getTimeout()+" filter "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -562,9 +471,6 @@ public class MessageCore {
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
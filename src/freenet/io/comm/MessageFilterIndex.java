@@ -0,0 +1,324 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The set of pending {@link MessageFilter}s in {@link MessageCore}, indexed so that an incoming
+ * {@link Message} only has to be tested against the filters that could possibly match it.
+ *
+ * Each filter in an or() chain is indexed under (type, source, uid), where the source and uid may
+ * be absent. Filters with no type at all go into a wildcard bucket which is always checked. An
+ * incoming message therefore costs at most five hash lookups plus a match() against each filter
+ * in the buckets found, rather than a match() against every pending filter.
+ *
+ * Where more than one filter matches, the one that was added with the earliest timeout wins, ties
+ * being broken by the order in which they were added. This is the same order that the old sorted
+ * list used.
+ *
+ * Expiry: Filters without a callback are kept on a hashed timer wheel by timeout, so the periodic
+ * sweep only looks at the slots that have come due. Filters with a callback must still be polled,
+ * because {@link AsyncMessageFilterCallback#shouldTimeout()} can time them out at any moment.
+ *
+ * Not thread-safe: {@link MessageCore} synchronizes on the index, which also protects its list of
+ * unclaimed messages.
+ */
+final class MessageFilterIndex {
+
+	/** Granularity of the timer wheel. Same as the minimum interval between sweeps. */
+	static final long WHEEL_TICK = 1000;
+	/** Number of slots on the wheel. Must be a power of 2. Longer timeouts wrap around. */
+	static final int WHEEL_SLOTS = 64;
+
+	private static final class Entry {
+		final MessageFilter filter;
+		/** Timeout when added. Fixes the priority order even if the timeout changes later. */
+		final long timeout;
+		final long seq;
+		final List<Key> keys;
+		final boolean inWildcard;
+		final boolean hasCallback;
+		/** Wheel slot, or -1 if not on the wheel. */
+		int slot = -1;
+
+		Entry(MessageFilter filter, long seq, List<Key> keys, boolean inWildcard) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.keys = keys;
+			this.inWildcard = inWildcard;
+			this.hasCallback = filter.hasCallback();
+		}
+
+		boolean before(Entry e) {
+			if(timeout != e.timeout) return timeout < e.timeout;
+			return seq < e.seq;
+		}
+	}
+
+	private static final class Key {
+		MessageType type;
+		PeerContext source;
+		Object uid;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			set(type, source, uid);
+		}
+
+		Key set(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			return this;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(!type.equals(k.type)) return false;
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			return uid == null ? k.uid == null : uid.equals(k.uid);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			if(uid != null) h = h * 31 + uid.hashCode();
+			return h;
+		}
+	}
+
+	private final HashMap<Key, HashSet<Entry>> buckets = new HashMap<>();
+	/** Filters with no type in at least one element of their or() chain. */
+	private final HashSet<Entry> wildcard = new HashSet<>();
+	private final IdentityHashMap<MessageFilter, Entry> entries = new IdentityHashMap<>();
+	/** Filters with a callback, which must be polled for shouldTimeout(). */
+	private final HashSet<Entry> callbacks = new HashSet<>();
+	@SuppressWarnings("unchecked")
+	private final HashSet<Entry>[] wheel = (HashSet<Entry>[]) new HashSet<?>[WHEEL_SLOTS];
+	/** The last wheel tick that has been swept completely. The current tick is swept again
+	 * next time because filters in it may not have timed out yet. */
+	private long sweptTick = -1;
+	private long seq;
+	/** Reused for lookups to avoid allocating on every message. */
+	private final Key probe = new Key(null, null, null);
+
+	int size() {
+		return entries.size();
+	}
+
+	boolean contains(MessageFilter filter) {
+		return entries.containsKey(filter);
+	}
+
+	/** Add a filter. Its timeout must already have been set by onStartWaiting(). */
+	void add(MessageFilter filter) {
+		if(entries.containsKey(filter)) {
+			Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+			remove(filter);
+		}
+		List<Key> keys = new ArrayList<>(1);
+		boolean inWildcard = false;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageType type = f.getType();
+			if(type == null) {
+				inWildcard = true;
+				continue;
+			}
+			Key key = new Key(type, f.getSource(), f.getField(DMT.UID));
+			if(!keys.contains(key)) keys.add(key);
+		}
+		Entry e = new Entry(filter, seq++, keys, inWildcard);
+		for(Key key : keys) {
+			HashSet<Entry> bucket = buckets.get(key);
+			if(bucket == null) {
+				bucket = new HashSet<>();
+				buckets.put(key, bucket);
+			}
+			bucket.add(e);
+		}
+		if(inWildcard) wildcard.add(e);
+		if(e.hasCallback)
+			callbacks.add(e);
+		else
+			schedule(e, e.timeout);
+		entries.put(filter, e);
+	}
+
+	/** Remove a filter.
+	 * @return True if the filter was present. */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if(e == null) return false;
+		unlink(e);
+		return true;
+	}
+
+	private void unlink(Entry e) {
+		for(Key key : e.keys) {
+			HashSet<Entry> bucket = buckets.get(key);
+			if(bucket == null) continue;
+			bucket.remove(e);
+			if(bucket.isEmpty()) buckets.remove(key);
+		}
+		if(e.inWildcard) wildcard.remove(e);
+		if(e.hasCallback) callbacks.remove(e);
+		if(e.slot != -1) {
+			wheel[e.slot].remove(e);
+			e.slot = -1;
+		}
+	}
+
+	private void removeEntry(Entry e) {
+		entries.remove(e.filter);
+		unlink(e);
+	}
+
+	private void schedule(Entry e, long timeout) {
+		if(timeout == Long.MAX_VALUE) return;
+		int slot = (int) ((timeout / WHEEL_TICK) & (WHEEL_SLOTS - 1));
+		if(wheel[slot] == null) wheel[slot] = new HashSet<>();
+		wheel[slot].add(e);
+		e.slot = slot;
+	}
+
+	/**
+	 * Find the filter which should receive a message, and remove it. Any timed out filters that
+	 * are found along the way are removed too.
+	 * @param timedOut Timed out filters are added to this list. Caller must call onTimedOut()
+	 * on them once the lock has been released.
+	 * @return The filter which matched, or null. setMessage() has not been called.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		Entry best = null;
+		if(type != null) {
+			if(source != null) {
+				if(uid != null)
+					best = match(buckets.get(probe.set(type, source, uid)), m, now, best, timedOut);
+				best = match(buckets.get(probe.set(type, source, null)), m, now, best, timedOut);
+			}
+			if(uid != null)
+				best = match(buckets.get(probe.set(type, null, uid)), m, now, best, timedOut);
+			best = match(buckets.get(probe.set(type, null, null)), m, now, best, timedOut);
+			probe.set(null, null, null);
+		}
+		best = match(wildcard, m, now, best, timedOut);
+		if(best == null) return null;
+		removeEntry(best);
+		return best.filter;
+	}
+
+	private Entry match(HashSet<Entry> bucket, Message m, long now, Entry best, List<MessageFilter> timedOut) {
+		if(bucket == null) return best;
+		for(Iterator<Entry> i = bucket.iterator(); i.hasNext();) {
+			Entry e = i.next();
+			MessageFilter f = e.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				i.remove();
+				removeEntry(e);
+				continue;
+			}
+			MATCHED status = f.match(m, false, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				i.remove();
+				removeEntry(e);
+				timedOut.add(f);
+			} else if(status == MATCHED.MATCHED) {
+				if(best == null || e.before(best))
+					best = e;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Remove filters which have timed out, either because their timeout has passed or because
+	 * their callback says so.
+	 * @param timedOut Timed out filters are added to this list.
+	 * @return The earliest timeout of any remaining filter with a callback, or nextTimeout if
+	 * that is earlier.
+	 */
+	long removeTimedOut(long now, long nextTimeout, List<MessageFilter> timedOut) {
+		long nowTick = now / WHEEL_TICK;
+		long firstTick = Math.max(sweptTick + 1, nowTick - WHEEL_SLOTS + 1);
+		for(long tick = firstTick; tick <= nowTick; tick++) {
+			HashSet<Entry> slot = wheel[(int) (tick & (WHEEL_SLOTS - 1))];
+			if(slot == null || slot.isEmpty()) continue;
+			List<Entry> reschedule = null;
+			for(Iterator<Entry> i = slot.iterator(); i.hasNext();) {
+				Entry e = i.next();
+				MessageFilter f = e.filter;
+				if(f.timedOut(now)) {
+					i.remove();
+					e.slot = -1;
+					removeEntry(e);
+					timedOut.add(f);
+				} else if(f.getTimeout() / WHEEL_TICK != tick) {
+					// Not due yet (a later lap of the wheel), or the timeout has been changed.
+					long t = f.getTimeout();
+					if(t / WHEEL_TICK > nowTick && (int) ((t / WHEEL_TICK) & (WHEEL_SLOTS - 1)) == e.slot)
+						continue;
+					i.remove();
+					e.slot = -1;
+					if(reschedule == null) reschedule = new ArrayList<>();
+					reschedule.add(e);
+				}
+			}
+			if(reschedule != null) {
+				for(Entry e : reschedule)
+					schedule(e, e.filter.getTimeout());
+			}
+		}
+		sweptTick = nowTick - 1;
+		for(Iterator<Entry> i = callbacks.iterator(); i.hasNext();) {
+			Entry e = i.next();
+			MessageFilter f = e.filter;
+			if(f.timedOut(now)) {
+				i.remove();
+				removeEntry(e);
+				timedOut.add(f);
+			} else if(nextTimeout > f.getTimeout()) {
+				nextTimeout = f.getTimeout();
+			}
+		}
+		return nextTimeout;
+	}
+
+	/**
+	 * Remove all the filters that are waiting for a message from a connection that has been
+	 * dropped or restarted.
+	 * @return The filters removed, or null.
+	 */
+	List<MessageFilter> removeForConnection(PeerContext ctx, boolean restarted) {
+		List<MessageFilter> dropped = null;
+		for(Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+			Entry e = i.next();
+			MessageFilter f = e.filter;
+			if(restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+				if(dropped == null)
+					dropped = new ArrayList<>();
+				dropped.add(f);
+				i.remove();
+				unlink(e);
+			}
+		}
+		return dropped;
+	}
+
+}
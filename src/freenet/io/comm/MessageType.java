@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -31,12 +32,33 @@ public class MessageType {
 
     public static final String VERSION = "$Id: MessageType.java,v 1.6 2005/08/25 17:28:19 amphibian Exp $";
 
+	// How a field is stored in a Message. Primitives are kept unboxed in a long[].
+	static final byte KIND_OBJECT = 0;
+	static final byte KIND_BOOLEAN = 1;
+	static final byte KIND_BYTE = 2;
+	static final byte KIND_SHORT = 3;
+	static final byte KIND_INT = 4;
+	static final byte KIND_LONG = 5;
+	static final byte KIND_FLOAT = 6;
+	static final byte KIND_DOUBLE = 7;
+
+	/** Maximum number of fields, so that Message can keep track of which are set in a long. */
+	static final int MAX_FIELDS = 64;
+
 	private static HashMap<Integer, MessageType> _specs = new HashMap<Integer, MessageType>();
 
 	private final String _name;
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	// The compiled schema: a Message stores field i at index i of its arrays.
+	private final HashMap<String, Integer> _fieldIndexes = new HashMap<String, Integer>();
+	private String[] _fieldNames = new String[0];
+	private Class<?>[] _fieldTypes = new Class<?>[0];
+	private Class<?>[] _fieldListTypes = new Class<?>[0];
+	private byte[] _fieldKinds = new byte[0];
+	private boolean hasPrimitiveFields;
+	private boolean hasObjectFields;
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -65,11 +87,39 @@ public class MessageType {
 	public void addLinkedListField(String name, Class<?> parameter) {
 		_linkedListTypes.put(name, parameter);
 		addField(name, LinkedList.class);
+		_fieldListTypes[_fieldListTypes.length - 1] = parameter;
 	}
 
 	public void addField(String name, Class<?> type) {
+		int index = _fieldNames.length;
+		if(index == MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in message type " + _name);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		_fieldIndexes.put(name, index);
+		_fieldNames = Arrays.copyOf(_fieldNames, index + 1);
+		_fieldNames[index] = name;
+		_fieldTypes = Arrays.copyOf(_fieldTypes, index + 1);
+		_fieldTypes[index] = type;
+		_fieldListTypes = Arrays.copyOf(_fieldListTypes, index + 1);
+		_fieldKinds = Arrays.copyOf(_fieldKinds, index + 1);
+		byte kind = kindOf(type);
+		_fieldKinds[index] = kind;
+		if(kind == KIND_OBJECT)
+			hasObjectFields = true;
+		else
+			hasPrimitiveFields = true;
+	}
+
+	private static byte kindOf(Class<?> type) {
+		if(type == Boolean.class) return KIND_BOOLEAN;
+		if(type == Byte.class) return KIND_BYTE;
+		if(type == Short.class) return KIND_SHORT;
+		if(type == Integer.class) return KIND_INT;
+		if(type == Long.class) return KIND_LONG;
+		if(type == Float.class) return KIND_FLOAT;
+		if(type == Double.class) return KIND_DOUBLE;
+		return KIND_OBJECT;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -94,10 +144,60 @@ public class MessageType {
 		return false;
 	}
 
+	/** Check the type of a field by its index. Unlike checkType(String, Object), doesn't look up the name. */
+	boolean checkType(int field, Object fieldValue) {
+		if (fieldValue == null) {
+			return false;
+		}
+		Class<?> defClass = _fieldTypes[field];
+		Class<?> valueClass = fieldValue.getClass();
+		if(defClass == valueClass) return true;
+		if(defClass.isAssignableFrom(valueClass)) return true;
+		return false;
+	}
+
 	public Class<?> typeOf(String field) {
 		return _fields.get(field);
 	}
 
+	/**
+	 * @return The index of a field, for the indexed getters and setters on Message, or -1 if
+	 * there is no such field. The index is the field's position in the encoded message.
+	 */
+	public int fieldIndex(String name) {
+		Integer index = _fieldIndexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	public int fieldCount() {
+		return _fieldNames.length;
+	}
+
+	public String fieldName(int field) {
+		return _fieldNames[field];
+	}
+
+	Class<?> fieldType(int field) {
+		return _fieldTypes[field];
+	}
+
+	/** The element type of a LinkedList field, otherwise null. */
+	Class<?> fieldListType(int field) {
+		return _fieldListTypes[field];
+	}
+
+	byte fieldKind(int field) {
+		return _fieldKinds[field];
+	}
+
+	boolean hasPrimitiveFields() {
+		return hasPrimitiveFields;
+	}
+
+	boolean hasObjectFields() {
+		return hasObjectFields;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (!(o instanceof MessageType)) {
@@ -0,0 +1,176 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import freenet.node.Node;
+import freenet.support.Logger;
+
+/**
+ * UdpSocketHandler using a non-blocking DatagramChannel. Each time the selector wakes us up we
+ * read every packet waiting on the socket, up to RECEIVE_BATCH, into a fixed set of buffers, and
+ * only then feed them to the IncomingPacketFilter. This empties the kernel's receive buffer
+ * quickly under load, and means we don't allocate anything per packet on the receive side.
+ *
+ * Sends go straight to the socket while there is room in its send buffer. When it is full, packets
+ * are queued, up to MAX_QUEUED_SENDS, and the selector thread sends the whole queue each time the
+ * socket becomes writable again. While anything is queued new packets go on the end, so they are
+ * still sent in order. Only when the queue is full is a packet dropped. See UdpSendQueue. Sending
+ * and receiving are handled separately, so a packet we can't send never stops us receiving.
+ *
+ * Java has no equivalent of recvmmsg()/sendmmsg(), so this is one system call per packet, but
+ * only one wakeup per batch.
+ */
+public class NioUdpSocketHandler extends UdpSocketHandler {
+
+	/** Maximum number of packets to read before processing them. */
+	static final int RECEIVE_BATCH = 32;
+	/** Maximum number of packets waiting for room in the send buffer. */
+	static final int MAX_QUEUED_SENDS = 256;
+	/** How long to wait in select(), so we notice close() promptly. */
+	private static final int SELECT_TIMEOUT = 1000;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final SelectionKey key;
+	/** Heap buffers, so the filter can use the backing array directly. Receiving thread only. */
+	private final ByteBuffer[] receiveBuffers;
+	private final InetSocketAddress[] receiveSources;
+	/** Packets waiting for room in the send buffer. */
+	private final UdpSendQueue sendQueue;
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(NioUdpSocketHandler.class);
+	}
+
+	public NioUdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws IOException {
+		this(openChannel(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	private NioUdpSocketHandler(DatagramChannel channel, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws IOException {
+		super(channel.socket(), listenPort, bindto, node, startupTime, title, collector);
+		this.channel = channel;
+		selector = Selector.open();
+		key = channel.register(selector, SelectionKey.OP_READ);
+		receiveBuffers = new ByteBuffer[RECEIVE_BATCH];
+		for(int i=0;i<RECEIVE_BATCH;i++)
+			receiveBuffers[i] = ByteBuffer.allocate(MAX_RECEIVE_SIZE);
+		receiveSources = new InetSocketAddress[RECEIVE_BATCH];
+		sendQueue = new UdpSendQueue(channel, MAX_QUEUED_SENDS) {
+
+			@Override
+			protected void onFirstQueued() {
+				// Get the selector thread to wait for the socket to be writable.
+				selector.wakeup();
+			}
+		};
+	}
+
+	private static DatagramChannel openChannel(int listenPort, InetAddress bindto) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(bindto, listenPort));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	@Override
+	protected void runLoop() {
+		try {
+			while(isActive()) {
+				try {
+					selector.select(SELECT_TIMEOUT);
+					selector.selectedKeys().clear();
+					// If we filled every buffer there may be more waiting, so don't wait.
+					while(isActive() && receiveBatch() == RECEIVE_BATCH);
+				} catch (ClosedChannelException | ClosedSelectorException e) {
+					if(!isActive()) return;
+					throw new RuntimeException(e);
+				} catch (IOException e) {
+					if(!isActive()) return;
+					Logger.error(this, "Caught " + e + " receiving packets", e);
+				} catch (RuntimeException e) {
+					if(!isActive()) return;
+					Logger.error(this, "Caught " + e, e);
+				}
+				// Separately, so that a problem sending can't stop us receiving.
+				try {
+					flushSends();
+				} catch (ClosedChannelException | ClosedSelectorException e) {
+					if(!isActive()) return;
+					throw new RuntimeException(e);
+				} catch (RuntimeException e) {
+					if(!isActive()) return;
+					Logger.error(this, "Caught " + e + " sending queued packets", e);
+				}
+			}
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Read up to RECEIVE_BATCH packets and then process them.
+	 * @return The number of packets received.
+	 */
+	private int receiveBatch() throws IOException {
+		int count = 0;
+		while(count < RECEIVE_BATCH) {
+			ByteBuffer buf = receiveBuffers[count];
+			buf.clear();
+			SocketAddress source = channel.receive(buf);
+			if(source == null) break;
+			receiveSources[count++] = (InetSocketAddress) source;
+		}
+		if(logMINOR && count > 1) Logger.minor(this, "Received "+count+" packets in one batch");
+		for(int i=0;i<count;i++) {
+			ByteBuffer buf = receiveBuffers[i];
+			InetSocketAddress source = receiveSources[i];
+			receiveSources[i] = null;
+			onReceivedPacket(buf.array(), buf.arrayOffset(), buf.position(), source.getAddress(), source.getPort(), System.currentTimeMillis());
+		}
+		return count;
+	}
+
+	/**
+	 * Send what we can of the queue, and only ask to be woken up when the socket is writable
+	 * while there is something left. Selector thread only, so the interest set is never changed
+	 * during a select().
+	 */
+	private void flushSends() throws ClosedChannelException {
+		int ops = sendQueue.flush() ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ;
+		if(key.interestOps() != ops) key.interestOps(ops);
+	}
+
+	@Override
+	protected boolean send(byte[] blockToSend, InetAddress address, int port) throws IOException {
+		return sendQueue.send(blockToSend, new InetSocketAddress(address, port));
+	}
+
+	/** @return The number of outgoing packets dropped because the send buffer and the queue were
+	 * both full. */
+	public long getSendsDropped() {
+		return sendQueue.getDropped();
+	}
+
+}
@@ -0,0 +1,142 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+
+import freenet.support.Logger;
+
+/**
+ * Outgoing packets for a non-blocking DatagramChannel. Packets go straight to the socket while
+ * there is room in its send buffer. When it is full they are queued, up to a limit, and flush()
+ * sends them once the socket is writable again. While anything is queued new packets go on the
+ * end, so they are still sent in order.
+ *
+ * A queued packet which can't be sent at all, e.g. because there is no route to the host, is
+ * logged and dropped, so it doesn't hold up everything behind it.
+ *
+ * LOCKING: Thread-safe. The queue is also the lock for sending, so packets sent directly can't
+ * overtake queued ones.
+ */
+class UdpSendQueue {
+
+	private static final class QueuedPacket {
+		final ByteBuffer data;
+		final InetSocketAddress destination;
+
+		QueuedPacket(ByteBuffer data, InetSocketAddress destination) {
+			this.data = data;
+			this.destination = destination;
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final int maxQueued;
+	/** Oldest first. */
+	private final ArrayDeque<QueuedPacket> queue = new ArrayDeque<QueuedPacket>();
+	/** Packets dropped because the send buffer and the queue were both full. */
+	private long dropped;
+	/** Queued packets dropped because sending them failed. */
+	private long failed;
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(UdpSendQueue.class);
+	}
+
+	UdpSendQueue(DatagramChannel channel, int maxQueued) {
+		this.channel = channel;
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Send a packet, or queue it if the send buffer is full. The data is not copied, so must not
+	 * be changed afterwards.
+	 * @return False if the packet was dropped because the queue is full.
+	 * @throws IOException If the packet was not queued and sending it failed.
+	 */
+	boolean send(byte[] data, InetSocketAddress destination) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		synchronized(queue) {
+			// Anything already queued goes first.
+			if(queue.isEmpty() && sendNow(buf, destination) != 0) return true;
+			if(queue.size() >= maxQueued) {
+				// A blocking socket would have waited. Packet loss is better than stalling the sender.
+				dropped++;
+				if(logMINOR) Logger.minor(this, "Send queue full, dropped packet to "+destination);
+				return false;
+			}
+			queue.add(new QueuedPacket(buf, destination));
+			if(queue.size() > 1) return true;
+		}
+		onFirstQueued();
+		return true;
+	}
+
+	/**
+	 * Send as much of the queue as the socket will take.
+	 * @return True if there are still packets queued.
+	 * @throws ClosedChannelException If the channel has been closed. The queue is discarded.
+	 */
+	boolean flush() throws ClosedChannelException {
+		int sent = 0;
+		boolean more;
+		synchronized(queue) {
+			QueuedPacket packet;
+			while((packet = queue.peek()) != null) {
+				try {
+					if(sendNow(packet.data, packet.destination) == 0) break;
+					sent++;
+				} catch (ClosedChannelException e) {
+					queue.clear();
+					throw e;
+				} catch (IOException | RuntimeException e) {
+					// E.g. no route to host, or an unresolved address. Trying again won't help.
+					failed++;
+					Logger.normal(this, "Dropping queued packet to "+packet.destination+": "+e);
+				}
+				queue.poll();
+			}
+			more = !queue.isEmpty();
+		}
+		if(logMINOR && sent > 0) Logger.minor(this, "Sent "+sent+" queued packets");
+		return more;
+	}
+
+	/** Actually send a packet.
+	 * @return The number of bytes sent, which is 0 if the send buffer is full. */
+	protected int sendNow(ByteBuffer data, InetSocketAddress destination) throws IOException {
+		return channel.send(data, destination);
+	}
+
+	/** Called outside the lock when the queue stops being empty, so that somebody calls
+	 * flush() when the socket is writable. */
+	protected void onFirstQueued() {
+		// Do nothing.
+	}
+
+	int queued() {
+		synchronized(queue) {
+			return queue.size();
+		}
+	}
+
+	long getDropped() {
+		synchronized(queue) {
+			return dropped;
+		}
+	}
+
+	long getFailed() {
+		synchronized(queue) {
+			return failed;
+		}
+	}
+
+}
@@ -96,6 +96,9 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 
 		private static int getFd(DatagramSocket s) {
+			// There is no public way to get the descriptor of a channel's socket.
+			if(s.getChannel() != null)
+				return -1;
 			int ret = -1;
 			try {
 				Method m = s.getClass().getDeclaredMethod("getImpl");
@@ -128,6 +131,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(new DatagramSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	/**
+	 * @param sock The socket, already bound to listenPort and bindto. Subclasses may pass in the
+	 * socket adaptor of a DatagramChannel.
+	 */
+	protected UdpSocketHandler(DatagramSocket sock, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -138,7 +149,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		_sock = sock;
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -219,7 +230,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void runLoop() {
+	/** Receive packets until close() is called. Single receiving thread. */
+	protected void runLoop() {
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -238,8 +250,23 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		boolean gotPacket = getPacket(packet);
 		long now = System.currentTimeMillis();
 		if (gotPacket) {
+			onReceivedPacket(packet.getData(), packet.getOffset(), packet.getLength(), packet.getAddress(), packet.getPort(), now);
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/**
+	 * Account for a received packet and feed it to the IncomingPacketFilter. The buffer may be
+	 * reused once this returns.
+	 */
+	protected void onReceivedPacket(byte[] data, int offset, int length, InetAddress address, int port, long now) {
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address, port, getHeadersLength(address) + length, 0, isLocal);
+		if(logMINOR) Logger.minor(this, "Received packet");
+		{
 			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
+			Peer peer = new Peer(address, port);
 			tracker.receivedPacketFrom(peer);
 			long endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
@@ -249,9 +276,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
 			try {
 				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
 				startTime = System.currentTimeMillis();
@@ -270,20 +294,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 				Logger.error(this, "Caught " + t + " from "
 						+ lowLevelFilter, t);
 			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
 	}
 
-	private static final int MAX_RECEIVE_SIZE = 1500;
+	protected static final int MAX_RECEIVE_SIZE = 1500;
 
 	private boolean getPacket(DatagramPacket packet) {
 		try {
 			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address, packet.getPort(),
-					getHeadersLength(address) + packet.getLength(), 0, isLocal);
 		} catch (SocketTimeoutException e1) {
 			return false;
 		} catch (IOException e2) {
@@ -293,7 +311,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 				throw new RuntimeException(e2);
 			}
 		}
-		if(logMINOR) Logger.minor(this, "Received packet");
 		return true;
 	}
 
@@ -329,18 +346,15 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
 
 		try {
-			_sock.send(packet);
+			if(!send(blockToSend, address, port)) return;
 			tracker.sentPacketTo(destination);
 			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
 			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
 			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
 		} catch (IOException | UnsupportedAddressTypeException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
+			if(address instanceof Inet6Address) {
 				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
 			} else {
 				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
@@ -348,6 +362,23 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
+	/**
+	 * Actually send a packet.
+	 * @return False if the packet was dropped without being sent.
+	 */
+	protected boolean send(byte[] blockToSend, InetAddress address, int port) throws IOException {
+		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
+		packet.setAddress(address);
+		packet.setPort(port);
+		_sock.send(packet);
+		return true;
+	}
+
+	/** False once close() has been called. */
+	protected boolean isActive() {
+		return _active;
+	}
+
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
 	// http://info.aol.co.uk/broadband/faqHomeNetworking.adp
 	// http://www.compuserve.de/cso/hilfe/linux/hilfekategorien/installation/contentview.jsp?conid=385700
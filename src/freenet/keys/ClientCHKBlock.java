@@ -156,7 +156,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         		Math.min(maxLength, CHKBlock.MAX_LENGTH_BEFORE_COMPRESSION), key.compressionAlgorithm, false);
     }
     
-	private static final Provider hmacProvider;
+	static final Provider hmacProvider;
 	static private long benchmark(Mac hmac) throws GeneralSecurityException
 	{
 		long times = Long.MAX_VALUE;
@@ -332,6 +332,8 @@ public class ClientCHKBlock implements ClientKeyBlock {
     static public ClientCHKBlock encodeSplitfileBlock(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
     	if(data.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
     	if(cryptoKey != null && cryptoKey.length != 32) throw new IllegalArgumentException();
+    	if(cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256 && Rijndael.AesCtrProvider != null)
+    		return SplitfileBlockCodec.encode(data, cryptoKey, cryptoAlgorithm);
         MessageDigest md256 = SHA256.getMessageDigest();
         // No need to pad
         if(cryptoKey == null) {
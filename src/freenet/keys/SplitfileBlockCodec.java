@@ -0,0 +1,400 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.SHA256;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.node.Node;
+
+/**
+ * Encodes and decodes splitfile blocks (full size, uncompressed CHKs) in bulk. Splitfile inserts
+ * and fetches encode or decode thousands of blocks in a row, so rather than looking up a new
+ * Cipher, Mac and MessageDigest for every block, as ClientCHKBlock does, each thread keeps its own
+ * and reuses them. The batch methods can also split the work across several threads.
+ *
+ * The results are exactly the same as ClientCHKBlock.encodeSplitfileBlock() and memoryDecode().
+ * Only AES/CTR with a JCA provider is done here; anything else falls back to ClientCHKBlock.
+ */
+public final class SplitfileBlockCodec {
+
+	/** Don't bother with another thread for fewer blocks than this. */
+	static final int MIN_BLOCKS_PER_TASK = 8;
+
+	private SplitfileBlockCodec() {
+		// Static methods only.
+	}
+
+	/** The crypto objects for one thread. Never shared between threads. */
+	private static final class Context {
+		final Cipher cipher;
+		final Mac hmac;
+		final MessageDigest md256;
+		/** The key the Mac and cipher key were last initialised with. */
+		private byte[] lastKey;
+		private SecretKeySpec aesKey;
+		/** The length bytes for a full block. */
+		final byte[] tmpLen = new byte[] {
+				(byte)(CHKBlock.DATA_LENGTH >> 8), (byte)(CHKBlock.DATA_LENGTH & 0xff)
+		};
+		/** Scratch space for the length bytes and the HMAC when decoding. */
+		final byte[] lengthBytes = new byte[2];
+		final byte[] hashCheck;
+		/** Scratch space for the encrypted block when we only want the key. */
+		final byte[] cdata = new byte[CHKBlock.DATA_LENGTH];
+		final byte[] header = new byte[CHKBlock.TOTAL_HEADERS_LENGTH];
+
+		Context() throws GeneralSecurityException {
+			cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+			hmac = Mac.getInstance("HmacSHA256", ClientCHKBlock.hmacProvider);
+			md256 = SHA256.getMessageDigest();
+			hashCheck = new byte[hmac.getMacLength()];
+		}
+
+		/** Set the key for the Mac, and remember it for the cipher. Blocks in a splitfile often
+		 * share a key, in which case we don't need to do anything. */
+		void setKey(byte[] key) throws GeneralSecurityException {
+			if(lastKey != null && Arrays.equals(lastKey, key)) {
+				// In case the last block failed half way through.
+				hmac.reset();
+				return;
+			}
+			lastKey = null;
+			hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+			aesKey = new SecretKeySpec(key, "AES");
+			lastKey = key.clone();
+		}
+
+		void initCipher(byte[] iv, int offset) throws GeneralSecurityException {
+			cipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv, offset, 16));
+		}
+	}
+
+	private static final ThreadLocal<Context> contexts = new ThreadLocal<Context>();
+
+	private static Context context() throws GeneralSecurityException {
+		Context ctx = contexts.get();
+		if(ctx == null) {
+			ctx = new Context();
+			contexts.set(ctx);
+		}
+		return ctx;
+	}
+
+	/** Can we do this algorithm ourselves, or do we need to fall back to ClientCHKBlock? */
+	private static boolean canHandle(byte cryptoAlgorithm) {
+		return cryptoAlgorithm == Key.ALGO_AES_CTR_256_SHA256 && Rijndael.AesCtrProvider != null;
+	}
+
+	/**
+	 * Encode a splitfile block. Equivalent to ClientCHKBlock.encodeSplitfileBlock().
+	 * @param data The data to encode. Must be exactly DATA_LENGTH bytes.
+	 * @param cryptoKey The encryption key. Can be null in which case the key is the hash of the
+	 * data, as for a normal block.
+	 */
+	public static ClientCHKBlock encode(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
+		if(data.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
+		if(cryptoKey != null && cryptoKey.length != 32) throw new IllegalArgumentException();
+		if(!canHandle(cryptoAlgorithm))
+			return ClientCHKBlock.encodeSplitfileBlock(data, cryptoKey, cryptoAlgorithm);
+		try {
+			return encode(context(), data, cryptoKey, cryptoAlgorithm);
+		} catch (GeneralSecurityException e) {
+			throw new CHKEncodeException("Problem with JCA, should be impossible!", e);
+		}
+	}
+
+	/**
+	 * Encode many splitfile blocks.
+	 * @param data The blocks to encode. Each must be exactly DATA_LENGTH bytes. Null entries are
+	 * skipped and give a null result.
+	 * @param cryptoKeys The encryption key for each block, or null to use the hash of the data. The
+	 * array itself can be null, meaning no keys at all.
+	 * @param executor If not null, and there are enough blocks, some of the work will be done on
+	 * this executor. The calling thread does its share, and will run the rest itself if the
+	 * executor doesn't get to it, so this is safe to call from a thread of the same executor.
+	 * @throws CHKEncodeException If any block cannot be encoded.
+	 */
+	public static ClientCHKBlock[] encode(final byte[][] data, final byte[][] cryptoKeys, final byte cryptoAlgorithm,
+			Executor executor) throws CHKEncodeException {
+		if(cryptoKeys != null && cryptoKeys.length != data.length) throw new IllegalArgumentException();
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[data.length];
+		new Batch<CHKEncodeException>(data.length) {
+			@Override
+			void run(int from, int to) throws CHKEncodeException {
+				for(int i=from;i<to;i++) {
+					if(data[i] == null) continue;
+					blocks[i] = encode(data[i], cryptoKeys == null ? null : cryptoKeys[i], cryptoAlgorithm);
+				}
+			}
+		}.execute(executor, CHKEncodeException.class);
+		return blocks;
+	}
+
+	/**
+	 * Compute the keys for many splitfile blocks, without keeping the encrypted blocks. The
+	 * encrypted data goes into a buffer which each thread reuses, so this uses no more memory than
+	 * the keys themselves, however many blocks there are. Parameters are as for encode().
+	 * @return The key for each block, or null where the block was null.
+	 */
+	public static ClientCHK[] encodeKeys(final byte[][] data, final byte[][] cryptoKeys, final byte cryptoAlgorithm,
+			Executor executor) throws CHKEncodeException {
+		if(cryptoKeys != null && cryptoKeys.length != data.length) throw new IllegalArgumentException();
+		final ClientCHK[] keys = new ClientCHK[data.length];
+		new Batch<CHKEncodeException>(data.length) {
+			@Override
+			void run(int from, int to) throws CHKEncodeException {
+				for(int i=from;i<to;i++) {
+					if(data[i] == null) continue;
+					keys[i] = encodeKey(data[i], cryptoKeys == null ? null : cryptoKeys[i], cryptoAlgorithm);
+				}
+			}
+		}.execute(executor, CHKEncodeException.class);
+		return keys;
+	}
+
+	private static ClientCHK encodeKey(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
+		if(data.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
+		if(cryptoKey != null && cryptoKey.length != 32) throw new IllegalArgumentException();
+		if(!canHandle(cryptoAlgorithm))
+			return ClientCHKBlock.encodeSplitfileBlock(data, cryptoKey, cryptoAlgorithm).getClientKey();
+		try {
+			Context ctx = context();
+			return encode(ctx, data, cryptoKey, cryptoAlgorithm, ctx.cdata, ctx.header);
+		} catch (GeneralSecurityException e) {
+			throw new CHKEncodeException("Problem with JCA, should be impossible!", e);
+		}
+	}
+
+	private static ClientCHKBlock encode(Context ctx, byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws GeneralSecurityException {
+		byte[] cdata = new byte[data.length];
+		byte[] header = new byte[CHKBlock.TOTAL_HEADERS_LENGTH];
+		ClientCHK key = encode(ctx, data, cryptoKey, cryptoAlgorithm, cdata, header);
+		try {
+			return new ClientCHKBlock(cdata, header, key, false);
+		} catch (CHKVerifyException e) {
+			throw new Error(e); // Impossible
+		}
+	}
+
+	/** Encrypt a block into the given buffers and return its key. See ClientCHKBlock.encodeNew()
+	 * for the format. */
+	private static ClientCHK encode(Context ctx, byte[] data, byte[] cryptoKey, byte cryptoAlgorithm,
+			byte[] cdata, byte[] header) throws GeneralSecurityException {
+		MessageDigest md256 = ctx.md256;
+		md256.reset();
+		if(cryptoKey == null)
+			cryptoKey = md256.digest(data);
+		ctx.setKey(cryptoKey);
+		byte[] tmpLen = ctx.tmpLen;
+		header[0] = (byte)(KeyBlock.HASH_SHA256 >> 8);
+		header[1] = (byte)(KeyBlock.HASH_SHA256 & 0xff);
+		Mac hmac = ctx.hmac;
+		hmac.update(data);
+		hmac.update(tmpLen);
+		hmac.doFinal(header, 2);
+		int hashLength = hmac.getMacLength();
+		Cipher cipher = ctx.cipher;
+		ctx.initCipher(header, 2);
+		int moved = cipher.update(data, 0, data.length, cdata);
+		if(moved == data.length) {
+			cipher.doFinal(tmpLen, 0, 2, header, hashLength+2);
+		} else {
+			byte[] tmp = cipher.doFinal(tmpLen, 0, 2);
+			System.arraycopy(tmp, 0, cdata, moved, tmp.length-2);
+			System.arraycopy(tmp, tmp.length-2, header, hashLength+2, 2);
+		}
+		md256.update(header);
+		byte[] finalHash = md256.digest(cdata);
+		return new ClientCHK(finalHash, cryptoKey, false, cryptoAlgorithm, (short)-1);
+	}
+
+	/**
+	 * Decode a block into memory. Equivalent to block.memoryDecode(), but faster for uncompressed
+	 * AES/CTR blocks, which includes all splitfile data and check blocks.
+	 */
+	public static byte[] decode(ClientCHKBlock block) throws CHKDecodeException {
+		ClientCHK key = block.key;
+		if(key.isCompressed() || !canHandle(key.cryptoAlgorithm))
+			return block.memoryDecode();
+		try {
+			return decode(context(), block.getBlock(), key.cryptoKey);
+		} catch (GeneralSecurityException e) {
+			throw new CHKDecodeException("Problem with JCA, should be impossible!", e);
+		}
+	}
+
+	/**
+	 * Decode many blocks into memory.
+	 * @param blocks The blocks to decode. Null entries are skipped.
+	 * @param executor As for encode().
+	 * @return The data for each block. Null if the block was null or could not be decoded, e.g.
+	 * because the key is wrong.
+	 */
+	public static byte[][] decode(final ClientCHKBlock[] blocks, Executor executor) {
+		final byte[][] data = new byte[blocks.length][];
+		new Batch<RuntimeException>(blocks.length) {
+			@Override
+			void run(int from, int to) {
+				for(int i=from;i<to;i++) {
+					if(blocks[i] == null) continue;
+					try {
+						data[i] = decode(blocks[i]);
+					} catch (CHKDecodeException e) {
+						data[i] = null;
+					}
+				}
+			}
+		}.execute(executor, RuntimeException.class);
+		return data;
+	}
+
+	private static byte[] decode(Context ctx, CHKBlock block, byte[] cryptoKey) throws GeneralSecurityException, CHKDecodeException {
+		if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
+			throw new CHKDecodeException("Crypto key too short");
+		byte[] headers = block.headers;
+		byte[] data = block.data;
+		ctx.setKey(cryptoKey);
+		Cipher cipher = ctx.cipher;
+		Mac hmac = ctx.hmac;
+		int hashLength = hmac.getMacLength();
+		ctx.initCipher(headers, 2);
+		byte[] plaintext = new byte[data.length];
+		byte[] lengthBytes = ctx.lengthBytes;
+		int moved = cipher.update(data, 0, data.length, plaintext);
+		if(moved == data.length) {
+			cipher.doFinal(headers, hashLength+2, 2, lengthBytes, 0);
+		} else {
+			byte[] tmp = cipher.doFinal(headers, hashLength+2, 2);
+			System.arraycopy(tmp, 0, plaintext, moved, tmp.length-2);
+			System.arraycopy(tmp, tmp.length-2, lengthBytes, 0, 2);
+		}
+		int size = ((lengthBytes[0] & 0xff) << 8) + (lengthBytes[1] & 0xff);
+		if(size > 32768)
+			throw new CHKDecodeException("Invalid size: "+size);
+		hmac.update(plaintext);
+		hmac.update(lengthBytes);
+		byte[] hashCheck = ctx.hashCheck;
+		hmac.doFinal(hashCheck, 0);
+		for(int i=0;i<hashLength;i++) {
+			if(hashCheck[i] != headers[2+i])
+				throw new CHKDecodeException("HMAC is wrong, wrong decryption key?");
+		}
+		if(size == plaintext.length)
+			return plaintext;
+		return Arrays.copyOf(plaintext, size);
+	}
+
+	/**
+	 * Runs a job over a range of blocks, splitting it into chunks for other threads if it's worth
+	 * it. The calling thread runs the first chunk, then runs any chunk that no other thread has
+	 * started yet, then waits for the rest.
+	 */
+	private static abstract class Batch<E extends Exception> {
+		private final int count;
+
+		Batch(int count) {
+			this.count = count;
+		}
+
+		abstract void run(int from, int to) throws E;
+
+		void execute(Executor executor, Class<E> exceptionType) throws E {
+			int tasks = executor == null ? 1 :
+				Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_BLOCKS_PER_TASK);
+			if(tasks <= 1) {
+				run(0, count);
+				return;
+			}
+			List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>(tasks-1);
+			for(int i=1;i<tasks;i++) {
+				final int from = (int)((long)count * i / tasks);
+				final int to = (int)((long)count * (i+1) / tasks);
+				FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Batch.this.run(from, to);
+						} catch (Exception e) {
+							throw new ChunkFailedException(e);
+						}
+					}
+				}, null);
+				futures.add(future);
+				executor.execute(future);
+			}
+			E failure = null;
+			try {
+				run(0, (int)((long)count / tasks));
+			} catch (Exception e) {
+				failure = cast(e, exceptionType);
+			}
+			for(FutureTask<Void> future : futures) {
+				// No-op if it has already started.
+				future.run();
+				try {
+					getUninterruptibly(future);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof ChunkFailedException)
+						cause = cause.getCause();
+					if(failure == null) {
+						if(cause instanceof Error) throw (Error)cause;
+						failure = cast(cause, exceptionType);
+					}
+				}
+			}
+			if(failure != null) throw failure;
+		}
+
+		private static <E extends Exception> E cast(Throwable t, Class<E> exceptionType) {
+			if(exceptionType.isInstance(t))
+				return exceptionType.cast(t);
+			if(t instanceof RuntimeException)
+				throw (RuntimeException)t;
+			if(t instanceof Error)
+				throw (Error)t;
+			throw new Error("Impossible: "+t, t);
+		}
+
+		private static void getUninterruptibly(FutureTask<Void> task) throws ExecutionException {
+			boolean interrupted = false;
+			try {
+				while(true) {
+					try {
+						task.get();
+						return;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if(interrupted) Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Carries a checked exception out of a chunk run on another thread. */
+	private static class ChunkFailedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ChunkFailedException(Throwable cause) {
+			super(cause);
+		}
+	}
+
+}
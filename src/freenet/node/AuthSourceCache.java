@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import freenet.io.comm.Peer;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUMap;
+
+/**
+ * Remembers which peers recently sent us auth packets that we could only match by trial
+ * decryption, keyed by the network prefix they came from. When another auth packet arrives from
+ * an address we don't recognise, FNPPacketMangler tries these peers first, rather than trial
+ * decrypting with every peer in turn. This helps most after a NAT rebinds or an ISP changes a
+ * peer's address, when every packet from that peer misses the address lookup until the
+ * handshake completes.
+ *
+ * Auth packets are encrypted and randomly padded, so the only feature we can key on is where
+ * they come from. We use the /24 for IPv4 and the /64 for IPv6, and ignore the port.
+ *
+ * The cache is only a hint. Entries may refer to peers which have since been removed, so the
+ * caller must check that a candidate is still one of its peers before using it.
+ */
+class AuthSourceCache {
+
+	/** Maximum number of prefixes to remember. */
+	static final int MAX_PREFIXES = 256;
+	/** Maximum number of candidates per prefix. */
+	static final int MAX_CANDIDATES = 4;
+	/** Forget candidates which haven't matched for this long. */
+	static final long EXPIRY = MINUTES.toMillis(10);
+
+	enum Kind {
+		/** A normal auth packet, decrypted with the peer's incoming setup key. */
+		AUTH,
+		/** A reply to an anonymous-initiator auth packet we sent to the peer. */
+		ANON_REPLY
+	}
+
+	static final class Candidate {
+		final PeerNode pn;
+		final Kind kind;
+		final long lastMatched;
+
+		Candidate(PeerNode pn, Kind kind, long lastMatched) {
+			this.pn = pn;
+			this.kind = kind;
+			this.lastMatched = lastMatched;
+		}
+	}
+
+	private static final Candidate[] EMPTY = new Candidate[0];
+
+	/** Values are never modified, so may be returned directly. The keys are chosen by whoever
+	 * sends us packets, so use a map which is safe against hash collisions. */
+	private final LRUMap<ByteArrayWrapper, Candidate[]> byPrefix =
+		LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+
+	/**
+	 * @return The candidates for the prefix the packet came from, most recently matched first.
+	 * Never null. The caller must not modify the array.
+	 */
+	synchronized Candidate[] get(Peer source, long now) {
+		ByteArrayWrapper key = prefix(source);
+		if(key == null) return EMPTY;
+		Candidate[] candidates = byPrefix.get(key);
+		if(candidates == null) return EMPTY;
+		int live = 0;
+		while(live < candidates.length && now - candidates[live].lastMatched < EXPIRY)
+			live++;
+		if(live == candidates.length) return candidates;
+		if(live == 0) {
+			byPrefix.removeKey(key);
+			return EMPTY;
+		}
+		candidates = Arrays.copyOf(candidates, live);
+		byPrefix.push(key, candidates);
+		return candidates;
+	}
+
+	/** Record that an auth packet from source was decrypted by trial with pn's key. */
+	synchronized void matched(Peer source, PeerNode pn, Kind kind, long now) {
+		ByteArrayWrapper key = prefix(source);
+		if(key == null) return;
+		Candidate[] old = byPrefix.get(key);
+		Candidate[] candidates = new Candidate[old == null ? 1 : Math.min(old.length + 1, MAX_CANDIDATES)];
+		candidates[0] = new Candidate(pn, kind, now);
+		int x = 1;
+		if(old != null) {
+			for(Candidate c : old) {
+				if(x == candidates.length) break;
+				if(c.pn == pn && c.kind == kind) continue;
+				candidates[x++] = c;
+			}
+		}
+		if(x < candidates.length) candidates = Arrays.copyOf(candidates, x);
+		byPrefix.push(key, candidates);
+		while(byPrefix.size() > MAX_PREFIXES)
+			byPrefix.popKey();
+	}
+
+	synchronized int size() {
+		return byPrefix.size();
+	}
+
+	/** @return The network prefix of the source address, or null if it has not been looked up. */
+	static ByteArrayWrapper prefix(Peer source) {
+		InetAddress address = source.getAddress(false);
+		if(address == null) return null;
+		byte[] bytes = address.getAddress();
+		int prefixLength = address instanceof Inet4Address ? 3 : 8;
+		// Include the length so IPv4 and IPv6 prefixes can't collide.
+		byte[] key = Arrays.copyOf(bytes, prefixLength + 1);
+		key[prefixLength] = (byte) prefixLength;
+		return new ByteArrayWrapper(key);
+	}
+
+}
@@ -0,0 +1,71 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Counts how many trial decrypts FNPPacketMangler needed for each packet it was asked to match,
+ * i.e. packets which could not be decoded with the session keys of the peer they appeared to
+ * come from.
+ */
+public class AuthTrialStats {
+
+	/** Bucket 0 is no trials, bucket i covers 2^(i-1) to 2^i - 1, the last is everything above. */
+	static final int BUCKETS = 13;
+
+	private long packets;
+	private long decoded;
+	private long trials;
+	private long maxTrials;
+	/** Packets decoded with a candidate from the AuthSourceCache. */
+	private long hintHits;
+	private final long[] histogram = new long[BUCKETS];
+
+	synchronized void report(int trialCount, boolean wasDecoded, boolean hintHit) {
+		packets++;
+		if(wasDecoded) decoded++;
+		if(hintHit) hintHits++;
+		trials += trialCount;
+		if(trialCount > maxTrials) maxTrials = trialCount;
+		histogram[bucket(trialCount)]++;
+	}
+
+	static int bucket(int trialCount) {
+		if(trialCount <= 0) return 0;
+		return Math.min(BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(trialCount));
+	}
+
+	public synchronized long getPackets() {
+		return packets;
+	}
+
+	public synchronized long getTrials() {
+		return trials;
+	}
+
+	public synchronized long getHintHits() {
+		return hintHits;
+	}
+
+	public synchronized double averageTrialsPerPacket() {
+		return packets == 0 ? 0.0 : ((double) trials) / packets;
+	}
+
+	public synchronized SimpleFieldSet exportFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("packets", packets);
+		fs.put("decoded", decoded);
+		fs.put("trials", trials);
+		fs.put("maxTrials", maxTrials);
+		fs.put("hintHits", hintHits);
+		fs.put("averageTrials", averageTrialsPerPacket());
+		fs.put("trials0", histogram[0]);
+		for(int i=1;i<BUCKETS-1;i++)
+			fs.put("trials"+(1 << (i-1))+"to"+((1 << i) - 1), histogram[i]);
+		fs.put("trials"+(1 << (BUCKETS-2))+"plus", histogram[BUCKETS-1]);
+		return fs;
+	}
+
+}
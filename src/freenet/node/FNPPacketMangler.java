@@ -11,6 +11,13 @@ import java.security.interfaces.ECPublicKey;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.ECDH;
@@ -76,6 +83,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * can be performed in constant time( given the key)
 	 */
 	private final HashMap<ByteArrayWrapper, byte[]> authenticatorCache;
+	/** Peers which recently sent us auth packets from each network prefix */
+	private final AuthSourceCache authSourceCache = new AuthSourceCache();
+	private final AuthTrialStats authTrialStats = new AuthTrialStats();
 	/** The following is used in the HMAC calculation of JFK message3 and message4 */
 	private static final byte[] JFK_PREFIX_INITIATOR = "I".getBytes(StandardCharsets.UTF_8);
 	private static final byte[] JFK_PREFIX_RESPONDER = "R".getBytes(StandardCharsets.UTF_8);
@@ -145,6 +155,21 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * Note that the buffer can be modified by this method.
 	 */
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+		TrialCount count = new TrialCount();
+		DECODED decoded = innerProcess(buf, offset, length, peer, opn, now, count);
+		authTrialStats.report(count.trials, decoded == DECODED.DECODED, count.hintHit);
+		if(logMINOR) Logger.minor(this, "Tried "+count.trials+" keys for packet from "+peer+" : "+decoded);
+		return decoded;
+	}
+
+	/** Number of trial decrypts for one packet. Only used by the thread calling process(). */
+	private static class TrialCount {
+		int trials;
+		/** Decoded with a candidate from the AuthSourceCache */
+		boolean hintHit;
+	}
+
+	private DECODED innerProcess(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now, TrialCount count) {
 
 		if(opn != null && opn.getOutgoingMangler() != this) {
 			Logger.error(this, "Apparently contacted by "+opn+") on "+this, new Exception("error"));
@@ -156,12 +181,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			if(logMINOR) Logger.minor(this, "Trying exact match");
 			if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2 && !node.isStopping()) {
 				// Might be an auth packet
-				if(tryProcessAuth(buf, offset, length, opn, peer, false, now)) {
+				if(tryProcessAuth(buf, offset, length, opn, peer, false, now, count)) {
 					return DECODED.DECODED;
 				}
 				// Might be a reply to us sending an anon auth packet.
 				// I.e. we are not the seednode, they are.
-				if(tryProcessAuthAnonReply(buf, offset, length, opn, peer, now)) {
+				if(tryProcessAuthAnonReply(buf, offset, length, opn, peer, now, count)) {
 					return DECODED.DECODED;
 				}
 			}
@@ -170,27 +195,30 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		if(node.isStopping()) return DECODED.SHUTTING_DOWN;
 		// Disconnected node connecting on a new IP address?
 		if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2) {
-			for(PeerNode pn: peers) {
-				if(pn == opn) continue;
-				if(logDEBUG)
-					Logger.debug(this, "Trying auth with "+pn);
-				if(tryProcessAuth(buf, offset, length, pn, peer,false, now)) {
+			// Try the peers which recently sent us auth packets from the same network first.
+			AuthSourceCache.Candidate[] hints = authSourceCache.get(peer, now);
+			for(AuthSourceCache.Candidate hint : hints) {
+				PeerNode pn = hint.pn;
+				if(pn == opn || !contains(peers, pn)) continue;
+				boolean matched;
+				if(hint.kind == AuthSourceCache.Kind.AUTH)
+					matched = tryProcessAuth(buf, offset, length, pn, peer, false, now, count);
+				else
+					matched = pn.handshakeUnknownInitiator() && tryProcessAuthAnonReply(buf, offset, length, pn, peer, now, count);
+				if(matched) {
+					count.hintHit = true;
+					authSourceCache.matched(peer, pn, hint.kind, now);
 					return DECODED.DECODED;
 				}
-				if(pn.handshakeUnknownInitiator()) {
-					// Might be a reply to us sending an anon auth packet.
-					// I.e. we are not the seednode, they are.
-					if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) {
-						return DECODED.DECODED;
-					}
-				}
 			}
+			if(tryProcessAuthAllPeers(buf, offset, length, peers, opn, hints, peer, now, count))
+				return DECODED.DECODED;
 		}
 		
 		boolean wantAnonAuthChangeIP = wantAnonAuth && crypto.wantAnonAuthChangeIP();
 		
 		if(wantAnonAuth && wantAnonAuthChangeIP) {
-			if(checkAnonAuthChangeIP(opn, buf, offset, length, peer, now)) return DECODED.DECODED;
+			if(checkAnonAuthChangeIP(opn, buf, offset, length, peer, now, count)) return DECODED.DECODED;
 		}
 
 		boolean didntTryOldOpennetPeers;
@@ -201,7 +229,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 				// We want a peer.
 				// Try old connections.
 				for(PeerNode oldPeer: opennet.getOldPeers()) {
-					if(tryProcessAuth(buf, offset, length, oldPeer, peer, true, now)) return DECODED.DECODED;
+					if(tryProcessAuth(buf, offset, length, oldPeer, peer, true, now, count)) return DECODED.DECODED;
 				}
 				didntTryOldOpennetPeers = false;
 			} else
@@ -209,12 +237,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		} else
 			didntTryOldOpennetPeers = false;
 		if(wantAnonAuth) {
-			if(tryProcessAuthAnon(buf, offset, length, peer))
+			if(tryProcessAuthAnon(buf, offset, length, peer, count))
 				return DECODED.DECODED;
 		}
 		
 		if(wantAnonAuth && !wantAnonAuthChangeIP) {
-			if(checkAnonAuthChangeIP(opn, buf, offset, length, peer, now)) {
+			if(checkAnonAuthChangeIP(opn, buf, offset, length, peer, now, count)) {
 				// This can happen when a node is upgraded from a SeedClientPeerNode to an OpennetPeerNode.
 				//Logger.error(this, "Last resort match anon-auth against all anon setup peernodes succeeded - this should not happen! (It can happen if they change address)");
 				return DECODED.DECODED;
@@ -234,12 +262,184 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
                 	return DECODED.DIDNT_WANT_OPENNET;
 	}
 	
-	private boolean checkAnonAuthChangeIP(PeerNode opn, byte[] buf, int offset, int length, Peer peer, long now) {
+	/**
+	 * Try every peer in turn: the packet might be an auth packet from a disconnected node
+	 * connecting on a new IP address, or a reply to an anonymous-initiator auth packet we sent.
+	 * If there are many peers, the trial decrypts are split across the authTrialPool, and only the
+	 * peer that matches processes the packet, on this thread.
+	 * @param skip Don't try this peer, we have already.
+	 * @param hints Candidates we have already tried.
+	 * @return True if we handled a negotiation packet, false otherwise.
+	 */
+	private boolean tryProcessAuthAllPeers(byte[] buf, int offset, int length, PeerNode[] peers, PeerNode skip, AuthSourceCache.Candidate[] hints, Peer peer, long now, TrialCount count) {
+		PeerSearch search = new PeerSearch(buf, offset, length, peers, skip, hints);
+		ThreadPoolExecutor pool = AuthTrialPool.POOL;
+		if(pool == null || peers.length < PARALLEL_TRIAL_THRESHOLD)
+			search.run(0, 1);
+		else
+			search.runParallel(pool, AuthTrialPool.THREADS + 1);
+		count.trials += search.trials.get();
+		PeerNode pn = search.matched;
+		if(pn == null) return false;
+		if(search.anonReply) {
+			processDecryptedAuthAnonReply(search.payload, peer, pn);
+		} else {
+			processDecryptedAuth(search.payload, pn, peer, false);
+			pn.reportIncomingBytes(length);
+		}
+		authSourceCache.matched(peer, pn, search.anonReply ? AuthSourceCache.Kind.ANON_REPLY : AuthSourceCache.Kind.AUTH, now);
+		return true;
+	}
+
+	private static boolean contains(PeerNode[] peers, PeerNode pn) {
+		for(PeerNode p : peers)
+			if(p == pn) return true;
+		return false;
+	}
+
+	/** Trial decrypts a packet with the keys of a list of peers, possibly on several threads. */
+	private static final class PeerSearch {
+		private final byte[] buf;
+		private final int offset;
+		private final int length;
+		private final PeerNode[] peers;
+		private final PeerNode skip;
+		private final AuthSourceCache.Candidate[] hints;
+		final AtomicInteger trials = new AtomicInteger();
+		/** Set when any thread finds the key, so the others can stop. */
+		private volatile boolean found;
+		// Set once, under synchronized(this). Read after all the threads have finished.
+		PeerNode matched;
+		byte[] payload;
+		boolean anonReply;
+
+		PeerSearch(byte[] buf, int offset, int length, PeerNode[] peers, PeerNode skip, AuthSourceCache.Candidate[] hints) {
+			this.buf = buf;
+			this.offset = offset;
+			this.length = length;
+			this.peers = peers;
+			this.skip = skip;
+			this.hints = hints;
+		}
+
+		/** Try every step'th peer starting at first. */
+		void run(int first, int step) {
+			for(int i=first;i<peers.length && !found;i+=step) {
+				PeerNode pn = peers[i];
+				if(pn == skip) continue;
+				if(logDEBUG)
+					Logger.debug(this, "Trying auth with "+pn);
+				if(!tried(pn, AuthSourceCache.Kind.AUTH)) {
+					trials.incrementAndGet();
+					byte[] data = trialDecrypt(buf, offset, length, pn.incomingSetupCipher, 4);
+					if(data != null) {
+						found(pn, data, false);
+						return;
+					}
+				}
+				if(pn.handshakeUnknownInitiator() && !tried(pn, AuthSourceCache.Kind.ANON_REPLY)) {
+					// Might be a reply to us sending an anon auth packet.
+					// I.e. we are not the seednode, they are.
+					trials.incrementAndGet();
+					byte[] data = trialDecrypt(buf, offset, length, pn.anonymousInitiatorSetupCipher, 5);
+					if(data != null) {
+						found(pn, data, true);
+						return;
+					}
+				}
+			}
+		}
+
+		/** Split the peers into stripes, run all but one on the pool and one on this thread, and
+		 * wait for them all to finish, since the caller may reuse the buffer after we return. */
+		void runParallel(Executor pool, final int stripes) {
+			final CountDownLatch finished = new CountDownLatch(stripes - 1);
+			for(int i=1;i<stripes;i++) {
+				final int first = i;
+				Runnable r = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							PeerSearch.this.run(first, stripes);
+						} catch (Throwable t) {
+							Logger.error(this, "Caught "+t+" trying auth keys", t);
+						} finally {
+							finished.countDown();
+						}
+					}
+				};
+				try {
+					pool.execute(r);
+				} catch (RejectedExecutionException e) {
+					// Pool is busy with another packet.
+					r.run();
+				}
+			}
+			run(0, stripes);
+			boolean interrupted = false;
+			while(true) {
+				try {
+					finished.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+
+		private boolean tried(PeerNode pn, AuthSourceCache.Kind kind) {
+			for(AuthSourceCache.Candidate hint : hints)
+				if(hint.pn == pn && hint.kind == kind) return true;
+			return false;
+		}
+
+		private synchronized void found(PeerNode pn, byte[] data, boolean isAnonReply) {
+			if(matched != null) return;
+			matched = pn;
+			payload = data;
+			anonReply = isAnonReply;
+			found = true;
+		}
+	}
+
+	/** Threads for trial decrypting auth packets in parallel, shared by all the manglers. The
+	 * receiving thread does its share too, so we leave one core for it. */
+	private static final class AuthTrialPool {
+		static final int THREADS = Math.min(3, Runtime.getRuntime().availableProcessors() - 1);
+		/** Null if there is only one core. */
+		static final ThreadPoolExecutor POOL;
+		static {
+			if(THREADS > 0) {
+				POOL = new ThreadPoolExecutor(THREADS, THREADS, 60, SECONDS,
+						new ArrayBlockingQueue<Runnable>(THREADS * 4), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new NativeThread(r, "Auth trial decryption", NativeThread.HIGH_PRIORITY, true);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				POOL.allowCoreThreadTimeOut(true);
+			} else {
+				POOL = null;
+			}
+		}
+	}
+
+	/** Only split the trial decrypts across threads if there are at least this many peers. */
+	static final int PARALLEL_TRIAL_THRESHOLD = 32;
+
+	public AuthTrialStats getAuthTrialStats() {
+		return authTrialStats;
+	}
+
+	private boolean checkAnonAuthChangeIP(PeerNode opn, byte[] buf, int offset, int length, Peer peer, long now, TrialCount count) {
 		PeerNode[] anonPeers = crypto.getAnonSetupPeerNodes();
 		if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 3) {
 			for(PeerNode pn: anonPeers) {
 				if(pn == opn) continue;
-				if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) {
+				if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now, count)) {
 					return true;
 				}
 			}
@@ -257,21 +457,39 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * @param now The time at which the packet was received
 	 * @return True if we handled a negotiation packet, false otherwise.
 	 */
-	private boolean tryProcessAuth(byte[] buf, int offset, int length, PeerNode pn, Peer peer, boolean oldOpennetPeer, long now) {
-		BlockCipher authKey = pn.incomingSetupCipher;
+	private boolean tryProcessAuth(byte[] buf, int offset, int length, PeerNode pn, Peer peer, boolean oldOpennetPeer, long now, TrialCount count) {
 		if(logDEBUG) Logger.debug(this, "Decrypt key: "+HexUtil.bytesToHex(pn.incomingSetupKey)+" for "+peer+" : "+pn+" in tryProcessAuth");
-		// Does the packet match IV E( H(data) data ) ?
+		count.trials++;
+		byte[] payload = trialDecrypt(buf, offset, length, pn.incomingSetupCipher, 4);
+		if(payload == null) return false;
+		// Got one
+		processDecryptedAuth(payload, pn, peer, oldOpennetPeer);
+		pn.reportIncomingBytes(length);
+		return true;
+	}
+
+	/**
+	 * Does the packet match IV E( H(data) length data padding ) for this key? Does not modify
+	 * the buffer and does not change any state, so can be called from any thread.
+	 * @param buf The buffer to read bytes from
+	 * @param offset The offset at which to start reading
+	 * @param length The number of bytes to read
+	 * @param authKey The key to try
+	 * @param minDataLength The packet must be at least this much longer than the IV and hash
+	 * @return The decrypted data if the hash matched, otherwise null.
+	 */
+	private static byte[] trialDecrypt(byte[] buf, int offset, int length, BlockCipher authKey, int minDataLength) {
 		int ivLength = PCFBMode.lengthIV(authKey);
 		int digestLength = HASH_LENGTH;
-		if(length < digestLength + ivLength + 4) {
-			if(logMINOR) {
+		if(length < digestLength + ivLength + minDataLength) {
+			if(logDEBUG) {
 				if(buf.length < length) {
-					if(logDEBUG) Logger.debug(this, "The packet is smaller than the decrypted size: it's probably the wrong tracker ("+buf.length+'<'+length+')');
+					Logger.debug(FNPPacketMangler.class, "The packet is smaller than the decrypted size: it's probably the wrong tracker ("+buf.length+'<'+length+')');
 				} else {
-					Logger.minor(this, "Too short: "+length+" should be at least "+(digestLength + ivLength + 4));
+					Logger.debug(FNPPacketMangler.class, "Too short: "+length+" should be at least "+(digestLength + ivLength + minDataLength));
 				}
 			}
-			return false;
+			return null;
 		}
 		// IV at the beginning
 		PCFBMode pcfb = PCFBMode.create(authKey, buf, offset);
@@ -286,10 +504,10 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		int byte1 = ((pcfb.decipher(buf[dataStart-2])) & 0xff);
 		int byte2 = ((pcfb.decipher(buf[dataStart-1])) & 0xff);
 		int dataLength = (byte1 << 8) + byte2;
-		if(logDEBUG) Logger.debug(this, "Data length: "+dataLength+" (1 = "+byte1+" 2 = "+byte2+ ')');
+		if(logDEBUG) Logger.debug(FNPPacketMangler.class, "Data length: "+dataLength+" (1 = "+byte1+" 2 = "+byte2+ ')');
 		if(dataLength > length - (ivLength+hash.length+2)) {
-			if(logDEBUG) Logger.debug(this, "Invalid data length "+dataLength+" ("+(length - (ivLength+hash.length+2))+") in tryProcessAuth");
-			return false;
+			if(logDEBUG) Logger.debug(FNPPacketMangler.class, "Invalid data length "+dataLength+" ("+(length - (ivLength+hash.length+2))+")");
+			return null;
 		}
 		// Decrypt the data
 		byte[] payload = Arrays.copyOfRange(buf, dataStart, dataStart+dataLength);
@@ -298,13 +516,10 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		byte[] realHash = SHA256.digest(payload);
 
 		if(MessageDigest.isEqual(realHash, hash)) {
-			// Got one
-			processDecryptedAuth(payload, pn, peer, oldOpennetPeer);
-			pn.reportIncomingBytes(length);
-			return true;
+			return payload;
 		} else {
-			if(logDEBUG) Logger.debug(this, "Incorrect hash in tryProcessAuth for "+peer+" (length="+dataLength+"): \nreal hash="+HexUtil.bytesToHex(realHash)+"\n bad hash="+HexUtil.bytesToHex(hash));
-			return false;
+			if(logDEBUG) Logger.debug(FNPPacketMangler.class, "Incorrect hash (length="+dataLength+"): \nreal hash="+HexUtil.bytesToHex(realHash)+"\n bad hash="+HexUtil.bytesToHex(hash));
+			return null;
 		}
 	}
 
@@ -320,47 +535,13 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * @param peer The Peer to send a reply to
 	 * @return True if we handled a negotiation packet, false otherwise.
 	 */
-	private boolean tryProcessAuthAnon(byte[] buf, int offset, int length, Peer peer) {
-		BlockCipher authKey = crypto.getAnonSetupCipher();
-		// Does the packet match IV E( H(data) data ) ?
-		int ivLength = PCFBMode.lengthIV(authKey);
-		int digestLength = HASH_LENGTH;
-		if(length < digestLength + ivLength + 5) {
-			if(logMINOR) Logger.minor(this, "Too short: "+length+" should be at least "+(digestLength + ivLength + 5));
-			return false;
-		}
-		// IV at the beginning
-		PCFBMode pcfb = PCFBMode.create(authKey, buf, offset);
-		// Then the hash, then the data
-		// => Data starts at ivLength + digestLength
-		// Decrypt the hash
-		byte[] hash = Arrays.copyOfRange(buf, offset+ivLength, offset+ivLength+digestLength);
-		pcfb.blockDecipher(hash, 0, hash.length);
-
-		int dataStart = ivLength + digestLength + offset+2;
-
-		int byte1 = ((pcfb.decipher(buf[dataStart-2])) & 0xff);
-		int byte2 = ((pcfb.decipher(buf[dataStart-1])) & 0xff);
-		int dataLength = (byte1 << 8) + byte2;
-		if(logMINOR) Logger.minor(this, "Data length: "+dataLength+" (1 = "+byte1+" 2 = "+byte2+ ')');
-		if(dataLength > length - (ivLength+hash.length+2)) {
-			if(logMINOR) Logger.minor(this, "Invalid data length "+dataLength+" ("+(length - (ivLength+hash.length+2))+") in tryProcessAuthAnon");
-			return false;
-		}
-		// Decrypt the data
-		byte[] payload = Arrays.copyOfRange(buf, dataStart, dataStart+dataLength);
-		pcfb.blockDecipher(payload, 0, payload.length);
-
-		byte[] realHash = SHA256.digest(payload);
-
-		if(MessageDigest.isEqual(realHash, hash)) {
-			// Got one
-			processDecryptedAuthAnon(payload, peer);
-			return true;
-		} else {
-			if(logMINOR) Logger.minor(this, "Incorrect hash in tryProcessAuthAnon for "+peer+" (length="+dataLength+"): \nreal hash="+HexUtil.bytesToHex(realHash)+"\n bad hash="+HexUtil.bytesToHex(hash));
-			return false;
-		}
+	private boolean tryProcessAuthAnon(byte[] buf, int offset, int length, Peer peer, TrialCount count) {
+		count.trials++;
+		byte[] payload = trialDecrypt(buf, offset, length, crypto.getAnonSetupCipher(), 5);
+		if(payload == null) return false;
+		// Got one
+		processDecryptedAuthAnon(payload, peer);
+		return true;
 	}
 
 	/**
@@ -377,47 +558,13 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	 * @param now The time at which the packet was received
 	 * @return True if we handled a negotiation packet, false otherwise.
 	 */
-	private boolean tryProcessAuthAnonReply(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now) {
-		BlockCipher authKey = pn.anonymousInitiatorSetupCipher;
-		// Does the packet match IV E( H(data) data ) ?
-		int ivLength = PCFBMode.lengthIV(authKey);
-		int digestLength = HASH_LENGTH;
-		if(length < digestLength + ivLength + 5) {
-			if(logDEBUG) Logger.debug(this, "Too short: "+length+" should be at least "+(digestLength + ivLength + 5));
-			return false;
-		}
-		// IV at the beginning
-		PCFBMode pcfb = PCFBMode.create(authKey, buf, offset);
-		// Then the hash, then the data
-		// => Data starts at ivLength + digestLength
-		// Decrypt the hash
-		byte[] hash = Arrays.copyOfRange(buf, offset+ivLength, offset+ivLength+digestLength);
-		pcfb.blockDecipher(hash, 0, hash.length);
-
-		int dataStart = ivLength + digestLength + offset+2;
-
-		int byte1 = ((pcfb.decipher(buf[dataStart-2])) & 0xff);
-		int byte2 = ((pcfb.decipher(buf[dataStart-1])) & 0xff);
-		int dataLength = (byte1 << 8) + byte2;
-		if(logDEBUG) Logger.minor(this, "Data length: "+dataLength+" (1 = "+byte1+" 2 = "+byte2+ ')');
-		if(dataLength > length - (ivLength+hash.length+2)) {
-			if(logDEBUG) Logger.debug(this, "Invalid data length "+dataLength+" ("+(length - (ivLength+hash.length+2))+") in tryProcessAuth");
-			return false;
-		}
-		// Decrypt the data
-		byte[] payload = Arrays.copyOfRange(buf, dataStart, dataStart+dataLength);
-		pcfb.blockDecipher(payload, 0, payload.length);
-
-		byte[] realHash = SHA256.digest(payload);
-
-		if(MessageDigest.isEqual(realHash, hash)) {
-			// Got one
-			processDecryptedAuthAnonReply(payload, peer, pn);
-			return true;
-		} else {
-			if(logDEBUG) Logger.debug(this, "Incorrect hash in tryProcessAuth for "+peer+" (length="+dataLength+"): \nreal hash="+HexUtil.bytesToHex(realHash)+"\n bad hash="+HexUtil.bytesToHex(hash));
-			return false;
-		}
+	private boolean tryProcessAuthAnonReply(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now, TrialCount count) {
+		count.trials++;
+		byte[] payload = trialDecrypt(buf, offset, length, pn.anonymousInitiatorSetupCipher, 5);
+		if(payload == null) return false;
+		// Got one
+		processDecryptedAuthAnonReply(payload, peer, pn);
+		return true;
 	}
 
 	// Anonymous-initiator setup types
@@ -32,13 +32,17 @@ public class InsertTag extends UIDTag {
 	}
 	
 	public void finishedSender() {
+		boolean unlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			senderFinished = true;
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		if(unlock)
+			innerUnlock(noRecordUnlock);
+		else
+			tracker.updateCounts(this);
 	}
 
 	@Override
@@ -62,6 +62,7 @@ public class LoggingConfigHandler {
 	private long maxCachedLogBytes;
 	private int maxCachedLogLines;
 	private long maxBacklogNotBusy;
+	private long maxBlockTime;
 	private final Executor executor;
 	
 	public LoggingConfigHandler(SubConfig loggingConfig, Executor executor) throws InvalidConfigValueException {
@@ -257,6 +258,27 @@ public class LoggingConfigHandler {
     	
 		maxBacklogNotBusy = config.getLong("maxBacklogNotBusy");
 		
+		config.register("maxBlockTime", "0", 9, true, false, "LogConfigHandler.maxBlockTime", 
+				"LogConfigHandler.maxBlockTimeLong", 
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						return maxBlockTime;
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0) throw new InvalidConfigValueException("Must be >= 0");
+						if(val == maxBlockTime) return;
+						maxBlockTime = val;
+						if(fileLoggerHook != null) fileLoggerHook.setMaxBlockTime(val);
+					}
+			
+		}, false);
+    	
+		maxBlockTime = config.getLong("maxBlockTime");
+		
 		if (loggingEnabled) enableLogger();
 		config.finishedInitialization();
 	}
@@ -314,6 +336,7 @@ public class LoggingConfigHandler {
 			}
 			hook.setMaxListBytes(maxCachedLogBytes);
 			hook.setMaxBacklogNotBusy(maxBacklogNotBusy);
+			hook.setMaxBlockTime(maxBlockTime);
 			fileLoggerHook = hook;
 			Logger.globalAddHook(hook);
 			hook.start();
@@ -3,17 +3,14 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import freenet.crypt.BlockCipher;
-import freenet.crypt.HMAC;
 import freenet.crypt.PCFBMode;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
@@ -100,6 +97,9 @@ public class NewPacketFormat implements PacketFormat {
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
+	/** Which key tracker decrypted the last packet received: 0 for the current one, 1 for the
+	 * previous one, 2 for the unverified one. Only used by the receiving thread. */
+	private int lastDecryptedTracker;
 
 	NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID) {
 		this.pn = pn;
@@ -122,7 +122,10 @@ public class NewPacketFormat implements PacketFormat {
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
 		NPFPacket packet = null;
 		SessionKey s = null;
-		for(int i = 0; i < 3; i++) {
+		// Start with the tracker that decrypted the last packet, usually the current one.
+		int first = lastDecryptedTracker;
+		for(int j = 0; j < 3; j++) {
+			int i = (first + j) % 3;
 			if(i == 0) {
 				s = pn.getCurrentKeyTracker();
 			} else if (i == 1) {
@@ -134,6 +137,7 @@ public class NewPacketFormat implements PacketFormat {
 			packet = tryDecipherPacket(buf, offset, length, s);
 			if(packet != null) {
 				if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
+				lastDecryptedTracker = i;
 				break;
 			}
 		}
@@ -160,7 +164,7 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	List<byte[]> handleDecryptedPacket(NPFPacket packet, SessionKey sessionKey) {
-		List<byte[]> fullyReceived = new LinkedList<>();
+		List<byte[]> fullyReceived = new ArrayList<>();
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		for(int ack : packet.getAcks()) {
@@ -306,6 +310,9 @@ public class NewPacketFormat implements PacketFormat {
 				}
 				if(wakeUp)
 					pn.wakeUpSender();
+				else if(acksQueued == 1)
+					// The first ack queued: it must be sent by then.
+					pn.wakeUpSenderAt(System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
 			}
 		}
 
@@ -384,33 +391,23 @@ public class NewPacketFormat implements PacketFormat {
 
 	/** Must NOT modify buf contents. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
+		NPFPacket p;
+		PacketCipherContext cipher = sessionKey.incomingContext();
+		synchronized(cipher) {
+			if(!cipher.verifyMac(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH, offset, HMAC_LENGTH)) {
+				if (logMINOR) {
+					Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
+				}
 
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
-			if (logMINOR) {
-				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
+				return null;
 			}
 
-			return null;
+			cipher.setSequenceNumber(sequenceNumber);
+			byte[] payload = cipher.decipher(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH);
+			// Copies everything it keeps, so the buffer can be reused.
+			p = NPFPacket.create(payload, 0, length - HMAC_LENGTH, pn);
 		}
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
-
-		NPFPacket p = NPFPacket.create(payload, pn);
-
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
 			if(seqNumGreaterThan(sequenceNumber, keyContext.highestReceivedSeqNum, 31)) {
@@ -498,24 +495,14 @@ public class NewPacketFormat implements PacketFormat {
 		byte[] data = new byte[paddedLen];
 		packet.toBytes(data, HMAC_LENGTH, pn.paddingGen());
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
+		PacketCipherContext cipher = sessionKey.outgoingContext();
+		synchronized(cipher) {
+			cipher.setSequenceNumber(packet.getSequenceNumber());
+			cipher.encipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
 
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
-
-		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+			//Add hash
+			cipher.writeMac(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH, 0, HMAC_LENGTH);
+		}
 
 		try {
 			if(logMINOR) {
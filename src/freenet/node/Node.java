@@ -44,6 +44,7 @@ import freenet.node.useralerts.*;
 import freenet.support.io.*;
 import org.tanukisoftware.wrapper.WrapperManager;
 
+import freenet.client.FECCodec;
 import freenet.client.FetchContext;
 import freenet.clients.fcp.FCPMessage;
 import freenet.clients.fcp.FeedMessage;
@@ -128,6 +129,7 @@ import freenet.support.PrioritizedTicker;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
+import freenet.support.TimerWheelTicker;
 import freenet.support.TokenBucket;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
@@ -515,6 +517,9 @@ public class Node implements TimeSkewDetectorCallback {
 	/** Datastore properties */
 	private String storeType;
 	private boolean storeUseSlotFilters;
+	private boolean storeUseMmap;
+	private boolean storeWriteBehind;
+	private boolean storeWriteBehindSync;
 	private boolean storeSaltHashResizeOnStart;
 	private int storeSaltHashSlotFilterPersistenceTime;
 
@@ -768,7 +773,7 @@ public class Node implements TimeSkewDetectorCallback {
 	 */
 	@Deprecated
 	/* It’s not the field that is deprecated but accessing it directly is. */
-	public final PrioritizedTicker ticker;
+	public final Ticker ticker;
 
 	/**
 	 * @deprecated Use {@link #getDNSRequester()} instead of accessing this directly.
@@ -808,6 +813,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private int inputBandwidthLimit;
 	private long amountOfDataToCheckCompressionRatio;
 	private int minimumCompressionPercentage;
+	private volatile boolean compressInParallel;
 	private boolean connectionSpeedDetection;
 	boolean inputLimitDefault;
 
@@ -854,6 +860,10 @@ public class Node implements TimeSkewDetectorCallback {
 	@Deprecated
 	/* It’s not the field that is deprecated but accessing it directly is. */
 	boolean enablePacketCoalescing;
+	/** If true, use TimerWheelTicker rather than PrioritizedTicker */
+	private boolean useTimerWheelTicker;
+	/** Number of PacketSender threads */
+	private int packetSenderThreads;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -1719,6 +1729,51 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("useTimerWheelTicker", false, sortOrder++, true, false, "Node.useTimerWheelTicker", "Node.useTimerWheelTickerLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return useTimerWheelTicker;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				useTimerWheelTicker = val;
+				throw new NodeNeedRestartException("Need to restart to change useTimerWheelTicker");
+			}
+
+		});
+		useTimerWheelTicker = nodeConfig.getBoolean("useTimerWheelTicker");
+
+		nodeConfig.register("packetSenderThreads", PacketSender.DEFAULT_THREADS, sortOrder++, true, false, "Node.packetSenderThreads", "Node.packetSenderThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetSenderThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 1) throw new InvalidConfigValueException("Need at least one PacketSender thread");
+				packetSenderThreads = val;
+				throw new NodeNeedRestartException("Need to restart to change packetSenderThreads");
+			}
+
+		}, false);
+		packetSenderThreads = Math.max(1, nodeConfig.getInt("packetSenderThreads"));
+
+		nodeConfig.register("useFastFEC", true, sortOrder++, true, false, "Node.useFastFEC", "Node.useFastFECLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return FECCodec.getUseFastCodec();
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException {
+				FECCodec.setUseFastCodec(val);
+			}
+
+		});
+		FECCodec.setUseFastCodec(nodeConfig.getBoolean("useFastFEC"));
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1730,8 +1785,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
-		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		ps = new PacketSender(this, packetSenderThreads);
+		if(useTimerWheelTicker)
+			ticker = new TimerWheelTicker(executor, getDarknetPortNumber());
+		else
+			ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
 
@@ -1885,6 +1943,20 @@ public class Node implements TimeSkewDetectorCallback {
 
 		minimumCompressionPercentage = nodeConfig.getInt("minimumCompressionPercentage");
 
+		nodeConfig.register("compressInParallel", false, sortOrder++, true, false, "Node.compressInParallel",
+				"Node.compressInParallelLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return compressInParallel;
+			}
+			@Override
+			public void set(Boolean val) {
+				compressInParallel = val;
+			}
+		});
+
+		compressInParallel = nodeConfig.getBoolean("compressInParallel");
+
 		// max time for single compressor makes the insert compression CPU dependent, so it should not have been used.
 		nodeConfig.registerIgnoredOption("maxTimeForSingleCompressor");
 
@@ -2278,6 +2350,69 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		
 		storeUseSlotFilters = nodeConfig.getBoolean("storeUseSlotFilters");
+
+		nodeConfig.register("storeUseMmap", false, sortOrder++, true, false, "Node.storeUseMmap", "Node.storeUseMmapLong", new BooleanCallback() {
+
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeUseMmap;
+				}
+			}
+
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeUseMmap = val;
+				}
+
+				throw new NodeNeedRestartException("Need to restart to change storeUseMmap");
+			}
+
+		});
+
+		storeUseMmap = nodeConfig.getBoolean("storeUseMmap");
+
+		nodeConfig.register("storeWriteBehind", false, sortOrder++, true, false, "Node.storeWriteBehind", "Node.storeWriteBehindLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeWriteBehind;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeWriteBehind = val;
+				}
+				updateStoreWriteBehind();
+			}
+
+		});
+
+		storeWriteBehind = nodeConfig.getBoolean("storeWriteBehind");
+
+		nodeConfig.register("storeWriteBehindSync", false, sortOrder++, true, false, "Node.storeWriteBehindSync", "Node.storeWriteBehindSyncLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeWriteBehindSync;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeWriteBehindSync = val;
+				}
+				updateStoreWriteBehind();
+			}
+
+		});
+
+		storeWriteBehindSync = nodeConfig.getBoolean("storeWriteBehindSync");
 		
 		nodeConfig.register("storeSaltHashSlotFilterPersistenceTime", ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME, sortOrder++, true, false, 
 				"Node.storeSaltHashSlotFilterPersistenceTime", "Node.storeSaltHashSlotFilterPersistenceTimeLong", new IntCallback() {
@@ -3329,14 +3464,39 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey, storeUseMmap);
 		cb.setStore(fs);
+		synchronized(this) {
+			if(storeWriteBehind)
+				fs.setWriteBehind(true, storeWriteBehindSync);
+		}
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
 		else
 			return fs;
 	}
 
+	/** Apply the storeWriteBehind settings to the salted hash stores which already exist. */
+	private void updateStoreWriteBehind() {
+		boolean enabled;
+		boolean sync;
+		synchronized(this) {
+			enabled = storeWriteBehind;
+			sync = storeWriteBehindSync;
+		}
+		StoreCallback<?>[] callbacks = new StoreCallback<?>[] {
+			chkDatastore, chkDatacache, pubKeyDatastore, pubKeyDatacache, sskDatastore, sskDatacache,
+			chkClientcache, pubKeyClientcache, sskClientcache
+		};
+		for(StoreCallback<?> cb : callbacks) {
+			if(cb == null) continue;
+			// May be wrapped in a CachingFreenetStore.
+			FreenetStore<?> store = cb.getStore().getUnderlyingStore();
+			if(store instanceof SaltedHashFreenetStore)
+				((SaltedHashFreenetStore<?>)store).setWriteBehind(enabled, sync);
+		}
+	}
+
 	public void start(boolean noSwaps) throws NodeInitException {
 		
 		// IMPORTANT: Read the peers only after we have finished initializing Node.
@@ -3355,7 +3515,10 @@ public class Node implements TimeSkewDetectorCallback {
 		if(opennet != null)
 			opennet.start();
 		ps.start(nodeStats);
-		ticker.start();
+		if(ticker instanceof TimerWheelTicker)
+			((TimerWheelTicker)ticker).start();
+		else
+			((PrioritizedTicker)ticker).start();
 		scheduleVersionTransition();
 		usm.start(ticker);
 
@@ -21,6 +21,7 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.AddressTracker.Status;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.NioUdpSocketHandler;
 import freenet.io.comm.Peer;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.keys.FreenetURI;
@@ -181,7 +182,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.getCollector());
+					u = createSocketHandler(portNo, bindto, startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -195,7 +196,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.getCollector());
+				u = createSocketHandler(port, bindto, startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -240,6 +241,13 @@ public class NodeCrypto {
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
 	}
 
+	private UdpSocketHandler createSocketHandler(int port, FreenetInetAddress bindto, long startupTime) throws IOException {
+		if(config.useNIOSocket())
+			return new NioUdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.getCollector());
+		else
+			return new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.getCollector());
+	}
+
 	/**
 	 * Read the cryptographic keys etc from a SimpleFieldSet
 	 * @param fs
@@ -53,6 +53,9 @@ public class NodeCryptoConfig {
 	
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
+
+	/** If true, use a non-blocking DatagramChannel which drains packets in batches */
+	private boolean useNIOSocket;
 	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
@@ -240,6 +243,27 @@ public class NodeCryptoConfig {
 		});
 		
 		paddDataPackets = config.getBoolean("paddDataPackets");
+
+		config.register("useNIOSocket", false, sortOrder++, true, true, "Node.useNIOSocket", "Node.useNIOSocketLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(NodeCryptoConfig.this) {
+					return useNIOSocket;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(NodeCryptoConfig.this) {
+					if(val == useNIOSocket) return;
+					useNIOSocket = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change useNIOSocket");
+			}
+		});
+
+		useNIOSocket = config.getBoolean("useNIOSocket");
 	}
 
 	/** The number of config options i.e. the amount to increment sortOrder by */
@@ -316,4 +340,8 @@ public class NodeCryptoConfig {
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
+
+	public synchronized boolean useNIOSocket() {
+		return useNIOSocket;
+	}
 }
@@ -14,6 +14,7 @@ import java.util.UUID;
 
 import freenet.config.FreenetFilePersistentConfig;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.PersistentConfig;
 import freenet.config.SubConfig;
 import freenet.crypt.JceLoader;
@@ -28,6 +29,8 @@ import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.ProcessPriority;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
+import freenet.support.api.BooleanCallback;
 import freenet.support.io.NativeThread;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -56,6 +59,8 @@ public class NodeStarter implements WrapperListener {
 	}
 
 	private FreenetFilePersistentConfig cfg;
+	private boolean workStealingExecutor;
+	private boolean virtualThreads;
 
 	// experimental osgi support
 	private static NodeStarter nodestarter_osgi = null;
@@ -137,7 +142,7 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		Executor executor = makeExecutor(cfg.createSubConfig("node.executor"));
 
 		try {
 			System.out.println("Creating logger...");
@@ -149,7 +154,10 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).start();
+		else
+			((PooledExecutor)executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
@@ -203,6 +211,45 @@ public class NodeStarter implements WrapperListener {
 		return null;
 	}
 
+	/** Create the executor. This happens before the node is created, since logging needs it, so
+	 * the options can only take effect after a restart. */
+	private Executor makeExecutor(SubConfig executorConfig) {
+		int sortOrder = 0;
+		executorConfig.register("workStealing", false, sortOrder++, true, false, "NodeStarter.workStealingExecutor", "NodeStarter.workStealingExecutorLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return workStealingExecutor;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				workStealingExecutor = val;
+				throw new NodeNeedRestartException("Need to restart to change workStealing");
+			}
+		});
+		workStealingExecutor = executorConfig.getBoolean("workStealing");
+		executorConfig.register("virtualThreads", false, sortOrder++, true, false, "NodeStarter.virtualThreads", "NodeStarter.virtualThreadsLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return virtualThreads;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				virtualThreads = val;
+				throw new NodeNeedRestartException("Need to restart to change virtualThreads");
+			}
+		});
+		virtualThreads = executorConfig.getBoolean("virtualThreads");
+		executorConfig.finishedInitialization();
+		if(!workStealingExecutor)
+			return new PooledExecutor();
+		WorkStealingExecutor executor = new WorkStealingExecutor(virtualThreads);
+		if(virtualThreads && !executor.usingVirtualThreads())
+			System.err.println("Virtual threads are not supported by this JVM");
+		return executor;
+	}
+
 	/**
 	 * Called when the application is shutting down.  The Wrapper assumes that
 	 *  this method will return fairly quickly.  If the shutdown code code
@@ -1893,6 +1893,18 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return node.getExecutor().waitingThreads();
 	}
 
+	public int getQueuedJobsCount() {
+		return node.getExecutor().getQueuedJobsCount();
+	}
+
+	public double getAverageJobLatency() {
+		return node.getExecutor().getAverageJobLatency();
+	}
+
+	public double getThreadCreationRate() {
+		return node.getExecutor().getThreadCreationRate();
+	}
+
 	public int getThreadLimit() {
 		return threadLimit;
 	}
@@ -1949,6 +1961,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.getUSM().getUnclaimedFIFOSize());
+		fs.put("darknetAuthTrials", node.getDarknetCrypto().packetMangler.getAuthTrialStats().exportFieldSet());
+		OpennetManager om = node.getOpennet();
+		if(om != null)
+			fs.put("opennetAuthTrials", om.crypto.packetMangler.getAuthTrialStats().exportFieldSet());
 		fs.put("RAMBucketPoolSize", node.getClientCore().getTempBucketFactory().getRamUsed());
 
 		/* gather connection statistics */
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+
+/**
+ * The crypto state for one direction of a SessionKey, kept so that encrypting or decrypting a
+ * packet doesn't have to set up an HMAC, a PCFB and its buffers every time. Not thread-safe:
+ * callers synchronize on it. In practice there is no contention: packets from a peer are
+ * received by one thread, and a peer is only handled by one PacketSender thread at a time.
+ */
+final class PacketCipherContext {
+
+	private final BlockCipher ivCipher;
+	private final byte[] ivNonce;
+	/** HMAC keyed with the session's HMAC key. */
+	private final Mac mac;
+	/** Payload cipher, reset to each packet's IV. */
+	private final PCFBMode payloadCipher;
+	private final byte[] iv;
+	private final byte[] macBuffer;
+	/** Decrypted payload of the last packet. Reused, so only valid until the next one. */
+	private byte[] plaintext = new byte[0];
+
+	PacketCipherContext(BlockCipher payloadCipher, BlockCipher ivCipher, byte[] ivNonce, byte[] hmacKey) {
+		this.ivCipher = ivCipher;
+		this.ivNonce = ivNonce;
+		this.mac = HMAC.newMac(HMAC.SHA2_256, hmacKey);
+		this.iv = new byte[ivCipher.getBlockSize() / 8];
+		this.payloadCipher = PCFBMode.create(payloadCipher, iv);
+		this.macBuffer = new byte[mac.getMacLength()];
+	}
+
+	/** Set up the payload cipher for the packet with the given sequence number. */
+	void setSequenceNumber(int sequenceNumber) {
+		System.arraycopy(ivNonce, 0, iv, 0, iv.length);
+		iv[iv.length - 4] = (byte) (sequenceNumber >>> 24);
+		iv[iv.length - 3] = (byte) (sequenceNumber >>> 16);
+		iv[iv.length - 2] = (byte) (sequenceNumber >>> 8);
+		iv[iv.length - 1] = (byte) (sequenceNumber);
+		ivCipher.encipher(iv, iv);
+		payloadCipher.reset(iv);
+	}
+
+	/** Compute the HMAC of buf[offset, offset+length) and write the first hashLength bytes of it
+	 * to buf at hashOffset. */
+	void writeMac(byte[] buf, int offset, int length, int hashOffset, int hashLength) {
+		computeMac(buf, offset, length);
+		System.arraycopy(macBuffer, 0, buf, hashOffset, hashLength);
+	}
+
+	/** @return True if the first hashLength bytes of the HMAC of buf[offset, offset+length) are
+	 * the ones at hashOffset. Compares in constant time. */
+	boolean verifyMac(byte[] buf, int offset, int length, int hashOffset, int hashLength) {
+		computeMac(buf, offset, length);
+		int diff = 0;
+		for(int i = 0; i < hashLength; i++)
+			diff |= macBuffer[i] ^ buf[hashOffset + i];
+		return diff == 0;
+	}
+
+	private void computeMac(byte[] buf, int offset, int length) {
+		mac.update(buf, offset, length);
+		try {
+			mac.doFinal(macBuffer, 0);
+		} catch (ShortBufferException e) {
+			throw new Error(e); // Impossible
+		}
+	}
+
+	/** Encrypt in place. setSequenceNumber() must have been called first. */
+	void encipher(byte[] buf, int offset, int length) {
+		payloadCipher.blockEncipher(buf, offset, length);
+	}
+
+	/**
+	 * Decrypt into the context's own buffer, leaving buf unchanged. setSequenceNumber() must
+	 * have been called first.
+	 * @return The buffer, with the plaintext at the start. Only valid until the next call.
+	 */
+	byte[] decipher(byte[] buf, int offset, int length) {
+		if(plaintext.length < length)
+			plaintext = new byte[length];
+		System.arraycopy(buf, offset, plaintext, 0, length);
+		payloadCipher.blockDecipher(plaintext, 0, length);
+		return plaintext;
+	}
+
+}
@@ -8,21 +8,20 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-import java.util.ArrayList;
-
 import freenet.l10n.NodeL10n;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.TimeUtil;
 import freenet.support.io.NativeThread;
-import freenet.support.math.MersenneTwister;
 
 /**
  * @author amphibian
  *
- *         Thread that sends a packet whenever: - A packet needs to be resent immediately -
- *         Acknowledgments or resend requests need to be sent urgently.
+ *         Threads that send a packet whenever: - A packet needs to be resent immediately -
+ *         Acknowledgments or resend requests need to be sent urgently. Peers are kept in a
+ *         PeerSendQueue ordered by when they next need attention, so the cost of sending a
+ *         packet does not depend on how many peers we have.
  */
 // j16sdiz (22-Dec-2008):
 // FIXME this is the only class implements Ticker, everbody is using this as
@@ -59,25 +58,45 @@ public class PacketSender implements Runnable {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final long MIN_OLD_OPENNET_CONNECT_DELAY = SECONDS.toMillis(60);
-	final NativeThread myThread;
+	/** A peer which doesn't need anything sooner is still looked at this often, to check
+	 * whether it has timed out, to fetch its ARK etc. */
+	static final long MAX_IDLE_TIME = SECONDS.toMillis(1);
+	/** If a peer has something urgent but the packet format won't send it, e.g. because the
+	 * message window is full, look at it again after this long. Acks which unblock sending
+	 * wake the peer up anyway. */
+	static final long RETRY_DELAY = MILLISECONDS.toMillis(10);
+	/** A peer may be handled this long before it is due, so that a thread which wakes up
+	 * handles all the peers due at about the same time, rather than waking up for each. */
+	static final long MAX_EARLY = MILLISECONDS.toMillis(5);
+	/** Default number of sender threads. */
+	static final int DEFAULT_THREADS = 2;
+	final NativeThread[] threads;
 	final Node node;
+	/** Peers ordered by when they next need attention. */
+	private final PeerSendQueue<PeerNode> queue = new PeerSendQueue<PeerNode>();
 	NodeStats stats;
-	long lastReportedNoPackets;
-	long lastReceivedPacketFromAnyNode;
-	private MersenneTwister localRandom;
+	private long lastReportedNoPackets;
+	private long lastReceivedPacketFromAnyNode;
 
-	PacketSender(Node node) {
+	PacketSender(Node node, int threadCount) {
 		this.node = node;
-		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
-		myThread.setDaemon(true);
-		localRandom = node.createRandom();
+		threads = new NativeThread[Math.max(1, threadCount)];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new NativeThread(this, "PacketSender thread "+i+" for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
+			threads[i].setDaemon(true);
+		}
 	}
 
 	void start(NodeStats stats) {
 		this.stats = stats;
-		Logger.normal(this, "Starting PacketSender");
+		Logger.normal(this, "Starting PacketSender with "+threads.length+" threads");
 		System.out.println("Starting PacketSender");
-		myThread.start();
+		long now = System.currentTimeMillis();
+		for(PeerNode pn : node.getPeers().myPeers())
+			wakeUp(pn, now);
+		schedulePeriodicJob();
+		for(NativeThread thread : threads)
+			thread.start();
 	}
 
 	private void schedulePeriodicJob() {
@@ -97,6 +116,8 @@ public class PacketSender implements Runnable {
 					stats.maybeUpdatePeerManagerUserAlertStats(now);
 					stats.maybeUpdateNodeIOStats(now);
 					pm.maybeUpdatePeerNodeRoutableConnectionStats(now);
+					handleOldOpennetPeers(now);
+					checkReceivedAnyPackets(now);
 
 					if (logMINOR)
 						Logger.minor(PacketSender.class,
@@ -109,380 +130,247 @@ public class PacketSender implements Runnable {
 		}, 1000);
 	}
 
+	/**
+	 * Sender thread. Takes whichever peer is due first, handles it, and puts it back in the
+	 * queue for the next time it needs attention. Peers are woken up early when something
+	 * changes: a message is queued, an ack becomes due, or the packet format can send again.
+	 */
 	@Override
 	public void run() {
 		if(logMINOR) Logger.minor(this, "In PacketSender.run()");
 		freenet.support.Logger.OSThread.logPID(this);
-
-                schedulePeriodicJob();
-		/*
-		 * Index of the point in the nodes list at which we sent a packet and then
-		 * ran out of bandwidth. We start the loop from here next time.
-		 */
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
+			PeerSendQueue.Entry<PeerNode> entry;
+			try {
+				entry = queue.take(MAX_EARLY);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			long next = Long.MAX_VALUE;
+			long before = System.currentTimeMillis();
 			try {
-				realRun();
+				next = handle(entry.peer, Math.max(before, entry.time()));
 			} catch(Throwable t) {
 				Logger.error(this, "Caught in PacketSender: " + t, t);
 				System.err.println("Caught in PacketSender: " + t);
 				t.printStackTrace();
+				next = System.currentTimeMillis() + MAX_IDLE_TIME;
+			} finally {
+				queue.release(entry, next);
 			}
+			long after = System.currentTimeMillis();
+			if((after - before) > SECONDS.toMillis(5))
+				Logger.error(this, "Took more than 5 seconds (" + (after - before) + ") in PacketSender working with " + entry.peer.userToString());
 		}
 	}
 
 	/**
-	 * Send loop. Strategy:
+	 * Handle one peer. Strategy:
 	 * - Each peer can tell us when its data needs to be sent by. This is usually 100ms after it
 	 * is posted. It could vary by message type. Acknowledgements also become valid 100ms after 
 	 * being queued.
-	 * - If any peer's data is overdue, send the data from the most overdue peer.
-	 * - If there are peers with more than a packet's worth of data queued, send the data from the
-	 * peer with the oldest data.
-	 * - If there are peers with overdue ack's, send to the peer whose acks are oldest.
+	 * - If the peer's data is overdue, or it has more than a packet's worth of data queued, send
+	 * a packet, unless it is throttled and the output bandwidth limiter can't send a packet yet.
+	 * - If it can't send because of the bandwidth limit, but has overdue acks, send just the acks.
+	 * - Send a handshake if one is due.
 	 * 
-	 * It does not attempt to ensure fairness, it attempts to minimise latency. Fairness is best
-	 * dealt with at a higher level e.g. requests, although some transfers are not part of requests,
+	 * At most one packet is sent, after which the peer is due again immediately: it goes to the
+	 * back of the peers which are already due, so we round-robin between busy peers. It does
+	 * not attempt to ensure fairness, it attempts to minimise latency. Fairness is best dealt
+	 * with at a higher level e.g. requests, although some transfers are not part of requests,
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
+	 * @param now The current time, or when the peer is due if we are handling it early.
+	 * @return The time at which the peer next needs attention.
 	 */
-	private void realRun() {
-		long now = System.currentTimeMillis();
-                PeerManager pm;
-		PeerNode[] nodes;
-
-        pm = node.getPeers();
-        nodes = pm.myPeers();
+	private long handle(PeerNode pn, long now) {
 
-		long nextActionTime = Long.MAX_VALUE;
-		long oldTempNow = now;
+		// Basic peer maintenance.
+		
+		// For purposes of detecting not having received anything, which indicates a 
+		// serious connectivity problem, we want to look for *any* packets received, 
+		// including auth packets.
+		noteReceivedPacket(pn.lastReceivedPacketTime());
+		pn.maybeOnConnect();
+		if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
+			// Might as well do it properly.
+			node.getPeers().disconnectAndRemove(pn, true, true, false);
+		}
 
-		final boolean canSendThrottled;
+		long next = now + MAX_IDLE_TIME;
 
-		int MAX_PACKET_SIZE = node.getDarknetCrypto().getSocket().getMaxPacketSize();
-		long count = node.getOutputThrottle().getCount();
-		if(count > MAX_PACKET_SIZE)
-			canSendThrottled = true;
-		else {
-			long canSendAt = node.getOutputThrottle().getNanosPerTick() * (MAX_PACKET_SIZE - count);
-			canSendAt = MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
-			if(logMINOR)
-				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
-			canSendThrottled = false;
-		}
-		
-		/** The earliest time at which a peer needs to send a packet, which is before
-		 * now. Throttled if canSendThrottled, otherwise not throttled. 
-		 * Note: we only use it to sort the full-packed peers by priority, don't rely on it when setting nextActionTime!*/
-		long lowestUrgentSendTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestUrgentSendTime is referring to */
-		ArrayList<PeerNode> urgentSendPeers = null;
-		/** The earliest time at which a peer needs to send a packet, which is after
-		 * now, where there is a full packet's worth of data to send. 
-		 * Throttled if canSendThrottled, otherwise not throttled. */
-		long lowestFullPacketSendTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestFullPacketSendTime is referring to */
-		ArrayList<PeerNode> urgentFullPacketPeers = null;
-		/** The earliest time at which a peer needs to send an ack, before now. */
-		long lowestAckTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestAckTime is referring to */
-		ArrayList<PeerNode> ackPeers = null;
-		/** The earliest time at which a peer needs to handshake. */
-		long lowestHandshakeTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestHandshakeTime is referring to */
-		ArrayList<PeerNode> handshakePeers = null;
-
-		for(PeerNode pn: nodes) {
-			now = System.currentTimeMillis();
+		if(pn.isConnected()) {
 			
-			// Basic peer maintenance.
+			boolean shouldThrottle = pn.shouldThrottle();
 			
-			// For purposes of detecting not having received anything, which indicates a 
-			// serious connectivity problem, we want to look for *any* packets received, 
-			// including auth packets.
-			lastReceivedPacketFromAnyNode =
-				Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
-			pn.maybeOnConnect();
-			if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
-				// Might as well do it properly.
-				node.getPeers().disconnectAndRemove(pn, true, true, false);
+			pn.checkForLostPackets();
+
+			// Is the node dead?
+			// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
+			if(now - pn.lastReceivedDataPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
+				Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
+				// Hopefully this is a transient network glitch, but stuff will have already started to timeout, so lets dump the pending messages.
+				pn.disconnected(true, false);
+				return now;
+			} else if(now - pn.lastReceivedAckTime() > pn.maxTimeBetweenReceivedAcks() && !pn.isDisconnecting()) {
+				// FIXME better to disconnect immediately??? Or check canSend()???
+				Logger.normal(this, "Disconnecting from " + pn + " - haven't received acks recently");
+				// Do it properly.
+				// There appears to be connectivity from them to us but not from us to them.
+				// So it is helpful for them to know that we are disconnecting.
+				node.getPeers().disconnect(pn, true, true, false, true, false, SECONDS.toMillis(5));
+				return now;
+			} else if(pn.isRoutable() && pn.noLongerRoutable()) {
+				/*
+				 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
+				 code will only execute because of the scheduled-runnable in start() which executes
+				 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
+				 as being incompatible.
+				 */
+				pn.invalidate(now);
+				Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
+				return now;
 			}
 
-			if(pn.isConnected()) {
-				
-				boolean shouldThrottle = pn.shouldThrottle();
-				
-				pn.checkForLostPackets();
-
-				// Is the node dead?
-				// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
-				if(now - pn.lastReceivedDataPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
-					Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
-					// Hopefully this is a transient network glitch, but stuff will have already started to timeout, so lets dump the pending messages.
-					pn.disconnected(true, false);
-					continue;
-				} else if(now - pn.lastReceivedAckTime() > pn.maxTimeBetweenReceivedAcks() && !pn.isDisconnecting()) {
-					// FIXME better to disconnect immediately??? Or check canSend()???
-					Logger.normal(this, "Disconnecting from " + pn + " - haven't received acks recently");
-					// Do it properly.
-					// There appears to be connectivity from them to us but not from us to them.
-					// So it is helpful for them to know that we are disconnecting.
-					node.getPeers().disconnect(pn, true, true, false, true, false, SECONDS.toMillis(5));
-					continue;
-				} else if(pn.isRoutable() && pn.noLongerRoutable()) {
-					/*
-					 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
-					 code will only execute because of the scheduled-runnable in start() which executes
-					 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
-					 as being incompatible.
-					 */
-					pn.invalidate(now);
-					Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
-					continue;
-				}
-
-				// The peer is connected.
-				
-				if(canSendThrottled || !shouldThrottle) {
-					// We can send to this peer.
-					long sendTime = pn.getNextUrgentTime(now);
-					if(sendTime != Long.MAX_VALUE) {
-						if(sendTime <= now) {
-							// Message is urgent.
-							if(sendTime < lowestUrgentSendTime) {
-								lowestUrgentSendTime = sendTime;
-								if(urgentSendPeers != null)
-									urgentSendPeers.clear();
-								else
-									urgentSendPeers = new ArrayList<PeerNode>();
-							}
-							if(sendTime <= lowestUrgentSendTime)
-								urgentSendPeers.add(pn);
-						} else if(pn.fullPacketQueued()) {
-							if(sendTime < lowestFullPacketSendTime) {
-								lowestFullPacketSendTime = sendTime;
-								if(urgentFullPacketPeers != null)
-									urgentFullPacketPeers.clear();
-								else
-									urgentFullPacketPeers = new ArrayList<PeerNode>();
-							}
-							if(sendTime <= lowestFullPacketSendTime)
-								urgentFullPacketPeers.add(pn);
-						}
-					}
-				} else if(shouldThrottle && !canSendThrottled) {
-					long ackTime = pn.timeSendAcks();
-					if(ackTime != Long.MAX_VALUE) {
-						if(ackTime <= now) {
-							if(ackTime < lowestAckTime) {
-								lowestAckTime = ackTime;
-								if(ackPeers != null)
-									ackPeers.clear();
-								else
-									ackPeers = new ArrayList<PeerNode>();
-							}
-							if(ackTime <= lowestAckTime)
-								ackPeers.add(pn);
-						}
-					}
-				}
-				
-				if(canSendThrottled || !shouldThrottle) {
-					long urgentTime = pn.getNextUrgentTime(now);
-					// Should spam the logs, unless there is a deadlock
-					if(urgentTime < Long.MAX_VALUE && logMINOR)
-						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
-					nextActionTime = Math.min(nextActionTime, urgentTime);
-				} else {
-					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
-				}
-			} else
-				// Not connected
-
-				if(pn.noContactDetails())
-					pn.startARKFetcher();
-
-			long handshakeTime = pn.timeSendHandshake(now);
-			if(handshakeTime != Long.MAX_VALUE) {
-				if(handshakeTime < lowestHandshakeTime) {
-					lowestHandshakeTime = handshakeTime;
-					if(handshakePeers != null)
-						handshakePeers.clear();
-					else
-						handshakePeers = new ArrayList<PeerNode>();
-				}
-				if(handshakeTime <= lowestHandshakeTime)
-					handshakePeers.add(pn);
-			}
+			// The peer is connected.
 			
-			long tempNow = System.currentTimeMillis();
-			if((tempNow - oldTempNow) > SECONDS.toMillis(5))
-				Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
-			oldTempNow = tempNow;
-		}
-		
-		// We may send a packet, send an ack-only packet, or send a handshake.
-		
-		PeerNode toSendPacket = null;
-		PeerNode toSendAckOnly = null;
-		PeerNode toSendHandshake = null;
-		
-		long t = Long.MAX_VALUE;
-		
-		if(lowestUrgentSendTime <= now) {
-			// We need to send a full packet.
-			toSendPacket = urgentSendPeers.get(localRandom.nextInt(urgentSendPeers.size()));
-			t = lowestUrgentSendTime;
-		} else if(lowestFullPacketSendTime < Long.MAX_VALUE) {
-			toSendPacket = urgentFullPacketPeers.get(localRandom.nextInt(urgentFullPacketPeers.size()));
-			t = lowestFullPacketSendTime;
-		} else if(lowestAckTime <= now) {
-			// We need to send an ack
-			toSendAckOnly = ackPeers.get(localRandom.nextInt(ackPeers.size()));
-			t = lowestAckTime;
-		}
-		
-		if(lowestHandshakeTime <= now && t > lowestHandshakeTime) {
-			toSendHandshake = handshakePeers.get(localRandom.nextInt(handshakePeers.size()));
-			toSendPacket = null;
-			toSendAckOnly = null;
-		}
-		
-		if(toSendPacket != null) {
-			try {
-				if(toSendPacket.maybeSendPacket(now, false)) {
-					// Round-robin over the loop to update nextActionTime appropriately
-					nextActionTime = now;
+			long canSendAt = shouldThrottle ? canSendThrottledAt(now) : now;
+			if(canSendAt <= now) {
+				// We can send to this peer.
+				long sendTime = pn.getNextUrgentTime(now);
+				if(sendTime <= now || (sendTime != Long.MAX_VALUE && pn.fullPacketQueued())) {
+					if(sendPacket(pn, now, false))
+						return now;
+					// Nothing was sent even though it is urgent.
+					next = Math.min(next, now + RETRY_DELAY);
+				} else {
+					if(sendTime < Long.MAX_VALUE && logDEBUG)
+						Logger.debug(this, "Next urgent time: " + sendTime + "(in "+(sendTime - now)+") for " + pn);
+					next = Math.min(next, sendTime);
 				}
-			} catch (BlockedTooLongException e) {
-				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
-				toSendPacket.forceDisconnect();
-			}
-		} else if(toSendAckOnly != null) {
-			try {
-				if(toSendAckOnly.maybeSendPacket(now, true)) {
-                    // Round-robin over the loop to update nextActionTime appropriately
-                    nextActionTime = now;
+			} else {
+				// Throttled, and we can't send a full packet yet.
+				long ackTime = pn.timeSendAcks();
+				if(ackTime <= now) {
+					if(sendPacket(pn, now, true))
+						return now;
+					ackTime = now + RETRY_DELAY;
 				}
-			} catch (BlockedTooLongException e) {
-				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
-				toSendAckOnly.forceDisconnect();
+				next = Math.min(next, ackTime);
+				next = Math.min(next, canSendAt);
+				next = Math.min(next, pn.timeCheckForLostPackets());
 			}
-		}
-		
-		/* Estimating of nextActionTime logic:
-		* FullPackets:
-		*  - A full packet available, bandwidth available  -->> now
-		*  - A full packet available for non-throttled peer -->> now
-		*  - A full packet available, no bandwidth -->> wait till bandwidth available
-		*  - No packet -->> don't care, will wake up anyway when one arrives, goto Nothing
-		* UrgentMessages: Only applies when there's enough bandwidth to send a full packet, Includes any urgent acks 
-		*  - There's an urgent message, deadline(urgentMessage) > now -->> deadline(urgentMessage)
-		*  - There's an urgent message, deadline(urgentMessage) <= now -->> now
-		*  - There's an urgent message, but there's not enough bandwidth for a full packet -->> wait till bandwidth available
-		*  - There's no urgent message -->> don't care, goto Nothing 
-		* Nothing:
-		*  -->> timeCheckForLostPackets 
-		*/
-		
-		if(toSendHandshake != null) {
+		} else
+			// Not connected
+
+			if(pn.noContactDetails())
+				pn.startARKFetcher();
+
+		long handshakeTime = pn.timeSendHandshake(now);
+		if(handshakeTime <= now) {
 			// Send handshake if necessary
 			long beforeHandshakeTime = System.currentTimeMillis();
-			toSendHandshake.getOutgoingMangler().sendHandshake(toSendHandshake, false);
+			pn.getOutgoingMangler().sendHandshake(pn, false);
 			long afterHandshakeTime = System.currentTimeMillis();
 			if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
-				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
+				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
+			handshakeTime = Math.max(pn.timeSendHandshake(afterHandshakeTime), afterHandshakeTime + RETRY_DELAY);
 		}
-		
-		// All of these take into account whether the data can be sent already.
-		// So we can include them in nextActionTime.
-		nextActionTime = Math.min(nextActionTime, lowestUrgentSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestFullPacketSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestAckTime);
-		nextActionTime = Math.min(nextActionTime, lowestHandshakeTime);
-
-		// FIXME: If we send something we will have to go around the loop again.
-		// OPTIMISATION: We could track the second best, and check how many are in the array.
-		
-		/* Attempt to connect to old-opennet-peers.
-		 * Constantly send handshake packets, in order to get through a NAT.
-		 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
-		 * Well worth it to allow us to reconnect more quickly. */
+		return Math.min(next, handshakeTime);
+	}
 
-		OpennetManager om = node.getOpennet();
-		if(om != null && node.getUptime() > SECONDS.toMillis(30)) {
-			OpennetPeerNode[] peers = om.getOldPeers();
-
-			for(OpennetPeerNode pn : peers) {
-				long lastConnected = pn.timeLastConnected(now);
-				if(lastConnected <= 0)
-					Logger.error(this, "Last connected is zero or negative for old-opennet-peer "+pn);
-				// Will be removed by next line.
-				if(now - lastConnected > OpennetManager.MAX_TIME_ON_OLD_OPENNET_PEERS) {
-					om.purgeOldOpennetPeer(pn);
-					if(logMINOR) Logger.minor(this, "Removing old opennet peer (too old): "+pn+" age is "+TimeUtil.formatTime(now - lastConnected));
-					continue;
-				}
-				if(pn.isConnected()) continue; // Race condition??
-				if(pn.noContactDetails()) {
-					pn.startARKFetcher();
-					continue;
-				}
-				if(pn.shouldSendHandshake()) {
-					// Send handshake if necessary
-					long beforeHandshakeTime = System.currentTimeMillis();
-					pn.getOutgoingMangler().sendHandshake(pn, true);
-					long afterHandshakeTime = System.currentTimeMillis();
-					if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
-						Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
-				}
-			}
+	/**
+	 * @return The time at which the output bandwidth limiter will have a packet's worth of
+	 * tokens, i.e. we can send a packet to a throttled peer; now if we can already.
+	 */
+	private long canSendThrottledAt(long now) {
+		int maxPacketSize = node.getDarknetCrypto().getSocket().getMaxPacketSize();
+		long count = node.getOutputThrottle().getCount();
+		if(count > maxPacketSize)
+			return now;
+		long canSendAt = node.getOutputThrottle().getNanosPerTick() * (maxPacketSize - count);
+		canSendAt = MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
+		if(logMINOR)
+			Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
+		return now + canSendAt;
+	}
 
+	private boolean sendPacket(PeerNode pn, long now, boolean ackOnly) {
+		try {
+			return pn.maybeSendPacket(now, ackOnly);
+		} catch (BlockedTooLongException e) {
+			Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+pn+" : "+("(new packet format)")+" (version "+pn.getVersionNumber()+") - DISCONNECTING!");
+			pn.forceDisconnect();
+			return false;
 		}
+	}
 
-		long oldNow = now;
-
-		// Send may have taken some time
-		now = System.currentTimeMillis();
-
-		if((now - oldNow) > SECONDS.toMillis(10))
-			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
+	/* Attempt to connect to old-opennet-peers.
+	 * Constantly send handshake packets, in order to get through a NAT.
+	 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
+	 * Well worth it to allow us to reconnect more quickly. */
+	private void handleOldOpennetPeers(long now) {
+		OpennetManager om = node.getOpennet();
+		if(om == null || node.getUptime() <= SECONDS.toMillis(30)) return;
+		OpennetPeerNode[] peers = om.getOldPeers();
+
+		for(OpennetPeerNode pn : peers) {
+			long lastConnected = pn.timeLastConnected(now);
+			if(lastConnected <= 0)
+				Logger.error(this, "Last connected is zero or negative for old-opennet-peer "+pn);
+			// Will be removed by next line.
+			if(now - lastConnected > OpennetManager.MAX_TIME_ON_OLD_OPENNET_PEERS) {
+				om.purgeOldOpennetPeer(pn);
+				if(logMINOR) Logger.minor(this, "Removing old opennet peer (too old): "+pn+" age is "+TimeUtil.formatTime(now - lastConnected));
+				continue;
+			}
+			if(pn.isConnected()) continue; // Race condition??
+			if(pn.noContactDetails()) {
+				pn.startARKFetcher();
+				continue;
+			}
+			if(pn.shouldSendHandshake()) {
+				// Send handshake if necessary
+				long beforeHandshakeTime = System.currentTimeMillis();
+				pn.getOutgoingMangler().sendHandshake(pn, true);
+				long afterHandshakeTime = System.currentTimeMillis();
+				if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
+					Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
+			}
+		}
+	}
 
-		long sleepTime = nextActionTime - now;
-		
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
+	private synchronized void noteReceivedPacket(long time) {
+		lastReceivedPacketFromAnyNode = Math.max(lastReceivedPacketFromAnyNode, time);
+	}
 
+	private synchronized void checkReceivedAnyPackets(long now) {
 		if(now - node.getStartupTime() > MINUTES.toMillis(5))
-			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
+			if(now - Math.max(lastReceivedPacketFromAnyNode, lastReportedNoPackets) > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
 				lastReportedNoPackets = now;
 			}
+	}
 
-		if(sleepTime > 0) {
-			// Update logging only when have time to do so
-			try {
-				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
-					wait(sleepTime);
-				}
-			} catch(InterruptedException e) {
-			// Ignore, just wake up. Probably we got interrupt()ed
-			// because a new packet came in.
-			}
-		} else {
-			if(logDEBUG)
-				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
-		}
+	/** Make sure the peer is looked at no later than the given time, e.g. because something
+	 * has been queued for it. */
+	void wakeUp(PeerNode pn, long time) {
+		queue.schedule(pn.sendQueueEntry, time);
 	}
 
-	/** Wake up, and send any queued packets. */
-	void wakeUp() {
-		// Wake up if needed
-		synchronized(this) {
-			notifyAll();
-		}
+	/** Wake up, and send any queued packets to the peer. */
+	void wakeUp(PeerNode pn) {
+		wakeUp(pn, System.currentTimeMillis());
+	}
+
+	/** The peer has been added to the PeerManager. */
+	void addPeer(PeerNode pn) {
+		queue.reset(pn.sendQueueEntry);
+		wakeUp(pn);
+	}
+
+	/** The peer has been removed from the PeerManager: stop looking at it. */
+	void removePeer(PeerNode pn) {
+		queue.remove(pn.sendQueueEntry);
 	}
 
 	protected String l10n(String key, String[] patterns, String[] values) {
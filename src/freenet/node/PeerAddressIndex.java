@@ -0,0 +1,122 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.io.comm.Peer;
+
+/**
+ * Index of PeerNode's by the IP addresses and ports they may send packets from, so that
+ * PeerManager.getByPeer() does not have to scan every peer for every packet from an address we
+ * don't recognise.
+ *
+ * A peer is indexed under its detected address and its nominal addresses, where these have
+ * already been looked up (we never do DNS lookups here). PeerManager must call update() whenever
+ * these change, and remove() when the peer is removed. Lookups do not take any locks. The index
+ * only narrows down the candidates: callers must still check matchesPeerAndPort() or matchesIP(),
+ * so a slightly stale entry is harmless.
+ */
+class PeerAddressIndex {
+
+	private static final PeerNode[] EMPTY = new PeerNode[0];
+
+	private final ConcurrentHashMap<InetSocketAddress, PeerNode[]> byAddressAndPort = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<InetAddress, PeerNode[]> byAddress = new ConcurrentHashMap<>();
+
+	/** The keys each peer is currently indexed under. Protected by synchronized(this). */
+	private final IdentityHashMap<PeerNode, Indexed> indexed = new IdentityHashMap<>();
+
+	private static class Indexed {
+		final Set<InetSocketAddress> addressesAndPorts = new HashSet<>();
+		final Set<InetAddress> addresses = new HashSet<>();
+	}
+
+	/** Peers which may be sending from exactly this IP address and port. Never null. */
+	PeerNode[] getByAddressAndPort(InetAddress address, int port) {
+		PeerNode[] peers = byAddressAndPort.get(new InetSocketAddress(address, port));
+		return peers == null ? EMPTY : peers;
+	}
+
+	/** Peers which may be sending from this IP address, on any port. Never null. */
+	PeerNode[] getByAddress(InetAddress address) {
+		PeerNode[] peers = byAddress.get(address);
+		return peers == null ? EMPTY : peers;
+	}
+
+	/**
+	 * Set the addresses a peer is indexed under, replacing any previous addresses.
+	 * @param peers The peer's detected and nominal addresses. Any that have not been looked up
+	 * yet are skipped.
+	 */
+	synchronized void update(PeerNode pn, List<Peer> peers) {
+		Indexed next = new Indexed();
+		for(Peer p : peers) {
+			if(p == null) continue;
+			InetAddress a = p.getAddress(false);
+			if(a == null) continue;
+			next.addresses.add(a);
+			next.addressesAndPorts.add(new InetSocketAddress(a, p.getPort()));
+		}
+		Indexed prev = indexed.put(pn, next);
+		if(prev != null) {
+			for(InetSocketAddress key : prev.addressesAndPorts)
+				if(!next.addressesAndPorts.contains(key)) remove(byAddressAndPort, key, pn);
+			for(InetAddress key : prev.addresses)
+				if(!next.addresses.contains(key)) remove(byAddress, key, pn);
+		}
+		for(InetSocketAddress key : next.addressesAndPorts)
+			if(prev == null || !prev.addressesAndPorts.contains(key)) add(byAddressAndPort, key, pn);
+		for(InetAddress key : next.addresses)
+			if(prev == null || !prev.addresses.contains(key)) add(byAddress, key, pn);
+	}
+
+	synchronized void remove(PeerNode pn) {
+		Indexed prev = indexed.remove(pn);
+		if(prev == null) return;
+		for(InetSocketAddress key : prev.addressesAndPorts)
+			remove(byAddressAndPort, key, pn);
+		for(InetAddress key : prev.addresses)
+			remove(byAddress, key, pn);
+	}
+
+	synchronized void clear() {
+		indexed.clear();
+		byAddressAndPort.clear();
+		byAddress.clear();
+	}
+
+	/** Copy on write, so readers can iterate the arrays without locking. Caller holds the lock. */
+	private static <K> void add(ConcurrentHashMap<K, PeerNode[]> map, K key, PeerNode pn) {
+		PeerNode[] peers = map.get(key);
+		if(peers == null) {
+			map.put(key, new PeerNode[] { pn });
+		} else {
+			peers = Arrays.copyOf(peers, peers.length + 1);
+			peers[peers.length - 1] = pn;
+			map.put(key, peers);
+		}
+	}
+
+	private static <K> void remove(ConcurrentHashMap<K, PeerNode[]> map, K key, PeerNode pn) {
+		PeerNode[] peers = map.get(key);
+		if(peers == null) return;
+		List<PeerNode> keep = new ArrayList<>(peers.length);
+		for(PeerNode p : peers)
+			if(p != pn) keep.add(p);
+		if(keep.isEmpty())
+			map.remove(key);
+		else
+			map.put(key, keep.toArray(new PeerNode[keep.size()]));
+	}
+
+}
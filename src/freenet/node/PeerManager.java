@@ -12,6 +12,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -66,6 +67,8 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** myPeers indexed by address, for getByPeer() */
+	private final PeerAddressIndex addressIndex = new PeerAddressIndex();
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -347,8 +350,12 @@ public class PeerManager {
 			}
 			myPeers = Arrays.copyOf(myPeers, myPeers.length + 1);
 			myPeers[myPeers.length - 1] = pn;
+			addressIndex.update(pn, pn.getAddressesForIndex());
 			Logger.normal(this, "Added " + pn);
 		}
+		PacketSender ps = node.getPacketSender();
+		if(ps != null)
+			ps.addPeer(pn);
 		if(pn.recordStatus())
 			addPeerNodeStatus(pn.getPeerNodeStatus(), pn, false);
 		pn.setPeerNodeStatus(System.currentTimeMillis());
@@ -431,10 +438,14 @@ public class PeerManager {
 					}
 				}
 				myPeers = newMyPeers;
+				addressIndex.remove(pn);
 
 				Logger.normal(this, "Removed " + pn);
 			}
 		}
+		PacketSender ps = node.getPacketSender();
+		if(isInPeers && ps != null)
+			ps.removePeer(pn);
 		pn.onRemove();
 		if(isInPeers && !pn.isSeed())
 			updatePMUserAlert();
@@ -450,9 +461,14 @@ public class PeerManager {
 			oldPeers = myPeers;
 			myPeers = new PeerNode[0];
 			connectedPeers = new PeerNode[0];
+			addressIndex.clear();
 		}
-		for(PeerNode oldPeer: oldPeers)
+		PacketSender ps = node.getPacketSender();
+		for(PeerNode oldPeer: oldPeers) {
+			if(ps != null)
+				ps.removePeer(oldPeer);
 			oldPeer.onRemove();
+		}
 		notifyPeerStatusChangeListeners();
 		return true;
 	}
@@ -559,46 +575,50 @@ public class PeerManager {
 	 * non-isRealConnection()'s since they can also be connected.
 	 */
 	public PeerNode getByPeer(Peer peer) {
-		PeerNode[] peerList = myPeers();
-		for(PeerNode pn : peerList) {
-			if(pn.isDisabled()) continue;
-			if(pn.matchesPeerAndPort(peer))
-				return pn;
-		}
-		// Try a match by IP address if we can't match exactly by IP:port.
-		FreenetInetAddress addr = peer.getFreenetAddress();
-		for(PeerNode pn : peerList) {
-			if(pn.isDisabled()) continue;
-			if(pn.matchesIP(addr, false))
-				return pn;
-		}
-		return null;
+		return getByPeer(peer, null);
 	}
 	
 	/**
 	 * Find the node with the given Peer address, or IP address. Checks the outgoing
-	 * packet mangler as well.
+	 * packet mangler as well. Constant time in the number of peers: candidates come from
+	 * the address index, which is kept up to date by updatePeerAddresses().
 	 * @param peer
-	 * @param mangler
+	 * @param mangler If not null, only return a peer using this packet mangler.
 	 * @return
 	 */
 	public PeerNode getByPeer(Peer peer, FNPPacketMangler mangler) {
-		PeerNode[] peerList = myPeers();
-		for(PeerNode pn : peerList) {
+		InetAddress address = peer.getAddress(false);
+		if(address == null) return null;
+		for(PeerNode pn : addressIndex.getByAddressAndPort(address, peer.getPort())) {
 			if(pn.isDisabled()) continue;
-			if(pn.matchesPeerAndPort(peer) && pn.getOutgoingMangler() == mangler)
+			if(pn.matchesPeerAndPort(peer) && (mangler == null || pn.getOutgoingMangler() == mangler))
 				return pn;
 		}
 		// Try a match by IP address if we can't match exactly by IP:port.
 		FreenetInetAddress addr = peer.getFreenetAddress();
-		for(PeerNode pn : peerList) {
+		for(PeerNode pn : addressIndex.getByAddress(address)) {
 			if(pn.isDisabled()) continue;
-			if(pn.matchesIP(addr, false) && pn.getOutgoingMangler() == mangler)
+			if(pn.matchesIP(addr, false) && (mangler == null || pn.getOutgoingMangler() == mangler))
 				return pn;
 		}
 		return null;
 	}
 
+	/**
+	 * Re-index a peer after its detected or nominal addresses have changed, or after a
+	 * hostname has been looked up. LOCKING: Caller must not hold the PeerNode's lock.
+	 */
+	void updatePeerAddresses(PeerNode pn) {
+		synchronized(this) {
+			for(PeerNode myPeer : myPeers) {
+				if(myPeer == pn) {
+					addressIndex.update(pn, pn.getAddressesForIndex());
+					return;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Find nodes with a given IP address.
 	 */
@@ -2030,8 +2050,10 @@ public class PeerManager {
 			ArrayList<PeerNode> keep = new ArrayList<PeerNode>();
 			ArrayList<PeerNode> conn = new ArrayList<PeerNode>();
 			for(PeerNode pn : myPeers) {
-				if(pn instanceof OpennetPeerNode)
+				if(pn instanceof OpennetPeerNode) {
+					addressIndex.remove(pn);
 					continue;
+				}
 				keep.add(pn);
 				if(pn.isConnected())
 					conn.add(pn);
@@ -241,6 +241,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	/** MessageItem's to send ASAP.
 	 * LOCKING: Lock on self, always take that lock last. Sometimes used inside PeerNode.this lock. */
 	private final PeerMessageQueue messageQueue;
+	/** Our place in the PacketSender's queue. */
+	final PeerSendQueue.Entry<PeerNode> sendQueueEntry = new PeerSendQueue.Entry<PeerNode>(this);
 	/** When did we last receive a SwapRequest? */
 	private long timeLastReceivedSwapRequest;
 	/** Average interval between SwapRequest's */
@@ -896,6 +898,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			synchronized(this) {
 				handshakeIPs = localHandshakeIPs;
 			}
+			peers.updatePeerAddresses(this);
 			if(logMINOR)
 				Logger.minor(this, "2: maybeUpdateHandshakeIPs got a result of: " + handshakeIPsToString());
 			return;
@@ -949,6 +952,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				localDetectedPeer = detectedPeer = detectedDuplicate;
 			updateShortToString();
 		}
+		// Hostnames may have been looked up.
+		peers.updatePeerAddresses(this);
 		if(logMINOR) {
 			if(localDetectedPeer != null)
 				Logger.minor(this, "3: detectedPeer = " + localDetectedPeer + " (" + localDetectedPeer.getAddress(false) + ')');
@@ -1090,17 +1095,23 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.isEnablePacketCoalescing()) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise the PacketSender only needs to look at us when the message is due.
+			// Bulk messages can wait longer, but it will find that out when it looks.
+			wakeUpSenderAt(item.submitted + PacketSender.MAX_COALESCING_DELAY);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.getPacketSender().wakeUp();
+		node.getPacketSender().wakeUp(this);
+	}
+
+	@Override
+	public void wakeUpSenderAt(long time) {
+		node.getPacketSender().wakeUp(this, time);
 	}
 
 	@Override
@@ -1806,6 +1817,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			Logger.error(this, "Impossible: No address for detected peer! "+p+" on "+this);
 			return;
 		}
+		boolean connected;
 		synchronized(this) {
 			Peer oldPeer = detectedPeer;
 			if((newPeer != null) && ((oldPeer == null) || !oldPeer.equals(newPeer))) {
@@ -1813,11 +1825,13 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				updateShortToString();
 				// IP has changed, it is worth looking up the DNS address again.
 				this.lastAttemptedHandshakeIPUpdateTime = 0;
-				if(!isConnected())
-					return;
+				connected = isConnected();
 			} else
 				return;
 		}
+		peers.updatePeerAddresses(this);
+		if(!connected)
+			return;
 		getThrottle().maybeDisconnected();
 		sendIPAddressMessage();
 	}
@@ -2418,6 +2432,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(logMINOR)
 			Logger.minor(this, "Parsing: \n" + fs);
 		boolean changedAnything = innerProcessNewNoderef(fs, forARK, forDiffNodeRef, forFullNodeRef) || forARK;
+		if(changedAnything)
+			peers.updatePeerAddresses(this);
 		if(changedAnything && !isSeed())
 		    writePeers();
 		// FIXME should this be urgent if IPs change? Dunno.
@@ -5425,6 +5441,15 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return paddingGen;
 	}
 
+	/** The addresses this peer may send packets from: the detected address and the nominal
+	 * addresses. Used by PeerManager to index peers by address. */
+	synchronized List<Peer> getAddressesForIndex() {
+		List<Peer> ret = new ArrayList<Peer>(nominalPeer == null ? 1 : nominalPeer.size() + 1);
+		if(detectedPeer != null) ret.add(detectedPeer);
+		if(nominalPeer != null) ret.addAll(nominalPeer);
+		return ret;
+	}
+
 	public synchronized boolean matchesPeerAndPort(Peer peer) {
 		if(detectedPeer != null && detectedPeer.laxEquals(peer)) return true;
 		if(nominalPeer != null) { // FIXME condition necessary???
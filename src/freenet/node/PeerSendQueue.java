@@ -0,0 +1,186 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+
+/**
+ * The peers the PacketSender threads have to look at, ordered by the time each one next needs
+ * attention: when its queued messages or acks become urgent, when it should check for lost
+ * packets, or when it should send a handshake. Each peer has one Entry, which is either waiting
+ * in the queue, held by a sender thread, or idle. While a thread holds it, asking for it to be
+ * woken up is remembered and applied when the thread releases it, so a peer is only ever handled
+ * by one thread at a time.
+ *
+ * A binary heap, so scheduling, rescheduling and taking a peer cost O(log peers), however many
+ * peers there are.
+ */
+final class PeerSendQueue<T> {
+
+	static final class Entry<T> {
+		final T peer;
+		/** When the peer needs attention, if it is queued. */
+		private long time = Long.MAX_VALUE;
+		/** Position in the heap, or -1 if not queued. */
+		private int index = -1;
+		/** True while a sender thread is handling the peer. */
+		private boolean busy;
+		/** Earliest wake up asked for while busy. */
+		private long wakeWhileBusy = Long.MAX_VALUE;
+		/** True if the peer has been removed: don't queue it again. */
+		private boolean removed;
+
+		Entry(T peer) {
+			this.peer = peer;
+		}
+
+		/** When the peer was due. Only for the thread which has taken it. */
+		long time() {
+			return time;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Entry<T>[] heap = (Entry<T>[]) new Entry<?>[16];
+	private int size;
+
+	/**
+	 * Make sure the peer will be handled no later than the given time. Does nothing if it is
+	 * already queued for an earlier time.
+	 */
+	synchronized void schedule(Entry<T> e, long time) {
+		if(e.removed) return;
+		if(e.busy) {
+			e.wakeWhileBusy = Math.min(e.wakeWhileBusy, time);
+			return;
+		}
+		if(e.index >= 0) {
+			if(time >= e.time) return;
+			e.time = time;
+			siftUp(e.index);
+		} else {
+			e.time = time;
+			if(size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+			e.index = size;
+			heap[size++] = e;
+			siftUp(e.index);
+		}
+		if(heap[0] == e)
+			notify();
+	}
+
+	/**
+	 * Take the first peer if it is due, marking it busy: the caller must release() it when done.
+	 * @return The entry, or null if no peer needs attention yet.
+	 */
+	synchronized Entry<T> poll(long now) {
+		if(size == 0 || heap[0].time > now) return null;
+		Entry<T> e = removeAt(0);
+		e.busy = true;
+		if(size > 0 && heap[0].time <= now)
+			notify(); // Another thread can handle the next one.
+		return e;
+	}
+
+	/**
+	 * Wait until a peer is due, take it, and mark it busy.
+	 * @param early Take a peer up to this long before it is due, so that peers due at about
+	 * the same time are handled with one wake up rather than one each.
+	 */
+	synchronized Entry<T> take(long early) throws InterruptedException {
+		while(true) {
+			long now = System.currentTimeMillis() + early;
+			Entry<T> e = poll(now);
+			if(e != null) return e;
+			if(size == 0)
+				wait();
+			else
+				wait(heap[0].time - now);
+		}
+	}
+
+	/**
+	 * A sender thread has finished with the peer. Queue it again for the given time, or earlier
+	 * if it was woken up meanwhile. Long.MAX_VALUE means it doesn't need attention until woken.
+	 */
+	synchronized void release(Entry<T> e, long time) {
+		e.busy = false;
+		time = Math.min(time, e.wakeWhileBusy);
+		e.wakeWhileBusy = Long.MAX_VALUE;
+		if(time != Long.MAX_VALUE)
+			schedule(e, time);
+	}
+
+	/** The peer has gone: forget it, and don't queue it again until reset(). */
+	synchronized void remove(Entry<T> e) {
+		e.removed = true;
+		e.wakeWhileBusy = Long.MAX_VALUE;
+		if(e.index >= 0)
+			removeAt(e.index);
+	}
+
+	/** The peer is back, e.g. it was removed and has been added again. */
+	synchronized void reset(Entry<T> e) {
+		e.removed = false;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/** @return When the first peer is due, or Long.MAX_VALUE if none is queued. */
+	synchronized long nextTime() {
+		return size == 0 ? Long.MAX_VALUE : heap[0].time;
+	}
+
+	private Entry<T> removeAt(int i) {
+		Entry<T> e = heap[i];
+		Entry<T> last = heap[--size];
+		heap[size] = null;
+		e.index = -1;
+		if(last != e) {
+			heap[i] = last;
+			last.index = i;
+			siftDown(i);
+			siftUp(last.index);
+		}
+		return e;
+	}
+
+	private void siftUp(int i) {
+		Entry<T> e = heap[i];
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			Entry<T> p = heap[parent];
+			if(p.time <= e.time) break;
+			heap[i] = p;
+			p.index = i;
+			i = parent;
+		}
+		heap[i] = e;
+		e.index = i;
+	}
+
+	private void siftDown(int i) {
+		Entry<T> e = heap[i];
+		int half = size >>> 1;
+		while(i < half) {
+			int child = 2 * i + 1;
+			Entry<T> c = heap[child];
+			int right = child + 1;
+			if(right < size && heap[right].time < c.time) {
+				child = right;
+				c = heap[child];
+			}
+			if(e.time <= c.time) break;
+			heap[i] = c;
+			c.index = i;
+			i = child;
+		}
+		heap[i] = e;
+		e.index = i;
+	}
+
+}
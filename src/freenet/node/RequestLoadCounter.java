@@ -0,0 +1,233 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.node.RequestTracker.CountedRequests;
+
+/**
+ * Running totals of the requests in one of RequestTracker's maps, and of their expected
+ * transfers, by whether they are local, by the peer they came from, and by the peers they are
+ * being routed to. These are kept up to date as tags are added, removed and change state, so
+ * that NodeStats can decide whether to accept a request without looking at every running
+ * request.
+ *
+ * The expected transfers depend on the parameters of the query, so we keep the parts that
+ * don't depend on them separately: for each setting of ignoreLocalVsRemote, the transfers we
+ * expect regardless of transfersPerInsert, and the number of times transfersPerInsert is added.
+ *
+ * LOCKING: Protected by the lock on the corresponding non-local map in RequestTracker.
+ */
+final class RequestLoadCounter {
+
+	/** Expected transfers, for any ignoreLocalVsRemote and transfersPerInsert. */
+	static final class Load {
+		// Indexed by [ignoreLocalVsRemote ? 1 : 0].
+		private final int[] in = new int[2];
+		private final int[] inPerInsert = new int[2];
+		private final int[] out = new int[2];
+		private final int[] outPerInsert = new int[2];
+
+		/** What the tag's expectedTransfersIn/Out() would return. These are always linear in
+		 * transfersPerInsert, so two calls give us the whole line. */
+		static Load of(UIDTag tag, boolean forAccept) {
+			Load load = new Load();
+			for(int i=0;i<2;i++) {
+				boolean ignoreLocalVsRemote = i == 1;
+				int in0 = tag.expectedTransfersIn(ignoreLocalVsRemote, 0, forAccept);
+				int out0 = tag.expectedTransfersOut(ignoreLocalVsRemote, 0, forAccept);
+				load.in[i] = in0;
+				load.inPerInsert[i] = tag.expectedTransfersIn(ignoreLocalVsRemote, 1, forAccept) - in0;
+				load.out[i] = out0;
+				load.outPerInsert[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 1, forAccept) - out0;
+			}
+			return load;
+		}
+
+		void add(Load load, int sign) {
+			for(int i=0;i<2;i++) {
+				in[i] += sign * load.in[i];
+				inPerInsert[i] += sign * load.inPerInsert[i];
+				out[i] += sign * load.out[i];
+				outPerInsert[i] += sign * load.outPerInsert[i];
+			}
+		}
+
+		int transfersIn(boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			int i = ignoreLocalVsRemote ? 1 : 0;
+			return in[i] + inPerInsert[i] * transfersPerInsert;
+		}
+
+		int transfersOut(boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			int i = ignoreLocalVsRemote ? 1 : 0;
+			return out[i] + outPerInsert[i] * transfersPerInsert;
+		}
+	}
+
+	/** Totals for a group of requests. Requests whose source restarted are included in the
+	 * main totals and also counted separately. */
+	static final class Tally {
+		int count;
+		final Load load = new Load();
+		int countSR;
+		final Load loadSR = new Load();
+
+		void add(Load l, boolean sourceRestarted, int sign) {
+			count += sign;
+			load.add(l, sign);
+			if(sourceRestarted) {
+				countSR += sign;
+				loadSR.add(l, sign);
+			}
+		}
+
+		void addTo(CountedRequests counter, CountedRequests counterSR, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			counter.add(count, load.transfersIn(ignoreLocalVsRemote, transfersPerInsert),
+					load.transfersOut(ignoreLocalVsRemote, transfersPerInsert));
+			if(counterSR != null)
+				counterSR.add(countSR, loadSR.transfersIn(ignoreLocalVsRemote, transfersPerInsert),
+						loadSR.transfersOut(ignoreLocalVsRemote, transfersPerInsert));
+		}
+	}
+
+	/** What a tag was counted as, so we can take it off again. Stored on the tag. */
+	static final class Contribution {
+		final boolean local;
+		/** The source's myRef, or null if local or reassigned to self. */
+		final WeakReference<PeerNode> source;
+		final boolean sourceRestarted;
+		/** For deciding whether to accept a request. */
+		final Load accept;
+		/** The peers we are routing to or fetching an offered key from. */
+		final PeerNode[] routingTo;
+		/** For deciding whether to send a request. */
+		final Load route;
+
+		Contribution(UIDTag tag) {
+			local = tag.wasLocal();
+			source = tag.getSourceRef();
+			sourceRestarted = tag.countAsSourceRestarted();
+			accept = Load.of(tag, true);
+			List<PeerNode> peers = new ArrayList<PeerNode>();
+			tag.getRoutingPeers(peers);
+			routingTo = peers.toArray(new PeerNode[peers.size()]);
+			route = peers.isEmpty() ? null : Load.of(tag, false);
+		}
+	}
+
+	private final Tally local = new Tally();
+	private final Tally remote = new Tally();
+	/** Remote requests by source. Requests reassigned to self are under null. */
+	private final Map<WeakReference<PeerNode>, Tally> bySource = new IdentityHashMap<WeakReference<PeerNode>, Tally>();
+	private final Map<PeerNode, Tally> localByPeer = new HashMap<PeerNode, Tally>();
+	private final Map<PeerNode, Tally> remoteByPeer = new HashMap<PeerNode, Tally>();
+
+	/** Start counting a tag, or update its contribution if it has changed. */
+	void update(UIDTag tag) {
+		remove(tag);
+		Contribution c = new Contribution(tag);
+		add(c, 1);
+		tag.counted = c;
+	}
+
+	/** Stop counting a tag. */
+	void remove(UIDTag tag) {
+		Contribution c = tag.counted;
+		if(c == null) return;
+		add(c, -1);
+		tag.counted = null;
+	}
+
+	private void add(Contribution c, int sign) {
+		if(c.local) {
+			local.add(c.accept, c.sourceRestarted, sign);
+		} else {
+			remote.add(c.accept, c.sourceRestarted, sign);
+			add(bySource, c.source, c.accept, c.sourceRestarted, sign);
+		}
+		Map<PeerNode, Tally> byPeer = c.local ? localByPeer : remoteByPeer;
+		for(PeerNode pn : c.routingTo)
+			add(byPeer, pn, c.route, false, sign);
+	}
+
+	private static <K> void add(Map<K, Tally> map, K key, Load load, boolean sourceRestarted, int sign) {
+		Tally tally = map.get(key);
+		if(tally == null) {
+			tally = new Tally();
+			map.put(key, tally);
+		}
+		tally.add(load, sourceRestarted, sign);
+		if(tally.count == 0) map.remove(key);
+	}
+
+	/** @see RequestTracker#countRequests(boolean, boolean, boolean, boolean, boolean, int, boolean, CountedRequests, CountedRequests) */
+	void count(boolean localOnly, boolean ignoreLocalVsRemote, int transfersPerInsert, CountedRequests counter, CountedRequests counterSR) {
+		if(localOnly) {
+			local.addTo(counter, counterSR, ignoreLocalVsRemote, transfersPerInsert);
+		} else {
+			remote.addTo(counter, counterSR, ignoreLocalVsRemote, transfersPerInsert);
+		}
+	}
+
+	/** Count the requests from a peer.
+	 * @param source The peer, or null for requests which are local or have been reassigned to
+	 * self. */
+	void countFrom(PeerNode source, boolean localOnly, boolean ignoreLocalVsRemote, int transfersPerInsert, CountedRequests counter, CountedRequests counterSR) {
+		Tally tally;
+		if(localOnly) {
+			// Local requests always have a null source.
+			if(source != null) return;
+			tally = local;
+		} else {
+			tally = bySource.get(source == null ? null : source.myRef);
+		}
+		if(tally != null)
+			tally.addTo(counter, counterSR, ignoreLocalVsRemote, transfersPerInsert);
+	}
+
+	/** Count the requests we are routing to a peer, or fetching offered keys from it. */
+	void countTo(PeerNode peer, boolean localOnly, boolean ignoreLocalVsRemote, int transfersPerInsert, CountedRequests counter) {
+		Tally tally = (localOnly ? localByPeer : remoteByPeer).get(peer);
+		if(tally != null)
+			tally.addTo(counter, null, ignoreLocalVsRemote, transfersPerInsert);
+	}
+
+	/** Count the requests from each peer. Local requests, requests which have been reassigned
+	 * to self, and requests whose source has been garbage collected are all counted under null. */
+	void countBySource(boolean localOnly, boolean ignoreLocalVsRemote, int transfersPerInsert, Map<PeerNode, CountedRequests> counterMap) {
+		if(localOnly) {
+			addTo(counterMap, null, local, ignoreLocalVsRemote, transfersPerInsert);
+			return;
+		}
+		for(Map.Entry<WeakReference<PeerNode>, Tally> entry : bySource.entrySet()) {
+			PeerNode source = entry.getKey() == null ? null : entry.getKey().get();
+			addTo(counterMap, source, entry.getValue(), ignoreLocalVsRemote, transfersPerInsert);
+		}
+	}
+
+	private static void addTo(Map<PeerNode, CountedRequests> counterMap, PeerNode source, Tally tally, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+		if(tally.count == 0) return;
+		CountedRequests counter = counterMap.get(source);
+		if(counter == null) {
+			counter = new CountedRequests();
+			counterMap.put(source, counter);
+		}
+		tally.addTo(counter, null, ignoreLocalVsRemote, transfersPerInsert);
+	}
+
+	int localCount() {
+		return local.count;
+	}
+
+	int remoteCount() {
+		return remote.count;
+	}
+
+}
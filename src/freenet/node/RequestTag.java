@@ -1,6 +1,7 @@
 package freenet.node;
 
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
@@ -47,14 +48,18 @@ public class RequestTag extends UIDTag {
 	}
 
 	public void setRequestSenderFinished(int status) {
+		boolean unlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(status == RequestSender.NOT_FINISHED) throw new IllegalArgumentException();
 			requestSenderFinishedCode = status;
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		if(unlock)
+			innerUnlock(noRecordUnlock);
+		else
+			tracker.updateCounts(this);
 	}
 
 	public synchronized void setSender(RequestSender rs, boolean coalesced) {
@@ -177,8 +182,12 @@ public class RequestTag extends UIDTag {
 	
 	private boolean completedDownstreamTransfers;
 
-	public synchronized void completedDownstreamTransfers() {
-		this.completedDownstreamTransfers = true;
+	public void completedDownstreamTransfers() {
+		synchronized(this) {
+			if(completedDownstreamTransfers) return;
+			this.completedDownstreamTransfers = true;
+		}
+		tracker.updateCounts(this);
 	}
 
 	@Override
@@ -196,13 +205,17 @@ public class RequestTag extends UIDTag {
 		return false;
 	}
 
-	public synchronized void waitingForOpennet(PeerNode next) {
-		if(waitingForOpennet != null)
-			Logger.error(this, "Have already waited for opennet: "+waitingForOpennet.get()+" on "+this, new Exception("error"));
-		this.waitingForOpennet = next.myRef;
+	public void waitingForOpennet(PeerNode next) {
+		synchronized(this) {
+			if(waitingForOpennet != null)
+				Logger.error(this, "Have already waited for opennet: "+waitingForOpennet.get()+" on "+this, new Exception("error"));
+			this.waitingForOpennet = next.myRef;
+		}
+		tracker.updateCounts(this);
 	}
 
 	public void finishedWaitingForOpennet(PeerNode next) {
+		boolean unlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(waitingForOpennet == null) {
@@ -214,10 +227,13 @@ public class RequestTag extends UIDTag {
 				Logger.error(this, "Finished waiting for opennet on "+next+" but was waiting for "+got);
 			}
 			waitingForOpennet = null;
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
-		innerUnlock(noRecordUnlock);
+		if(unlock)
+			innerUnlock(noRecordUnlock);
+		else
+			tracker.updateCounts(this);
 	}
 	
 	@Override
@@ -226,6 +242,15 @@ public class RequestTag extends UIDTag {
 			return true;
 		return super.currentlyRoutingTo(peer);
 	}
+	
+	@Override
+	synchronized void getRoutingPeers(Collection<PeerNode> peers) {
+		super.getRoutingPeers(peers);
+		if(waitingForOpennet != null) {
+			PeerNode pn = waitingForOpennet.get();
+			if(pn != null && !peers.contains(pn)) peers.add(pn);
+		}
+	}
 
 	public void handlerTransferBegins() {
 		synchronized(this) {
@@ -48,6 +48,10 @@ public class RequestTracker {
 	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsRT;
 	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsRT;
 	
+	/** Running totals for each of the non-local maps above and its local map. Protected by the
+	 * lock on the non-local map. See getCounter(). */
+	private final RequestLoadCounter[] counters;
+
 	private final PeerManager peers;
 	private final Ticker ticker;
 
@@ -85,6 +89,9 @@ public class RequestTracker {
 		transferringRequestSendersRT = new HashMap<>();
 		transferringRequestSendersBulk = new HashMap<>();
 		transferringRequestHandlers = new HashSet<>();
+		counters = new RequestLoadCounter[12];
+		for(int i=0;i<counters.length;i++)
+			counters[i] = new RequestLoadCounter();
 	}
 
 	public boolean lockUID(UIDTag tag) {
@@ -96,19 +103,19 @@ public class RequestTracker {
 		if(offerReply) {
 			// local irrelevant for OfferReplyTag's.
 			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			return innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
+			return innerLock(map, null, getCounter(ssk, insert, offerReply, realTimeFlag), (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
 		} else if(insert) {
 			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
 			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(overallMap, localMap, getCounter(ssk, insert, offerReply, realTimeFlag), (InsertTag)tag, uid, ssk, insert, offerReply, local);
 		} else {
 			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
 			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(overallMap, localMap, getCounter(ssk, insert, offerReply, realTimeFlag), (RequestTag)tag, uid, ssk, insert, offerReply, local);
 		}
 	}
 
-	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
+	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, RequestLoadCounter counter, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			T oldTag = overallMap.get(uid);
@@ -137,6 +144,7 @@ public class RequestTracker {
 				localMap.put(uid, tag);
 				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
 			}
+			counter.update(tag);
 		}
 		return true;
 	}
@@ -152,15 +160,15 @@ public class RequestTracker {
 
 		if(offerReply) {
 			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerUnlock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
+			innerUnlock(map, null, getCounter(ssk, insert, offerReply, realTimeFlag), (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
 		} else if(insert) {
 			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
 			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			innerUnlock(overallMap, localMap, getCounter(ssk, insert, offerReply, realTimeFlag), (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		} else {
 			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk, false, realTimeFlag);
 			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			innerUnlock(overallMap, localMap, getCounter(ssk, insert, offerReply, realTimeFlag), (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		}
 	}
 
@@ -171,6 +179,7 @@ public class RequestTracker {
 	 * We use the overallMap as lock for both.
 	 * @param localMap The local map if any. We check on overallMap and then
 	 * remove from both.
+	 * @param counter The running totals for this group of requests.
 	 * @param tag The tag to remove.
 	 * @param uid The UID of the tag.
 	 * @param ssk Whether it is an SSK.
@@ -180,7 +189,7 @@ public class RequestTracker {
 	 * it is not we expect the latter to be null.
 	 * @param canFail
 	 */
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
+	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, RequestLoadCounter counter, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			if(overallMap.get(uid) != tag) {
@@ -189,8 +198,10 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				counter.remove(tag);
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -222,9 +233,14 @@ public class RequestTracker {
 		public int expectedTransfersIn() {
 			return expectedTransfersIn;
 		}
+		void add(int count, int transfersIn, int transfersOut) {
+			total += count;
+			expectedTransfersIn += transfersIn;
+			expectedTransfersOut += transfersOut;
+		}
 	}
 
-	/** Count all requests running globally which match particular parameters.
+	/** Count all requests running globally which match particular parameters. Constant time.
 	 * @param local If true, only include requests which originated locally.
 	 * @param ssk If true, count SSK requests, if false, count CHK requests.
 	 * @param insert If true, count inserts, otherwise count requests.
@@ -238,52 +254,16 @@ public class RequestTracker {
 	 * @param counterSourceRestarted Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-				count++;
-				transfersOut += out;
-				transfersIn += in;
-				if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
-					countSR++;
-					transfersOutSR += out;
-					transfersInSR += in;
-				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
-			}
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-			if(counterSourceRestarted != null) {
-				counterSourceRestarted.total += countSR;
-				counterSourceRestarted.expectedTransfersIn += transfersInSR;
-				counterSourceRestarted.expectedTransfersOut += transfersOutSR;
-			}
+		RequestLoadCounter c = getCounter(ssk, insert, offer, realTimeFlag);
+		synchronized(getTracker(false, ssk, insert, offer, realTimeFlag)) {
+			c.count(local, ignoreLocalVsRemote, transfersPerInsert, counter, counterSourceRestarted);
 		}
 	}
 
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
-	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * PERFORMANCE: This is called for every request we might accept, so it uses the running
+	 * totals kept by RequestLoadCounter, and doesn't look at the individual requests.
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -300,76 +280,18 @@ public class RequestTracker {
 	 * @param counterSR Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
+		RequestLoadCounter c = getCounter(ssk, insert, offer, realTimeFlag);
+		synchronized(getTracker(false, ssk, insert, offer, realTimeFlag)) {
 			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				if(source != null && local) return;
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					if(tag.getSource() == source) {
-						int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-						int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-						count++;
-						transfersOut += out;
-						transfersIn += in;
-						if(counterSR != null && tag.countAsSourceRestarted()) {
-							countSR++;
-							transfersOutSR += out;
-							transfersInSR += in;
-						}
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
-				if(counterSR != null) {
-					counterSR.total += countSR;
-					counterSR.expectedTransfersIn += transfersInSR;
-					counterSR.expectedTransfersOut += transfersOutSR;
-				}
+				// If a request is adopted by us as a result of a timeout, it is counted as from null
+				// even though it is not local.
+				c.countFrom(source, local, ignoreLocalVsRemote, transfersPerInsert, counter, counterSR);
 			} else {
 				// hasSourceRestarted is irrelevant for requests *to* a node.
-				// FIXME improve efficiency!
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					// Ordinary requests can be routed to an offered key.
-					// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
-					if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(tag.currentlyRoutingTo(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
+				// Ordinary requests can be routed to an offered key, so these include both.
+				c.countTo(source, local, ignoreLocalVsRemote, transfersPerInsert, counter);
 			}
+			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" "+(requestsToNode?"to":"from")+" "+source+" : "+counter.total());
 		}
 	}
 	
@@ -390,33 +312,10 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					PeerNode source = tag.getSource(); // Can be null in various cases
-					CountedRequests counter = counterMap.get(source);
-					if(counter == null) {
-						counter = new CountedRequests();
-						counterMap.put(source, counter);
-					}
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					counter.total++;
-					counter.expectedTransfersIn += in;
-					counter.expectedTransfersOut += out;
-				}
-			}
+		if(requestsToNode) return;
+		RequestLoadCounter c = getCounter(ssk, insert, offer, realTimeFlag);
+		synchronized(getTracker(false, ssk, insert, offer, realTimeFlag)) {
+			c.countBySource(local, ignoreLocalVsRemote, transfersPerInsert, counterMap);
 		}
 	}
 	
@@ -463,6 +362,25 @@ public class RequestTracker {
 		tag.reassignToSelf();
 	}
 
+	/** Update the running totals after a tag has changed in a way that might affect them, e.g.
+	 * when it is routed to another node, or its source restarts. Does nothing if the tag is not
+	 * locked. Must be called without holding the lock on the tag. */
+	void updateCounts(UIDTag tag) {
+		boolean ssk = tag.isSSK();
+		boolean insert = tag.isInsert();
+		boolean offer = tag.isOfferReply();
+		HashMap<Long, ? extends UIDTag> map = getTracker(false, ssk, insert, offer, tag.realTimeFlag);
+		synchronized(map) {
+			if(map.get(tag.uid) != tag) return;
+			getCounter(ssk, insert, offer, tag.realTimeFlag).update(tag);
+		}
+	}
+
+	private RequestLoadCounter getCounter(boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		int type = offer ? 2 : (insert ? 1 : 0);
+		return counters[type * 4 + (ssk ? 2 : 0) + (realTimeFlag ? 1 : 0)];
+	}
+
 	private HashMap<Long, ? extends UIDTag> getTracker(boolean local, boolean ssk,
 			boolean insert, boolean offer, boolean realTimeFlag) {
 		if(offer)
@@ -31,6 +31,10 @@ public class SessionKey {
 	
 	public final NewPacketFormatKeyContext packetContext;
 
+	/** Reused for every packet, created when first needed. Synchronize on them to use them. */
+	private PacketCipherContext incomingContext;
+	private PacketCipherContext outgoingContext;
+
 	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
 	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
 			byte[] ivNonce, byte[] hmacKey, NewPacketFormatKeyContext context, long trackerID) {
@@ -46,6 +50,18 @@ public class SessionKey {
 		this.trackerID = trackerID;
 	}
 	
+	synchronized PacketCipherContext incomingContext() {
+		if(incomingContext == null)
+			incomingContext = new PacketCipherContext(incommingCipher, ivCipher, ivNonce, hmacKey);
+		return incomingContext;
+	}
+
+	synchronized PacketCipherContext outgoingContext() {
+		if(outgoingContext == null)
+			outgoingContext = new PacketCipherContext(outgoingCipher, ivCipher, ivNonce, hmacKey);
+		return outgoingContext;
+	}
+
 	public void disconnected() {
 		packetContext.disconnected();
 	}
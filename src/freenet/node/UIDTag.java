@@ -3,6 +3,7 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 import java.util.HashSet;
 
 import freenet.support.Logger;
@@ -57,6 +58,10 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** What this tag is currently counted as in the RequestTracker's running totals. Protected
+	 * by the tracker's lock on the relevant map, not by this. */
+	RequestLoadCounter.Contribution counted;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
 		createdTime = System.currentTimeMillis();
 		this.sourceRef = source == null ? null : source.myRef;
@@ -86,18 +91,23 @@ public abstract class UIDTag {
 	 * @return True if we were already routing to (or fetching an offered key 
 	 * from, depending on offeredKey) the peer.
 	 */
-	public synchronized boolean addRoutedTo(PeerNode peer, boolean offeredKey) {
-		if(logMINOR)
-			Logger.minor(this, "Routing to "+peer+" on "+this+(offeredKey ? " (offered)" : ""), new Exception("debug"));
-		if(routedTo == null) routedTo = new HashSet<>();
-		routedTo.add(peer);
-		if(offeredKey) {
-			if(fetchingOfferedKeyFrom == null) fetchingOfferedKeyFrom = new HashSet<>();
-			return fetchingOfferedKeyFrom.add(peer);
-		} else {
-			if(currentlyRoutingTo == null) currentlyRoutingTo = new HashSet<>();
-			return currentlyRoutingTo.add(peer);
+	public boolean addRoutedTo(PeerNode peer, boolean offeredKey) {
+		boolean added;
+		synchronized(this) {
+			if(logMINOR)
+				Logger.minor(this, "Routing to "+peer+" on "+this+(offeredKey ? " (offered)" : ""), new Exception("debug"));
+			if(routedTo == null) routedTo = new HashSet<>();
+			routedTo.add(peer);
+			if(offeredKey) {
+				if(fetchingOfferedKeyFrom == null) fetchingOfferedKeyFrom = new HashSet<>();
+				added = fetchingOfferedKeyFrom.add(peer);
+			} else {
+				if(currentlyRoutingTo == null) currentlyRoutingTo = new HashSet<>();
+				added = currentlyRoutingTo.add(peer);
+			}
 		}
+		if(added) tracker.updateCounts(this);
+		return added;
 	}
 
 	public synchronized boolean hasRoutedTo(PeerNode peer) {
@@ -120,6 +130,17 @@ public abstract class UIDTag {
 		if(fetchingOfferedKeyFrom == null) return false;
 		return fetchingOfferedKeyFrom.contains(peer);
 	}
+	
+	/** Add the nodes we are currently routing to or fetching an offered key from, i.e. the
+	 * nodes for which currentlyRoutingTo() or currentlyFetchingOfferedKeyFrom() is true. */
+	synchronized void getRoutingPeers(Collection<PeerNode> peers) {
+		if(currentlyRoutingTo != null)
+			peers.addAll(currentlyRoutingTo);
+		if(fetchingOfferedKeyFrom != null) {
+			for(PeerNode pn : fetchingOfferedKeyFrom)
+				if(!peers.contains(pn)) peers.add(pn);
+		}
+	}
 
 	/** Notify that we are no longer fetching an offered key from a specific 
 	 * node. Must be called only when we are sure the next node doesn't think
@@ -129,6 +150,7 @@ public abstract class UIDTag {
 	 * @param next The node we are no longer fetching an offered key from.
 	 */
 	public void removeFetchingOfferedKeyFrom(PeerNode next) {
+		boolean unlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(fetchingOfferedKeyFrom == null) return;
@@ -136,9 +158,13 @@ public abstract class UIDTag {
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!unlock) {
+			tracker.updateCounts(this);
+			return;
+		}
 		if(logMINOR) Logger.minor(this, "Unlocking "+this);
 		innerUnlock(noRecordUnlock);
 	}
@@ -161,6 +187,7 @@ public abstract class UIDTag {
 		if(logMINOR) {
 			Logger.minor(this, "No longer routing to "+next+" on "+this, new Exception("debug"));
 		}
+		boolean unlock;
 		boolean noRecordUnlock;
 		synchronized(this) {
 			if(currentlyRoutingTo == null) {
@@ -174,9 +201,13 @@ public abstract class UIDTag {
 			if(handlingTimeouts != null) {
 				handlingTimeouts.remove(next);
 			}
-			if(!mustUnlock()) return;
+			unlock = mustUnlock();
 			noRecordUnlock = this.noRecordUnlock;
 		}
+		if(!unlock) {
+			tracker.updateCounts(this);
+			return;
+		}
 		if(logMINOR) {
 			Logger.minor(this, "Unlocking "+this);
 		}
@@ -220,8 +251,12 @@ public abstract class UIDTag {
 	 */
 	public abstract int expectedTransfersOut(boolean ignoreLocalVsRemote, int outwardTransfersPerInsert, boolean forAccept);
 	
-	public synchronized void setNotRoutedOnwards() {
-		this.notRoutedOnwards = true;
+	public void setNotRoutedOnwards() {
+		synchronized(this) {
+			if(notRoutedOnwards) return;
+			this.notRoutedOnwards = true;
+		}
+		tracker.updateCounts(this);
 	}
 
 	private boolean reassigned;
@@ -235,9 +270,26 @@ public abstract class UIDTag {
 	}
 
 	/** Reassign the tag to us rather than its original sender. */
-	public synchronized void reassignToSelf() {
-		if(wasLocal) return;
+	public void reassignToSelf() {
+		synchronized(this) {
+			if(!setReassigned()) return;
+		}
+		tracker.updateCounts(this);
+	}
+	
+	/** Caller must call tracker.updateCounts() after releasing the lock.
+	 * @return True if the tag was not already reassigned. */
+	private synchronized boolean setReassigned() {
+		if(wasLocal || reassigned) return false;
 		reassigned = true;
+		return true;
+	}
+	
+	/** @return The source's reference to itself, or null if the request is local or has been
+	 * reassigned to self. Used to group requests by source. */
+	synchronized WeakReference<PeerNode> getSourceRef() {
+		if(reassigned || wasLocal) return null;
+		return sourceRef;
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -263,7 +315,8 @@ public abstract class UIDTag {
 	
 	/** Caller must call innerUnlock(noRecordUnlock) immediately if this returns true. 
 	 * Hence derived versions should call mustUnlock() only after they have checked their
-	 * own unlock blockers. */
+	 * own unlock blockers. If it returns false, the caller must call tracker.updateCounts() 
+	 * after releasing the lock, as we may have reassigned the tag to self. */
 	protected synchronized boolean mustUnlock() {
 		if(hasUnlocked) return false;
 		if(!unlockedHandler) return false;
@@ -286,7 +339,7 @@ public abstract class UIDTag {
 					else
 						Logger.error(this, "Unlocked handler but still routing to "+currentlyRoutingTo+" yet not reassigned on "+this, new Exception("debug"));
 				} else
-					reassignToSelf();
+					setReassigned();
 			}
 			return false;
 		}
@@ -307,7 +360,7 @@ public abstract class UIDTag {
 					// Fork succeeds can't happen for fetch-offered-keys.
 					Logger.error(this, "Unlocked handler but still fetching offered keys from "+fetchingOfferedKeyFrom+" yet not reassigned on "+this, new Exception("debug"));
 				else
-					reassignToSelf();
+					setReassigned();
 			}
 			return false;
 		}
@@ -336,6 +389,7 @@ public abstract class UIDTag {
 			innerUnlock(noRecordUnlock);
 		else {
 			Logger.normal(this, "Cannot unlock yet in unlockHandler, still sending requests");
+			tracker.updateCounts(this);
 		}
 	}
 
@@ -400,8 +454,12 @@ public abstract class UIDTag {
 		}
 	}
 
-	public synchronized void setAccepted() {
-		accepted = true;
+	public void setAccepted() {
+		synchronized(this) {
+			if(accepted) return;
+			accepted = true;
+		}
+		tracker.updateCounts(this);
 	}
 	
 	private boolean timedOutButContinued;
@@ -410,13 +468,21 @@ public abstract class UIDTag {
 	 * but can't terminate it yet. We will terminate the request if we have to
 	 * reroute it, and we count it towards the peer's limit, but we don't stop
 	 * messages to the request source. */
-	public synchronized void timedOutToHandlerButContinued() {
-		timedOutButContinued = true;
+	public void timedOutToHandlerButContinued() {
+		synchronized(this) {
+			if(timedOutButContinued) return;
+			timedOutButContinued = true;
+		}
+		tracker.updateCounts(this);
 	}
 	
 	/** The handler disconnected or restarted. */
-	public synchronized void onRestartOrDisconnectSource() {
-		sourceRestarted = true;
+	public void onRestartOrDisconnectSource() {
+		synchronized(this) {
+			if(sourceRestarted) return;
+			sourceRestarted = true;
+		}
+		tracker.updateCounts(this);
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
@@ -36,6 +36,17 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** @return The number of writes queued but not yet written to disk, or -1 if the store
+	 * writes synchronously. */
+	public long writeQueueDepth() {
+		return -1;
+	}
+
+	/** @return The average time taken to write out a batch of queued writes, in milliseconds. */
+	public double averageFlushLatency() {
+		return 0.0;
+	}
+
 
 
 
@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * One of the salted hash store files, mapped into memory in segments, so that reading or
+ * writing a slot is a memory copy rather than a system call. Java cannot map more than 2GB in one
+ * buffer, so big stores need several segments. Segments are a whole number of records long, so a
+ * single slot never spans two of them.
+ *
+ * Only the part of the file that exists when remap() is called is mapped. Reads and writes outside
+ * it return false, and the caller falls back to the FileChannel. The owner must call remap()
+ * after making the file longer.
+ *
+ * Java can't unmap a buffer explicitly: it is only unmapped when it is garbage collected. So a
+ * file must never be made shorter while it may still be mapped, or touching the mapping beyond
+ * the new end would crash the JVM, and on some platforms the file can't be truncated at all. The
+ * owner must call disable() before shrinking the file. After that, the mapping is never used
+ * again, and all I/O goes through the FileChannel. Likewise the file may stay mapped for a while
+ * after unmap().
+ */
+final class MappedStoreFile {
+
+	/** Maximum size of a segment. */
+	static final long MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+	private static final MappedByteBuffer[] EMPTY = new MappedByteBuffer[0];
+
+	private final FileChannel fc;
+	private final long segmentSize;
+	/** Never modified, replaced by remap() while holding the write lock. */
+	private MappedByteBuffer[] segments = EMPTY;
+	private long mappedLength;
+	/** Set by disable(): never map the file again. */
+	private boolean disabled;
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * @param recordLength The length of a single slot in the file. Segments are a multiple of
+	 * this.
+	 */
+	MappedStoreFile(FileChannel fc, int recordLength) {
+		this(fc, recordLength, MAX_SEGMENT_SIZE);
+	}
+
+	MappedStoreFile(FileChannel fc, int recordLength, long maxSegmentSize) {
+		this.fc = fc;
+		this.segmentSize = Math.max(1, maxSegmentSize / recordLength) * recordLength;
+	}
+
+	/**
+	 * Map the first length bytes of the file, reusing existing segments where possible.
+	 * @param length Must not be more than the length of the file. The last segment may be
+	 * shorter than the others.
+	 */
+	void remap(long length) throws IOException {
+		long stamp = lock.writeLock();
+		try {
+			if(disabled) return;
+			int count = (int) ((length + segmentSize - 1) / segmentSize);
+			MappedByteBuffer[] old = segments;
+			MappedByteBuffer[] next = new MappedByteBuffer[count];
+			for(int i=0;i<count;i++) {
+				long start = i * segmentSize;
+				long size = Math.min(segmentSize, length - start);
+				if(i < old.length && old[i].capacity() == size)
+					next[i] = old[i];
+				else
+					next[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+			}
+			segments = next;
+			mappedLength = length;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Stop using the mapping for good, before shrinking the file. The buffers may stay mapped
+	 * until they are garbage collected, but we never touch them again, and never map the file
+	 * again, so nothing can touch a mapping beyond the end of the file.
+	 */
+	void disable() {
+		long stamp = lock.writeLock();
+		try {
+			disabled = true;
+			segments = EMPTY;
+			mappedLength = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/** @return True if disable() has been called. */
+	boolean isDisabled() {
+		long stamp = lock.readLock();
+		try {
+			return disabled;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/** Stop using the mapping, e.g. before closing the file. */
+	void unmap() {
+		long stamp = lock.writeLock();
+		try {
+			segments = EMPTY;
+			mappedLength = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/** @return The number of bytes currently mapped. */
+	long mappedLength() {
+		long stamp = lock.readLock();
+		try {
+			return mappedLength;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Fill the buffer from the file starting at position.
+	 * @return False if any of the range is not mapped, in which case nothing has been read.
+	 */
+	boolean read(ByteBuffer buf, long position) {
+		long stamp = lock.readLock();
+		try {
+			if(position < 0 || position + buf.remaining() > mappedLength) return false;
+			while(buf.hasRemaining()) {
+				ByteBuffer segment = segment(position, buf.remaining());
+				position += segment.remaining();
+				buf.put(segment);
+			}
+			return true;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Write the buffer to the file starting at position.
+	 * @return False if any of the range is not mapped, in which case nothing has been written.
+	 */
+	boolean write(ByteBuffer buf, long position) {
+		long stamp = lock.readLock();
+		try {
+			if(position < 0 || position + buf.remaining() > mappedLength) return false;
+			while(buf.hasRemaining()) {
+				ByteBuffer segment = segment(position, buf.remaining());
+				position += segment.remaining();
+				int limit = buf.limit();
+				buf.limit(buf.position() + segment.remaining());
+				segment.put(buf);
+				buf.limit(limit);
+			}
+			return true;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/** @return A view of the mapping from position, at most length bytes, within one segment.
+	 * Caller must hold the lock. */
+	private ByteBuffer segment(long position, int length) {
+		int index = (int) (position / segmentSize);
+		int offset = (int) (position - index * segmentSize);
+		ByteBuffer segment = segments[index].duplicate();
+		segment.position(offset);
+		segment.limit((int) Math.min(segment.capacity(), (long) offset + length));
+		return segment;
+	}
+
+	/** Write any changes to disk. */
+	void force() {
+		long stamp = lock.readLock();
+		try {
+			for(MappedByteBuffer segment : segments)
+				segment.force();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+}
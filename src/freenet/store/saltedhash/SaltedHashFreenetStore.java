@@ -151,12 +151,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate, resizeOnStart, exec, masterKey, false);
+	}
+
+	/**
+	 * @param useMmap If true, map the store files into memory and read and write slots directly
+	 * from the mapping, and use a striped lock table rather than a lock per slot. This avoids a
+	 * system call for every probe, but needs enough address space for the whole store, so is only
+	 * suitable for 64-bit JVMs.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean useMmap) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, useMmap);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean useMmap) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -176,8 +189,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.useMmap = useMmap;
 
-		lockManager = new LockManager();
+		if(useMmap)
+			stripedLockManager = new StripedLockManager();
+		else
+			lockManager = new LockManager();
 
 		// Create a directory it not exist
 		this.baseDir.mkdirs();
@@ -328,7 +345,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
+			SlotLocks lockMap = lockDigestedKey(digestedKey, true);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -438,7 +455,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
+			SlotLocks lockMap = lockDigestedKey(digestedKey, false);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -576,6 +593,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	/** If true, metaMap and hdMap are used for I/O where possible */
+	private final boolean useMmap;
+	private MappedStoreFile metaMap;
+	private MappedStoreFile hdMap;
+	/** If not null, writeEntry() queues slots here rather than writing them. Only changed while
+	 * holding the config write lock. */
+	private volatile StoreWriteQueue writeQueue;
 
 	/**
 	 * Data entry
@@ -855,6 +879,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new Error("Could not aquire lock for file " + baseDir.toPath().resolve(name + ".hd"), ex);
 		}
 
+		if(useMmap) {
+			metaMap = new MappedStoreFile(metaFC, Entry.METADATA_LENGTH);
+			hdMap = new MappedStoreFile(hdFC, headerBlockLength + dataBlockLength + hdPadding);
+			remapStoreFiles();
+		}
+
 		return newStore;
 	}
 
@@ -883,13 +913,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
+		StoreWriteQueue.PendingWrite queued = writeQueue == null ? null : writeQueue.get(offset);
+		if(queued != null) {
+			// Not written yet.
+			mbf.put(queued.metadata());
+		} else if(metaMap == null || !metaMap.read(mbf, Entry.METADATA_LENGTH * offset)) {
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+		}
 		mbf.flip();
 
 		Entry entry = new Entry(mbf, null);
@@ -951,14 +987,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
+		StoreWriteQueue queue = writeQueue;
+		if(queue != null) {
+			StoreWriteQueue.PendingWrite queued = queue.get(offset);
+			if(queued != null) {
+				ByteBuffer hd = queued.hd();
+				if(hd != null) return hd;
+			}
+		}
+
 		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-		do {
-			int status = hdFC.read(buf, pos + buf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (buf.hasRemaining());
+		if(hdMap == null || !hdMap.read(buf, pos)) {
+			do {
+				int status = hdFC.read(buf, pos + buf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (buf.hasRemaining());
+		}
 		buf.flip();
 
 		return buf;
@@ -1016,28 +1063,101 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		cipherManager.encrypt(entry, random);
 
-		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		ByteBuffer metadata = entry.toMetaDataBuffer();
+		ByteBuffer hd = entry.toHDBuffer();
+		StoreWriteQueue queue = writeQueue;
+		if(queue == null || !queue.enqueue(offset, metadata, hd))
+			writeSlot(offset, metadata, hd);
 
-		bf = entry.toHDBuffer();
-		if (bf != null) {
-			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+		entry.curOffset = offset;
+	}
+
+	/** Write the encrypted metadata and, if not null, the header and data for a slot. */
+	private void writeSlot(long offset, ByteBuffer metadata, ByteBuffer hd) throws IOException {
+		if(metaMap == null || !metaMap.write(metadata, Entry.METADATA_LENGTH * offset)) {
 			do {
-				int status = hdFC.write(bf, pos + bf.position());
+				int status = metaFC.write(metadata, Entry.METADATA_LENGTH * offset + metadata.position());
 				if (status == -1)
 					throw new EOFException();
-			} while (bf.hasRemaining());
+			} while (metadata.hasRemaining());
 		}
 
-		entry.curOffset = offset;
+		if (hd != null) {
+			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+			if(hdMap == null || !hdMap.write(hd, pos)) {
+				do {
+					int status = hdFC.write(hd, pos + hd.position());
+					if (status == -1)
+						throw new EOFException();
+				} while (hd.hasRemaining());
+			}
+		}
+	}
+
+	/** Writes slots queued by writeEntry(). */
+	private class SlotWriter implements StoreWriteQueue.Target {
+
+		@Override
+		public void writeSlot(long offset, ByteBuffer metadata, ByteBuffer hd) throws IOException {
+			SaltedHashFreenetStore.this.writeSlot(offset, metadata, hd);
+		}
+
+		@Override
+		public void force() throws IOException {
+			if(useMmap) {
+				metaMap.force();
+				hdMap.force();
+			}
+			metaFC.force(false);
+			hdFC.force(false);
+		}
+
+	}
+
+	/**
+	 * Queue writes and write them from separate threads, rather than writing each slot as it is
+	 * stored. Reads still see queued slots immediately. May be changed at any time, in which case
+	 * anything already queued is written first.
+	 * @param groupSync If true, sync the store files after each batch of writes.
+	 */
+	public void setWriteBehind(boolean enabled, boolean groupSync) {
+		configLock.writeLock().lock();
+		try {
+			if(shutdown) return;
+			StoreWriteQueue old = writeQueue;
+			if(old != null) {
+				writeQueue = null;
+				old.close();
+			}
+			if(enabled) {
+				StoreWriteQueue queue = new StoreWriteQueue(name, new SlotWriter(),
+				        StoreWriteQueue.DEFAULT_WRITERS, groupSync);
+				queue.start();
+				writeQueue = queue;
+			}
+		} finally {
+			configLock.writeLock().unlock();
+		}
 	}
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		StoreWriteQueue queue = writeQueue;
+		if(queue != null) {
+			// Write everything that is queued before closing the files.
+			writeQueue = null;
+			queue.close();
+		}
+		if(useMmap) {
+			try {
+				metaMap.force();
+				metaMap.unmap();
+				hdMap.force();
+				hdMap.unmap();
+			} catch (Exception e) {
+				Logger.error(this, "error flusing store", e);
+			}
+		}
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1072,6 +1192,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @param storeMaxEntries
 	 */
 	private void setStoreFileSize(long storeMaxEntries) {
+		StoreWriteQueue queue = writeQueue;
+		if(queue != null)
+			queue.flush(); // Don't write beyond the end of the file after shrinking it.
 		try {
 			long oldMetaLen = metaRAF.length();
 			long currentHdLen = hdRAF.length();
@@ -1094,13 +1217,34 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
+			if(useMmap) {
+				// We can't unmap, so stop using the mapping rather than shrink a mapped file.
+				if(newMetaLen < oldMetaLen && !metaMap.isDisabled()) {
+					Logger.normal(this, "Store file shrinking, no longer mapping "+metaFile);
+					metaMap.disable();
+				}
+				if(newHdLen < currentHdLen && !hdMap.isDisabled()) {
+					Logger.normal(this, "Store file shrinking, no longer mapping "+hdFile);
+					hdMap.disable();
+				}
+			}
 			metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
+			if(useMmap)
+				remapStoreFiles();
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
 	}
 
+	/** Map the whole of both store files, as far as they currently extend. */
+	private void remapStoreFiles() throws IOException {
+		int hdLength = headerBlockLength + dataBlockLength + hdPadding;
+		// Whole slots only.
+		metaMap.remap(metaRAF.length() / Entry.METADATA_LENGTH * Entry.METADATA_LENGTH);
+		hdMap.remap(hdRAF.length() / hdLength * hdLength);
+	}
+
 	// ------------- Configuration
 	/**
 	 * Configuration File
@@ -1655,15 +1799,29 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			Condition[] locked = null;
+			int[] stripes = null;
 			try {
 				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
+				if (stripedLockManager != null) {
+					int[] wanted = stripedLockManager.stripesFor(offset, length);
+					if (!stripedLockManager.lock(wanted))
 						return false;
+					stripes = wanted;
+				} else {
+					locked = new Condition[length];
+					for (int i = 0; i < length; i++) {
+						locked[i] = lockManager.lockEntry(offset + i);
+						if (locked[i] == null)
+							return false;
+					}
 				}
 
+				// We read the metadata directly, and may write it back.
+				StoreWriteQueue queue = writeQueue;
+				if (queue != null)
+					queue.waitFor(offset, length);
+
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
 				long bufLen = Entry.METADATA_LENGTH * entriesToRead;
@@ -1671,10 +1829,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
 				boolean dirty = false;
 				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
+					if (metaMap == null || !metaMap.read(buf, startFileOffset)) {
+						while (buf.hasRemaining()) {
+							int status = metaFC.read(buf, startFileOffset + buf.position());
+							if (status == -1)
+								break;
+						}
 					}
 				} catch (IOException ioe) {
 					if (shutdown)
@@ -1740,8 +1900,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						buf.flip();
 
 						try {
-							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+							if (metaMap == null || !metaMap.write(buf, startFileOffset)) {
+								while (buf.hasRemaining()) {
+									metaFC.write(buf, startFileOffset + buf.position());
+								}
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -1752,9 +1914,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return true;
 			} finally {
 				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				if (stripes != null)
+					stripedLockManager.unlock(stripes);
+				if (locked != null)
+					for (int i = 0; i < length; i++)
+						if (locked[i] != null)
+							lockManager.unlockEntry(offset + i, locked[i]);
 			}
 		}
 
@@ -1765,7 +1930,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			SlotLocks lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
 			if (lockMap == null)
 				return false;
 			try {
@@ -1952,18 +2117,48 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	// ------------- Locking
 	volatile boolean shutdown = false;
+	/** Lock per slot. Null if using stripedLockManager. */
 	private LockManager lockManager;
+	/** Used instead of lockManager in the mmap mode. */
+	private StripedLockManager stripedLockManager;
 	private ReadWriteLock configLock = new ReentrantReadWriteLock();
 	private Condition resizeCompleteCondition = configLock.writeLock().newCondition();
 
+	/** The locks held on all the possible offsets of a key. */
+	private static final class SlotLocks {
+		/** Conditions from the LockManager by offset, or null. */
+		final Map<Long, Condition> conditions;
+		/** Stripes from the StripedLockManager, or null. */
+		final int[] stripes;
+
+		SlotLocks(Map<Long, Condition> conditions, int[] stripes) {
+			this.conditions = conditions;
+			this.stripes = stripes;
+		}
+	}
+
 	/**
 	 * Lock all possible offsets of a key. This method would release the locks if any locking
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return The locks, or <code>null</code> if they could not all be locked.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+	private SlotLocks lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		if (stripedLockManager != null) {
+			long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
+			if (usePrevStoreSize && prevStoreSize != 0) {
+				long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+				long[] all = Arrays.copyOf(offsetArray, offsetArray.length + prevOffsets.length);
+				System.arraycopy(prevOffsets, 0, all, offsetArray.length, prevOffsets.length);
+				offsetArray = all;
+			}
+			int[] stripes = stripedLockManager.stripesFor(offsetArray, offsetArray.length);
+			if (!stripedLockManager.lock(stripes))
+				return null;
+			return new SlotLocks(null, stripes);
+		}
+
 		// use a set to prevent duplicated offsets,
 		// a sorted set to prevent deadlocks
 		SortedSet<Long> offsets = new TreeSet<Long>();
@@ -1985,7 +2180,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		if (locked.size() == offsets.size()) {
-			return locked;
+			return new SlotLocks(locked, null);
 		} else {
 			// failed, remove the locks
 			for (Map.Entry<Long, Condition> e : locked.entrySet())
@@ -1994,7 +2189,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
+	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, SlotLocks lockMap) {
+		if (lockMap.stripes != null) {
+			stripedLockManager.unlock(lockMap.stripes);
+			return;
+		}
+
 		// use a set to prevent duplicated offsets
 		SortedSet<Long> offsets = new TreeSet<Long>();
 		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
@@ -2007,8 +2207,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
+			lockManager.unlockEntry(offset, lockMap.conditions.get(offset));
+			lockMap.conditions.remove(offset);
 		}
 	}
 
@@ -2040,7 +2240,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public void close(boolean abort) {
 		if (closeCalled.compareAndSet(false, true)) {
 			shutdown = true;
-			lockManager.shutdown();
+			if (stripedLockManager != null)
+				stripedLockManager.shutdown();
+			else
+				lockManager.shutdown();
 
 			cleanerLock.lock();
 			try {
@@ -2229,6 +2432,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public long writeQueueDepth() {
+				return SaltedHashFreenetStore.this.writeQueueDepth();
+			}
+
+			@Override
+			public double averageFlushLatency() {
+				return SaltedHashFreenetStore.this.averageFlushLatency();
+			}
 			
 		};
 	}
@@ -2256,10 +2469,38 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get();
 			}
+
+			@Override
+			public long writeQueueDepth() {
+				return SaltedHashFreenetStore.this.writeQueueDepth();
+			}
+
+			@Override
+			public double averageFlushLatency() {
+				return SaltedHashFreenetStore.this.averageFlushLatency();
+			}
 			
 		};
 	}
 
+	/** @return The number of slots waiting to be written, or -1 if writes are not queued. */
+	public long writeQueueDepth() {
+		StoreWriteQueue queue = writeQueue;
+		return queue == null ? -1 : queue.queueDepth();
+	}
+
+	/** @return The average time taken to write a batch of queued slots, in milliseconds. */
+	public double averageFlushLatency() {
+		StoreWriteQueue queue = writeQueue;
+		return queue == null ? 0.0 : queue.averageFlushLatency();
+	}
+
+	/** Testing only! Wait for all queued writes. */
+	void testingFlushWrites() {
+		StoreWriteQueue queue = writeQueue;
+		if(queue != null) queue.flush();
+	}
+
 	/** Testing only! Force all entries that say empty/unknown on the slot
 	 * filter to empty/certain. */
 	public void forceValidEmpty() {
@@ -0,0 +1,324 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Write-behind queue for the salted hash store. put() encrypts the slot and hands it to the
+ * queue instead of writing it, and a small number of writer threads write it out later. This
+ * takes the disk seeks out of the request path, and lets us write many slots in file order in
+ * one go, which matters a lot on spinning disks.
+ *
+ * The slots are divided into regions, and each region always belongs to the same writer thread.
+ * So two writes to the same slot are always written in the order they were queued. A writer takes
+ * everything queued for it, sorts it by offset, writes it, and, if group sync is enabled, syncs
+ * the files once for the whole batch.
+ *
+ * A slot stays in the pending map until it has been written, so reads can and must check here
+ * before reading the file. The caller must hold the slot lock when queueing or looking up a slot,
+ * just as for a direct write. The writers don't need the slot locks, since they only write what
+ * is already visible through the pending map.
+ */
+final class StoreWriteQueue {
+
+	/** Default number of writer threads per store. */
+	static final int DEFAULT_WRITERS = 2;
+	/** Number of consecutive slots in a region. */
+	static final int REGION_SLOTS = 4096;
+	/** Maximum number of slots waiting to be written. Callers block when the queue is full. A
+	 * CHK slot is a little over 32KB, so this is roughly 8MB per store. */
+	static final int MAX_QUEUED = 256;
+
+	/** Where the queued slots are written. */
+	interface Target {
+		/** Write one slot. The buffers are ours to consume.
+		 * @param hd May be null if only the metadata changed. */
+		void writeSlot(long offset, ByteBuffer metadata, ByteBuffer hd) throws IOException;
+		/** Make everything written so far durable. */
+		void force() throws IOException;
+	}
+
+	/** A slot which has been queued but not yet written. */
+	static final class PendingWrite {
+		final long offset;
+		/** Never modified. Always use duplicate(). */
+		private final ByteBuffer metadata;
+		/** Never modified. Always use duplicate(). May be null. */
+		private final ByteBuffer hd;
+
+		private PendingWrite(long offset, ByteBuffer metadata, ByteBuffer hd) {
+			this.offset = offset;
+			this.metadata = metadata;
+			this.hd = hd;
+		}
+
+		ByteBuffer metadata() {
+			return metadata.duplicate();
+		}
+
+		/** @return The header and data, or null if they haven't changed. */
+		ByteBuffer hd() {
+			return hd == null ? null : hd.duplicate();
+		}
+	}
+
+	private final String name;
+	private final Target target;
+	private final boolean groupSync;
+	/** The latest queued write for each slot. */
+	private final ConcurrentHashMap<Long, PendingWrite> pending = new ConcurrentHashMap<Long, PendingWrite>();
+	private final Writer[] writers;
+	private volatile boolean closed;
+
+	// Statistics. Protected by this.
+	private long batches;
+	private long slotsWritten;
+	private long totalFlushNanos;
+	private long maxFlushNanos;
+
+	/**
+	 * @param groupSync If true, sync the store files after each batch. Otherwise we leave it to
+	 * the operating system, as the direct write path does.
+	 */
+	StoreWriteQueue(String name, Target target, int writerCount, boolean groupSync) {
+		if(writerCount < 1) throw new IllegalArgumentException();
+		this.name = name;
+		this.target = target;
+		this.groupSync = groupSync;
+		writers = new Writer[writerCount];
+		for(int i=0;i<writerCount;i++)
+			writers[i] = new Writer();
+	}
+
+	void start() {
+		for(int i=0;i<writers.length;i++)
+			writers[i].start("Datastore writer " + i + " for " + name);
+	}
+
+	/**
+	 * Queue a slot to be written. Blocks if the queue is full. Caller must hold the slot lock.
+	 * @param hd The header and data, or null if only the metadata has changed.
+	 * @return False if the queue has been closed, in which case the caller must write the slot
+	 * itself.
+	 */
+	boolean enqueue(long offset, ByteBuffer metadata, ByteBuffer hd) {
+		if(closed) return false;
+		Long key = offset;
+		PendingWrite old = pending.get(key);
+		if(old == null) {
+			// Replacing a pending write doesn't make the queue any bigger.
+			synchronized(this) {
+				while(pending.size() >= MAX_QUEUED && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+			if(closed) return false;
+		} else if(hd == null) {
+			// Don't lose the queued data.
+			hd = old.hd;
+		}
+		PendingWrite write = new PendingWrite(offset, metadata, hd);
+		pending.put(key, write);
+		writers[(int) ((offset / REGION_SLOTS) % writers.length)].add(write);
+		return true;
+	}
+
+	/** @return The queued write for the slot, or null. Caller must hold the slot lock. */
+	PendingWrite get(long offset) {
+		return pending.get(offset);
+	}
+
+	/** Wait until nothing is queued for the given range of slots. Caller must hold the locks for
+	 * all of them, so nothing new can be queued meanwhile. */
+	void waitFor(long offset, int length) {
+		synchronized(this) {
+			while(anyPending(offset, length)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private boolean anyPending(long offset, int length) {
+		if(pending.isEmpty()) return false;
+		for(int i=0;i<length;i++)
+			if(pending.containsKey(offset + i)) return true;
+		return false;
+	}
+
+	/** Wait until everything queued before this call has been written. Does not wait for slots
+	 * queued afterwards. */
+	void flush() {
+		List<PendingWrite> waitingFor = new ArrayList<PendingWrite>(pending.values());
+		synchronized(this) {
+			for(PendingWrite write : waitingFor) {
+				while(pending.get(write.offset) == write) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+	}
+
+	/** Write everything that is queued, and stop the writer threads. Any later enqueue() returns
+	 * false. */
+	void close() {
+		closed = true;
+		synchronized(this) {
+			notifyAll();
+		}
+		for(Writer writer : writers)
+			writer.close();
+	}
+
+	/** Write a batch, sorted by offset, then remove it from the pending map. */
+	private void write(TreeMap<Long, PendingWrite> batch) {
+		long start = System.nanoTime();
+		try {
+			for(PendingWrite write : batch.values()) {
+				try {
+					target.writeSlot(write.offset, write.metadata(), write.hd());
+				} catch (IOException e) {
+					Logger.error(this, "Unable to write slot " + write.offset + " for " + name + ": " + e, e);
+				}
+			}
+			if(groupSync) {
+				try {
+					target.force();
+				} catch (IOException e) {
+					Logger.error(this, "Unable to sync " + name + ": " + e, e);
+				}
+			}
+		} finally {
+			long time = System.nanoTime() - start;
+			// Only remove it once it's on disk, and only if it hasn't been replaced meanwhile.
+			// Even if the write failed, or we would wait for it forever.
+			for(PendingWrite write : batch.values())
+				pending.remove(write.offset, write);
+			synchronized(this) {
+				batches++;
+				slotsWritten += batch.size();
+				totalFlushNanos += time;
+				if(time > maxFlushNanos) maxFlushNanos = time;
+				notifyAll();
+			}
+		}
+	}
+
+	/** @return The number of slots waiting to be written. */
+	int queueDepth() {
+		return pending.size();
+	}
+
+	synchronized long batches() {
+		return batches;
+	}
+
+	synchronized long slotsWritten() {
+		return slotsWritten;
+	}
+
+	/** @return The average time taken to write and sync a batch, in milliseconds. */
+	synchronized double averageFlushLatency() {
+		if(batches == 0) return 0.0;
+		return totalFlushNanos / (batches * 1000.0 * 1000.0);
+	}
+
+	/** @return The longest time taken to write and sync a batch, in milliseconds. */
+	synchronized double maxFlushLatency() {
+		return maxFlushNanos / (1000.0 * 1000.0);
+	}
+
+	/** One writer thread, and the slots queued for the regions it owns. */
+	private final class Writer implements Runnable {
+
+		/** Protected by this. */
+		private TreeMap<Long, PendingWrite> queued = new TreeMap<Long, PendingWrite>();
+		private boolean stopping;
+		private Thread thread;
+
+		void start(String threadName) {
+			thread = new NativeThread(this, threadName, NativeThread.HIGH_PRIORITY, true);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		synchronized void add(PendingWrite write) {
+			// A newer write to the same slot replaces the older one.
+			queued.put(write.offset, write);
+			notifyAll();
+		}
+
+		void close() {
+			synchronized(this) {
+				stopping = true;
+				notifyAll();
+			}
+			if(thread == null) {
+				// Never started.
+				drain();
+				return;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Logger.error(this, "Interrupted waiting for writer for " + name);
+			}
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				TreeMap<Long, PendingWrite> batch;
+				synchronized(this) {
+					while(queued.isEmpty() && !stopping) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					if(queued.isEmpty()) return;
+					batch = queued;
+					queued = new TreeMap<Long, PendingWrite>();
+				}
+				try {
+					write(batch);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " writing to " + name, t);
+				}
+			}
+		}
+
+		private void drain() {
+			TreeMap<Long, PendingWrite> batch;
+			synchronized(this) {
+				batch = queued;
+				queued = new TreeMap<Long, PendingWrite>();
+			}
+			if(!batch.isEmpty()) write(batch);
+		}
+
+	}
+
+}
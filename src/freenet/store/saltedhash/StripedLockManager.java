@@ -0,0 +1,108 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.support.Logger;
+
+/**
+ * Striped lock table, used instead of {@link LockManager} in the memory mapped store mode.
+ *
+ * Each slot offset maps to one of a fixed number of locks. Unlike LockManager there is no shared
+ * map to update and no global lock, so threads working on unrelated slots never contend, and
+ * nothing is allocated per lock. The price is that unrelated slots occasionally share a lock.
+ *
+ * A thread locks all the stripes it needs in one go, in ascending order, so two threads can't
+ * deadlock however their slots overlap. The locks are reentrant, so two slots in the same stripe
+ * are fine.
+ */
+final class StripedLockManager {
+
+	/** Number of stripes. Must be a power of 2. */
+	static final int DEFAULT_STRIPES = 1024;
+
+	private final ReentrantLock[] locks;
+	private final int mask;
+	private volatile boolean shutdown;
+
+	StripedLockManager() {
+		this(DEFAULT_STRIPES);
+	}
+
+	StripedLockManager(int stripes) {
+		if(Integer.bitCount(stripes) != 1) throw new IllegalArgumentException();
+		locks = new ReentrantLock[stripes];
+		for(int i=0;i<stripes;i++)
+			locks[i] = new ReentrantLock();
+		mask = stripes - 1;
+	}
+
+	/** @return The stripes covering the offsets, sorted and without duplicates. */
+	int[] stripesFor(long[] offsets, int count) {
+		int[] stripes = new int[count];
+		for(int i=0;i<count;i++)
+			stripes[i] = (int) (offsets[i] & mask);
+		Arrays.sort(stripes);
+		int x = 0;
+		for(int i=0;i<count;i++)
+			if(x == 0 || stripes[x-1] != stripes[i]) stripes[x++] = stripes[i];
+		return x == count ? stripes : Arrays.copyOf(stripes, x);
+	}
+
+	/** @return The stripes covering length consecutive offsets from offset, sorted. */
+	int[] stripesFor(long offset, int length) {
+		int count = Math.min(length, locks.length);
+		int[] stripes = new int[count];
+		for(int i=0;i<count;i++)
+			stripes[i] = (int) ((offset + i) & mask);
+		Arrays.sort(stripes);
+		return stripes;
+	}
+
+	/**
+	 * Lock the stripes, which must be sorted, as returned by stripesFor().
+	 * @return False if we are shutting down, in which case nothing is locked.
+	 */
+	boolean lock(int[] stripes) {
+		for(int i=0;i<stripes.length;i++) {
+			boolean locked = false;
+			try {
+				while(!shutdown && !locked)
+					locked = locks[stripes[i]].tryLock(10, TimeUnit.SECONDS); // 10s for checking shutdown
+			} catch (InterruptedException e) {
+				Logger.error(this, "lock interrupted", e);
+			}
+			if(!locked || shutdown) {
+				if(locked) locks[stripes[i]].unlock();
+				unlock(stripes, i);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void unlock(int[] stripes) {
+		unlock(stripes, stripes.length);
+	}
+
+	private void unlock(int[] stripes, int count) {
+		for(int i=count-1;i>=0;i--)
+			locks[stripes[i]].unlock();
+	}
+
+	/**
+	 * Shutdown and wait for all stripes to be unlocked
+	 */
+	void shutdown() {
+		shutdown = true;
+		for(ReentrantLock lock : locks) {
+			lock.lock();
+			lock.unlock();
+		}
+	}
+
+}
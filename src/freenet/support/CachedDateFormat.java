@@ -0,0 +1,115 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formats log timestamps without calling a {@link DateFormat} for every line. Everything but the
+ * milliseconds only changes once a second, so we format the text before and after the milliseconds
+ * once a second, and add the milliseconds ourselves. If the format has more than one milliseconds
+ * field, or isn't a {@link SimpleDateFormat}, we format once per millisecond instead.
+ *
+ * LOCKING: Thread-safe. The formatted text is kept in an immutable object, so appending doesn't
+ * take a lock unless the second has changed.
+ */
+final class CachedDateFormat {
+
+	/** The formatted text for one second (or millisecond). */
+	private static final class Cached {
+		final long time;
+		final String prefix;
+		final String suffix;
+		Cached(long time, String prefix, String suffix) {
+			this.time = time;
+			this.prefix = prefix;
+			this.suffix = suffix;
+		}
+	}
+
+	/** Formats everything up to the milliseconds, or everything if splitMillis is false. */
+	private final DateFormat prefixFormat;
+	/** Formats everything after the milliseconds. Null if splitMillis is false. */
+	private final DateFormat suffixFormat;
+	/** If true, the milliseconds are added by us and we cache per second. */
+	private final boolean splitMillis;
+	/** Minimum number of digits of the milliseconds, i.e. the number of S's in the pattern. */
+	private final int millisDigits;
+	private final Date date = new Date();
+	private volatile Cached cached = new Cached(Long.MIN_VALUE, null, null);
+
+	CachedDateFormat(DateFormat df) {
+		String pattern = df instanceof SimpleDateFormat ? ((SimpleDateFormat)df).toPattern() : null;
+		int start = -1;
+		int end = -1;
+		boolean ok = pattern != null;
+		if(ok) {
+			boolean quoted = false;
+			for(int i=0;i<pattern.length();i++) {
+				char c = pattern.charAt(i);
+				if(c == '\'') {
+					quoted = !quoted;
+				} else if(!quoted && c == 'S') {
+					if(end == i) {
+						end++;
+					} else if(start == -1) {
+						start = i;
+						end = i + 1;
+					} else {
+						// More than one milliseconds field.
+						ok = false;
+						break;
+					}
+				}
+			}
+		}
+		if(ok && start != -1) {
+			prefixFormat = derive(df, pattern.substring(0, start));
+			suffixFormat = derive(df, pattern.substring(end));
+			millisDigits = end - start;
+		} else {
+			prefixFormat = df;
+			suffixFormat = null;
+			millisDigits = 0;
+		}
+		// No milliseconds at all means we can cache per second too.
+		splitMillis = ok;
+	}
+
+	private static DateFormat derive(DateFormat df, String pattern) {
+		SimpleDateFormat f = (SimpleDateFormat) df.clone();
+		f.applyPattern(pattern);
+		return f;
+	}
+
+	/** Append the formatted time to sb. */
+	void append(StringBuilder sb, long now) {
+		long key = splitMillis ? Math.floorDiv(now, 1000L) : now;
+		Cached c = cached;
+		if(c.time != key) c = update(key, now);
+		sb.append(c.prefix);
+		if(suffixFormat != null) {
+			int millis = (int) Math.floorMod(now, 1000L);
+			int digits = millis >= 100 ? 3 : millis >= 10 ? 2 : 1;
+			for(int i=digits;i<millisDigits;i++)
+				sb.append('0');
+			sb.append(millis);
+			sb.append(c.suffix);
+		}
+	}
+
+	private synchronized Cached update(long key, long now) {
+		Cached c = cached;
+		if(c.time == key) return c;
+		date.setTime(splitMillis ? key * 1000L : now);
+		String prefix = prefixFormat.format(date);
+		String suffix = suffixFormat == null ? null : suffixFormat.format(date);
+		c = new Cached(key, prefix, suffix);
+		cached = c;
+		return c;
+	}
+
+}
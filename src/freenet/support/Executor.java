@@ -25,4 +25,20 @@ public interface Executor extends java.util.concurrent.Executor {
 
 	/** Fast method returning how many threads are waiting */
 	public int getWaitingThreadsCount();
+
+	/** @return The number of jobs waiting for a thread to run them. */
+	public default int getQueuedJobsCount() {
+		return 0;
+	}
+
+	/** @return The average time between a job being submitted and it starting to run, in
+	 * milliseconds, or -1 if we don't know. */
+	public default double getAverageJobLatency() {
+		return -1;
+	}
+
+	/** @return The number of threads started per minute, or -1 if we don't know. */
+	public default double getThreadCreationRate() {
+		return -1;
+	}
 }
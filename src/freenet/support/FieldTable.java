@@ -0,0 +1,422 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import freenet.support.io.LineReadingInputStream;
+
+/**
+ * The fields of a {@link SimpleFieldSet}, parsed straight from the bytes of the message, e.g. an
+ * FCP message or a node reference. The keys are not split on "." and there is no tree; a key is
+ * just the byte range it came from, and a value is only decoded into a String when it is asked
+ * for. Looking up a key doesn't allocate anything. Common keys (most FCP field names, and the
+ * usual end markers) are mapped to constant Strings without being decoded.
+ *
+ * A SimpleFieldSet can be a view of a FieldTable, and only builds its tree of HashMap's from the
+ * table when something other than get() is called on it.
+ *
+ * Accepts exactly what SimpleFieldSet's read() accepts: optional "# header" lines, key=value
+ * lines, key==base64 lines if allowed, and an end marker, which is the first line without "=".
+ * Empty lines are ignored, as are comments after the first key.
+ *
+ * LOCKING: Immutable once parsed, so can be read by any number of threads without locking.
+ * Values are decoded and cached lazily, but this is harmless if two threads race.
+ */
+public final class FieldTable {
+
+	/** FCP field names and end markers. */
+	private static final String[] COMMON_KEYS = {
+		"Identifier", "Global", "URI", "NodeIdentifier", "PriorityClass", "DataLength",
+		"RealTimeFlag", "PluginName", "IgnoreUSKDatehints", "ForkOnCacheable", "Filename",
+		"ClientToken", "WriteToClientCache", "Verbosity", "Persistence", "MaxRetries",
+		"TargetFilename", "Name", "MaxWaitTime", "LocalRequestOnly", "GetCHKOnly",
+		"ExtraInsertsSplitfileHeaderBlock", "ExtraInsertsSingleBlock", "EarlyEncode", "DontCompress",
+		"CompatibilityMode", "Codecs", "BinaryBlob", "UploadFrom", "TargetURI", "ReturnType",
+		"Metadata.ContentType", "MaxTempSize", "MaxSize", "IgnoreDS", "FilterData", "Files",
+		"ExpectedVersion", "DefaultName", "DSOnly", "Charset", "MetadataThreshold",
+		"OverrideSplitfileCryptoKey", "ExpectedMimeType", "ExpectedDataLength", "WithVolatile",
+		"WithMetadata", "Detailed", "Code", "Fatal", "End", "EndMessage", "Data"
+	};
+
+	private static final int COMMON_MASK;
+	/** Index into COMMON_KEYS plus one, or 0, by String.hashCode(). */
+	private static final int[] COMMON_SLOTS;
+
+	static {
+		int size = 1;
+		while(size < COMMON_KEYS.length * 4) size <<= 1;
+		COMMON_MASK = size - 1;
+		COMMON_SLOTS = new int[size];
+		for(int i=0;i<COMMON_KEYS.length;i++) {
+			int slot = COMMON_KEYS[i].hashCode() & COMMON_MASK;
+			while(COMMON_SLOTS[slot] != 0)
+				slot = (slot + 1) & COMMON_MASK;
+			COMMON_SLOTS[slot] = i + 1;
+		}
+	}
+
+	/** Longest line read by read(), as the whole line must fit in the stream's mark buffer. */
+	static final int MAX_READ_LINE_LENGTH = 65536;
+
+	private final Charset charset;
+	private final boolean allowMultiple;
+	private final boolean allowBase64;
+	private final boolean alwaysBase64;
+	/** The message. Not changed once parsed. */
+	private byte[] data;
+	private int size;
+	private int[] keyStart = new int[16];
+	private int[] keyEnd = new int[16];
+	private int[] keyHash = new int[16];
+	private int[] valueStart = new int[16];
+	private int[] valueEnd = new int[16];
+	/** Keys which have been decoded, or are common keys. */
+	private String[] keys = new String[16];
+	/** Values which have been decoded, or which had to be decoded while parsing, e.g. Base64. */
+	private String[] values = new String[16];
+	/** Index of each key plus one, or 0, by hash. */
+	private int[] slots = new int[32];
+	private String[] header;
+	private String endMarker;
+	// Parsing state.
+	private boolean firstLine = true;
+	private List<String> headers;
+
+	private FieldTable(byte[] data, boolean utf8, boolean allowMultiple, boolean allowBase64, boolean alwaysBase64) {
+		this.data = data;
+		this.charset = utf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+		this.allowMultiple = allowMultiple;
+		this.allowBase64 = allowBase64;
+		this.alwaysBase64 = alwaysBase64;
+	}
+
+	/**
+	 * Parse a message from a byte array. The table keeps a reference to the array, so it must not
+	 * be changed afterwards.
+	 * @param utf8 If true, the message is UTF-8, otherwise ISO-8859-1.
+	 * @param allowMultiple If true, multiple lines with the same key are combined, separated by
+	 * ";". Otherwise only the first is kept.
+	 * @param allowBase64 If true, allow key==base64(value).
+	 * @param alwaysBase64 If true, Base64 values may contain newlines.
+	 * @throws EOFException If there is nothing in the buffer.
+	 * @throws IOException If there is an invalid Base64 value.
+	 */
+	public static FieldTable parse(byte[] buf, int offset, int length, boolean utf8, boolean allowMultiple,
+			boolean allowBase64, boolean alwaysBase64) throws IOException {
+		FieldTable table = new FieldTable(buf, utf8, allowMultiple, allowBase64, alwaysBase64);
+		int end = offset + length;
+		int start = offset;
+		while(start < end) {
+			int lineEnd = start;
+			while(lineEnd < end && buf[lineEnd] != '\n') lineEnd++;
+			int next = lineEnd + 1;
+			if(lineEnd < end && lineEnd > start && buf[lineEnd-1] == '\r') lineEnd--;
+			if(table.parseLine(start, lineEnd)) return table.finish();
+			start = next;
+		}
+		return table.noEndMarker();
+	}
+
+	/**
+	 * Read a message from a stream, up to and including the end marker.
+	 * @param maxLength The maximum length of a line, at most MAX_READ_LINE_LENGTH.
+	 * @throws EOFException If the stream ends before the first line.
+	 * @throws IOException If the stream can't be read, a line is too long or there is an
+	 * invalid Base64 value.
+	 */
+	public static FieldTable read(LineReadingInputStream lis, int maxLength, boolean utf8, boolean allowMultiple,
+			boolean allowBase64, boolean alwaysBase64) throws IOException {
+		if(maxLength > MAX_READ_LINE_LENGTH) throw new IllegalArgumentException();
+		// Most messages are small, so start small and grow as needed.
+		byte[] buf = new byte[lis.markSupported() ? 512 : maxLength + 2];
+		FieldTable table = new FieldTable(buf, utf8, allowMultiple, allowBase64, alwaysBase64);
+		int used = 0;
+		while(true) {
+			if(!lis.markSupported() && buf.length - used < maxLength + 2) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, used + maxLength + 2));
+				table.data = buf;
+			}
+			int length = lis.readLineBytes(buf, used, maxLength);
+			if(length == LineReadingInputStream.BUFFER_TOO_SMALL) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+				table.data = buf;
+				continue;
+			}
+			if(length < 0)
+				return table.noEndMarker();
+			if(table.parseLine(used, used + length))
+				return table.finish();
+			used += length;
+		}
+	}
+
+	private FieldTable noEndMarker() throws EOFException {
+		if(firstLine) throw new EOFException();
+		Logger.error(this, "No end marker");
+		return finish();
+	}
+
+	private FieldTable finish() {
+		if(headers != null) {
+			header = headers.toArray(new String[headers.size()]);
+			headers = null;
+		}
+		return this;
+	}
+
+	/**
+	 * Parse one line, not including the line terminator.
+	 * @return True if it is the end marker.
+	 */
+	private boolean parseLine(int start, int end) throws IOException {
+		if(start == end) return false; // ignore
+		firstLine = false;
+		byte[] buf = data;
+		if(buf[start] == '#') {
+			if(size == 0 && endMarker == null) {
+				// Still in the header section.
+				if(headers == null) headers = new ArrayList<String>();
+				headers.add(new String(buf, start + 1, end - start - 1, charset).trim());
+			}
+			return false;
+		}
+		int eq = start;
+		while(eq < end && buf[eq] != SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) eq++;
+		if(eq == end) {
+			endMarker = decodeKey(start, end, hash(start, end));
+			return true;
+		}
+		int ks = start;
+		int ke = eq;
+		while(ks < ke && (buf[ks] & 0xFF) <= ' ') ks++;
+		while(ke > ks && (buf[ke-1] & 0xFF) <= ' ') ke--;
+		String value = null;
+		if(allowBase64 && eq + 1 < end && buf[eq+1] == SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) {
+			try {
+				String encoded = new String(buf, eq + 2, end - eq - 2, charset).replaceAll("\\s", "");
+				value = Base64.decodeUTF8(encoded);
+			} catch (IllegalBase64Exception e) {
+				throw new IOException("Unable to decode UTF8, = should not be allowed as first character of a value");
+			}
+			if(!alwaysBase64 && value.indexOf('\n') != -1)
+				throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+		}
+		add(ks, ke, eq + 1, end, value);
+		return false;
+	}
+
+	private void add(int ks, int ke, int vs, int ve, String value) {
+		int h = hash(ks, ke);
+		int i = find(h, ks, ke);
+		if(i >= 0) {
+			if(allowMultiple)
+				values[i] = value(i) + SimpleFieldSet.MULTI_VALUE_CHAR + (value == null ? decode(vs, ve) : value);
+			return;
+		}
+		if(size == keyStart.length) grow();
+		i = size++;
+		keyStart[i] = ks;
+		keyEnd[i] = ke;
+		keyHash[i] = h;
+		valueStart[i] = vs;
+		valueEnd[i] = ve;
+		values[i] = value;
+		keys[i] = asciiOrIso(ks, ke) ? commonKey(h, ks, ke) : decode(ks, ke);
+		if(size * 2 > slots.length)
+			rehash(slots.length * 2);
+		else
+			insert(i);
+	}
+
+	private void grow() {
+		int n = keyStart.length * 2;
+		keyStart = Arrays.copyOf(keyStart, n);
+		keyEnd = Arrays.copyOf(keyEnd, n);
+		keyHash = Arrays.copyOf(keyHash, n);
+		valueStart = Arrays.copyOf(valueStart, n);
+		valueEnd = Arrays.copyOf(valueEnd, n);
+		keys = Arrays.copyOf(keys, n);
+		values = Arrays.copyOf(values, n);
+	}
+
+	private void rehash(int n) {
+		slots = new int[n];
+		for(int i=0;i<size;i++)
+			insert(i);
+	}
+
+	private void insert(int i) {
+		int mask = slots.length - 1;
+		int slot = keyHash[i] & mask;
+		while(slots[slot] != 0)
+			slot = (slot + 1) & mask;
+		slots[slot] = i + 1;
+	}
+
+	/** If true, each byte is one char, so we can hash and compare without decoding. */
+	private boolean asciiOrIso(int start, int end) {
+		if(charset == StandardCharsets.ISO_8859_1) return true;
+		for(int i=start;i<end;i++)
+			if(data[i] < 0) return false;
+		return true;
+	}
+
+	/** The same as String.hashCode() of the decoded key. */
+	private int hash(int start, int end) {
+		if(!asciiOrIso(start, end)) return decode(start, end).hashCode();
+		int h = 0;
+		for(int i=start;i<end;i++)
+			h = 31 * h + (data[i] & 0xFF);
+		return h;
+	}
+
+	/** Find a key given as a byte range. */
+	private int find(int h, int start, int end) {
+		int mask = slots.length - 1;
+		int slot = h & mask;
+		int len = end - start;
+		while(true) {
+			int i = slots[slot] - 1;
+			if(i < 0) return -1;
+			if(keyHash[i] == h && keyEnd[i] - keyStart[i] == len) {
+				int ks = keyStart[i];
+				int j = 0;
+				while(j < len && data[ks + j] == data[start + j]) j++;
+				if(j == len) return i;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/** Find a key given as a String. */
+	private int find(String key) {
+		int h = key.hashCode();
+		int mask = slots.length - 1;
+		int slot = h & mask;
+		while(true) {
+			int i = slots[slot] - 1;
+			if(i < 0) return -1;
+			if(keyHash[i] == h && keyEquals(i, key)) return i;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean keyEquals(int i, String key) {
+		String k = keys[i];
+		if(k != null) return k.equals(key);
+		int ks = keyStart[i];
+		int len = keyEnd[i] - ks;
+		if(len != key.length()) return false;
+		for(int j=0;j<len;j++)
+			if((data[ks + j] & 0xFF) != key.charAt(j)) return false;
+		return true;
+	}
+
+	private String commonKey(int h, int start, int end) {
+		int slot = h & COMMON_MASK;
+		int len = end - start;
+		while(true) {
+			int i = COMMON_SLOTS[slot] - 1;
+			if(i < 0) return null;
+			String k = COMMON_KEYS[i];
+			if(k.length() == len) {
+				int j = 0;
+				while(j < len && (data[start + j] & 0xFF) == k.charAt(j)) j++;
+				if(j == len) return k;
+			}
+			slot = (slot + 1) & COMMON_MASK;
+		}
+	}
+
+	private String decodeKey(int start, int end, int h) {
+		if(asciiOrIso(start, end)) {
+			String k = commonKey(h, start, end);
+			if(k != null) return k;
+		}
+		return decode(start, end);
+	}
+
+	private String decode(int start, int end) {
+		return new String(data, start, end - start, charset);
+	}
+
+	/** Number of distinct keys. */
+	public int size() {
+		return size;
+	}
+
+	/** The full key, including any "."'s, of the i'th field, in the order they were read. */
+	public String key(int i) {
+		String k = keys[i];
+		if(k == null) {
+			k = decode(keyStart[i], keyEnd[i]);
+			keys[i] = k;
+		}
+		return k;
+	}
+
+	/**
+	 * Find a character in a key, without decoding it.
+	 * @return The index, or -1.
+	 */
+	int indexOfInKey(int i, char c, int from) {
+		String k = keys[i];
+		if(k != null) return k.indexOf(c, from);
+		int ks = keyStart[i];
+		int len = keyEnd[i] - ks;
+		for(int j=from;j<len;j++)
+			if((data[ks + j] & 0xFF) == c) return j;
+		return -1;
+	}
+
+	/** Part of a key, decoding only that part. */
+	String keyPart(int i, int from, int to) {
+		String k = keys[i];
+		if(k != null) return k.substring(from, to);
+		if(from == 0 && to == keyEnd[i] - keyStart[i]) return key(i);
+		return decode(keyStart[i] + from, keyStart[i] + to);
+	}
+
+	/** Length of a key in chars. */
+	int keyLength(int i) {
+		String k = keys[i];
+		return k != null ? k.length() : keyEnd[i] - keyStart[i];
+	}
+
+	public String value(int i) {
+		String v = values[i];
+		if(v == null) {
+			v = decode(valueStart[i], valueEnd[i]);
+			values[i] = v;
+		}
+		return v;
+	}
+
+	/**
+	 * Get a value by its full key, e.g. "Files.0.Name".
+	 * @return The value, or null if there is no such key.
+	 */
+	public String get(String key) {
+		int i = find(key);
+		return i < 0 ? null : value(i);
+	}
+
+	/** The lines starting with "#" before the first field, without the "#", or null. */
+	public String[] getHeader() {
+		return header;
+	}
+
+	/** The end marker, or null if the message ended without one. */
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+}
@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -20,6 +21,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Deque;
@@ -27,7 +29,9 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -89,6 +93,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	private DateFormat df;
+	private CachedDateFormat dateFormat;
 	private int[] fmt;
 	private String[] str;
 
@@ -111,23 +116,31 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Lines are formatted and encoded into a per-thread buffer, and then copied into a
+	 * pre-allocated ring of slots without taking a lock. The writer thread copies them out in
+	 * batches. If the ring is full, the line is dropped, after waiting up to maxBlockTime for
+	 * the writer to catch up. Dropped lines are counted, and reported in the log by the writer.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	private final LogRingBuffer ring;
+	/** Lines dropped because the ring was full. */
+	private final AtomicLong droppedLines = new AtomicLong();
+	private final AtomicLong droppedBytes = new AtomicLong();
+	/** How long to wait for space in the ring before dropping a line, in milliseconds. */
+	private volatile long maxBlockTime = 0;
+	private volatile Thread writerThread;
+	/** True if the writer thread is waiting and should be woken when there is enough to write. */
+	private final AtomicBoolean writerWaiting = new AtomicBoolean();
+	private final Object closedSync = new Object();
+
+	/** Largest number of bytes written to the log streams at once. Also the maximum line length. */
+	private static final int BATCH_SIZE = 256 * 1024;
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<>();
@@ -147,9 +160,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
+		synchronized(this) {
 			MAX_LIST_BYTES = len;
 			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
+			ring.setLimit(len);
 		}
 	}
 
@@ -240,7 +254,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
 
 	class WriterThread extends Thread {
 		WriterThread() {
@@ -251,7 +265,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		@SuppressWarnings("fallthrough")
 		public void run() {
 			File currentFilename = null;
-			byte[] o = null;
 			long thisTime;
 			long lastTime = -1;
 			long startTime;
@@ -300,11 +313,11 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
-			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
+			long firstPending = -1;
+			int closeWaits = 0;
+			byte[] batch = new byte[BATCH_SIZE];
+			long reportedDroppedLines = 0;
+			long reportedDroppedBytes = 0;
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -323,66 +336,58 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
+					boolean died = closed;
+					// Set before checking, so a producer either sees it or we see its line.
+					writerWaiting.set(true);
+					long pending = ring.pendingBytes();
+					if(!died && (pending == 0 || pending < LIST_WRITE_THRESHOLD)) {
+						// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
+						// If there is no threshold, producers wake us up for every line.
+						long wait;
+						if(pending == 0) {
+							firstPending = -1;
+							wait = 500;
+						} else {
+							if(firstPending == -1) firstPending = thisTime;
+							wait = firstPending + flushTime - thisTime;
 						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+						if(wait > 0) {
+							// Wait no more than 500ms since we need to rotate the log and notice when we are closed.
+							LockSupport.parkNanos(this, MILLISECONDS.toNanos(Math.min(500L, wait)));
+							writerWaiting.set(false);
+							continue;
 						}
 					}
-					if(timeoutFlush || died) {
-						// Flush to disk 
-						myWrite(logStream, null);
-				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
+					writerWaiting.set(false);
+					firstPending = -1;
+					long dropped = droppedLines.get();
+					if(dropped != reportedDroppedLines) {
+						long droppedNow = droppedBytes.get();
+						byte[] err = ("GRRR: ERROR: Logging too fast, dropped "+(dropped - reportedDroppedLines)+
+								" lines, "+(droppedNow - reportedDroppedBytes)+" bytes\n").getBytes(ENCODING);
+						myWrite(logStream, err, err.length);
+						if(altLogStream != null)
+							myWrite(altLogStream, err, err.length);
+						reportedDroppedLines = dropped;
+						reportedDroppedBytes = droppedNow;
+					}
+					int drained = 0;
+					int written;
+					while((written = ring.drainTo(batch)) > 0) {
+						myWrite(logStream, batch, written);
+						if(altLogStream != null)
+							myWrite(altLogStream, batch, written);
+						drained += written;
 					}
+					if(drained == 0 && ring.pendingBytes() != 0 && (!died || closeWaits++ < 100)) {
+						// Another thread is still copying a line in.
+						LockSupport.parkNanos(this, MILLISECONDS.toNanos(1));
+						continue;
+					}
+					// Flush to disk 
+					myWrite(logStream, null, 0);
+					if(altLogStream != null)
+						myWrite(altLogStream, null, 0);
 					if(died) {
 						try {
 							logStream.close();
@@ -396,16 +401,12 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(closedSync) {
 							closedFinished = true;
-							list.notifyAll();
+							closedSync.notifyAll();
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -464,14 +465,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		/**
 		 * @param b
 		 *            the bytes to write, null to flush
+		 * @param length
+		 *            the number of bytes to write
 		 */
-		protected void myWrite(OutputStream os, byte[] b) {
+		protected void myWrite(OutputStream os, byte[] b, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, 0, length);
 					else
 						os.flush();
 				} catch (IOException e) {
@@ -532,8 +535,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
-
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
 	 * it will be created.
@@ -814,6 +815,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 		WriterThread wt = new WriterThread();
 		wt.setDaemon(true);
+		writerThread = wt;
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
 		wt.start();
@@ -862,7 +864,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<>(MAX_LIST_SIZE);
+		ring = new LogRingBuffer(Math.max(64, MAX_LIST_SIZE));
+		ring.setLimit(MAX_LIST_BYTES);
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -922,8 +925,27 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			df = DateFormat.getDateTimeInstance();
 
 		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		dateFormat = new CachedDateFormat(df);
 	}
 
+	/** Buffers for formatting a line, kept per thread so logging doesn't allocate. */
+	private static final class LineBuffer {
+		StringBuilder sb = new StringBuilder(512);
+		byte[] bytes = new byte[1536];
+		/** True while formatting a line, in case something we call logs too. */
+		boolean inUse;
+	}
+
+	private static final ThreadLocal<LineBuffer> lineBuffers = new ThreadLocal<LineBuffer>() {
+		@Override
+		protected LineBuffer initialValue() {
+			return new LineBuffer();
+		}
+	};
+
+	/** Don't keep buffers bigger than this after logging e.g. a big stack trace. */
+	private static final int MAX_KEPT_LINE_BUFFER = 16384;
+
 	@Override
 	public void log(Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
 		if (!instanceShouldLog(priority, c))
@@ -932,137 +954,200 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
-		int sctr = 0;
-
-		for (int f: fmt) {
-			switch (f) {
-				case 0 :
-					sb.append(str[sctr++]);
-					break;
-				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
-					break;
-				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
-					break;
-				case HASHCODE :
-					sb.append(
-						o == null
-							? "<none>"
-							: Integer.toHexString(o.hashCode()));
-					break;
-				case THREAD :
-					sb.append(Thread.currentThread().getName());
-					break;
-				case PRIORITY :
-					sb.append(priority.name());
-					break;
-				case MESSAGE :
-					sb.append(msg);
-					break;
-				case UNAME :
-					sb.append(uname);
-					break;
+		LineBuffer lb = lineBuffers.get();
+		if(lb.inUse) lb = new LineBuffer(); // Called from e.g. hashCode() while formatting a line.
+		lb.inUse = true;
+		try {
+			StringBuilder sb = lb.sb;
+			sb.setLength(0);
+			int sctr = 0;
+
+			for (int f: fmt) {
+				switch (f) {
+					case 0 :
+						sb.append(str[sctr++]);
+						break;
+					case DATE :
+						dateFormat.append(sb, System.currentTimeMillis());
+						break;
+					case CLASS :
+						sb.append(c == null ? "<none>" : c.getName());
+						break;
+					case HASHCODE :
+						if(o == null)
+							sb.append("<none>");
+						else
+							appendHex(sb, o.hashCode());
+						break;
+					case THREAD :
+						sb.append(Thread.currentThread().getName());
+						break;
+					case PRIORITY :
+						sb.append(priority.name());
+						break;
+					case MESSAGE :
+						sb.append(msg);
+						break;
+					case UNAME :
+						sb.append(uname);
+						break;
+				}
 			}
-		}
-		sb.append('\n');
-
-		// Write stacktrace if available
-		for(int j=0;j<20 && e != null;j++) {
-			sb.append(e.toString());
-			
-			StackTraceElement[] trace = e.getStackTrace();
-			
-			if(trace == null)
-				sb.append("(null)\n");
-			else if(trace.length == 0)
-				sb.append("(no stack trace)\n");
-			else {
-				sb.append('\n');
-				for(StackTraceElement elt: trace) {
-					sb.append("\tat ");
-					sb.append(elt.toString());
+			sb.append('\n');
+
+			// Write stacktrace if available
+			for(int j=0;j<20 && e != null;j++) {
+				sb.append(e.toString());
+				
+				StackTraceElement[] trace = e.getStackTrace();
+				
+				if(trace == null)
+					sb.append("(null)\n");
+				else if(trace.length == 0)
+					sb.append("(no stack trace)\n");
+				else {
 					sb.append('\n');
+					for(StackTraceElement elt: trace) {
+						sb.append("\tat ");
+						sb.append(elt.toString());
+						sb.append('\n');
+					}
 				}
+				
+				Throwable cause = e.getCause();
+				if(cause != e) e = cause;
+				else break;
 			}
-			
-			Throwable cause = e.getCause();
-			if(cause != e) e = cause;
-			else break;
-		}
 
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new IllegalStateException(
-				"Failed to convert log message to bytes. Unsupported charset encoding: " + ENCODING.name(),
-				e1
-			);
+			int length = encode(lb);
+			int max = maxLineLength();
+			if(length > max) {
+				length = max;
+				lb.bytes[length-1] = '\n';
+			}
+			logBytes(lb.bytes, length);
+		} finally {
+			if(lb.sb.capacity() > MAX_KEPT_LINE_BUFFER) {
+				lb.sb = new StringBuilder(512);
+				lb.bytes = new byte[1536];
+			}
+			lb.inUse = false;
 		}
 	}
 
-	/** Memory allocation overhead (estimated through experimentation with bsh) */
-	private static final int LINE_OVERHEAD = 60;
-	
-	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
+	/** Same as Integer.toHexString() without creating a String. */
+	static void appendHex(StringBuilder sb, int x) {
+		int shift = 28;
+		while(shift > 0 && (x >>> shift) == 0)
+			shift -= 4;
+		for(;shift >= 0;shift -= 4)
+			sb.append(Character.forDigit((x >>> shift) & 0xF, 16));
+	}
+
+	/** Encode lb.sb as UTF-8 into lb.bytes, growing it if necessary. */
+	static int encode(LineBuffer lb) {
+		StringBuilder sb = lb.sb;
+		int len = sb.length();
+		if(lb.bytes.length < len * 3)
+			lb.bytes = new byte[len * 3];
+		byte[] out = lb.bytes;
+		int pos = 0;
+		for(int i=0;i<len;i++) {
+			char c = sb.charAt(i);
+			if(c < 0x80) {
+				out[pos++] = (byte) c;
+			} else if(c < 0x800) {
+				out[pos++] = (byte) (0xC0 | (c >> 6));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if(Character.isSurrogate(c)) {
+				if(Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(sb.charAt(i+1))) {
+					int cp = Character.toCodePoint(c, sb.charAt(++i));
+					out[pos++] = (byte) (0xF0 | (cp >> 18));
+					out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					out[pos++] = (byte) (0x80 | (cp & 0x3F));
+				} else {
+					out[pos++] = '?';
 				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
+			} else {
+				out[pos++] = (byte) (0xE0 | (c >> 12));
+				out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
 			}
-			if (sz == 0)
-				list.notifyAll();
 		}
+		return pos;
 	}
 
-	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
+	/** Longer lines are truncated. */
+	private int maxLineLength() {
+		return Math.min(BATCH_SIZE, ring.maxRecordLength());
+	}
+
+	public void logString(byte[] b) {
+		int max = maxLineLength();
+		if(b.length > max) {
+			b = Arrays.copyOf(b, max);
+			b[max-1] = '\n';
+		}
+		logBytes(b, b.length);
+	}
+
+	private void logBytes(byte[] b, int length) {
+		if(length == 0) return;
+		if(!ring.offer(b, 0, length) && !waitForSpace(b, length)) {
+			droppedLines.incrementAndGet();
+			droppedBytes.addAndGet(length);
+			wakeWriter();
+			return;
 		}
+		if(ring.pendingBytes() >= LIST_WRITE_THRESHOLD)
+			wakeWriter();
+	}
+
+	/**
+	 * Wait up to maxBlockTime for the writer thread to make room for a line, and then add it.
+	 * @return False if there still isn't room, and the line must be dropped.
+	 */
+	private boolean waitForSpace(byte[] b, int length) {
+		long wait = maxBlockTime;
+		// The writer thread can't wait for itself.
+		if(wait <= 0 || Thread.currentThread() == writerThread) return false;
+		long deadline = System.nanoTime() + MILLISECONDS.toNanos(wait);
+		do {
+			wakeWriter();
+			LockSupport.parkNanos(this, MILLISECONDS.toNanos(1));
+			if(closed) return false;
+			if(ring.offer(b, 0, length)) return true;
+		} while(System.nanoTime() - deadline < 0);
+		return false;
+	}
+
+	private void wakeWriter() {
+		Thread t = writerThread;
+		if(t != null && writerWaiting.compareAndSet(true, false))
+			LockSupport.unpark(t);
+	}
+
+	/** Bytes waiting to be written, including some overhead per line. */
+	public long listBytes() {
+		return ring.pendingBytes();
+	}
+
+	/** Number of lines dropped because they were logged faster than we could write them. */
+	public long getDroppedLines() {
+		return droppedLines.get();
+	}
+
+	public long getDroppedBytes() {
+		return droppedBytes.get();
+	}
+
+	/**
+	 * Set how long a thread logging a line will wait for the writer thread to catch up, if the
+	 * buffer is full, before dropping the line. Zero means don't wait.
+	 */
+	public void setMaxBlockTime(long millis) {
+		maxBlockTime = millis;
 	}
 
 	public static int numberOf(char c) {
@@ -1089,19 +1174,21 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		Thread t = writerThread;
+		if(t != null) LockSupport.unpark(t);
 	}
 
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
+			synchronized(closedSync) {
+				close();
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						closedSync.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -0,0 +1,128 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pre-allocated ring of fixed size byte slots, written by any number of threads and read by a
+ * single thread. Used by {@link FileLoggerHook} so that logging a line doesn't take a lock or
+ * allocate a queue entry.
+ *
+ * A record (usually one log line) takes one or more consecutive slots, and may wrap around the end
+ * of the buffer. A producer claims the slots by advancing the head with a CAS, copies its bytes
+ * in, and then publishes the record by storing its sequence number in the slot's entry in
+ * published. The consumer copies records out in order, and frees their slots by advancing the
+ * tail. A producer which is slow to publish holds up the consumer, but not the other producers.
+ *
+ * LOCKING: Lock-free. Only one thread may call drainTo().
+ */
+final class LogRingBuffer {
+
+	static final int SLOT_SIZE = 128;
+
+	private final byte[] buffer;
+	/** Length of the record starting at each slot. Only valid once it has been published. */
+	private final int[] lengths;
+	/** Sequence number of the record starting at each slot, once it has been published. */
+	private final AtomicLongArray published;
+	private final int slots;
+	private final int mask;
+	/** The next slot to be claimed. */
+	private final AtomicLong head = new AtomicLong();
+	/** The next slot to be read. Only changed by the consumer. */
+	private volatile long tail;
+	/** Maximum number of slots in use, may be less than the size of the buffer. */
+	private volatile int limit;
+
+	/**
+	 * @param minSlots The minimum number of slots. Rounded up to a power of two.
+	 */
+	LogRingBuffer(int minSlots) {
+		int s = 1;
+		while(s < minSlots) s <<= 1;
+		slots = s;
+		mask = s - 1;
+		limit = s;
+		buffer = new byte[s * SLOT_SIZE];
+		lengths = new int[s];
+		published = new AtomicLongArray(s);
+		for(int i=0;i<s;i++)
+			published.set(i, -1);
+	}
+
+	/** Size of the buffer in bytes. */
+	int capacity() {
+		return buffer.length;
+	}
+
+	/** Limit the number of bytes in use, e.g. to the configured maximum cached bytes. */
+	void setLimit(long bytes) {
+		limit = (int) Math.max(1, Math.min(slots, bytes / SLOT_SIZE));
+	}
+
+	/** The longest record which can be added. */
+	int maxRecordLength() {
+		return limit * SLOT_SIZE;
+	}
+
+	/** Bytes claimed but not yet read, including the unused ends of slots. */
+	long pendingBytes() {
+		return (head.get() - tail) * SLOT_SIZE;
+	}
+
+	private static int slotsFor(int length) {
+		return Math.max(1, (length + SLOT_SIZE - 1) / SLOT_SIZE);
+	}
+
+	/**
+	 * Add a record without blocking.
+	 * @return False if there isn't enough room.
+	 */
+	boolean offer(byte[] data, int offset, int length) {
+		int n = slotsFor(length);
+		long seq;
+		while(true) {
+			seq = head.get();
+			if(seq + n - tail > limit) return false;
+			if(head.compareAndSet(seq, seq + n)) break;
+		}
+		int idx = (int) (seq & mask);
+		int pos = idx * SLOT_SIZE;
+		int first = Math.min(length, buffer.length - pos);
+		System.arraycopy(data, offset, buffer, pos, first);
+		if(first < length)
+			System.arraycopy(data, offset + first, buffer, 0, length - first);
+		lengths[idx] = length;
+		published.lazySet(idx, seq);
+		return true;
+	}
+
+	/**
+	 * Copy as many published records as will fit into buf, in order, and free their slots.
+	 * @return The number of bytes copied. Zero if the next record is not published yet, or is
+	 * bigger than buf.
+	 */
+	int drainTo(byte[] buf) {
+		long t = tail;
+		int copied = 0;
+		while(true) {
+			int idx = (int) (t & mask);
+			if(published.get(idx) != t) break;
+			int length = lengths[idx];
+			if(copied + length > buf.length) break;
+			int pos = idx * SLOT_SIZE;
+			int first = Math.min(length, buffer.length - pos);
+			System.arraycopy(buffer, pos, buf, copied, first);
+			if(first < length)
+				System.arraycopy(buffer, 0, buf, copied + first, length - first);
+			copied += length;
+			t += slotsFor(length);
+		}
+		tail = t;
+		return copied;
+	}
+
+}
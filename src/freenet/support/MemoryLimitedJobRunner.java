@@ -19,6 +19,26 @@ public class MemoryLimitedJobRunner {
     /** The jobs we can't start yet. FIXME Always FIFO order? Small jobs first? Prioritised even? */
     private final Deque<MemoryLimitedJob>[] jobs;
     private final Executor executor;
+    private final java.util.concurrent.Executor helperExecutor = new java.util.concurrent.Executor() {
+
+        @Override
+        public void execute(final Runnable job) {
+            executor.execute(new PrioRunnable() {
+
+                @Override
+                public void run() {
+                    job.run();
+                }
+
+                @Override
+                public int getPriority() {
+                    return THREAD_PRIORITY;
+                }
+
+            });
+        }
+
+    };
     private int runningThreads;
     private int maxThreads;
     private boolean shutdown;
@@ -138,6 +158,13 @@ public class MemoryLimitedJobRunner {
         }
     }
 
+    /** An executor for helper threads, at the same priority as the jobs. A job may use it to 
+     * spread CPU-intensive work over several cores, as long as that doesn't need any more of the 
+     * limited resource. */
+    public java.util.concurrent.Executor getExecutor() {
+        return helperExecutor;
+    }
+
     public synchronized int getRunningThreads() {
         return runningThreads;
     }
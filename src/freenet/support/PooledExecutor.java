@@ -30,6 +30,7 @@ public class PooledExecutor implements Executor {
 	AtomicLong[] threadCounter = new AtomicLong[runningThreads.length];
 	private long jobCount;
 	private long jobMisses;
+	private final long startTime = System.currentTimeMillis();
 	private static boolean logMINOR;
 	// Ticker thread that runs at maximum priority.
 	private Ticker ticker;
@@ -159,6 +160,14 @@ public class PooledExecutor implements Executor {
 		return waitingThreadsCount;
 	}
 
+	/** We start a new thread for every miss. */
+	@Override
+	public synchronized double getThreadCreationRate() {
+		long uptime = System.currentTimeMillis() - startTime;
+		if(uptime <= 0) return 0.0;
+		return jobMisses * (double) MINUTES.toMillis(1) / uptime;
+	}
+
 	private static class Job {
 		private final Runnable runnable;
 		private final String name;
@@ -29,6 +29,7 @@ import java.util.Set;
 import freenet.node.FSParseException;
 import freenet.support.io.Closer;
 import freenet.support.io.LineReader;
+import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.Readers;
 
 import static java.util.Collections.emptyMap;
@@ -65,11 +66,21 @@ public class SimpleFieldSet {
     private final boolean shortLived;
     private final boolean alwaysUseBase64;
     protected String[] header;
+    /** If not null, the fields this SFS was parsed from, which haven't been copied into values
+     * and subsets yet. See materialize(). */
+    private volatile FieldTable table;
+    /** The fields in table which belong to this SFS, or null for all of them. Never set to null
+     * for a subset, even once table has been cleared: see get(). */
+    private int[] tableEntries;
+    /** Length of the start of the keys in table which leads to this SFS, e.g. "Files.0.". */
+    private int tablePrefix;
 
     public static final char MULTI_LEVEL_CHAR = '.';
     public static final char MULTI_VALUE_CHAR = ';';
     public static final char KEYVALUE_SEPARATOR_CHAR = '=';
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
+    /** tableEntries for a subset which has been materialized. */
+    private static final int[] NO_TABLE_ENTRIES = new int[0];
 
     public SimpleFieldSet(boolean shortLived) {
         this(shortLived, false);
@@ -112,6 +123,7 @@ public class SimpleFieldSet {
 
     /** Copy constructor */
     public SimpleFieldSet(SimpleFieldSet sfs){
+    	sfs.materialize();
     	values = new HashMap<String, String>(sfs.values);
     	if(sfs.subsets != null)
     		subsets = new HashMap<String, SimpleFieldSet>(sfs.subsets);
@@ -127,7 +139,96 @@ public class SimpleFieldSet {
 
     public SimpleFieldSet(LineReader lis, int maxLineLength, int lineBufferSize, boolean utf8OrIso88591, boolean allowMultiple, boolean shortLived, boolean allowBase64) throws IOException {
     	this(shortLived);
-    	read(lis, maxLineLength, lineBufferSize, utf8OrIso88591, allowMultiple, allowBase64);
+    	if(lis instanceof LineReadingInputStream && maxLineLength <= FieldTable.MAX_READ_LINE_LENGTH) {
+    		// Parse straight from the bytes, e.g. an FCP message.
+    		setTable(FieldTable.read((LineReadingInputStream) lis, maxLineLength, utf8OrIso88591, allowMultiple, allowBase64, false));
+    	} else {
+    		read(lis, maxLineLength, lineBufferSize, utf8OrIso88591, allowMultiple, allowBase64);
+    	}
+    }
+
+    /**
+     * Create a SimpleFieldSet which is a view of a FieldTable. get() reads straight from the
+     * table, without locking; anything else builds the usual tree from the table first.
+     * @param shortLived If false, build the tree immediately, interning the strings, rather than
+     * keeping the table.
+     */
+    public SimpleFieldSet(FieldTable table, boolean shortLived) {
+    	this(shortLived);
+    	setTable(table);
+    }
+
+    private void setTable(FieldTable t) {
+    	header = t.getHeader();
+    	endMarker = t.getEndMarker();
+    	table = t;
+    	if(!shortLived) materialize();
+    }
+
+    /** The fields in a FieldTable below a subset, see materialize(). */
+    private static class TableEntries {
+    	final int prefix;
+    	int[] entries = new int[4];
+    	int count;
+    	TableEntries(int prefix) {
+    		this.prefix = prefix;
+    	}
+    	void add(int i) {
+    		if(count == entries.length) entries = Arrays.copyOf(entries, count * 2);
+    		entries[count++] = i;
+    	}
+    }
+
+    /**
+     * If this SFS is a view of a FieldTable, build values and subsets from it. Subsets are views
+     * of the same table, and only build their own trees when they are used.
+     */
+    private void materialize() {
+    	if(table == null) return;
+    	synchronized(this) {
+    		FieldTable t = table;
+    		if(t == null) return;
+    		int n = tableEntries == null ? t.size() : tableEntries.length;
+    		Map<String, TableEntries> children = null;
+    		for(int j=0;j<n;j++) {
+    			int i = tableEntries == null ? j : tableEntries[j];
+    			int dot = t.indexOfInKey(i, MULTI_LEVEL_CHAR, tablePrefix);
+    			if(dot == -1) {
+    				String name = t.keyPart(i, tablePrefix, t.keyLength(i));
+    				String value = t.value(i);
+    				if(!shortLived) {
+    					name = name.intern();
+    					value = value.intern();
+    				}
+    				values.put(name, value);
+    			} else {
+    				String name = t.keyPart(i, tablePrefix, dot);
+    				if(children == null) children = new HashMap<String, TableEntries>();
+    				TableEntries e = children.get(name);
+    				if(e == null) {
+    					e = new TableEntries(dot + 1);
+    					children.put(name, e);
+    				}
+    				e.add(i);
+    			}
+    		}
+    		if(children != null) {
+    			subsets = new HashMap<String, SimpleFieldSet>();
+    			for(Map.Entry<String, TableEntries> entry : children.entrySet()) {
+    				TableEntries e = entry.getValue();
+    				SimpleFieldSet fs = new SimpleFieldSet(shortLived, alwaysUseBase64);
+    				fs.tableEntries = e.count == e.entries.length ? e.entries : Arrays.copyOf(e.entries, e.count);
+    				fs.tablePrefix = e.prefix;
+    				fs.table = t;
+    				if(!shortLived) fs.materialize();
+    				String name = entry.getKey();
+    				if(!shortLived) name = name.intern();
+    				subsets.put(name, fs);
+    			}
+    		}
+    		table = null;
+    		if(tableEntries != null) tableEntries = NO_TABLE_ENTRIES;
+    	}
     }
 
     /**
@@ -246,7 +347,18 @@ public class SimpleFieldSet {
 	 * @return The String value corresponding to the given key, or null if there is no such 
 	 * key=value pair.
 	 */
-    public synchronized String get(String key) {
+    public String get(String key) {
+    	// Only the root can read the table by key. A subset's tableEntries is set before its table
+    	// and never goes back to null, so it can't look like the root even while materialize()
+    	// clears the table.
+    	FieldTable t = table;
+    	if(t != null && tableEntries == null)
+    		return t.get(key); // Immutable, so no need to lock.
+    	return getFromTree(key);
+    }
+
+    private synchronized String getFromTree(String key) {
+    	materialize();
    		int idx = key.indexOf(MULTI_LEVEL_CHAR);
    		if(idx == -1)
    			return values.get(key);
@@ -328,6 +440,8 @@ public class SimpleFieldSet {
      * Put contents of a fieldset, overwrite old values.
      */
     public void putAllOverwrite(SimpleFieldSet fs) {
+    	materialize();
+    	fs.materialize();
     	for(Map.Entry<String, String> entry: fs.values.entrySet()) {
     		values.put(entry.getKey(), entry.getValue()); // overwrite old
     	}
@@ -398,6 +512,7 @@ public class SimpleFieldSet {
 	private synchronized boolean put(String key, String value, boolean allowMultiple, boolean overwrite, boolean fromRead) {
 		int idx;
 		if(value == null) return true; // valid no-op
+		materialize();
 		if((!alwaysUseBase64) && value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
 		if(allowMultiple && (!fromRead) && value.indexOf(MULTI_VALUE_CHAR) != -1) {
 			throw new IllegalArgumentException("Appending a string to a SimpleFieldSet value should not contain the multi-value char \""+String.valueOf(MULTI_VALUE_CHAR)+"\" but it does: \"" +value+"\" for \""+key+"\"", new Exception("error"));
@@ -488,6 +603,7 @@ public class SimpleFieldSet {
      * in transit. Can be overridden (to true) by alwaysUseBase64 setting.
      */
     synchronized void writeTo(Writer w, String prefix, boolean noEndMarker, boolean useBase64) throws IOException {
+    	materialize();
 		writeHeader(w);
     	for (Map.Entry<String, String> entry: values.entrySet()) {
 			String key = entry.getKey();
@@ -556,6 +672,7 @@ public class SimpleFieldSet {
 	 * @throws IOException If an error occurs writing to the Writer.
 	 */
     private synchronized void writeToOrdered(Writer w, String prefix, boolean noEndMarker, boolean allowOptionalBase64) throws IOException {
+    	materialize();
 		writeHeader(w);
     	String[] keys = values.keySet().toArray(new String[values.size()]);
     	int i=0;
@@ -636,6 +753,7 @@ public class SimpleFieldSet {
     }
 
 	public synchronized SimpleFieldSet subset(String key) {
+		materialize();
 		if(subsets == null) return null;
 		int idx = key.indexOf(MULTI_LEVEL_CHAR);
 		if(idx == -1)
@@ -672,6 +790,7 @@ public class SimpleFieldSet {
 	/** Iterate over keys that are in the top level of the tree, i.e. that do not contain a ".". 
 	 * E.g. "Name=Value" is a top level key. "Subset.Name=Value" is NOT a top level key. */
 	public Iterator<String> toplevelKeyIterator() {
+	    materialize();
 	    return values.keySet().iterator();
 	}
 	
@@ -692,6 +811,7 @@ public class SimpleFieldSet {
     	 */
     	public KeyIterator(String prefix) {
     		synchronized(SimpleFieldSet.this) {
+    			materialize();
     			valuesIterator = values.keySet().iterator();
     			if(subsets != null)
     				subsetIterator = subsets.keySet().iterator();
@@ -782,6 +902,7 @@ public class SimpleFieldSet {
      * "Name=Value" (which would return a map containing "Name" -> "Value", NOT 
      * "Subset.Name=Value" (which would not be returned). */
     public Map<String, String> directKeyValues() {
+        materialize();
         return Collections.unmodifiableMap(values);
     }
 
@@ -793,6 +914,7 @@ public class SimpleFieldSet {
      * @return
      */
     public Set<String> directKeys() {
+        materialize();
         return Collections.unmodifiableSet(values.keySet());
     }
 
@@ -804,6 +926,7 @@ public class SimpleFieldSet {
      * @return
      */
     public Map<String, SimpleFieldSet> directSubsets() {
+        materialize();
         return subsets == null ? emptyMap() : Collections.unmodifiableMap(subsets);
     }
 
@@ -822,6 +945,7 @@ public class SimpleFieldSet {
 		if(fs == null) return; // legal no-op, because used everywhere
 		if(fs.isEmpty()) // can't just no-op, because caller might add the FS then populate it...
 			throw new IllegalArgumentException("Empty");
+		materialize();
 		if(subsets == null)
 			subsets = new HashMap<String, SimpleFieldSet>();
 		if(subsets.containsKey(key))
@@ -833,6 +957,7 @@ public class SimpleFieldSet {
 	/** Remove a name:value pair at any point in the tree. Will automatically traverse the tree and 
 	 * remove empty subsets (which are not written anyway). */
 	public synchronized void removeValue(String key) {
+		materialize();
 		int idx;
 		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
 			values.remove(key);
@@ -864,6 +989,7 @@ public class SimpleFieldSet {
 	 * @param is the subset to remove
 	 */
 	public synchronized void removeSubset(String key) {
+		materialize();
 		if(subsets == null) return;
 		int idx;
 		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
@@ -885,7 +1011,15 @@ public class SimpleFieldSet {
 	}
 
 	/** Is this SimpleFieldSet empty? */
-	public synchronized boolean isEmpty() {
+	public boolean isEmpty() {
+		FieldTable t = table;
+		if(t != null && tableEntries == null) // Root only, see get().
+			return t.size() == 0;
+		return isTreeEmpty();
+	}
+
+	private synchronized boolean isTreeEmpty() {
+		materialize();
 		return values.isEmpty() && (subsets == null || subsets.isEmpty());
 	}
 
@@ -898,6 +1032,7 @@ public class SimpleFieldSet {
 	 * Returns "Foo", "Baz".
 	 */
 	public Iterator<String> directSubsetNameIterator() {
+		materialize();
 		return (subsets == null) ? null : subsets.keySet().iterator();
 	}
 
@@ -910,6 +1045,7 @@ public class SimpleFieldSet {
      * Returns [ "Foo", "Baz" ].
      */
 	public String[] namesOfDirectSubsets() {
+		materialize();
 		return (subsets == null) ? EMPTY_STRING_ARRAY : subsets.keySet().toArray(new String[subsets.size()]);
 	}
 
@@ -0,0 +1,440 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker based on a hashed hierarchical timer wheel, rather than a sorted map.
+ *
+ * There are LEVELS wheels of SLOTS buckets each. A bucket on level 0 covers one millisecond, a
+ * bucket on level 1 covers SLOTS milliseconds, and so on. A job goes in the lowest level on which
+ * it is in the current rotation, and as time passes the buckets on higher levels are cascaded down
+ * to lower levels, until the job reaches level 0 and is run. So queueing and removing a job are
+ * O(1), however many jobs are queued, rather than O(log n) for PrioritizedTicker.
+ *
+ * The wheel itself is only touched by the ticker thread, so there is no lock around it. Other
+ * threads add jobs to a lock-free insertion queue and the ticker thread moves them into the wheel
+ * next time it wakes up. Removal is the same: the job is marked cancelled immediately, so it will
+ * never run, and queued to be unlinked from its bucket later.
+ *
+ * noDupes and removeQueuedJob() need to find a job by its Runnable, so we also keep a concurrent
+ * map from the Runnable to the most recently queued instance. As with PrioritizedTicker, if the
+ * same Runnable is queued more than once without noDupes, only the latest instance can be
+ * removed.
+ */
+public class TimerWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int MAX_SLEEP_TIME = 200;
+	/** Bits of the time covered by each level. */
+	static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	/** 7 levels of 64 slots covers 2^42 milliseconds, over a century. Jobs further in the future
+	 * are parked in the last slot and re-queued when it comes round. */
+	static final int LEVELS = 7;
+	/** Maximum number of newly queued jobs to move into the wheel each time round. */
+	static final int MAX_INSERTS_PER_TICK = 4096;
+
+	/** Key for finding a job. Like PrioritizedTicker.Job, two jobs are the same if they have the
+	 * same Runnable, whatever the name. */
+	private static final class JobKey {
+		final Runnable job;
+
+		JobKey(Runnable job) {
+			this.job = job;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof JobKey)) return false;
+			return ((JobKey)o).job == job;
+		}
+
+		@Override
+		public int hashCode() {
+			return job.hashCode();
+		}
+	}
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+		AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+	/** One queued instance of a job. */
+	private static final class Timeout {
+		final JobKey key;
+		final String name;
+		final long runAt;
+		volatile int state = PENDING;
+		// Only used by the ticker thread.
+		Timeout prev;
+		Timeout next;
+		/** Index of the bucket we are in, or -1. */
+		int bucket = -1;
+
+		Timeout(JobKey key, String name, long runAt) {
+			this.key = key;
+			this.name = name;
+			this.runAt = runAt;
+		}
+
+		boolean isPending() {
+			return state == PENDING;
+		}
+
+		@Override
+		public String toString() {
+			return key.job + " (" + name + ") at " + runAt;
+		}
+	}
+
+	private final Executor executor;
+	private final NativeThread myThread;
+	/** The latest pending instance of each job. */
+	private final ConcurrentHashMap<JobKey, Timeout> registry = new ConcurrentHashMap<JobKey, Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> inserted = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final LongAdder pendingCount = new LongAdder();
+	/** When the ticker thread will next wake up of its own accord. Anyone queueing a job before
+	 * this must wake it up. While it is awake, this is the time it last woke up, so queueing a
+	 * job normally doesn't need to wake it. */
+	private volatile long wakeAt;
+
+	// Only used by the ticker thread.
+	private final Timeout[] buckets = new Timeout[LEVELS * SLOTS];
+	private final int[] levelCounts = new int[LEVELS];
+	/** The next tick (millisecond) to process. */
+	private long currentTick;
+
+	public TimerWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		currentTick = System.currentTimeMillis();
+		wakeAt = currentTick;
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		tick(System.currentTimeMillis());
+		long now = System.currentTimeMillis();
+		long sleepTime = Math.min(MAX_SLEEP_TIME, nextTick() - now);
+		if(sleepTime > 0) {
+			wakeAt = now + sleepTime;
+			// Recheck after publishing wakeAt, in case a job was queued meanwhile.
+			if(inserted.isEmpty())
+				sleep(sleepTime);
+			// While we're awake, only jobs which are already overdue need to wake us.
+			wakeAt = now;
+		}
+	}
+
+	protected void sleep(long sleepTime) {
+		if(logMINOR)
+			Logger.minor(this, "Sleeping for " + sleepTime);
+		LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleepTime));
+	}
+
+	/** Run everything that is due at the given time. Only called by the ticker thread, or by
+	 * tests if it hasn't been started.
+	 * @return The number of jobs run or passed to the executor. */
+	int tick(long now) {
+		List<Timeout> jobsToRun = advance(now);
+		if(jobsToRun == null) return 0;
+		for(Timeout t : jobsToRun)
+			runJob(t);
+		return jobsToRun.size();
+	}
+
+	private void runJob(Timeout t) {
+		Runnable job = t.key.job;
+		if(logMINOR)
+			Logger.minor(this, "Running " + t);
+		if(job instanceof FastRunnable) {
+			// Run in-line
+			try {
+				job.run();
+			} catch(Throwable e) {
+				Logger.error(this, "Caught " + e + " running " + t, e);
+			}
+		} else {
+			try {
+				executor.execute(job, t.name, true);
+			} catch(Throwable e) {
+				Logger.error(this, "Caught in Ticker: " + e, e);
+				System.err.println("Caught in Ticker: " + e);
+				e.printStackTrace();
+				System.err.println("Will retry above failed operation...");
+				queueTimedJob(job, t.name, 200, true, false);
+			}
+		}
+	}
+
+	/**
+	 * Move newly queued jobs into the wheel, unlink cancelled jobs, and turn the wheel up to now.
+	 * Only called by the ticker thread.
+	 * @return The jobs to run, in order, or null.
+	 */
+	private List<Timeout> advance(long now) {
+		Timeout t;
+		while((t = cancelled.poll()) != null)
+			unlink(t);
+		// Don't let a flood of new jobs stop us running the ones that are due.
+		for(int i=0;i<MAX_INSERTS_PER_TICK && (t = inserted.poll()) != null;i++)
+			if(t.isPending() && t.bucket == -1) place(t);
+		List<Timeout> jobsToRun = null;
+		if(wheelEmpty() && now > currentTick) {
+			// Nothing to cascade, skip straight to now.
+			currentTick = now;
+		}
+		while(currentTick <= now) {
+			cascade();
+			int index = (int) (currentTick & SLOT_MASK);
+			while((t = buckets[index]) != null) {
+				unlink(t);
+				if(t.runAt > currentTick) {
+					// Was too far in the future for the wheel.
+					place(t);
+					continue;
+				}
+				if(expire(t)) {
+					if(jobsToRun == null) jobsToRun = new ArrayList<Timeout>();
+					jobsToRun.add(t);
+				}
+			}
+			currentTick++;
+			if(wheelEmpty() && now > currentTick) currentTick = now;
+		}
+		return jobsToRun;
+	}
+
+	/** If we have just entered a new rotation on any level, move the jobs in the bucket for it
+	 * down to lower levels, starting with the highest level so they cascade all the way. */
+	private void cascade() {
+		int top = 0;
+		for(int level=1;level<LEVELS;level++) {
+			long mask = (1L << (SLOT_BITS * level)) - 1;
+			if((currentTick & mask) != 0) break;
+			top = level;
+		}
+		for(int level=top;level>0;level--) {
+			if(levelCounts[level] == 0) continue;
+			int index = level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+			Timeout t;
+			while((t = buckets[index]) != null) {
+				unlink(t);
+				if(t.isPending()) place(t);
+			}
+		}
+	}
+
+	/** Put a job in the right bucket for its run time. */
+	private void place(Timeout t) {
+		long when = Math.max(t.runAt, currentTick);
+		long diff = when ^ currentTick;
+		int level = diff == 0 ? 0 : (63 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+		int slot;
+		if(level >= LEVELS) {
+			// Too far ahead. Park it in the last bucket and look again when we get there.
+			level = LEVELS - 1;
+			slot = (int) (((currentTick >>> (SLOT_BITS * level)) - 1) & SLOT_MASK);
+		} else {
+			slot = (int) ((when >>> (SLOT_BITS * level)) & SLOT_MASK);
+		}
+		int index = level * SLOTS + slot;
+		t.bucket = index;
+		t.prev = null;
+		t.next = buckets[index];
+		if(t.next != null) t.next.prev = t;
+		buckets[index] = t;
+		levelCounts[level]++;
+	}
+
+	private void unlink(Timeout t) {
+		int index = t.bucket;
+		if(index == -1) return;
+		if(t.prev != null)
+			t.prev.next = t.next;
+		else
+			buckets[index] = t.next;
+		if(t.next != null) t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		t.bucket = -1;
+		levelCounts[index / SLOTS]--;
+	}
+
+	private boolean wheelEmpty() {
+		for(int count : levelCounts)
+			if(count != 0) return false;
+		return true;
+	}
+
+	/** @return The earliest tick at which a job might be due, for deciding how long to sleep. */
+	private long nextTick() {
+		if(levelCounts[0] != 0) {
+			for(int i=0;i<SLOTS;i++) {
+				long tick = currentTick + i;
+				if(buckets[(int) (tick & SLOT_MASK)] != null) return tick;
+				if(((tick + 1) & SLOT_MASK) == 0) break; // Next rotation, need to cascade.
+			}
+		}
+		// Wake up to cascade at the start of the next level 0 rotation.
+		if(!wheelEmpty())
+			return (currentTick | SLOT_MASK) + 1;
+		return Long.MAX_VALUE;
+	}
+
+	/** Mark a job as run, and stop it being found by removeQueuedJob() or noDupes.
+	 * @return False if it has been cancelled. */
+	private boolean expire(final Timeout t) {
+		if(!STATE.compareAndSet(t, PENDING, EXPIRED)) return false;
+		pendingCount.decrement();
+		// Usually it has been queued again already, so check before locking.
+		if(registry.get(t.key) == t)
+			registry.remove(t.key, t);
+		return true;
+	}
+
+	private void cancel(Timeout t) {
+		if(STATE.compareAndSet(t, PENDING, CANCELLED)) {
+			pendingCount.decrement();
+			cancelled.add(t);
+		}
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time (offset in milliseconds from "now").
+	 * @see PrioritizedTicker#queueTimedJob(Runnable, String, long, boolean, boolean)
+	 */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		long now = System.currentTimeMillis();
+		if(offset < 0) offset = 0;
+		queueTimedJobInner(runner, name, now+offset, offset, runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		long now = System.currentTimeMillis();
+		queueTimedJobInner(runner, name, time, time-now, runOnTickerAnyway, noDupes);
+	}
+
+	private void queueTimedJobInner(Runnable runner, final String name, final long runJobAt, long offset,
+			boolean runOnTickerAnyway, final boolean noDupes) {
+		if(noDupes) runOnTickerAnyway = true;
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		final JobKey key = new JobKey(runner);
+		if(!noDupes) {
+			Timeout t = new Timeout(key, name, runJobAt);
+			pendingCount.increment();
+			registry.put(key, t);
+			inserted.add(t);
+			if(runJobAt < wakeAt)
+				wakeUp();
+			return;
+		}
+		final Timeout[] added = new Timeout[1];
+		registry.compute(key, (k, latest) -> {
+			if(latest != null && !latest.isPending()) latest = null;
+			if(latest != null) {
+				if(latest.runAt <= runJobAt) {
+					Logger.normal(this, "Not re-running as already queued: "+k.job+" for "+name);
+					return latest;
+				}
+				// Delete the existing job because the new job will run first.
+				cancel(latest);
+			}
+			Timeout t = new Timeout(k, name, runJobAt);
+			pendingCount.increment();
+			added[0] = t;
+			return t;
+		});
+		if(added[0] == null) return;
+		inserted.add(added[0]);
+		if(runJobAt < wakeAt)
+			wakeUp();
+	}
+
+	/** Wake up, and run any queued jobs. */
+	void wakeUp() {
+		LockSupport.unpark(myThread);
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** Remove the most recently queued instance of the job. It will not be run, even if it is
+	 * already due. */
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		Timeout t = registry.remove(new JobKey(runnable));
+		if(t != null)
+			cancel(t);
+	}
+
+	/** @return The number of jobs waiting to run. */
+	int queuedJobs() {
+		return pendingCount.intValue();
+	}
+
+}
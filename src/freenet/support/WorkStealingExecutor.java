@@ -0,0 +1,606 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor with a pool of threads for each priority, each thread having a small bounded deque of
+ * jobs. Unlike PooledExecutor, a job which arrives when every thread is busy doesn't get a new
+ * thread straight away: it is queued, and a thread which finishes its own job steals it. Only if
+ * the queued jobs aren't being picked up within MAX_QUEUE_DELAY (because the threads are blocked),
+ * or the deques are full, do we start more threads. So a burst of short jobs no longer creates
+ * thousands of threads which then die off a minute later.
+ *
+ * A thread which queues a job at its own priority pushes it onto its own deque and usually runs
+ * it next; other threads take the oldest job from someone else's deque. Threads only ever run jobs
+ * at their own priority, and are always started by the spawner thread, which runs at
+ * MAX_PRIORITY, so we can set the native priority of any thread we start, and we don't need the
+ * Ticker to start high priority threads for us.
+ *
+ * Optionally, jobs at LOW_PRIORITY or below are run on virtual threads instead, if the JVM
+ * supports them. Virtual threads don't have a native priority, but these jobs are mostly waiting
+ * for something else anyway.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum number of jobs queued on each thread. */
+	static final int DEQUE_SIZE = 32;
+	/** If no queued job has been started for this long, start more threads. */
+	static final long MAX_QUEUE_DELAY = 10;
+	/** Maximum time a thread will wait for a job */
+	static final long TIMEOUT = MINUTES.toMillis(1);
+
+	private final Level[] levels = new Level[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	/** Null unless we run low priority jobs on virtual threads. */
+	private final ThreadFactory virtualThreads;
+	private final NativeThread spawner;
+	private volatile boolean spawnerParked;
+	private final long startTime = System.currentTimeMillis();
+
+	// Statistics
+	private final LongAdder threadsCreated = new LongAdder();
+	private final LongAdder jobsStarted = new LongAdder();
+	private final LongAdder totalLatencyNanos = new LongAdder();
+
+	public WorkStealingExecutor() {
+		this(false);
+	}
+
+	/**
+	 * @param virtualLowPriority If true, and the JVM supports virtual threads, run jobs at
+	 * LOW_PRIORITY or below on virtual threads.
+	 */
+	public WorkStealingExecutor(boolean virtualLowPriority) {
+		for(int i = 0; i < levels.length; i++)
+			levels[i] = new Level(i + 1);
+		virtualThreads = virtualLowPriority ? makeVirtualThreadFactory() : null;
+		if(virtualLowPriority && virtualThreads == null)
+			Logger.normal(this, "Virtual threads not supported by this JVM, using normal threads for low priority jobs");
+		spawner = new NativeThread(new Runnable() {
+
+			@Override
+			public void run() {
+				runSpawner();
+			}
+
+		}, "Executor thread spawner", NativeThread.MAX_PRIORITY, false);
+		spawner.setDaemon(true);
+	}
+
+	/** @return A factory for virtual threads, or null if this JVM doesn't have them. We are
+	 * compiled for older JVMs, so we have to use reflection. */
+	private static ThreadFactory makeVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Virtual pooled thread ", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+	}
+
+	public void start() {
+		spawner.start();
+	}
+
+	/** @return True if low priority jobs are run on virtual threads. */
+	public boolean usingVirtualThreads() {
+		return virtualThreads != null;
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(job instanceof PrioRunnable)
+			prio = ((PrioRunnable) job).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + job + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		long now = System.nanoTime();
+		Level level = levels[prio - 1];
+		if(virtualThreads != null && prio <= NativeThread.LOW_PRIORITY) {
+			startVirtual(level, job, jobName, now);
+			return;
+		}
+		level.queued.incrementAndGet();
+		// An idle thread is the best place for it.
+		Worker w = level.pollIdle();
+		if(w != null && w.offer(job, jobName, now)) return;
+		// Next best is our own deque, since we'll probably run it next.
+		Thread current = Thread.currentThread();
+		boolean queued = false;
+		if(current instanceof Worker && ((Worker) current).level == level)
+			queued = ((Worker) current).offer(job, jobName, now);
+		if(!queued) {
+			Worker[] workers = level.workers;
+			int start = level.next++;
+			for(int i = 0; i < workers.length && !queued; i++) {
+				int x = (start + i) % workers.length;
+				if(x < 0) x += workers.length;
+				queued = workers[x].offer(job, jobName, now);
+			}
+		}
+		if(!queued) {
+			// No threads, or they are all full. Get some more now.
+			level.overflow.add(new Task(job, jobName, now));
+			LockSupport.unpark(spawner);
+			return;
+		}
+		// A thread may have become idle meanwhile.
+		w = level.pollIdle();
+		if(w != null)
+			w.wake();
+		else if(spawnerParked)
+			LockSupport.unpark(spawner);
+	}
+
+	private void startVirtual(final Level level, final Runnable job, final String jobName, final long queuedAt) {
+		level.virtualRunning.incrementAndGet();
+		try {
+			virtualThreads.newThread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						jobStarted(queuedAt);
+						job.run();
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " running job " + jobName, t);
+					} finally {
+						level.virtualRunning.decrementAndGet();
+					}
+				}
+
+			}).start();
+		} catch(Throwable t) {
+			level.virtualRunning.decrementAndGet();
+			Logger.error(this, "Unable to start virtual thread for " + jobName + ": " + t, t);
+			throw t;
+		}
+	}
+
+	private void jobStarted(long queuedAt) {
+		jobsStarted.increment();
+		totalLatencyNanos.add(System.nanoTime() - queuedAt);
+	}
+
+	/** Start threads for jobs which aren't being picked up. Runs on the spawner thread. */
+	private void runSpawner() {
+		while(true) {
+			try {
+				boolean waiting = false;
+				long now = System.currentTimeMillis();
+				for(Level level : levels)
+					waiting |= level.check(now);
+				if(waiting) {
+					LockSupport.parkNanos(this, MILLISECONDS.toNanos(MAX_QUEUE_DELAY));
+				} else {
+					spawnerParked = true;
+					// Recheck after publishing spawnerParked, in case a job was queued meanwhile.
+					if(!anyQueued())
+						LockSupport.park(this);
+					spawnerParked = false;
+				}
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in executor thread spawner: " + t, t);
+			}
+		}
+	}
+
+	private boolean anyQueued() {
+		for(Level level : levels)
+			if(level.queued.get() > 0) return true;
+		return false;
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[levels.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = Math.max(0, levels[i].workers.length - levels[i].idleCount.get()) + levels[i].virtualRunning.get();
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[levels.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = levels[i].idleCount.get();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		int count = 0;
+		for(Level level : levels)
+			count += level.idleCount.get();
+		return count;
+	}
+
+	@Override
+	public int getQueuedJobsCount() {
+		int count = 0;
+		for(Level level : levels)
+			count += Math.max(0, level.queued.get());
+		return count;
+	}
+
+	@Override
+	public double getAverageJobLatency() {
+		long jobs = jobsStarted.sum();
+		if(jobs == 0) return 0.0;
+		return totalLatencyNanos.sum() / (jobs * 1000.0 * 1000.0);
+	}
+
+	@Override
+	public double getThreadCreationRate() {
+		long uptime = System.currentTimeMillis() - startTime;
+		if(uptime <= 0) return 0.0;
+		return threadsCreated.sum() * (double) MINUTES.toMillis(1) / uptime;
+	}
+
+	/** A job which didn't fit in any deque. */
+	private static final class Task {
+		final Runnable job;
+		final String name;
+		final long queuedAt;
+
+		Task(Runnable job, String name, long queuedAt) {
+			this.job = job;
+			this.name = name;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	/** The threads and jobs for one priority. */
+	private final class Level {
+		final int prio;
+		/** All live threads, for stealing from. Copy on write, protected by this. */
+		volatile Worker[] workers = new Worker[0];
+		/** Idle threads, most recently idle first, so we keep reusing the same few. */
+		private final ConcurrentLinkedDeque<Worker> idle = new ConcurrentLinkedDeque<Worker>();
+		final AtomicInteger idleCount = new AtomicInteger();
+		/** Jobs which arrived when all the deques were full. */
+		final ConcurrentLinkedQueue<Task> overflow = new ConcurrentLinkedQueue<Task>();
+		/** Jobs queued, including overflow, and not yet started. */
+		final AtomicInteger queued = new AtomicInteger();
+		final LongAdder started = new LongAdder();
+		final AtomicInteger virtualRunning = new AtomicInteger();
+		/** Threads started by the spawner which haven't taken a job yet. */
+		final AtomicInteger starting = new AtomicInteger();
+		/** Round robin index for queueing jobs. Races don't matter. */
+		int next;
+		private long threadCounter;
+
+		// Only used by the spawner thread.
+		private boolean watching;
+		private long watchStarted;
+		private long watchQueued;
+		private long watchTime;
+
+		Level(int prio) {
+			this.prio = prio;
+		}
+
+		Worker pollIdle() {
+			Worker w = idle.pollFirst();
+			if(w != null) idleCount.decrementAndGet();
+			return w;
+		}
+
+		void pushIdle(Worker w) {
+			idle.addFirst(w);
+			idleCount.incrementAndGet();
+		}
+
+		boolean removeIdle(Worker w) {
+			if(!idle.remove(w)) return false;
+			idleCount.decrementAndGet();
+			return true;
+		}
+
+		/**
+		 * Called periodically by the spawner while jobs are queued. If there are idle threads,
+		 * wake them up to steal the jobs. Otherwise, if the jobs have overflowed, or no queued job
+		 * has been started in the last MAX_QUEUE_DELAY, start a thread for each of them. If jobs
+		 * are being started but the queue is still growing, and is longer than the threads can get
+		 * through in MAX_QUEUE_DELAY, start enough threads to cover the growth.
+		 * @return True if jobs are still waiting.
+		 */
+		boolean check(long now) {
+			int waiting = queued.get() - starting.get();
+			if(waiting <= 0) {
+				watching = false;
+				return queued.get() > 0;
+			}
+			long startedNow = started.sum();
+			boolean overflowed = !overflow.isEmpty();
+			if(!watching) {
+				watching = true;
+				watchStarted = startedNow;
+				watchQueued = waiting;
+				watchTime = now;
+				if(!overflowed) return true;
+			}
+			if(!overflowed && now - watchTime < MAX_QUEUE_DELAY) return true;
+			int wanted;
+			if(overflowed || startedNow == watchStarted)
+				wanted = waiting;
+			else if(waiting <= startedNow - watchStarted)
+				// The threads we have will get through it within MAX_QUEUE_DELAY. Short bursts of
+				// jobs make the queue length jump about, that doesn't mean it is growing.
+				wanted = 0;
+			else
+				// Making progress, but maybe not fast enough.
+				wanted = (int) Math.max(0, waiting - watchQueued);
+			int woken = 0;
+			Worker w;
+			while(woken < wanted && (w = pollIdle()) != null) {
+				w.wake();
+				woken++;
+			}
+			for(int i = woken; i < wanted; i++)
+				spawn();
+			watchStarted = startedNow;
+			watchQueued = waiting;
+			watchTime = now;
+			return true;
+		}
+
+		private void spawn() {
+			long threadNo;
+			synchronized(this) {
+				threadNo = threadCounter++;
+			}
+			// Will be coalesced by thread count listings if we use "@" or "for"
+			Worker w = new Worker(this, "Pooled thread awaiting work @" + threadNo + " for prio " + prio, threadNo);
+			w.setDaemon(true);
+			synchronized(this) {
+				Worker[] newWorkers = new Worker[workers.length + 1];
+				System.arraycopy(workers, 0, newWorkers, 0, workers.length);
+				newWorkers[workers.length] = w;
+				workers = newWorkers;
+			}
+			starting.incrementAndGet();
+			threadsCreated.increment();
+			if(logMINOR)
+				Logger.minor(this, "Starting thread " + threadNo + " for prio " + prio + " with " + queued.get() + " jobs queued");
+			w.start();
+		}
+
+		synchronized void remove(Worker w) {
+			int x = -1;
+			for(int i = 0; i < workers.length; i++)
+				if(workers[i] == w) x = i;
+			if(x == -1) return;
+			Worker[] newWorkers = new Worker[workers.length - 1];
+			System.arraycopy(workers, 0, newWorkers, 0, x);
+			System.arraycopy(workers, x + 1, newWorkers, x, newWorkers.length - x);
+			workers = newWorkers;
+		}
+	}
+
+	/**
+	 * A pooled thread and its deque of jobs. The deque is a fixed size ring buffer, so queueing a
+	 * job doesn't allocate anything. The thread takes its newest job first, other threads steal
+	 * the oldest.
+	 */
+	private final class Worker extends NativeThread {
+		final Level level;
+		final String defaultName;
+		final long threadNo;
+
+		// Protected by this.
+		private final Runnable[] jobs = new Runnable[DEQUE_SIZE];
+		private final String[] names = new String[DEQUE_SIZE];
+		private final long[] queuedAt = new long[DEQUE_SIZE];
+		private int head;
+		private int count;
+		private boolean woken;
+		private boolean exiting;
+
+		// The job we are about to run. Only used by this thread.
+		private Runnable job;
+		private String jobName;
+		private long jobQueuedAt;
+
+		Worker(Level level, String defaultName, long threadNo) {
+			super(defaultName, level.prio, false);
+			this.level = level;
+			this.defaultName = defaultName;
+			this.threadNo = threadNo;
+		}
+
+		/** Queue a job on this thread. Caller must have incremented level.queued.
+		 * @return False if the deque is full or the thread is exiting. */
+		synchronized boolean offer(Runnable job, String name, long time) {
+			if(count == DEQUE_SIZE || exiting) return false;
+			int x = (head + count) % DEQUE_SIZE;
+			jobs[x] = job;
+			names[x] = name;
+			queuedAt[x] = time;
+			count++;
+			notifyAll();
+			return true;
+		}
+
+		/** Wake up and look for jobs to steal. */
+		synchronized void wake() {
+			woken = true;
+			notifyAll();
+		}
+
+		/** Take our newest job. */
+		private synchronized boolean takeOwn() {
+			if(count == 0) return false;
+			count--;
+			int x = (head + count) % DEQUE_SIZE;
+			job = jobs[x];
+			jobName = names[x];
+			jobQueuedAt = queuedAt[x];
+			jobs[x] = null;
+			names[x] = null;
+			return true;
+		}
+
+		/** Give our oldest job to another thread. */
+		private synchronized boolean stealInto(Worker thief) {
+			if(count == 0) return false;
+			thief.job = jobs[head];
+			thief.jobName = names[head];
+			thief.jobQueuedAt = queuedAt[head];
+			jobs[head] = null;
+			names[head] = null;
+			head = (head + 1) % DEQUE_SIZE;
+			count--;
+			return true;
+		}
+
+		private boolean steal() {
+			Task task = level.overflow.poll();
+			if(task != null) {
+				job = task.job;
+				jobName = task.name;
+				jobQueuedAt = task.queuedAt;
+				return true;
+			}
+			Worker[] workers = level.workers;
+			if(workers.length < 2) return false;
+			int start = (int) (threadNo % workers.length);
+			for(int i = 0; i < workers.length; i++) {
+				Worker w = workers[(start + i) % workers.length];
+				if(w != this && w.stealInto(this)) return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void realRun() {
+			try {
+				innerRun();
+			} finally {
+				synchronized(this) {
+					exiting = true;
+				}
+				level.remove(this);
+			}
+		}
+
+		private void innerRun() {
+			boolean first = true;
+			long ranJobs = 0;
+			while(true) {
+				boolean found = takeOwn() || steal();
+				if(first) {
+					level.starting.decrementAndGet();
+					first = false;
+				}
+				if(found) {
+					runJob();
+					ranJobs++;
+					continue;
+				}
+				if(!waitForJob()) {
+					if(logMINOR)
+						Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+					return;
+				}
+			}
+		}
+
+		private void runJob() {
+			level.queued.decrementAndGet();
+			level.started.increment();
+			jobStarted(jobQueuedAt);
+			Runnable r = job;
+			job = null;
+			try {
+				setName(jobName + "(" + threadNo + ")");
+				r.run();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught " + t + " running job " + jobName, t);
+			}
+			jobName = null;
+		}
+
+		/** Wait until we are given a job or woken up to steal one.
+		 * @return False if we have timed out and should exit. */
+		private boolean waitForJob() {
+			synchronized(this) {
+				if(count > 0) return true;
+				woken = false;
+				level.pushIdle(this);
+			}
+			// A job may have been queued somewhere else just before we became idle.
+			if(level.queued.get() > level.starting.get() && level.removeIdle(this))
+				return true;
+			synchronized(this) {
+				setName(defaultName);
+				long deadline = System.currentTimeMillis() + TIMEOUT;
+				while(count == 0 && !woken) {
+					long wait = deadline - System.currentTimeMillis();
+					if(wait <= 0) {
+						// If we can't remove ourselves, somebody is about to give us a job.
+						if(level.removeIdle(this)) {
+							exiting = true;
+							return false;
+						}
+						wait = TIMEOUT;
+						deadline = System.currentTimeMillis() + wait;
+					}
+					try {
+						wait(wait);
+					} catch(InterruptedException e) {
+						// Ignore
+					}
+				}
+				woken = false;
+			}
+			// Somebody may have queued a job on us without taking us off the idle list.
+			level.removeIdle(this);
+			return true;
+		}
+	}
+
+}
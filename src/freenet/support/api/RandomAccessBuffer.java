@@ -30,6 +30,26 @@ public interface RandomAccessBuffer extends Closeable {
 	
 	public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException;
 
+	/** Read several blocks in one call, each filling a whole buffer. Same guarantees as pread().
+	 * Implementations backed by a file should override this to read blocks which are next to
+	 * each other in the file in one go, e.g. all the blocks of a segment.
+	 * @param fileOffsets The offset within the file to read each buffer from.
+	 * @param bufs The buffers to read into. Must be the same length as fileOffsets.
+	 * @throws IOException If we were unable to read any of the blocks.
+	 * @throws IllegalArgumentException If any offset is negative. */
+	public default void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+		if(fileOffsets.length != bufs.length) throw new IllegalArgumentException();
+		for(int i=0;i<bufs.length;i++)
+			pread(fileOffsets[i], bufs[i], 0, bufs[i].length);
+	}
+
+	/** Write several blocks in one call. The counterpart of preadv(). */
+	public default void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+		if(fileOffsets.length != bufs.length) throw new IllegalArgumentException();
+		for(int i=0;i<bufs.length;i++)
+			pwrite(fileOffsets[i], bufs[i], 0, bufs[i].length);
+	}
+
 	@Override
 	public void close();
 	
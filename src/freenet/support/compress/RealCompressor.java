@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support.compress;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -18,6 +19,8 @@ import freenet.support.io.NativeThread;
 
 public class RealCompressor {
     private final ExecutorService executorService;
+    /** Whether there is more than one compressor thread to share codecs between. */
+    private final boolean parallelTrials;
     private ClientContext context;
 
     private static volatile boolean logMINOR;
@@ -26,8 +29,19 @@ public class RealCompressor {
     }
 
     public RealCompressor() {
-        this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
-                                                            new CompressorThreadFactory());
+        int threads = getMaxRunningCompressionThreads();
+        this.executorService = Executors.newFixedThreadPool(threads, new CompressorThreadFactory());
+        this.parallelTrials = threads > 1;
+    }
+
+    /**
+     * @return An executor for running several codecs on the same data at once, or null if we
+     * should only run one at a time. This is the compressor threads' own executor, so trials
+     * don't add any threads. A job waiting for codecs on it doesn't deadlock, because it runs any
+     * codec which hasn't started yet itself.
+     */
+    public Executor getTrialExecutor() {
+        return parallelTrials ? executorService : null;
     }
 
     public void setClientContext(ClientContext context) {
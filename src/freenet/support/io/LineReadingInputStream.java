@@ -78,6 +78,74 @@ public class LineReadingInputStream extends FilterInputStream implements LineRea
 		}
 	}
 
+	/** Returned by readLineBytes() if the line doesn't fit in the buffer. */
+	public static final int BUFFER_TOO_SMALL = -2;
+
+	/**
+	 * Read a \n or \r\n terminated line without decoding it, so the caller can parse it without
+	 * creating a String.
+	 * @param buf The buffer to read the line into, after offset. If mark() is not supported, it
+	 * must have room for maxLength + 2 bytes.
+	 * @param maxLength The maximum length of a line. If a line is longer than this, we throw
+	 * TooLongException.
+	 * @return The length of the line, not including the \n or \r\n, or -1 at the end of the
+	 * stream. At the end of the stream the last line doesn't need a terminator. Or
+	 * BUFFER_TOO_SMALL if the line doesn't fit, in which case nothing has been consumed, and
+	 * the caller can try again with a bigger buffer.
+	 */
+	public int readLineBytes(byte[] buf, int offset, int maxLength) throws IOException {
+		int room = Math.min(maxLength + 2, buf.length - offset);
+		if(!markSupported()) {
+			if(room < maxLength + 2)
+				throw new IllegalArgumentException();
+			return readLineBytesWithoutMarking(buf, offset, maxLength);
+		}
+		int ctr = 0;
+		mark(maxLength + 2); // in case we have both a \r and a \n
+		while(true) {
+			if(ctr == room) {
+				// Can only happen if the buffer is smaller than maxLength + 2.
+				reset();
+				return BUFFER_TOO_SMALL;
+			}
+			int x = read(buf, offset + ctr, room - ctr);
+			if(x < 0)
+				return ctr == 0 ? -1 : ctr;
+			if(x == 0)
+				throw new EOFException();
+			int end = ctr + x;
+			for(; ctr < end; ctr++) {
+				if(buf[offset + ctr] == '\n') {
+					int length = ctr;
+					if(ctr != 0 && buf[offset + ctr - 1] == '\r')
+						length--;
+					reset();
+					skip(ctr + 1);
+					return length;
+				}
+				if(ctr >= maxLength)
+					throw new TooLongException("We reached maxLength="+maxLength+ " parsing\n "+HexUtil.bytesToHex(buf, offset, ctr));
+			}
+		}
+	}
+
+	private int readLineBytesWithoutMarking(byte[] buf, int offset, int maxLength) throws IOException {
+		int ctr = 0;
+		while(true) {
+			int x = read();
+			if(x == -1)
+				return ctr == 0 ? -1 : ctr;
+			if(x == '\n') {
+				if(ctr != 0 && buf[offset + ctr - 1] == '\r')
+					ctr--;
+				return ctr;
+			}
+			if(ctr >= maxLength)
+				throw new TooLongException("We reached maxLength="+maxLength+ " parsing\n "+HexUtil.bytesToHex(buf, offset, ctr));
+			buf[offset + ctr++] = (byte) x;
+		}
+	}
+
 	protected String readLineWithoutMarking(int maxLength, int bufferSize, boolean utf) throws IOException {
 		if(maxLength < bufferSize)
 			bufferSize = maxLength + 1; // Buffer too big, shrink it (add 1 for the optional \r)
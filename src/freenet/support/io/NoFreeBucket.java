@@ -70,6 +70,11 @@ public class NoFreeBucket implements Bucket, Serializable {
 		// Do nothing.
 	}
 
+	/** @return The Bucket we wrap, e.g. so it can be read in place. It must not be freed. */
+	public Bucket getProxy() {
+		return proxy;
+	}
+
 	@Override
 	public Bucket createShadow() {
 		return proxy.createShadow();
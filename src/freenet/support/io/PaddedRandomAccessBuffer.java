@@ -39,6 +39,25 @@ public class PaddedRandomAccessBuffer implements LockableRandomAccessBuffer, Ser
         raf.pwrite(fileOffset, buf, bufOffset, length);
     }
 
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        checkLimit(fileOffsets, bufs);
+        raf.preadv(fileOffsets, bufs);
+    }
+
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        checkLimit(fileOffsets, bufs);
+        raf.pwritev(fileOffsets, bufs);
+    }
+
+    private void checkLimit(long[] fileOffsets, byte[][] bufs) throws IOException {
+        if(fileOffsets.length != bufs.length) throw new IllegalArgumentException();
+        for(int i=0;i<bufs.length;i++)
+            if(fileOffsets[i] + bufs[i].length > realSize)
+                throw new IOException("Length limit exceeded");
+    }
+
     @Override
     public void close() {
         raf.close();
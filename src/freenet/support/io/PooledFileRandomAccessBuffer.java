@@ -2,11 +2,17 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Random;
@@ -17,6 +23,8 @@ import freenet.support.WrapperKeepalive;
 import freenet.support.api.LockableRandomAccessBuffer;
 
 /** Random access files with a limited number of open files, using a pool.
+ * Reads and writes use positional I/O on the FileChannel, so they don't need to lock the object and
+ * can run in parallel.
  * LOCKING OPTIMISATION: Contention on DEFAULT_FDTRACKER likely here. It's not clear how to avoid that, FIXME.
  * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ...
  *
@@ -29,6 +37,15 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     }
 
     private static final long serialVersionUID = 1L;
+    /** Maximum size of the direct buffer used to read or write a run of adjacent blocks. */
+    static final int MAX_BULK_BUFFER = 256 * 1024;
+    /** Maximum number of direct buffers for runs of blocks. If they are all in use, we use a
+     * heap buffer. */
+    static final int MAX_BULK_BUFFERS = 4;
+    /** Direct buffers which are not in use. LOCKING: Synchronized on itself. */
+    private static final ArrayDeque<ByteBuffer> bulkBuffers = new ArrayDeque<ByteBuffer>();
+    /** LOCKING: Synchronized on bulkBuffers. */
+    private static int bulkBuffersCreated;
 
     static class FDTracker implements Serializable {
         private int maxOpenFDs;
@@ -65,6 +82,12 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     /** The actual RAF. Non-null only if open. LOCKING: Synchronized on (this).
      * LOCKING: Always take (this) last, i.e. after fds. */
     private transient RandomAccessFile raf;
+    /** raf's channel. Non-null only if open. LOCKING: Set and cleared with raf, synchronized on
+     * fds. Safe to use without a lock while we hold a RAFLock. */
+    private transient volatile FileChannel channel;
+    /** The mode raf was opened with, so we can open it again if the channel is closed under us.
+     * LOCKING: Synchronized on fds. */
+    private transient String rafMode;
     private final long length;
     private boolean closed;
     /** -1 = not persistent-temp. Otherwise the ID. We need the ID so we can move files if the
@@ -115,6 +138,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             synchronized(this) {
                 raf.close();
                 raf = null;
+                channel = null;
             }
             throw e;
         }
@@ -137,6 +161,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             synchronized(this) {
                 raf.close();
                 raf = null;
+                channel = null;
             }
             throw e;
         }
@@ -168,11 +193,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         if(fileOffset < 0) throw new IllegalArgumentException();
         RAFLock lock = lockOpen();
         try {
-            // FIXME Use NIO! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.readFully(buf, bufOffset, length);
-            }
+            readFully(fileOffset, ByteBuffer.wrap(buf, bufOffset, length));
         } finally {
             lock.unlock();
         }
@@ -186,13 +207,183 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         try {
             if(fileOffset + length > this.length)
                 throw new IOException("Length limit exceeded");
-            // FIXME Use NIO (which has proper pwrite, with concurrency)! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.write(buf, bufOffset, length);
+            writeFully(fileOffset, ByteBuffer.wrap(buf, bufOffset, length));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocks which are next to each other in the file are read with a single read. */
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        checkBlocks(fileOffsets, bufs, false);
+        RAFLock lock = lockOpen();
+        ByteBuffer bulk = null;
+        try {
+            for(int start = 0; start < bufs.length;) {
+                int end = endOfRun(fileOffsets, bufs, start);
+                if(end == start + 1) {
+                    readFully(fileOffsets[start], ByteBuffer.wrap(bufs[start]));
+                } else {
+                    if(bulk == null) bulk = takeBulkBuffer();
+                    long fileOffset = fileOffsets[start];
+                    int block = start;
+                    int pos = 0;
+                    while(block < end) {
+                        bulk.clear();
+                        bulk.limit((int) Math.min(bulk.capacity(), fileOffsets[end - 1] + bufs[end - 1].length - fileOffset));
+                        readFully(fileOffset, bulk);
+                        fileOffset += bulk.position();
+                        bulk.flip();
+                        while(bulk.hasRemaining()) {
+                            int copy = Math.min(bulk.remaining(), bufs[block].length - pos);
+                            bulk.get(bufs[block], pos, copy);
+                            pos += copy;
+                            if(pos == bufs[block].length) {
+                                block++;
+                                pos = 0;
+                            }
+                        }
+                    }
+                }
+                start = end;
             }
         } finally {
             lock.unlock();
+            if(bulk != null) returnBulkBuffer(bulk);
+        }
+    }
+
+    /** Blocks which are next to each other in the file are written with a single write. */
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        if(readOnly) throw new IOException("Read only");
+        checkBlocks(fileOffsets, bufs, true);
+        RAFLock lock = lockOpen();
+        ByteBuffer bulk = null;
+        try {
+            for(int start = 0; start < bufs.length;) {
+                int end = endOfRun(fileOffsets, bufs, start);
+                if(end == start + 1) {
+                    writeFully(fileOffsets[start], ByteBuffer.wrap(bufs[start]));
+                } else {
+                    if(bulk == null) bulk = takeBulkBuffer();
+                    long fileOffset = fileOffsets[start];
+                    int block = start;
+                    int pos = 0;
+                    while(block < end) {
+                        bulk.clear();
+                        while(bulk.hasRemaining() && block < end) {
+                            int copy = Math.min(bulk.remaining(), bufs[block].length - pos);
+                            bulk.put(bufs[block], pos, copy);
+                            pos += copy;
+                            if(pos == bufs[block].length) {
+                                block++;
+                                pos = 0;
+                            }
+                        }
+                        bulk.flip();
+                        int written = bulk.remaining();
+                        writeFully(fileOffset, bulk);
+                        fileOffset += written;
+                    }
+                }
+                start = end;
+            }
+        } finally {
+            lock.unlock();
+            if(bulk != null) returnBulkBuffer(bulk);
+        }
+    }
+
+    private void checkBlocks(long[] fileOffsets, byte[][] bufs, boolean write) throws IOException {
+        if(fileOffsets.length != bufs.length) throw new IllegalArgumentException();
+        for(int i=0;i<bufs.length;i++) {
+            if(fileOffsets[i] < 0) throw new IllegalArgumentException();
+            if(write && fileOffsets[i] + bufs[i].length > this.length)
+                throw new IOException("Length limit exceeded");
+        }
+    }
+
+    /** @return The index after the last block which directly follows the one before it in the
+     * file, starting at start. */
+    private static int endOfRun(long[] fileOffsets, byte[][] bufs, int start) {
+        int end = start + 1;
+        while(end < bufs.length && fileOffsets[end] == fileOffsets[end - 1] + bufs[end - 1].length)
+            end++;
+        return end;
+    }
+
+    private static ByteBuffer takeBulkBuffer() {
+        synchronized(bulkBuffers) {
+            ByteBuffer buf = bulkBuffers.pollFirst();
+            if(buf != null) return buf;
+            if(bulkBuffersCreated < MAX_BULK_BUFFERS) {
+                bulkBuffersCreated++;
+                return ByteBuffer.allocateDirect(MAX_BULK_BUFFER);
+            }
+        }
+        return ByteBuffer.allocate(MAX_BULK_BUFFER);
+    }
+
+    private static void returnBulkBuffer(ByteBuffer buf) {
+        if(!buf.isDirect()) return;
+        synchronized(bulkBuffers) {
+            bulkBuffers.addFirst(buf);
+        }
+    }
+
+    /** Must hold a RAFLock. */
+    private void readFully(long fileOffset, ByteBuffer buf) throws IOException {
+        FileChannel fc = channel;
+        while(buf.hasRemaining()) {
+            int read;
+            try {
+                read = fc.read(buf, fileOffset);
+            } catch (ClosedChannelException e) {
+                fc = reopen(fc, e);
+                continue;
+            }
+            if(read == -1) throw new EOFException();
+            fileOffset += read;
+        }
+    }
+
+    /** Must hold a RAFLock. */
+    private void writeFully(long fileOffset, ByteBuffer buf) throws IOException {
+        FileChannel fc = channel;
+        while(buf.hasRemaining()) {
+            try {
+                fileOffset += fc.write(buf, fileOffset);
+            } catch (ClosedChannelException e) {
+                fc = reopen(fc, e);
+            }
+        }
+    }
+
+    /**
+     * The channel has been closed under us, which happens when a thread using it is interrupted.
+     * Open the file again, so that only the interrupted thread fails. Must hold a RAFLock, so
+     * nobody can close the file in the meantime.
+     * @param closed The channel which was closed.
+     * @return The channel to retry with.
+     * @throws ClosedChannelException If this thread was interrupted.
+     */
+    private FileChannel reopen(FileChannel closed, ClosedChannelException e) throws IOException {
+        synchronized(fds) {
+            if(channel == closed) {
+                if(logMINOR) Logger.minor(this, "Reopening "+this+" after "+e);
+                try {
+                    raf.close();
+                } catch (IOException e1) {
+                    // Already closed.
+                }
+                raf = new RandomAccessFile(file, rafMode);
+                channel = raf.getChannel();
+            }
+            if(e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted())
+                throw e;
+            return channel;
         }
     }
 
@@ -232,7 +423,9 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                     lockLevel++; // Already open, may or may not be already locked.
                     return lock;
                 } else if(fds.totalOpenFDs < fds.maxOpenFDs) {
-                    raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
+                    rafMode = (readOnly && !forceWrite) ? "r" : "rw";
+                    raf = new RandomAccessFile(file, rafMode);
+                    channel = raf.getChannel();
                     lockLevel++;
                     fds.totalOpenFDs++;
                     return lock;
@@ -275,6 +468,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                 Logger.error(this, "Error closing "+this+" : "+e, e);
             }
             raf = null;
+            channel = null;
             fds.totalOpenFDs--;
         }
     }
@@ -66,6 +66,38 @@ abstract class SwitchableProxyRandomAccessBuffer implements LockableRandomAccess
         }
     }
 
+    @Override
+    public void preadv(long[] fileOffsets, byte[][] bufs) throws IOException {
+        checkBlocks(fileOffsets, bufs, "read");
+        try {
+            lock.readLock().lock();
+            if(underlying == null || closed) throw new IOException("Already closed");
+            underlying.preadv(fileOffsets, bufs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void pwritev(long[] fileOffsets, byte[][] bufs) throws IOException {
+        checkBlocks(fileOffsets, bufs, "write");
+        try {
+            lock.readLock().lock();
+            if(underlying == null || closed) throw new IOException("Already closed");
+            underlying.pwritev(fileOffsets, bufs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void checkBlocks(long[] fileOffsets, byte[][] bufs, String op) throws IOException {
+        if(fileOffsets.length != bufs.length) throw new IllegalArgumentException();
+        for(int i=0;i<bufs.length;i++) {
+            if(fileOffsets[i] < 0) throw new IllegalArgumentException();
+            if(fileOffsets[i]+bufs[i].length > size) throw new IOException("Tried to "+op+" past end of file");
+        }
+    }
+
     @Override
     public void close() {
         try {
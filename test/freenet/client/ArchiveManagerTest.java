@@ -0,0 +1,237 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Test;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.ByteArrayRandomAccessBuffer;
+
+public class ArchiveManagerTest {
+
+	private static final FreenetURI KEY1;
+	private static final FreenetURI KEY2;
+
+	static {
+		try {
+			KEY1 = new FreenetURI("KSK@archive1");
+			KEY2 = new FreenetURI("KSK@archive2");
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static class Callback implements ArchiveExtractCallback {
+		private static final long serialVersionUID = 1L;
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			fail();
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			fail();
+		}
+	}
+
+	private static byte[] content(String name, int length) {
+		byte[] buf = new byte[length];
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		for(int i = 0; i < length; i++)
+			buf[i] = n[i % n.length];
+		return buf;
+	}
+
+	private static Bucket tar(String[] names, int[] lengths) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tos = new TarArchiveOutputStream(baos);
+		for(int i = 0; i < names.length; i++) {
+			TarArchiveEntry entry = new TarArchiveEntry(names[i]);
+			entry.setSize(lengths[i]);
+			tos.putArchiveEntry(entry);
+			tos.write(content(names[i], lengths[i]));
+			tos.closeArchiveEntry();
+		}
+		tos.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private static Bucket zip(String[] names, int[] lengths) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		for(int i = 0; i < names.length; i++) {
+			zos.putNextEntry(new ZipEntry(names[i]));
+			zos.write(content(names[i], lengths[i]));
+			zos.closeEntry();
+		}
+		zos.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private static ArchiveManager manager(long maxCachedData, int maxCachedElements) {
+		return new ArchiveManager(10, maxCachedData, 1000, maxCachedElements, new ArrayBucketFactory());
+	}
+
+	private static Callback extract(ArchiveManager manager, FreenetURI key, ARCHIVE_TYPE type, Bucket data, String element) throws ArchiveFailureException, ArchiveRestartException {
+		Callback cb = new Callback();
+		ArchiveStoreContext ctx = manager.makeContext(key, type, null, false);
+		manager.extractToCache(key, type, null, data, new ArchiveContext(1 << 20, 1), ctx, element, cb, null);
+		return cb;
+	}
+
+	private static void assertContent(String name, int length, Bucket data) throws IOException {
+		assertNotNull(name, data);
+		assertArrayEquals(name, content(name, length), BucketTools.toByteArray(data));
+		data.free();
+	}
+
+	@Test
+	public void testTAR() throws Exception {
+		ArchiveManager manager = manager(1 << 20, 100);
+		String[] names = { "index.html", "dir/style.css", "empty" };
+		int[] lengths = { 500, 700, 0 };
+		Callback cb = extract(manager, KEY1, ARCHIVE_TYPE.TAR, tar(names, lengths), "dir/style.css");
+		assertContent("dir/style.css", 700, cb.data);
+		for(int i = 0; i < names.length; i++)
+			assertContent(names[i], lengths[i], manager.getCached(KEY1, names[i]));
+		assertNull(manager.getCached(KEY1, "missing"));
+		// Generated, as the archive doesn't have any.
+		assertNotNull(manager.getCached(KEY1, ArchiveManager.METADATA_NAME));
+	}
+
+	@Test
+	public void testZIP() throws Exception {
+		ArchiveManager manager = manager(1 << 20, 100);
+		String[] names = { "a.txt", "b.txt" };
+		int[] lengths = { 300, 5000 };
+		Callback cb = extract(manager, KEY1, ARCHIVE_TYPE.ZIP, zip(names, lengths), "missing");
+		assertNull(cb.data);
+		assertTrue(cb.notInArchive);
+		assertContent("a.txt", 300, manager.getCached(KEY1, "a.txt"));
+		// Too big to cache: has to be fetched again.
+		assertNull(manager.getCached(KEY1, "b.txt"));
+	}
+
+	@Test
+	public void testTooBigElementRequested() throws Exception {
+		ArchiveManager manager = manager(1 << 20, 100);
+		Callback cb = extract(manager, KEY1, ARCHIVE_TYPE.TAR, tar(new String[] { "big" }, new int[] { 5000 }), "big");
+		assertContent("big", 5000, cb.data);
+		assertNull(manager.getCached(KEY1, "big"));
+	}
+
+	@Test
+	public void testArchiveTooBigToCache() throws Exception {
+		ArchiveManager manager = manager(1500, 100);
+		extract(manager, KEY1, ARCHIVE_TYPE.TAR, tar(new String[] { "small" }, new int[] { 100 }), null);
+		String[] names = { "a", "b", "c", "d" };
+		int[] lengths = { 600, 600, 600, 600 };
+		// Stored before we knew it was too big.
+		Callback cb = extract(manager, KEY2, ARCHIVE_TYPE.TAR, tar(names, lengths), "a");
+		assertContent("a", 600, cb.data);
+		// Copied on its own.
+		cb = extract(manager, KEY2, ARCHIVE_TYPE.TAR, tar(names, lengths), "d");
+		assertContent("d", 600, cb.data);
+		cb = extract(manager, KEY2, ARCHIVE_TYPE.TAR, tar(names, lengths), "missing");
+		assertTrue(cb.notInArchive);
+		// Generated from all the names, including those we didn't store.
+		cb = extract(manager, KEY2, ARCHIVE_TYPE.TAR, tar(names, lengths), ArchiveManager.METADATA_NAME);
+		assertNotNull(cb.data);
+		cb.data.free();
+		// Not cached, and didn't push anything else out.
+		assertNull(manager.getCached(KEY2, "a"));
+		assertContent("small", 100, manager.getCached(KEY1, "small"));
+	}
+
+	@Test
+	public void testWholeArchivesDropped() throws Exception {
+		ArchiveManager manager = manager(1500, 100);
+		extract(manager, KEY1, ARCHIVE_TYPE.TAR, tar(new String[] { "a", "b" }, new int[] { 400, 400 }), null);
+		Bucket reader = manager.getCached(KEY1, "a");
+		extract(manager, KEY2, ARCHIVE_TYPE.TAR, tar(new String[] { "c", "d" }, new int[] { 400, 400 }), null);
+		// Over the limit, so the first archive is dropped as a whole.
+		assertNull(manager.getCached(KEY1, "b"));
+		assertContent("c", 400, manager.getCached(KEY2, "c"));
+		// But a reader which was already open still works.
+		assertContent("a", 400, reader);
+	}
+
+	@Test
+	public void testDataFreedAfterLastReader() throws Exception {
+		final boolean[] freed = new boolean[1];
+		IndexedArchive archive = new IndexedArchive(KEY1);
+		archive.addElement("a", 0, 10);
+		archive.setData(new ByteArrayRandomAccessBuffer(20) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void free() {
+				assertFalse("Freed twice", freed[0]);
+				freed[0] = true;
+				super.free();
+			}
+		});
+		Bucket a = archive.open(0, 10);
+		Bucket b = archive.open(10, 10);
+		archive.drop();
+		assertFalse(freed[0]);
+		a.free();
+		// Only counted once.
+		a.free();
+		assertFalse(freed[0]);
+		assertEquals(10, BucketTools.toByteArray(b).length);
+		b.free();
+		assertTrue(freed[0]);
+		assertNull(archive.open(0, 10));
+	}
+
+	@Test
+	public void testElementLimit() throws Exception {
+		ArchiveManager manager = manager(1 << 20, 3);
+		extract(manager, KEY1, ARCHIVE_TYPE.TAR, tar(new String[] { "a" }, new int[] { 10 }), null);
+		extract(manager, KEY2, ARCHIVE_TYPE.TAR, tar(new String[] { "b" }, new int[] { 10 }), null);
+		// Each has a generated .metadata as well.
+		assertNull(manager.getCached(KEY1, "a"));
+		assertContent("b", 10, manager.getCached(KEY2, "b"));
+	}
+
+	@Test
+	public void testRefetchReplaces() throws Exception {
+		ArchiveManager manager = manager(1 << 20, 100);
+		extract(manager, KEY1, ARCHIVE_TYPE.TAR, tar(new String[] { "a" }, new int[] { 10 }), null);
+		extract(manager, KEY1, ARCHIVE_TYPE.TAR, tar(new String[] { "b" }, new int[] { 20 }), null);
+		assertNull(manager.getCached(KEY1, "a"));
+		assertContent("b", 20, manager.getCached(KEY1, "b"));
+	}
+
+}
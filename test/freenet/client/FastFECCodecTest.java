@@ -0,0 +1,161 @@
+package freenet.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import freenet.support.TestProperty;
+
+/**
+ * FastFECCodec must produce exactly the same output as OnionFECCodec.
+ */
+public class FastFECCodecTest {
+
+    private static final int BLOCK_SIZE = 4100; // Not a multiple of 8, to test the tail.
+
+    private final OnionFECCodec onion = new OnionFECCodec();
+    private final FastFECCodec fast = new FastFECCodec();
+
+    @Test
+    public void testSameCheckBlocks() {
+        Random random = new Random(1010);
+        int[][] sizes = { { 1, 1 }, { 1, 2 }, { 2, 3 }, { 3, 1 }, { 7, 8 }, { 64, 65 },
+                { 128, 128 }, { 127, 129 }, { 129, 127 }, { 255, 1 } };
+        for(int[] size : sizes) {
+            byte[][] data = randomBlocks(random, size[0]);
+            byte[][] expected = encode(onion, data, size[1]);
+            byte[][] check = encode(fast, data, size[1]);
+            for(int i=0;i<size[1];i++)
+                assertArrayEquals("Check block " + i + " for " + size[0] + "/" + size[1], expected[i], check[i]);
+        }
+    }
+
+    @Test
+    public void testDecodeRandomSubset() {
+        Random random = new Random(2020);
+        int iterations = TestProperty.EXTENSIVE ? 50 : 5;
+        for(int i=0;i<iterations;i++) {
+            decodeRandomSubset(random, 128, 128);
+            decodeRandomSubset(random, 100, 29);
+            decodeRandomSubset(random, 2, 3);
+        }
+    }
+
+    @Test
+    public void testCodecsInteroperate() {
+        // Check blocks from the fast codec can be decoded by onion-fec and vice versa.
+        Random random = new Random(3030);
+        byte[][] data = randomBlocks(random, 32);
+        byte[][] check = encode(fast, data, 33);
+        boolean[] dataPresent = new boolean[32];
+        boolean[] checkPresent = new boolean[33];
+        for(int i=0;i<16;i++) dataPresent[i*2] = true;
+        for(int i=0;i<16;i++) checkPresent[i*2+1] = true;
+        byte[][] decoded = blanked(data, dataPresent);
+        onion.decode(decoded, blanked(check, checkPresent), dataPresent, checkPresent, BLOCK_SIZE);
+        for(int i=0;i<32;i++)
+            assertArrayEquals(data[i], decoded[i]);
+    }
+
+    @Test
+    public void testConcurrentDecode() throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t=0;t<4;t++) {
+            final long seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        // Different sizes in each thread so the scratch space is reused.
+                        for(int i=0;i<5;i++)
+                            decodeRandomSubset(random, 16 + random.nextInt(112), 1 + random.nextInt(128));
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads)
+            thread.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testNotEnoughBlocks() {
+        Random random = new Random(4040);
+        byte[][] data = randomBlocks(random, 4);
+        byte[][] check = encode(fast, data, 4);
+        boolean[] dataPresent = new boolean[] { true, false, false, true };
+        boolean[] checkPresent = new boolean[] { false, false, true, false };
+        try {
+            fast.decode(blanked(data, dataPresent), check, dataPresent, checkPresent, BLOCK_SIZE);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private void decodeRandomSubset(Random random, int dataCount, int checkCount) {
+        byte[][] data = randomBlocks(random, dataCount);
+        byte[][] check = encode(onion, data, checkCount);
+        boolean[] dataPresent = new boolean[dataCount];
+        boolean[] checkPresent = new boolean[checkCount];
+        // Pick exactly dataCount blocks at random.
+        int total = dataCount + checkCount;
+        boolean[] present = new boolean[total];
+        for(int chosen=0;chosen<dataCount;) {
+            int x = random.nextInt(total);
+            if(present[x]) continue;
+            present[x] = true;
+            chosen++;
+        }
+        System.arraycopy(present, 0, dataPresent, 0, dataCount);
+        System.arraycopy(present, dataCount, checkPresent, 0, checkCount);
+        byte[][] decoded = blanked(data, dataPresent);
+        fast.decode(decoded, blanked(check, checkPresent), dataPresent, checkPresent, BLOCK_SIZE);
+        for(int i=0;i<dataCount;i++)
+            assertArrayEquals("Data block " + i + " for " + dataCount + "/" + checkCount, data[i], decoded[i]);
+    }
+
+    private static byte[][] encode(FECCodec codec, byte[][] data, int checkCount) {
+        byte[][] check = new byte[checkCount][];
+        for(int i=0;i<checkCount;i++)
+            check[i] = new byte[BLOCK_SIZE];
+        codec.encode(copy(data), check, new boolean[checkCount], BLOCK_SIZE);
+        return check;
+    }
+
+    private static byte[][] randomBlocks(Random random, int count) {
+        byte[][] blocks = new byte[count][];
+        for(int i=0;i<count;i++) {
+            blocks[i] = new byte[BLOCK_SIZE];
+            random.nextBytes(blocks[i]);
+        }
+        return blocks;
+    }
+
+    private static byte[][] copy(byte[][] blocks) {
+        byte[][] out = new byte[blocks.length][];
+        for(int i=0;i<blocks.length;i++)
+            out[i] = blocks[i].clone();
+        return out;
+    }
+
+    /** Copy the blocks, replacing the ones which aren't present with zeros. */
+    private static byte[][] blanked(byte[][] blocks, boolean[] present) {
+        byte[][] out = new byte[blocks.length][];
+        for(int i=0;i<blocks.length;i++)
+            out[i] = present[i] ? blocks[i].clone() : new byte[BLOCK_SIZE];
+        return out;
+    }
+
+}
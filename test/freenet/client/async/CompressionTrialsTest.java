@@ -0,0 +1,156 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.HashType;
+import freenet.crypt.MultiHashInputStream;
+import freenet.keys.CHKBlock;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.CompressionOutputSizeException;
+import freenet.support.compress.CompressionRatioException;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * The parallel trials must choose the same codec, with the same output, as the sequential loop
+ * in InsertCompressor.
+ */
+public class CompressionTrialsTest {
+
+	private static final COMPRESSOR_TYPE[] CODECS = { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+	private static final long HASHES = HashType.SHA256.bitmask;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testText() throws IOException {
+		check(text(new Random(1), 1536 * 1024), CHKBlock.DATA_LENGTH, 0);
+	}
+
+	@Test
+	public void testRandom() throws IOException {
+		byte[] data = new byte[1024 * 1024 + 17];
+		new Random(2).nextBytes(data);
+		assertNull(check(data, CHKBlock.DATA_LENGTH, 0));
+	}
+
+	@Test
+	public void testMixed() throws IOException {
+		Random random = new Random(3);
+		byte[] data = text(random, 2048 * 1024);
+		// Second half is incompressible.
+		byte[] noise = new byte[data.length / 2];
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, data, data.length / 2, noise.length);
+		check(data, CHKBlock.DATA_LENGTH, 0);
+	}
+
+	@Test
+	public void testFirstFitsInMinSize() throws IOException {
+		byte[] data = new byte[2 * 1024 * 1024];
+		// All zeros: everything is tiny, so the first codec wins even if a later one is smaller.
+		assertEquals(COMPRESSOR_TYPE.GZIP, check(data, CHKBlock.DATA_LENGTH, 0));
+	}
+
+	@Test
+	public void testRatioCheck() throws IOException {
+		Random random = new Random(4);
+		byte[] data = text(random, 1024 * 1024);
+		byte[] noise = new byte[1024 * 1024];
+		random.nextBytes(noise);
+		byte[] both = new byte[data.length + noise.length];
+		// Incompressible start, so the ratio check may fail even though the rest compresses.
+		System.arraycopy(noise, 0, both, 0, noise.length);
+		System.arraycopy(data, 0, both, noise.length, data.length);
+		check(both, CHKBlock.DATA_LENGTH, 10);
+	}
+
+	/** Text-like data: words from a small vocabulary. */
+	private static byte[] text(Random random, int length) {
+		String[] words = new String[500];
+		for(int i=0;i<words.length;i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = 2 + random.nextInt(8);
+			for(int j=0;j<len;j++)
+				sb.append((char)('a' + random.nextInt(26)));
+			words[i] = sb.toString();
+		}
+		StringBuilder sb = new StringBuilder(length);
+		while(sb.length() < length) {
+			sb.append(words[(int)Math.abs(random.nextGaussian() * 80) % words.length]);
+			sb.append(random.nextInt(12) == 0 ? ".\n" : " ");
+		}
+		return sb.substring(0, length).getBytes();
+	}
+
+	private COMPRESSOR_TYPE check(byte[] data, int minSize, int minimumCompressionPercentage) throws IOException {
+		long checkRatioAfter = 256 * 1024;
+		RandomAccessBucket orig = new ArrayBucket(data);
+		CompressionTrials trials = new CompressionTrials(orig, new ArrayBucketFactory(), CODECS, minSize,
+				checkRatioAfter, minimumCompressionPercentage, HASHES, executor);
+		CompressionOutput output = trials.run();
+		// What the sequential loop would do.
+		COMPRESSOR_TYPE bestCodec = null;
+		byte[] best = data;
+		long bestNumberOfBlocks = data.length / CHKBlock.DATA_LENGTH;
+		for(COMPRESSOR_TYPE comp : CODECS) {
+			ArrayBucket result = new ArrayBucket();
+			InputStream is = orig.getInputStream();
+			OutputStream os = result.getOutputStream();
+			try {
+				comp.compress(is, os, data.length, best.length, checkRatioAfter, minimumCompressionPercentage);
+			} catch (CompressionOutputSizeException | CompressionRatioException e) {
+				continue;
+			} finally {
+				is.close();
+				os.close();
+			}
+			byte[] compressed = BucketTools.toByteArray(result);
+			if(compressed.length <= minSize) {
+				bestCodec = comp;
+				best = compressed;
+				break;
+			}
+			if(compressed.length / CHKBlock.DATA_LENGTH < bestNumberOfBlocks) {
+				bestCodec = comp;
+				best = compressed;
+				bestNumberOfBlocks = compressed.length / CHKBlock.DATA_LENGTH;
+			}
+		}
+		assertEquals(bestCodec, output.bestCodec);
+		assertArrayEquals(best, BucketTools.toByteArray(output.data));
+		if(bestCodec == null)
+			assertSame(orig, output.data);
+		MultiHashInputStream hasher = new MultiHashInputStream(orig.getInputStream(), HASHES);
+		hasher.skip(Long.MAX_VALUE);
+		hasher.close();
+		assertNotNull(output.hashes);
+		assertTrue(HashResult.strictEquals(hasher.getResults(), output.hashes));
+		return output.bestCodec;
+	}
+
+}
@@ -0,0 +1,268 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SendableGet;
+import freenet.support.ByteArrayWrapper;
+
+public class SaltedKeyIndexTest {
+
+	/** Wants a fixed set of keys, and forgets them when it gets them. */
+	private static class Listener implements IndexedKeyListener {
+		final Set<ByteArrayWrapper> wanted = new HashSet<ByteArrayWrapper>();
+		int handled;
+
+		@Override
+		public void addWantedKeys(KeySalter salter, SaltedKeyIndex.Batch batch) {
+			for(ByteArrayWrapper w : wanted)
+				batch.add(w.get());
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return wanted.contains(new ByteArrayWrapper(saltedKey));
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+			return probablyWantKey(key, saltedKey) ? (short)0 : (short)-1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+			if(!wanted.remove(new ByteArrayWrapper(saltedKey))) return false;
+			handled++;
+			return true;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass() {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return wanted.size();
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			// Ignore.
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return wanted.isEmpty();
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+		@Override
+		public byte[] getWantedKey() {
+			return null;
+		}
+	}
+
+	private static byte[] randomKey(Random random) {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		return key;
+	}
+
+	@Test
+	public void testMatchesMultimap() {
+		Random random = new Random(1234);
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener[] listeners = new KeyListener[10];
+		for(int i=0;i<listeners.length;i++)
+			listeners[i] = new Listener();
+		// Reference: registrations per fingerprint per listener. The index can't tell apart keys
+		// with the same fingerprint.
+		Map<ByteArrayWrapper, Map<KeyListener, Integer>> expected = new HashMap<ByteArrayWrapper, Map<KeyListener, Integer>>();
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for(int i=0;i<500;i++)
+			keys.add(randomKey(random));
+		// Some keys share a fingerprint but are different keys.
+		for(int i=0;i<20;i++) {
+			byte[] key = randomKey(random);
+			System.arraycopy(keys.get(i), 0, key, 0, 4);
+			keys.add(key);
+		}
+		for(int round=0;round<2000;round++) {
+			KeyListener listener = listeners[random.nextInt(listeners.length)];
+			int op = random.nextInt(10);
+			if(op < 5) {
+				SaltedKeyIndex.Batch batch = new SaltedKeyIndex.Batch();
+				int n = random.nextInt(50);
+				for(int i=0;i<n;i++) {
+					byte[] key = keys.get(random.nextInt(keys.size()));
+					batch.add(key);
+					change(expected, key, listener, 1);
+				}
+				index.add(listener, batch);
+			} else if(op < 7) {
+				SaltedKeyIndex.Batch batch = new SaltedKeyIndex.Batch();
+				int removed = 0;
+				for(int i=0;i<10;i++) {
+					byte[] key = keys.get(random.nextInt(keys.size()));
+					batch.add(key);
+					if(change(expected, key, listener, -1)) removed++;
+				}
+				assertEquals(removed, index.remove(listener, batch));
+			} else if(op < 9) {
+				byte[] key = keys.get(random.nextInt(keys.size()));
+				assertEquals(change(expected, key, listener, -1), index.remove(listener, key));
+			} else {
+				for(Map<KeyListener, Integer> m : expected.values())
+					m.remove(listener);
+				assertEquals(index.contains(listener), index.removeAll(listener));
+				assertFalse(index.contains(listener));
+			}
+			int total = 0;
+			for(Map<KeyListener, Integer> m : expected.values())
+				for(int count : m.values()) total += count;
+			assertEquals(total, index.size());
+			for(byte[] key : keys) {
+				List<KeyListener> candidates = new ArrayList<KeyListener>();
+				index.getCandidates(key, candidates);
+				Map<KeyListener, Integer> m = expected.get(fingerprint(key));
+				Set<KeyListener> expectedCandidates = m == null ? new HashSet<KeyListener>() : m.keySet();
+				assertEquals(expectedCandidates, new HashSet<KeyListener>(candidates));
+				assertEquals(candidates.size(), expectedCandidates.size());
+			}
+		}
+	}
+
+	@Test
+	public void testRemoveAllLeavesTombstones() {
+		Random random = new Random(4321);
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener big = new Listener();
+		KeyListener small = new Listener();
+		KeyListener other = new Listener();
+		byte[] smallKey = randomKey(random);
+		SaltedKeyIndex.Batch batch = new SaltedKeyIndex.Batch();
+		batch.add(smallKey);
+		index.add(small, batch);
+		byte[][] bigKeys = new byte[100][];
+		batch = new SaltedKeyIndex.Batch();
+		for(int i=0;i<bigKeys.length;i++) {
+			bigKeys[i] = randomKey(random);
+			batch.add(bigKeys[i]);
+		}
+		index.add(big, batch);
+		// A few live keys, so the tombstones don't outnumber them yet.
+		batch = new SaltedKeyIndex.Batch();
+		for(int i=0;i<150;i++)
+			batch.add(randomKey(random));
+		index.add(other, batch);
+		assertTrue(index.removeAll(big));
+		assertEquals(100, index.staleEntries());
+		assertEquals(151, index.size());
+		List<KeyListener> candidates = new ArrayList<KeyListener>();
+		for(byte[] key : bigKeys)
+			index.getCandidates(key, candidates);
+		assertTrue(candidates.isEmpty());
+		index.getCandidates(smallKey, candidates);
+		assertEquals(Arrays.asList(small), candidates);
+		// A new listener doesn't get the old one's number while its entries are still there.
+		KeyListener reused = new Listener();
+		batch = new SaltedKeyIndex.Batch();
+		batch.add(bigKeys[0]);
+		index.add(reused, batch);
+		candidates.clear();
+		index.getCandidates(bigKeys[1], candidates);
+		assertTrue(candidates.isEmpty());
+		// Once the tombstones are most of the table they are cleared out.
+		assertTrue(index.removeAll(other));
+		assertEquals(0, index.staleEntries());
+		assertEquals(2, index.size());
+		candidates.clear();
+		index.getCandidates(bigKeys[0], candidates);
+		assertEquals(Arrays.asList(reused), candidates);
+		assertFalse(index.removeAll(big));
+	}
+
+	/** @return False if removing and the key was not registered. */
+	private static boolean change(Map<ByteArrayWrapper, Map<KeyListener, Integer>> expected, byte[] key, KeyListener listener, int delta) {
+		ByteArrayWrapper w = fingerprint(key);
+		Map<KeyListener, Integer> m = expected.get(w);
+		if(m == null) {
+			if(delta < 0) return false;
+			m = new HashMap<KeyListener, Integer>();
+			expected.put(w, m);
+		}
+		Integer count = m.get(listener);
+		int c = (count == null ? 0 : count) + delta;
+		if(c < 0) return false;
+		if(c == 0) m.remove(listener);
+		else m.put(listener, c);
+		return true;
+	}
+
+	private static ByteArrayWrapper fingerprint(byte[] key) {
+		return new ByteArrayWrapper(Arrays.copyOf(key, 4));
+	}
+
+	@Test
+	public void testTrackerUsesIndex() {
+		Random random = new Random(5678);
+		byte[] salt = randomKey(random);
+		KeyListenerTracker tracker = new KeyListenerTracker(false, false, false, null, null, salt, false);
+		Listener[] listeners = new Listener[20];
+		List<NodeCHK> keys = new ArrayList<NodeCHK>();
+		for(int i=0;i<listeners.length;i++) {
+			listeners[i] = new Listener();
+			for(int j=0;j<10;j++) {
+				NodeCHK key = new NodeCHK(randomKey(random), (byte)2);
+				keys.add(key);
+				listeners[i].wanted.add(new ByteArrayWrapper(tracker.saltKey(key)));
+			}
+			tracker.addPendingKeys(listeners[i]);
+		}
+		assertFalse(tracker.anyProbablyWantKey(new NodeCHK(randomKey(random), (byte)2), null));
+		for(int i=0;i<keys.size();i++) {
+			NodeCHK key = keys.get(i);
+			assertTrue(tracker.anyProbablyWantKey(key, null));
+			assertTrue(tracker.tripPendingKey(key, null, null));
+			assertEquals(1 + i % 10, listeners[i / 10].handled);
+			assertFalse(tracker.tripPendingKey(key, null, null));
+		}
+		// Listeners are removed once they have all their keys.
+		for(Listener listener : listeners)
+			assertFalse(tracker.removePendingKeys(listener));
+	}
+
+}
@@ -0,0 +1,112 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.TooLongException;
+
+public class FCPHeaderScannerTest {
+
+	/** Where FCPConnectionInputHandler stops reading the header, or -1 if it gives up. */
+	private static int parserEnd(byte[] data) throws IOException {
+		ByteArrayInputStream is = new ByteArrayInputStream(data);
+		LineReadingInputStream lis = new LineReadingInputStream(is);
+		try {
+			String messageType;
+			do {
+				messageType = lis.readLine(FCPHeaderScanner.MAX_TYPE_LINE_LENGTH, 128, true);
+				assertNotNull(messageType);
+			} while(messageType.isEmpty());
+			new SimpleFieldSet(lis, FCPHeaderScanner.MAX_FIELD_LINE_LENGTH, 128, true, true, true);
+		} catch (TooLongException e) {
+			return -1;
+		} catch (EOFException e) {
+			// What readLine() actually throws when a line fills its buffer exactly.
+			return -1;
+		}
+		return data.length - is.available();
+	}
+
+	/** Where the scanner finds the end of the header, fed one byte at a time. */
+	private static int scannerEnd(byte[] data) {
+		FCPHeaderScanner scanner = new FCPHeaderScanner();
+		for(int i=0;i<=data.length;i++) {
+			if(scanner.scan(data, 0, i)) return i;
+		}
+		return -1;
+	}
+
+	private static void checkHeader(String header, String following) throws IOException {
+		byte[] data = (header + following).getBytes(StandardCharsets.UTF_8);
+		int end = header.getBytes(StandardCharsets.UTF_8).length;
+		assertEquals(end, parserEnd(data));
+		assertEquals(end, scannerEnd(data));
+		// Incomplete.
+		assertFalse(new FCPHeaderScanner().scan(data, 0, end - 1));
+	}
+
+	@Test
+	public void testSimpleMessages() throws IOException {
+		checkHeader("ClientHello\nName=Test\nExpectedVersion=2.0\nEndMessage\n", "");
+		checkHeader("ListPeers\nEndMessage\n", "ClientHello\nName=x\nEndMessage\n");
+		checkHeader("ClientPut\nURI=CHK@\nDataLength=5\nUploadFrom=direct\nData\n", "Hello");
+		checkHeader("ClientPut\nURI=CHK@\nDataLength=5\nData\n", "EndMessage\nFoo=bar\n");
+	}
+
+	@Test
+	public void testEmptyLinesAndComments() throws IOException {
+		checkHeader("\n\r\n\nClientHello\n\nName=Test\n# A comment=\n#\n\nEndMessage\n", "\n");
+		checkHeader("ClientHello\r\nName=Test\r\nEndMessage\r\n", "Next");
+	}
+
+	@Test
+	public void testSplitAnywhere() throws IOException {
+		// Compacting the buffer between scans, as FCPChannelTransport does.
+		byte[] data = "\nClientHello\nName=Test\n#x\nEndMessage\nListPeers\n".getBytes(StandardCharsets.UTF_8);
+		int end = parserEnd(data);
+		for(int split=0;split<end;split++) {
+			FCPHeaderScanner scanner = new FCPHeaderScanner();
+			assertFalse(scanner.scan(data, 0, split));
+			byte[] moved = new byte[data.length + 10];
+			System.arraycopy(data, 0, moved, 10, data.length);
+			assertFalse(scanner.scan(moved, 10, 10 + end - 1));
+			assertTrue(scanner.scan(moved, 10, 10 + end));
+		}
+	}
+
+	@Test
+	public void testReset() {
+		byte[] data = "ListPeers\nEndMessage\nListPeers\n".getBytes(StandardCharsets.UTF_8);
+		FCPHeaderScanner scanner = new FCPHeaderScanner();
+		assertTrue(scanner.scan(data, 0, data.length));
+		scanner.reset();
+		assertFalse(scanner.scan(data, 21, data.length));
+	}
+
+	@Test
+	public void testTooLong() throws IOException {
+		// The parser gives up, so the scanner must not wait for the end of the header.
+		char[] longType = new char[FCPHeaderScanner.MAX_TYPE_LINE_LENGTH + 10];
+		Arrays.fill(longType, 'a');
+		byte[] data = (new String(longType) + "\nEndMessage\n").getBytes(StandardCharsets.UTF_8);
+		assertEquals(-1, parserEnd(data));
+		assertTrue(new FCPHeaderScanner().scan(data, 0, FCPHeaderScanner.MAX_TYPE_LINE_LENGTH + 2));
+		char[] longField = new char[FCPHeaderScanner.MAX_FIELD_LINE_LENGTH + 10];
+		Arrays.fill(longField, 'b');
+		String header = "ClientHello\nName=" + new String(longField);
+		data = (header + "\nEndMessage\n").getBytes(StandardCharsets.UTF_8);
+		assertEquals(-1, parserEnd(data));
+		assertTrue(scannerEnd(data) > 0);
+		assertTrue(scannerEnd(data) <= header.length());
+	}
+
+}
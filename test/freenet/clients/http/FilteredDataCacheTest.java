@@ -0,0 +1,154 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import freenet.client.FetchContext;
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.events.SimpleEventProducer;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class FilteredDataCacheTest {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/index_d51.xml";
+
+	/** Remembers whether it has been freed. */
+	private static class TrackingBucket extends ArrayBucket {
+		private static final long serialVersionUID = 1L;
+		boolean freed;
+
+		TrackingBucket(int size) {
+			super(new byte[size]);
+		}
+
+		@Override
+		public void free() {
+			assertFalse("Freed twice", freed);
+			freed = true;
+			super.free();
+		}
+	}
+
+	private static FetchContext filteringContext() {
+		FetchContext fctx = HighLevelSimpleClientImpl.makeDefaultFetchContext(1024, 1024, null, new SimpleEventProducer());
+		fctx.filterData = true;
+		return fctx;
+	}
+
+	@Test
+	public void testGetReturnsCachedData() throws IOException {
+		FilteredDataCache cache = new FilteredDataCache();
+		TrackingBucket data = new TrackingBucket(100);
+		Bucket wrapper = cache.put("a", data, "text/html", 1000);
+		assertNotSame(data, wrapper);
+		FilteredDataCache.Entry e = cache.get("a", 1000);
+		assertNotNull(e);
+		assertEquals("text/html", e.mimeType);
+		Bucket other = cache.open(e);
+		assertEquals(100, BucketTools.toByteArray(other).length);
+		// Too big for this request.
+		assertNull(cache.get("a", 99));
+		assertNull(cache.get("b", 1000));
+		wrapper.free();
+		other.free();
+		assertFalse(data.freed);
+		assertEquals(1, cache.size());
+		assertEquals(100, cache.totalSize());
+	}
+
+	@Test
+	public void testTooBigNotCached() {
+		FilteredDataCache cache = new FilteredDataCache();
+		TrackingBucket data = new TrackingBucket(300);
+		assertSame(data, cache.put("a", data, "text/html", 1000));
+		assertEquals(0, cache.size());
+		// Disabled.
+		data = new TrackingBucket(0);
+		assertSame(data, cache.put("a", data, "text/html", 0));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedDropped() {
+		FilteredDataCache cache = new FilteredDataCache();
+		TrackingBucket[] data = new TrackingBucket[5];
+		for(int i = 0; i < 4; i++) {
+			data[i] = new TrackingBucket(100);
+			cache.put("k" + i, data[i], "text/html", 400).free();
+		}
+		// Use the first one, so the second is the least recently used.
+		cache.release(cache.get("k0", 400));
+		data[4] = new TrackingBucket(100);
+		cache.put("k4", data[4], "text/html", 400).free();
+		assertTrue(data[1].freed);
+		assertNull(cache.get("k1", 400));
+		for(int i : new int[] { 0, 2, 3, 4 })
+			assertFalse(data[i].freed);
+		assertEquals(4, cache.size());
+		assertEquals(400, cache.totalSize());
+	}
+
+	@Test
+	public void testDroppedWhileInUse() {
+		FilteredDataCache cache = new FilteredDataCache();
+		TrackingBucket a = new TrackingBucket(200);
+		Bucket inUse = cache.put("a", a, "text/html", 800);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertFalse(a.freed);
+		inUse.free();
+		assertTrue(a.freed);
+		// Only released once.
+		inUse.free();
+	}
+
+	@Test
+	public void testKey() throws MalformedURLException {
+		FetchContext fctx = filteringContext();
+		FreenetURI chk = new FreenetURI(CHK);
+		String key = FilteredDataCache.key(chk, fctx);
+		assertNotNull(key);
+		assertNull(FilteredDataCache.key(new FreenetURI("KSK@test"), fctx));
+		fctx.overrideMIME = "text/plain";
+		assertNotEquals(key, FilteredDataCache.key(chk, fctx));
+		fctx.filterData = false;
+		assertNull(FilteredDataCache.key(chk, fctx));
+	}
+
+	@Test
+	public void testETag() throws MalformedURLException {
+		FetchContext fctx = filteringContext();
+		FreenetURI chk = new FreenetURI(CHK);
+		String etag = FilteredDataCache.etag(chk, fctx);
+		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+		assertEquals(etag, FilteredDataCache.etag(chk, filteringContext()));
+		fctx.charset = "UTF-8";
+		assertNotEquals(etag, FilteredDataCache.etag(chk, fctx));
+		// Any filter setting changes it.
+		fctx = filteringContext();
+		fctx.overrideMIME = "text/plain";
+		assertNotEquals(etag, FilteredDataCache.etag(chk, fctx));
+		fctx = filteringContext();
+		fctx.allowedMIMETypes = new HashSet<String>(Arrays.asList("text/html", "image/png"));
+		String allowed = FilteredDataCache.etag(chk, fctx);
+		assertNotEquals(etag, allowed);
+		fctx.allowedMIMETypes = new HashSet<String>(Arrays.asList("image/png", "text/html"));
+		assertEquals(allowed, FilteredDataCache.etag(chk, fctx));
+		assertNull(FilteredDataCache.etag(new FreenetURI("KSK@test"), fctx));
+		assertTrue(FProxyToadlet.ifNoneMatchMatches("\"x\", W/" + etag, etag));
+		assertFalse(FProxyToadlet.ifNoneMatchMatches("*", etag));
+	}
+
+}
@@ -0,0 +1,65 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HTTPHeaderScannerTest {
+
+	/** Where the scanner finds the end of the header, fed one byte at a time. */
+	private static int scannerEnd(byte[] data) {
+		HTTPHeaderScanner scanner = new HTTPHeaderScanner();
+		for(int i=0;i<=data.length;i++) {
+			if(scanner.scan(data, 0, i)) return i;
+		}
+		return -1;
+	}
+
+	private static void checkHeader(String header, String following) {
+		byte[] data = (header + following).getBytes(StandardCharsets.ISO_8859_1);
+		assertEquals(header.length(), scannerEnd(data));
+	}
+
+	@Test
+	public void testRequests() {
+		checkHeader("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n", "GET /x HTTP/1.1\r\n\r\n");
+		checkHeader("GET / HTTP/1.0\n\n", "");
+		checkHeader("POST /upload HTTP/1.1\r\nContent-Length: 5\r\n\r\n", "hello");
+	}
+
+	@Test
+	public void testLeadingEmptyLines() {
+		// Skipped by handleRequest().
+		checkHeader("\r\n\r\n\nGET / HTTP/1.1\r\nHost: localhost\r\n\r\n", "");
+	}
+
+	@Test
+	public void testIncomplete() {
+		byte[] data = "GET / HTTP/1.1\r\nHost: localhost\r\n\r".getBytes(StandardCharsets.ISO_8859_1);
+		assertEquals(-1, scannerEnd(data));
+	}
+
+	@Test
+	public void testCompactedAndReset() {
+		byte[] data = "GET / HTTP/1.1\r\nHost: x\r\n\r\nGET /y HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		HTTPHeaderScanner scanner = new HTTPHeaderScanner();
+		assertFalse(scanner.scan(data, 0, 10));
+		byte[] moved = new byte[data.length + 5];
+		System.arraycopy(data, 0, moved, 5, data.length);
+		assertTrue(scanner.scan(moved, 5, moved.length));
+		scanner.reset();
+		assertFalse(scanner.scan(data, 27, data.length));
+	}
+
+	@Test
+	public void testTooLong() {
+		char[] longLine = new char[HTTPHeaderScanner.MAX_LINE_LENGTH + 10];
+		Arrays.fill(longLine, 'a');
+		byte[] data = ("GET / HTTP/1.1\r\nCookie: " + new String(longLine)).getBytes(StandardCharsets.ISO_8859_1);
+		assertTrue(new HTTPHeaderScanner().scan(data, 0, data.length));
+	}
+
+}
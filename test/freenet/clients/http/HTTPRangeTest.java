@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HTTPRangeTest {
+
+	private static List<HTTPRange> resolve(String header, long size) throws HTTPRangeException {
+		return HTTPRange.resolve(HTTPRange.parse(header), size);
+	}
+
+	private static void assertRange(HTTPRange range, long first, long last) {
+		assertEquals(first, range.first);
+		assertEquals(last, range.last);
+	}
+
+	@Test
+	public void testSingleRange() throws HTTPRangeException {
+		List<HTTPRange> ranges = resolve("bytes=0-499", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(ranges.get(0), 0, 499);
+		assertEquals(500, ranges.get(0).length());
+		assertEquals("bytes 0-499/1000", ranges.get(0).contentRange(1000));
+	}
+
+	@Test
+	public void testOpenAndSuffixRanges() throws HTTPRangeException {
+		assertRange(resolve("bytes=900-", 1000).get(0), 900, 999);
+		assertRange(resolve("bytes=-100", 1000).get(0), 900, 999);
+		// Longer than the data: all of it.
+		assertRange(resolve("bytes=-5000", 1000).get(0), 0, 999);
+		// Clipped to the end.
+		assertRange(resolve("bytes=500-5000", 1000).get(0), 500, 999);
+		// A single byte.
+		assertRange(resolve("bytes=0-0", 1000).get(0), 0, 0);
+	}
+
+	@Test
+	public void testMultipleRanges() throws HTTPRangeException {
+		List<HTTPRange> ranges = resolve("bytes=500-599, 0-99,-100", 1000);
+		assertEquals(3, ranges.size());
+		assertRange(ranges.get(0), 0, 99);
+		assertRange(ranges.get(1), 500, 599);
+		assertRange(ranges.get(2), 900, 999);
+	}
+
+	@Test
+	public void testMerge() throws HTTPRangeException {
+		List<HTTPRange> ranges = resolve("bytes=0-99,50-199,200-299,400-", 1000);
+		assertEquals(2, ranges.size());
+		assertRange(ranges.get(0), 0, 299);
+		assertRange(ranges.get(1), 400, 999);
+		ranges = resolve("bytes=0-999,10-20", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(ranges.get(0), 0, 999);
+	}
+
+	@Test
+	public void testUnsatisfiable() throws HTTPRangeException {
+		assertTrue(resolve("bytes=1000-", 1000).isEmpty());
+		assertTrue(resolve("bytes=-0", 1000).isEmpty());
+		assertTrue(resolve("bytes=0-", 0).isEmpty());
+		// Only the satisfiable ones are kept.
+		assertEquals(1, resolve("bytes=2000-3000,0-1", 1000).size());
+	}
+
+	@Test
+	public void testTooManyRanges() throws HTTPRangeException {
+		StringBuilder sb = new StringBuilder("bytes=");
+		for (int i = 0; i <= HTTPRange.MAX_RANGES; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(i * 10).append('-').append(i * 10 + 1);
+		}
+		assertNull(resolve(sb.toString(), 100000));
+	}
+
+	@Test
+	public void testInvalid() {
+		List<String> invalid = new ArrayList<String>();
+		invalid.add("bytes=");
+		invalid.add("bytes=abc-");
+		invalid.add("bytes=10-5");
+		invalid.add("bytes=5");
+		invalid.add("bytes=-");
+		invalid.add("pages=1-2");
+		invalid.add("0-100");
+		for (String header : invalid) {
+			try {
+				HTTPRange.parse(header);
+				fail("Should not parse: "+header);
+			} catch (HTTPRangeException e) {
+				// Expected.
+			}
+		}
+	}
+
+}
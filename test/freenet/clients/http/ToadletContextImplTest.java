@@ -0,0 +1,120 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.crypt.MasterSecret;
+import freenet.support.MultiValueTable;
+import freenet.support.SerialExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.NativeThread;
+import freenet.support.io.NoFreeBucket;
+import freenet.support.io.TempBucketFactory;
+
+public class ToadletContextImplTest {
+
+	private static final long[][] RANGES = { { 10, 20 }, { 3000, 1000 }, { 5, 5 }, { 4090, 6 } };
+
+	/** Counts how often it is converted. */
+	private static class CountingBucket extends ArrayBucket {
+		private static final long serialVersionUID = 1L;
+		int conversions;
+
+		CountingBucket(byte[] data) {
+			super(data);
+		}
+
+		@Override
+		public LockableRandomAccessBuffer toRandomAccessBuffer() {
+			conversions++;
+			return super.toRandomAccessBuffer();
+		}
+	}
+
+	private static ToadletContextImpl context(OutputStream os) {
+		return new ToadletContextImpl(os, null, null, new MultiValueTable<String, String>(), null, null, null, null, null, null, 0);
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	/** Write the ranges as the parts of a multipart response would be. */
+	private static byte[] writeParts(Bucket bucket) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ToadletContextImpl ctx = context(os);
+		for(long[] range : RANGES) {
+			ctx.writeData("--part\r\n".getBytes(StandardCharsets.UTF_8));
+			ctx.writeData(bucket, range[0], range[1]);
+		}
+		return os.toByteArray();
+	}
+
+	private static byte[] expectedParts(byte[] data) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		for(long[] range : RANGES) {
+			os.write("--part\r\n".getBytes(StandardCharsets.UTF_8));
+			os.write(data, (int) range[0], (int) range[1]);
+		}
+		return os.toByteArray();
+	}
+
+	@Test
+	public void testMultipartFromWrappedTempBucket() throws Exception {
+		Random random = new Random(1234);
+		FilenameGenerator fg = new FilenameGenerator(random, false, null, "junit");
+		// Small enough RAM limits that it goes to disk.
+		TempBucketFactory tbf = new TempBucketFactory(new SerialExecutor(NativeThread.NORM_PRIORITY), fg, 16, 128, random, false, 0, new MasterSecret());
+		byte[] data = data(4096);
+		Bucket temp = tbf.makeBucket(data.length);
+		BucketTools.copyFrom(temp, new ByteArrayInputStream(data), data.length);
+		Bucket wrapped = new NoFreeBucket(temp);
+		assertArrayEquals(expectedParts(data), writeParts(wrapped));
+		// The data is still there for the next request.
+		assertArrayEquals(data, BucketTools.toByteArray(wrapped));
+		temp.free();
+	}
+
+	@Test
+	public void testBufferSharedByParts() throws Exception {
+		byte[] data = data(4096);
+		CountingBucket bucket = new CountingBucket(data);
+		// Doubly wrapped, as FilteredDataCache does.
+		assertArrayEquals(expectedParts(data), writeParts(new NoFreeBucket(new NoFreeBucket(bucket))));
+		assertEquals(1, bucket.conversions);
+	}
+
+	@Test
+	public void testStreamFallback() throws Exception {
+		final byte[] data = data(4096);
+		// Neither a file nor a RandomAccessBucket.
+		Bucket bucket = new NoFreeBucket(new ArrayBucket(data)) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Bucket getProxy() {
+				return null;
+			}
+		};
+		assertArrayEquals(expectedParts(data), writeParts(bucket));
+		assertArrayEquals(data, BucketTools.toByteArray(bucket));
+	}
+
+}
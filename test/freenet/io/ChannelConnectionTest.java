@@ -0,0 +1,228 @@
+package freenet.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.io.LineReadingInputStream;
+
+public class ChannelConnectionTest {
+
+	private PooledExecutor executor;
+	private ChannelSelector selector;
+	private ServerSocketChannel server;
+
+	@Before
+	public void setUp() throws IOException {
+		executor = new PooledExecutor();
+		executor.start();
+		selector = new ChannelSelector("Test selector");
+		selector.start(executor);
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	/**
+	 * Each message is a line "SIZE n", followed by n bytes of data; the reply is the data. A line
+	 * "FILE" sends the test file, and "QUIT" closes the connection.
+	 */
+	private static class TestConnection extends ChannelConnection {
+
+		private final LineReadingInputStream lis;
+		private final File file;
+		private boolean gotLine;
+		private int scanned;
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		TestConnection(SocketChannel channel, ChannelSelector selector, Executor executor, File file) {
+			super(channel, selector, executor, 1024, "test connection");
+			this.lis = new LineReadingInputStream(getInputStream());
+			this.file = file;
+		}
+
+		@Override
+		protected void resetHeader() {
+			gotLine = false;
+			scanned = 0;
+		}
+
+		@Override
+		protected boolean isHeaderComplete(byte[] buf, int start, int end) {
+			for(int i=start+scanned;i<end && !gotLine;i++) {
+				scanned++;
+				if(buf[i] == '\n') gotLine = true;
+			}
+			return gotLine;
+		}
+
+		@Override
+		protected boolean processMessage() throws IOException {
+			String line = lis.readLine(2048, 128, false);
+			if(line == null || line.equals("QUIT")) return false;
+			if(line.equals("FILE")) {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					getOutputStream().write("FILE\n".getBytes(StandardCharsets.US_ASCII));
+					transferFrom(raf.getChannel(), 0, raf.length());
+				} finally {
+					raf.close();
+				}
+				return true;
+			}
+			int size = Integer.parseInt(line.substring("SIZE ".length()));
+			byte[] buf = new byte[size];
+			new DataInputStream(lis).readFully(buf);
+			getOutputStream().write(buf);
+			getOutputStream().flush();
+			return true;
+		}
+
+		@Override
+		protected void onInputClosed() {
+			try {
+				closeOutput();
+			} catch (IOException e) {
+				// Ignore.
+			}
+			close();
+			closed.countDown();
+		}
+
+	}
+
+	private TestConnection connect(Socket client, File file) throws IOException {
+		client.connect(server.socket().getLocalSocketAddress());
+		SocketChannel channel = server.accept();
+		TestConnection conn = new TestConnection(channel, selector, executor, file);
+		conn.start();
+		return conn;
+	}
+
+	private static byte[] readFully(InputStream is, int length) throws IOException {
+		byte[] buf = new byte[length];
+		new DataInputStream(is).readFully(buf);
+		return buf;
+	}
+
+	private static byte[] message(byte[] data) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] header = ("SIZE "+data.length+"\n").getBytes(StandardCharsets.US_ASCII);
+		baos.write(header, 0, header.length);
+		baos.write(data, 0, data.length);
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void testPipelinedAndSplit() throws Exception {
+		Random random = new Random(1);
+		Socket client = new Socket();
+		TestConnection conn = connect(client, null);
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for(int i=0;i<50;i++) {
+			byte[] data = new byte[random.nextInt(3000)];
+			random.nextBytes(data);
+			byte[] msg = message(data);
+			all.write(msg, 0, msg.length);
+			expected.write(data, 0, data.length);
+		}
+		byte[] bytes = all.toByteArray();
+		OutputStream os = client.getOutputStream();
+		// Several messages at once, and messages split at random points.
+		for(int i=0;i<bytes.length;) {
+			int len = Math.min(bytes.length - i, 1 + random.nextInt(5000));
+			os.write(bytes, i, len);
+			os.flush();
+			i += len;
+		}
+		assertArrayEquals(expected.toByteArray(), readFully(client.getInputStream(), expected.size()));
+		os.write("QUIT\n".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(conn.closed.await(10, TimeUnit.SECONDS));
+		assertEquals(-1, client.getInputStream().read());
+		client.close();
+	}
+
+	@Test
+	public void testLargeReplySlowReader() throws Exception {
+		// Bigger than the socket buffers and the pending output limit.
+		byte[] data = new byte[4 * 1024 * 1024];
+		new Random(2).nextBytes(data);
+		Socket client = new Socket();
+		client.setReceiveBufferSize(8192);
+		TestConnection conn = connect(client, null);
+		client.getOutputStream().write(message(data));
+		Thread.sleep(200);
+		assertArrayEquals(data, readFully(client.getInputStream(), data.length));
+		client.close();
+		assertTrue(conn.closed.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testTransferFile() throws Exception {
+		File file = File.createTempFile("channelconnectiontest", ".tmp");
+		file.deleteOnExit();
+		byte[] data = new byte[1024 * 1024 + 17];
+		new Random(3).nextBytes(data);
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+		Socket client = new Socket();
+		client.setReceiveBufferSize(8192);
+		TestConnection conn = connect(client, file);
+		byte[] small = new byte[] { 1, 2, 3 };
+		OutputStream os = client.getOutputStream();
+		// A reply queued before the file, and one after.
+		os.write(message(small));
+		os.write("FILE\n".getBytes(StandardCharsets.US_ASCII));
+		os.write(message(small));
+		InputStream is = client.getInputStream();
+		assertArrayEquals(small, readFully(is, 3));
+		assertArrayEquals("FILE\n".getBytes(StandardCharsets.US_ASCII), readFully(is, 5));
+		assertTrue(Arrays.equals(data, readFully(is, data.length)));
+		assertArrayEquals(small, readFully(is, 3));
+		client.close();
+		assertTrue(conn.closed.await(10, TimeUnit.SECONDS));
+		file.delete();
+	}
+
+	@Test
+	public void testClientCloses() throws Exception {
+		Socket client = new Socket();
+		TestConnection conn = connect(client, null);
+		// Half a message.
+		client.getOutputStream().write("SIZE 10\nabc".getBytes(StandardCharsets.US_ASCII));
+		client.getOutputStream().flush();
+		Thread.sleep(100);
+		client.close();
+		assertTrue(conn.closed.await(10, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,127 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.PooledExecutor;
+
+public class MessageCoreTest {
+
+	private MessageCore core;
+
+	@Before
+	public void setUp() {
+		core = new MessageCore(new PooledExecutor());
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+		final List<Message> matched = new ArrayList<>();
+		int timedOut;
+		boolean shouldTimeout;
+
+		@Override
+		public void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public void onTimeout() {
+			timedOut++;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+		}
+	}
+
+	private Callback addFilter(MessageFilter filter) throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	@Test
+	public void testMatchesByUID() throws DisconnectedException {
+		Callback one = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000));
+		Callback two = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(60000));
+		Message m = DMT.createFNPAccepted(2L);
+		core.checkFilters(m, null);
+		assertTrue(one.matched.isEmpty());
+		assertEquals(1, two.matched.size());
+		assertSame(m, two.matched.get(0));
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testEarliestTimeoutWins() throws DisconnectedException {
+		Callback late = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(60000));
+		Callback early = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 3L).setTimeout(30000));
+		core.checkFilters(DMT.createFNPAccepted(3L), null);
+		assertEquals(1, early.matched.size());
+		assertTrue(late.matched.isEmpty());
+		core.checkFilters(DMT.createFNPAccepted(3L), null);
+		assertEquals(1, early.matched.size());
+		assertEquals(1, late.matched.size());
+	}
+
+	@Test
+	public void testOrChain() throws DisconnectedException {
+		MessageFilter rejected = MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 4L).setTimeout(60000);
+		Callback cb = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 4L).setTimeout(60000).or(rejected));
+		core.checkFilters(DMT.createFNPRejectedLoop(4L), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(DMT.FNPRejectedLoop, cb.matched.get(0).getSpec());
+		// Matched filters are removed.
+		core.checkFilters(DMT.createFNPAccepted(4L), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testUnclaimedThenFilter() throws DisconnectedException {
+		Message m = DMT.createFNPAccepted(5L);
+		core.checkFilters(m, null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		Callback cb = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 5L).setTimeout(60000));
+		assertEquals(1, cb.matched.size());
+		assertSame(m, cb.matched.get(0));
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testRemoveTimedOutFilters() throws DisconnectedException {
+		Callback cb = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 6L).setTimeout(60000));
+		long now = System.currentTimeMillis();
+		assertEquals(now + 1000, core.removeTimedOutFilters(now + 1000));
+		assertEquals(0, cb.timedOut);
+		cb.shouldTimeout = true;
+		core.removeTimedOutFilters(now + 1000);
+		assertEquals(1, cb.timedOut);
+		core.checkFilters(DMT.createFNPAccepted(6L), null);
+		assertTrue(cb.matched.isEmpty());
+	}
+
+	@Test
+	public void testWaitForTimesOut() throws DisconnectedException {
+		MessageFilter filter = MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 7L).setTimeout(10);
+		assertNull(core.waitFor(filter, null));
+		// The filter must have been removed, so the message is unclaimed.
+		core.checkFilters(DMT.createFNPAccepted(7L), null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+}
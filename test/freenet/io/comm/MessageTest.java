@@ -0,0 +1,149 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.junit.Test;
+
+public class MessageTest {
+
+	private static final MessageType ALL_TYPES = new MessageType("MessageTestAllTypes", DMT.PRIORITY_LOW) {{
+		addField("boolean", Boolean.class);
+		addField("byte", Byte.class);
+		addField("short", Short.class);
+		addField("int", Integer.class);
+		addField("long", Long.class);
+		addField("float", Float.class);
+		addField("double", Double.class);
+		addField("string", String.class);
+		addField("doubles", double[].class);
+		addLinkedListField("list", Long.class);
+	}};
+
+	private static Message allTypes() {
+		Message m = new Message(ALL_TYPES);
+		m.set("boolean", true);
+		m.set("byte", (byte) -3);
+		m.set("short", (short) -300);
+		m.set("int", -70000);
+		m.set("long", Long.MIN_VALUE);
+		m.set("float", 1.5f);
+		m.set("double", -0.25);
+		m.set("string", "text");
+		m.set("doubles", new double[] { 0.1, 0.2 });
+		LinkedList<Long> list = new LinkedList<Long>();
+		list.add(1L);
+		list.add(2L);
+		m.set("list", list);
+		return m;
+	}
+
+	private static void checkAllTypes(Message m) {
+		assertTrue(m.getBoolean("boolean"));
+		assertEquals(-3, m.getByte("byte"));
+		assertEquals(-300, m.getShort("short"));
+		assertEquals(-70000, m.getInt("int"));
+		assertEquals(Long.MIN_VALUE, m.getLong("long"));
+		assertEquals(1.5f, m.getFloat("float"), 0.0f);
+		assertEquals(-0.25, m.getDouble("double"), 0.0);
+		assertEquals("text", m.getString("string"));
+		assertTrue(Arrays.equals(new double[] { 0.1, 0.2 }, m.getDoubleArray("doubles")));
+		assertEquals(Arrays.asList(1L, 2L), m.getObject("list"));
+	}
+
+	@Test
+	public void testEncodeDecode() {
+		Message m = allTypes();
+		checkAllTypes(m);
+		byte[] encoded = m.encodeToPacket();
+		Message decoded = Message.decodeMessageLax(encoded, null, 0);
+		assertSame(ALL_TYPES, decoded.getSpec());
+		checkAllTypes(decoded);
+		assertArrayEquals(encoded, decoded.encodeToPacket());
+		checkAllTypes(m.cloneAndDropSubMessages());
+	}
+
+	@Test
+	public void testIndexedAccess() {
+		Message m = allTypes();
+		int field = ALL_TYPES.fieldIndex("long");
+		assertEquals("long", ALL_TYPES.fieldName(field));
+		assertEquals(Long.MIN_VALUE, m.getLong(field));
+		m.set(field, 5L);
+		assertEquals(5L, m.getLong("long"));
+		assertEquals(Long.valueOf(5L), m.getObject(field));
+		assertEquals(-1, ALL_TYPES.fieldIndex("missing"));
+		try {
+			m.getInt(field);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testUnsetAndWrongType() {
+		Message m = new Message(ALL_TYPES);
+		assertFalse(m.isSet("int"));
+		assertNull(m.getObject("int"));
+		assertNull(m.getString("missing"));
+		try {
+			m.getInt("int");
+			fail();
+		} catch (NullPointerException e) {
+			// Expected, as when the fields were kept in a map.
+		}
+		try {
+			m.getFromPayload("int");
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+		try {
+			m.set("int", 1L);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			m.set("missing", 1);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		m.set("int", 1);
+		assertTrue(m.isSet("int"));
+		try {
+			m.getLong("int");
+			fail();
+		} catch (ClassCastException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testFieldEquals() {
+		Message m = allTypes();
+		assertTrue(m.fieldEquals("long", Long.MIN_VALUE));
+		assertFalse(m.fieldEquals("long", 5L));
+		assertFalse(m.fieldEquals("long", (int) Long.MIN_VALUE));
+		assertTrue(m.fieldEquals("boolean", true));
+		assertTrue(m.fieldEquals("double", -0.25));
+		assertTrue(m.fieldEquals("string", "text"));
+		assertFalse(new Message(ALL_TYPES).fieldEquals("long", Long.MIN_VALUE));
+		assertFalse(m.fieldEquals("missing", 1));
+	}
+
+	@Test
+	public void testDMTRoundTrip() {
+		Message m = DMT.createFNPRejectedOverload(123L, true, false, true);
+		Message decoded = Message.decodeMessageLax(m.encodeToPacket(), null, 0);
+		assertSame(DMT.FNPRejectedOverload, decoded.getSpec());
+		assertEquals(123L, decoded.getLong(DMT.UID));
+		assertTrue(decoded.getBoolean(DMT.IS_LOCAL));
+		assertEquals(m.toString(), decoded.toString());
+	}
+
+}
@@ -0,0 +1,170 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class UdpSendQueueTest {
+
+	private static final InetSocketAddress GOOD = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1000);
+	private static final InetSocketAddress NO_ROUTE = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1001);
+	private static final InetSocketAddress UNRESOLVED = InetSocketAddress.createUnresolved("nowhere.invalid", 1002);
+
+	/** A socket which takes a given number of packets before its send buffer is full. */
+	private static class FakeQueue extends UdpSendQueue {
+		int room;
+		boolean closed;
+		int wakeups;
+		final List<Integer> sent = new ArrayList<Integer>();
+
+		FakeQueue(int maxQueued) {
+			super(null, maxQueued);
+		}
+
+		@Override
+		protected int sendNow(ByteBuffer data, InetSocketAddress destination) throws IOException {
+			if(closed) throw new ClosedChannelException();
+			if(room == 0) return 0;
+			if(destination == NO_ROUTE) throw new NoRouteToHostException();
+			if(destination.isUnresolved()) throw new UnresolvedAddressException();
+			room--;
+			sent.add((int) data.get(0));
+			return data.remaining();
+		}
+
+		@Override
+		protected void onFirstQueued() {
+			wakeups++;
+		}
+	}
+
+	private static byte[] packet(int i) {
+		return new byte[] { (byte) i, 0, 0, 0 };
+	}
+
+	@Test
+	public void testSendsDirectly() throws IOException {
+		FakeQueue queue = new FakeQueue(10);
+		queue.room = 10;
+		assertTrue(queue.send(packet(1), GOOD));
+		assertTrue(queue.send(packet(2), GOOD));
+		assertEquals(Arrays.asList(1, 2), queue.sent);
+		assertEquals(0, queue.queued());
+		assertEquals(0, queue.wakeups);
+		assertFalse(queue.flush());
+	}
+
+	@Test
+	public void testQueuesWhenFullAndFlushesInOrder() throws IOException {
+		FakeQueue queue = new FakeQueue(10);
+		assertTrue(queue.send(packet(1), GOOD));
+		assertTrue(queue.send(packet(2), GOOD));
+		assertEquals(2, queue.queued());
+		// Only woken up once.
+		assertEquals(1, queue.wakeups);
+		// There is room now, but the queued packets go first.
+		queue.room = 1;
+		assertTrue(queue.send(packet(3), GOOD));
+		assertTrue(queue.sent.isEmpty());
+		assertTrue(queue.flush());
+		assertEquals(Arrays.asList(1), queue.sent);
+		queue.room = 10;
+		assertFalse(queue.flush());
+		assertEquals(Arrays.asList(1, 2, 3), queue.sent);
+		assertEquals(0, queue.getDropped());
+		// Empty again, so sent directly.
+		assertTrue(queue.send(packet(4), GOOD));
+		assertEquals(Arrays.asList(1, 2, 3, 4), queue.sent);
+		assertEquals(1, queue.wakeups);
+	}
+
+	@Test
+	public void testDropsWhenQueueFull() throws IOException {
+		FakeQueue queue = new FakeQueue(2);
+		assertTrue(queue.send(packet(1), GOOD));
+		assertTrue(queue.send(packet(2), GOOD));
+		assertFalse(queue.send(packet(3), GOOD));
+		assertEquals(1, queue.getDropped());
+		queue.room = 10;
+		assertFalse(queue.flush());
+		assertEquals(Arrays.asList(1, 2), queue.sent);
+	}
+
+	@Test
+	public void testFailedPacketDropped() throws IOException {
+		FakeQueue queue = new FakeQueue(10);
+		queue.send(packet(1), NO_ROUTE);
+		queue.send(packet(2), GOOD);
+		queue.send(packet(3), UNRESOLVED);
+		queue.send(packet(4), GOOD);
+		queue.room = 10;
+		// The packets we can't send don't hold up the rest.
+		assertFalse(queue.flush());
+		assertEquals(Arrays.asList(2, 4), queue.sent);
+		assertEquals(2, queue.getFailed());
+		assertEquals(0, queue.queued());
+	}
+
+	@Test
+	public void testDirectFailureThrows() {
+		FakeQueue queue = new FakeQueue(10);
+		queue.room = 10;
+		try {
+			queue.send(packet(1), NO_ROUTE);
+			fail();
+		} catch (IOException e) {
+			// Expected, the caller logs it.
+		}
+		assertEquals(0, queue.queued());
+	}
+
+	@Test
+	public void testClosed() throws IOException {
+		FakeQueue queue = new FakeQueue(10);
+		queue.send(packet(1), GOOD);
+		queue.send(packet(2), GOOD);
+		queue.closed = true;
+		try {
+			queue.flush();
+			fail();
+		} catch (ClosedChannelException e) {
+			// Expected.
+		}
+		assertEquals(0, queue.queued());
+	}
+
+	@Test
+	public void testRealChannel() throws IOException {
+		DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			receiver.setSoTimeout(5000);
+			channel.configureBlocking(false);
+			UdpSendQueue queue = new UdpSendQueue(channel, 10);
+			InetSocketAddress destination = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort());
+			assertTrue(queue.send(packet(7), destination));
+			assertFalse(queue.flush());
+			DatagramPacket p = new DatagramPacket(new byte[16], 16);
+			receiver.receive(p);
+			assertArrayEquals(packet(7), Arrays.copyOf(p.getData(), p.getLength()));
+		} finally {
+			channel.close();
+			receiver.close();
+		}
+	}
+
+}
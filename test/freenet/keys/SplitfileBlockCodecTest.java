@@ -0,0 +1,157 @@
+package freenet.keys;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.crypt.SHA256;
+import freenet.support.io.ArrayBucket;
+import freenet.support.math.MersenneTwister;
+
+public class SplitfileBlockCodecTest {
+
+	private static final int BLOCKS = 50;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static byte[][] randomBlocks(MersenneTwister random, int count) {
+		byte[][] blocks = new byte[count][];
+		for(int i=0;i<count;i++) {
+			blocks[i] = new byte[CHKBlock.DATA_LENGTH];
+			random.nextBytes(blocks[i]);
+		}
+		return blocks;
+	}
+
+	/** Encode with the old, one block at a time, code. */
+	private static ClientCHKBlock reference(byte[] data, byte[] cryptoKey) throws CHKEncodeException {
+		if(cryptoKey == null) cryptoKey = SHA256.digest(data);
+		return ClientCHKBlock.encodeNewNoJCA(data, CHKBlock.DATA_LENGTH, SHA256.getMessageDigest(), cryptoKey,
+				false, (short)-1, Key.ALGO_AES_CTR_256_SHA256, KeyBlock.HASH_SHA256);
+	}
+
+	private static void assertSameBlock(ClientCHKBlock expected, ClientCHKBlock actual) {
+		assertEquals(expected.getClientKey(), actual.getClientKey());
+		assertArrayEquals(expected.getBlock().getHeaders(), actual.getBlock().getHeaders());
+		assertArrayEquals(expected.getBlock().getData(), actual.getBlock().getData());
+	}
+
+	@Test
+	public void testEncodeSingle() throws CHKEncodeException {
+		MersenneTwister random = new MersenneTwister(1);
+		byte[] splitfileKey = new byte[32];
+		random.nextBytes(splitfileKey);
+		for(byte[] data : randomBlocks(random, 10)) {
+			assertSameBlock(reference(data, null), SplitfileBlockCodec.encode(data, null, Key.ALGO_AES_CTR_256_SHA256));
+			assertSameBlock(reference(data, splitfileKey), SplitfileBlockCodec.encode(data, splitfileKey, Key.ALGO_AES_CTR_256_SHA256));
+			assertSameBlock(reference(data, splitfileKey), ClientCHKBlock.encodeSplitfileBlock(data, splitfileKey, Key.ALGO_AES_CTR_256_SHA256));
+		}
+	}
+
+	@Test
+	public void testEncodeBatch() throws CHKEncodeException {
+		MersenneTwister random = new MersenneTwister(2);
+		byte[][] data = randomBlocks(random, BLOCKS);
+		data[7] = null;
+		// Mix of shared, per-block and content hash keys.
+		byte[] splitfileKey = new byte[32];
+		random.nextBytes(splitfileKey);
+		byte[][] cryptoKeys = new byte[BLOCKS][];
+		for(int i=0;i<BLOCKS;i++) {
+			if(i % 3 == 0) {
+				cryptoKeys[i] = splitfileKey;
+			} else if(i % 3 == 1) {
+				cryptoKeys[i] = new byte[32];
+				random.nextBytes(cryptoKeys[i]);
+			}
+		}
+		for(ExecutorService exec : new ExecutorService[] { null, executor }) {
+			ClientCHKBlock[] blocks = SplitfileBlockCodec.encode(data, cryptoKeys, Key.ALGO_AES_CTR_256_SHA256, exec);
+			ClientCHK[] keys = SplitfileBlockCodec.encodeKeys(data, cryptoKeys, Key.ALGO_AES_CTR_256_SHA256, exec);
+			for(int i=0;i<BLOCKS;i++) {
+				if(data[i] == null) {
+					assertNull(blocks[i]);
+					assertNull(keys[i]);
+					continue;
+				}
+				ClientCHKBlock expected = reference(data[i], cryptoKeys[i]);
+				assertSameBlock(expected, blocks[i]);
+				assertEquals(expected.getClientKey(), keys[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testEncodeBatchPCFB() throws CHKEncodeException {
+		// Falls back to ClientCHKBlock.
+		MersenneTwister random = new MersenneTwister(3);
+		byte[][] data = randomBlocks(random, BLOCKS);
+		ClientCHKBlock[] blocks = SplitfileBlockCodec.encode(data, null, Key.ALGO_AES_PCFB_256_SHA256, executor);
+		for(int i=0;i<BLOCKS;i++)
+			assertSameBlock(ClientCHKBlock.encodeSplitfileBlock(data[i], null, Key.ALGO_AES_PCFB_256_SHA256), blocks[i]);
+	}
+
+	@Test
+	public void testDecode() throws Exception {
+		MersenneTwister random = new MersenneTwister(4);
+		byte[][] data = randomBlocks(random, BLOCKS);
+		ClientCHKBlock[] blocks = new ClientCHKBlock[BLOCKS];
+		for(int i=0;i<BLOCKS;i++)
+			blocks[i] = reference(data[i], null);
+		blocks[3] = null;
+		// Wrong key.
+		byte[] wrongKey = new byte[32];
+		random.nextBytes(wrongKey);
+		ClientCHK key = blocks[5].getClientKey();
+		blocks[5] = new ClientCHKBlock(blocks[5].getBlock(), new ClientCHK(key.getRoutingKey(), wrongKey, false,
+				key.getCryptoAlgorithm(), (short)-1));
+		for(ExecutorService exec : new ExecutorService[] { null, executor }) {
+			byte[][] decoded = SplitfileBlockCodec.decode(blocks, exec);
+			for(int i=0;i<BLOCKS;i++) {
+				if(i == 3 || i == 5) {
+					assertNull(decoded[i]);
+					continue;
+				}
+				assertArrayEquals(data[i], decoded[i]);
+				assertArrayEquals(blocks[i].memoryDecode(), SplitfileBlockCodec.decode(blocks[i]));
+			}
+		}
+		try {
+			SplitfileBlockCodec.decode(blocks[5]);
+			fail();
+		} catch (CHKDecodeException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testDecodeShortAndCompressed() throws Exception {
+		MersenneTwister random = new MersenneTwister(5);
+		for(boolean dontCompress : new boolean[] { true, false }) {
+			for(int length : new int[] { 0, 1, 100, CHKBlock.DATA_LENGTH - 1 }) {
+				byte[] data = new byte[length];
+				for(int i=0;i<length;i++)
+					data[i] = (byte)('a' + random.nextInt(3));
+				ClientCHKBlock block = ClientCHKBlock.encode(new ArrayBucket(data), false, dontCompress, (short)-1,
+						length, null, null, Key.ALGO_AES_CTR_256_SHA256);
+				assertArrayEquals(data, SplitfileBlockCodec.decode(block));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import freenet.io.comm.Peer;
+import freenet.node.AuthSourceCache.Candidate;
+import freenet.node.AuthSourceCache.Kind;
+
+public class AuthSourceCacheTest {
+
+	private static Peer peer(String address, int port) throws UnknownHostException {
+		return new Peer(InetAddress.getByName(address), port);
+	}
+
+	@Test
+	public void testSamePrefixDifferentPort() throws UnknownHostException {
+		AuthSourceCache cache = new AuthSourceCache();
+		PeerNode pn = mock(PeerNode.class);
+		cache.matched(peer("192.0.2.10", 1234), pn, Kind.AUTH, 1000);
+		Candidate[] candidates = cache.get(peer("192.0.2.77", 4321), 2000);
+		assertEquals(1, candidates.length);
+		assertSame(pn, candidates[0].pn);
+		assertEquals(Kind.AUTH, candidates[0].kind);
+		assertEquals(0, cache.get(peer("192.0.3.10", 1234), 2000).length);
+		assertEquals(0, cache.get(peer("2001:db8::1", 1234), 2000).length);
+	}
+
+	@Test
+	public void testMostRecentFirstAndBounded() throws UnknownHostException {
+		AuthSourceCache cache = new AuthSourceCache();
+		Peer source = peer("2001:db8::1", 1234);
+		PeerNode[] pns = new PeerNode[AuthSourceCache.MAX_CANDIDATES + 1];
+		for(int i=0;i<pns.length;i++) {
+			pns[i] = mock(PeerNode.class);
+			cache.matched(source, pns[i], Kind.AUTH, 1000 + i);
+		}
+		// Matching again moves it to the front without duplicating it.
+		cache.matched(source, pns[pns.length - 2], Kind.AUTH, 2000);
+		Candidate[] candidates = cache.get(peer("2001:db8::2", 1), 2000);
+		assertEquals(AuthSourceCache.MAX_CANDIDATES, candidates.length);
+		assertSame(pns[pns.length - 2], candidates[0].pn);
+		assertSame(pns[pns.length - 1], candidates[1].pn);
+		for(Candidate c : candidates)
+			assertNotSame(pns[0], c.pn);
+		// The same peer may be a candidate for both kinds of packet.
+		cache.matched(source, pns[pns.length - 2], Kind.ANON_REPLY, 2001);
+		candidates = cache.get(source, 2001);
+		assertEquals(Kind.ANON_REPLY, candidates[0].kind);
+		assertEquals(Kind.AUTH, candidates[1].kind);
+		assertSame(candidates[0].pn, candidates[1].pn);
+	}
+
+	@Test
+	public void testExpiry() throws UnknownHostException {
+		AuthSourceCache cache = new AuthSourceCache();
+		Peer source = peer("192.0.2.10", 1234);
+		PeerNode old = mock(PeerNode.class);
+		PeerNode recent = mock(PeerNode.class);
+		cache.matched(source, old, Kind.AUTH, 0);
+		cache.matched(source, recent, Kind.AUTH, AuthSourceCache.EXPIRY);
+		Candidate[] candidates = cache.get(source, AuthSourceCache.EXPIRY + 1);
+		assertEquals(1, candidates.length);
+		assertSame(recent, candidates[0].pn);
+		assertEquals(0, cache.get(source, AuthSourceCache.EXPIRY * 2).length);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testMaxPrefixes() throws UnknownHostException {
+		AuthSourceCache cache = new AuthSourceCache();
+		PeerNode pn = mock(PeerNode.class);
+		for(int i=0;i<AuthSourceCache.MAX_PREFIXES + 10;i++)
+			cache.matched(peer("10."+(i >> 8)+"."+(i & 0xff)+".1", 1234), pn, Kind.AUTH, 1000);
+		assertEquals(AuthSourceCache.MAX_PREFIXES, cache.size());
+		// The oldest were dropped.
+		assertEquals(0, cache.get(peer("10.0.0.1", 1234), 1000).length);
+		assertEquals(1, cache.get(peer("10.1.9.1", 1234), 1000).length);
+	}
+
+	@Test
+	public void testTrialStatsBuckets() {
+		assertEquals(0, AuthTrialStats.bucket(0));
+		assertEquals(1, AuthTrialStats.bucket(1));
+		assertEquals(2, AuthTrialStats.bucket(2));
+		assertEquals(2, AuthTrialStats.bucket(3));
+		assertEquals(3, AuthTrialStats.bucket(4));
+		assertEquals(AuthTrialStats.BUCKETS - 1, AuthTrialStats.bucket(Integer.MAX_VALUE));
+		AuthTrialStats stats = new AuthTrialStats();
+		stats.report(1, true, true);
+		stats.report(5, false, false);
+		assertEquals(2, stats.getPackets());
+		assertEquals(6, stats.getTrials());
+		assertEquals(1, stats.getHintHits());
+		assertEquals(1L, stats.exportFieldSet().getLong("trials4to7", -1));
+	}
+
+}
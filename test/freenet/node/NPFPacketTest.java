@@ -493,6 +493,40 @@ public class NPFPacketTest {
 		checkEquals(lossyFragment2, decodedLossyMessage);
 	}
 
+	@Test
+	public void testDecodeFromSlice() {
+		NPFPacket p = new NPFPacket();
+		p.setSequenceNumber(100);
+		p.addAck(5, MAX_PACKET_SIZE);
+		byte[] fragData = new byte[] {(byte)0x01, (byte)0x23, (byte)0x45, (byte)0x67};
+		p.addMessageFragment(new MessageFragment(true, false, true, 0, 4, 4, 0,
+                fragData, null));
+		byte[] encoded = new byte[p.getLength()];
+		p.toBytes(encoded, 0, null);
+		// Garbage either side, as in a reused receive buffer.
+		byte[] buf = new byte[encoded.length + 30];
+		Arrays.fill(buf, (byte)0xFF);
+		System.arraycopy(encoded, 0, buf, 10, encoded.length);
+		NPFPacket received = NPFPacket.create(buf, 10, encoded.length, pn);
+		assertFalse(received.getError());
+		assertEquals(100, received.getSequenceNumber());
+		assertEquals(1, received.getAcks().size());
+		assertEquals(1, received.getFragments().size());
+		assertEquals(encoded.length, received.getLength());
+		checkEquals(fragData, received.getFragments().get(0).fragmentData);
+	}
+
+	@Test
+	public void testTruncatedAcksInSlice() {
+		byte[] buf = new byte[] {
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, //Sequence number 0
+		                (byte)0x01, //1 ack
+		                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x01};
+		// The ack is cut off by the end of the slice, not by the end of the buffer.
+		NPFPacket r = NPFPacket.create(buf, 0, 8, pn);
+		assertTrue(r.getError());
+	}
+
 	private void checkPacket(NPFPacket packet, byte[] correctData) {
 		byte[] data = new byte[packet.getLength()];
 		packet.toBytes(data, 0, null);
@@ -461,4 +461,62 @@ public class NewPacketFormatTest {
 		assertTrue(Arrays.equals(message, copyOfMessage));
 		assertTrue(Arrays.equals(message, receiverNode.decryptedMessages.get(0)));
 	}
+
+	@Test
+	public void testEncryptionReusesContexts()
+			throws BlockedTooLongException, UnknownHostException, InterruptedException {
+		Random random = new Random(220116);
+		NullBasePeerNode senderNode = new NullBasePeerNode();
+		NullBasePeerNode receiverNode = new NullBasePeerNode();
+		BlockCipher outgoingCipher = new Rijndael();
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		outgoingCipher.initialize(key);
+		BlockCipher ivCipher = new Rijndael();
+		random.nextBytes(key);
+		ivCipher.initialize(key);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+
+		SessionKey senderSessionKey = new SessionKey(null, outgoingCipher, null, null, null, ivCipher,
+							     ivNonce, hmacKey, new NewPacketFormatKeyContext(1000, 2000), 0);
+		SessionKey receiverSessionKey = new SessionKey(null, null, null, outgoingCipher, null,
+							       ivCipher, ivNonce, hmacKey,
+							       new NewPacketFormatKeyContext(2000, 1000), 0);
+		senderNode.currentKey = senderSessionKey;
+		receiverNode.currentKey = receiverSessionKey;
+		NewPacketFormat senderNPF = new NewPacketFormat(senderNode, 1000, 2000);
+		NewPacketFormat receiverNPF = new NewPacketFormat(receiverNode, 2000, 1000);
+		senderNode.messageQueue = new PeerMessageQueue();
+		receiverNode.decryptedMessages = new ArrayList<byte[]>();
+		Peer peer = new Peer(new FreenetInetAddress("127.0.0.1", true), 1234);
+
+		// Messages of different sizes, so the reused buffers hold stale data from bigger packets.
+		int[] sizes = new int[] { 1000, 100, 500, 10 };
+		for(int i = 0; i < sizes.length; i++) {
+			byte[] message = new byte[sizes[i]];
+			random.nextBytes(message);
+			senderNode.messageQueue.queueAndEstimateSize(
+					new MessageItem(message, null, false, null, (short) 0, false, false), 1024);
+			Thread.sleep(PacketSender.MAX_COALESCING_DELAY * 2);
+			assertTrue(senderNPF.maybeSendPacket(false, senderSessionKey));
+			byte[] data = senderNode.sentEncryptedPacket;
+
+			// A corrupted copy is rejected, and left as it was.
+			byte[] corrupted = Arrays.copyOf(data, data.length);
+			corrupted[corrupted.length - 1] ^= 1;
+			byte[] copyOfCorrupted = Arrays.copyOf(corrupted, corrupted.length);
+			assertFalse(receiverNPF.handleReceivedPacket(corrupted, 0, corrupted.length, System.currentTimeMillis(), peer));
+			assertTrue(Arrays.equals(copyOfCorrupted, corrupted));
+
+			// Decrypted from the middle of a bigger buffer.
+			byte[] buf = new byte[data.length + 20];
+			System.arraycopy(data, 0, buf, 7, data.length);
+			assertTrue(receiverNPF.handleReceivedPacket(buf, 7, data.length, System.currentTimeMillis(), peer));
+			assertEquals(i + 1, receiverNode.decryptedMessages.size());
+			assertTrue(Arrays.equals(message, receiverNode.decryptedMessages.get(i)));
+		}
+	}
 }
@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+import freenet.support.Executor;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * PeerManager.getByPeer() through the address index, checked against the linear scan it replaced.
+ * PeerManager and the PeerNode's are mocks running the real address code.
+ */
+public class PeerAddressIndexTest {
+
+	private PeerManager peerManager;
+	private OutgoingPacketMangler mangler;
+
+	private static void set(Class<?> c, Object o, String name, Object value) throws Exception {
+		Field f = c.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	private static Peer peer(String ip, int port) throws Exception {
+		return new Peer(InetAddress.getByName(ip), port);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		Node node = mock(Node.class);
+		when(node.getExecutor()).thenReturn(mock(Executor.class));
+		peerManager = mock(PeerManager.class, CALLS_REAL_METHODS);
+		set(PeerManager.class, peerManager, "node", node);
+		set(PeerManager.class, peerManager, "myPeers", new PeerNode[0]);
+		set(PeerManager.class, peerManager, "connectedPeers", new PeerNode[0]);
+		set(PeerManager.class, peerManager, "addressIndex", new PeerAddressIndex());
+		set(PeerManager.class, peerManager, "listeners", new CopyOnWriteArrayList<Object>());
+		mangler = mock(OutgoingPacketMangler.class);
+		when(mangler.getPrimaryIPAddress()).thenReturn(new Peer[0]);
+	}
+
+	/** A PeerNode whose address methods are the real ones. */
+	private PeerNode peerNode(Peer detected, Peer... nominal) throws Exception {
+		PeerNode pn = mock(PeerNode.class);
+		set(PeerNode.class, pn, "detectedPeer", detected);
+		set(PeerNode.class, pn, "nominalPeer", new ArrayList<Peer>(Arrays.asList(nominal)));
+		set(PeerNode.class, pn, "peers", peerManager);
+		set(PeerNode.class, pn, "node", peerManager.node);
+		set(PeerNode.class, pn, "outgoingMangler", mangler);
+		set(PeerNode.class, pn, "peerECDSAPubKeyHash", new byte[32]);
+		doCallRealMethod().when(pn).getAddressesForIndex();
+		doCallRealMethod().when(pn).matchesPeerAndPort(any(Peer.class));
+		doCallRealMethod().when(pn).matchesIP(any(FreenetInetAddress.class), anyBoolean());
+		doCallRealMethod().when(pn).changedIP(any(Peer.class));
+		doCallRealMethod().when(pn).maybeUpdateHandshakeIPs(anyBoolean());
+		doCallRealMethod().when(pn).processNewNoderef(any(SimpleFieldSet.class), anyBoolean(), anyBoolean(), anyBoolean());
+		return pn;
+	}
+
+	private void remove(PeerNode pn) throws Exception {
+		Method m = PeerManager.class.getDeclaredMethod("removePeer", PeerNode.class);
+		m.setAccessible(true);
+		m.invoke(peerManager, pn);
+	}
+
+	/** The old getByPeer(). */
+	private PeerNode linearScan(Peer peer) {
+		PeerNode[] peerList = peerManager.myPeers();
+		for(PeerNode pn : peerList) {
+			if(pn.isDisabled()) continue;
+			if(pn.matchesPeerAndPort(peer))
+				return pn;
+		}
+		FreenetInetAddress addr = peer.getFreenetAddress();
+		for(PeerNode pn : peerList) {
+			if(pn.isDisabled()) continue;
+			if(pn.matchesIP(addr, false))
+				return pn;
+		}
+		return null;
+	}
+
+	private void assertFound(PeerNode expected, Peer peer) {
+		assertSame(expected, linearScan(peer));
+		assertSame(expected, peerManager.getByPeer(peer));
+	}
+
+	@Test
+	public void testAddAndRemove() throws Exception {
+		PeerNode a = peerNode(peer("10.0.0.1", 1000), peer("10.0.0.2", 2000));
+		PeerNode b = peerNode(null, peer("10.0.0.3", 3000));
+		assertTrue(peerManager.addPeer(a));
+		assertTrue(peerManager.addPeer(b));
+		assertFound(a, peer("10.0.0.1", 1000));
+		assertFound(a, peer("10.0.0.2", 2000));
+		// Same IP, different port.
+		assertFound(a, peer("10.0.0.2", 2001));
+		assertFound(b, peer("10.0.0.3", 3000));
+		assertFound(null, peer("10.0.0.4", 1000));
+		remove(a);
+		assertFound(null, peer("10.0.0.1", 1000));
+		assertFound(null, peer("10.0.0.2", 2000));
+		assertFound(b, peer("10.0.0.3", 3000));
+		remove(b);
+		assertFound(null, peer("10.0.0.3", 3000));
+	}
+
+	@Test
+	public void testSharedAddress() throws Exception {
+		PeerNode a = peerNode(peer("10.0.0.1", 1000));
+		PeerNode b = peerNode(peer("10.0.0.1", 2000));
+		peerManager.addPeer(a);
+		peerManager.addPeer(b);
+		assertFound(a, peer("10.0.0.1", 1000));
+		assertFound(b, peer("10.0.0.1", 2000));
+		assertFound(a, peer("10.0.0.1", 3000));
+		when(a.isDisabled()).thenReturn(true);
+		assertFound(b, peer("10.0.0.1", 1000));
+	}
+
+	@Test
+	public void testDetectedPeerChanged() throws Exception {
+		PeerNode a = peerNode(peer("10.0.0.1", 1000));
+		peerManager.addPeer(a);
+		a.changedIP(peer("10.0.0.5", 5000));
+		assertFound(a, peer("10.0.0.5", 5000));
+		assertFound(null, peer("10.0.0.1", 1000));
+	}
+
+	@Test
+	public void testHandshakeIPsLookedUp() throws Exception {
+		Peer hostname = new Peer("localhost:4000", true);
+		PeerNode a = peerNode(null, hostname);
+		peerManager.addPeer(a);
+		// Not looked up yet, so not indexed.
+		assertNull(hostname.getAddress(false));
+		// Looked up when we send to it, and indexed at the next handshake IP update.
+		InetAddress address = hostname.getAddress(true);
+		assertNotNull(address);
+		a.maybeUpdateHandshakeIPs(false);
+		assertFound(a, new Peer(address, 4000));
+	}
+
+	@Test
+	public void testNewNoderef() throws Exception {
+		final PeerNode a = peerNode(null, peer("10.0.0.1", 1000));
+		peerManager.addPeer(a);
+		doAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				// As if the noderef had a new physical.udp.
+				List<Peer> nominal = new ArrayList<Peer>();
+				nominal.add(peer("10.0.0.6", 6000));
+				set(PeerNode.class, a, "nominalPeer", nominal);
+				return true;
+			}
+		}).when(a).innerProcessNewNoderef(any(SimpleFieldSet.class), anyBoolean(), anyBoolean(), anyBoolean());
+		a.processNewNoderef(new SimpleFieldSet(true), false, true, false);
+		assertFound(a, peer("10.0.0.6", 6000));
+		assertFound(null, peer("10.0.0.1", 1000));
+	}
+
+	@Test
+	public void testNotAPeer() throws Exception {
+		// Peers which have been removed don't get added back when their address changes.
+		PeerNode a = peerNode(peer("10.0.0.1", 1000));
+		peerManager.addPeer(a);
+		remove(a);
+		a.changedIP(peer("10.0.0.5", 5000));
+		assertFound(null, peer("10.0.0.5", 5000));
+		assertFound(null, peer("10.0.0.1", 1000));
+	}
+
+}
@@ -0,0 +1,146 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PeerSendQueueTest {
+
+	private static PeerSendQueue.Entry<String> entry(String name) {
+		return new PeerSendQueue.Entry<String>(name);
+	}
+
+	@Test
+	public void testOrder() {
+		PeerSendQueue<String> queue = new PeerSendQueue<String>();
+		PeerSendQueue.Entry<String> a = entry("a");
+		PeerSendQueue.Entry<String> b = entry("b");
+		PeerSendQueue.Entry<String> c = entry("c");
+		queue.schedule(a, 30);
+		queue.schedule(b, 10);
+		queue.schedule(c, 20);
+		assertEquals(3, queue.size());
+		assertEquals(10, queue.nextTime());
+		assertNull(queue.poll(5));
+		assertSame(b, queue.poll(100));
+		assertSame(c, queue.poll(100));
+		assertSame(a, queue.poll(100));
+		assertNull(queue.poll(100));
+		assertEquals(Long.MAX_VALUE, queue.nextTime());
+	}
+
+	@Test
+	public void testOnlyEarlier() {
+		PeerSendQueue<String> queue = new PeerSendQueue<String>();
+		PeerSendQueue.Entry<String> a = entry("a");
+		PeerSendQueue.Entry<String> b = entry("b");
+		queue.schedule(a, 50);
+		queue.schedule(b, 40);
+		// Later is ignored, earlier moves it up.
+		queue.schedule(a, 60);
+		assertEquals(40, queue.nextTime());
+		queue.schedule(a, 30);
+		assertEquals(2, queue.size());
+		assertSame(a, queue.poll(35));
+		assertNull(queue.poll(35));
+	}
+
+	@Test
+	public void testBusy() {
+		PeerSendQueue<String> queue = new PeerSendQueue<String>();
+		PeerSendQueue.Entry<String> a = entry("a");
+		queue.schedule(a, 10);
+		assertSame(a, queue.poll(10));
+		// Woken up while a thread has it: not queued until it is released.
+		queue.schedule(a, 15);
+		assertEquals(0, queue.size());
+		queue.release(a, 100);
+		assertEquals(15, queue.nextTime());
+		assertSame(a, queue.poll(20));
+		queue.release(a, Long.MAX_VALUE);
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testRemove() {
+		PeerSendQueue<String> queue = new PeerSendQueue<String>();
+		PeerSendQueue.Entry<String> a = entry("a");
+		PeerSendQueue.Entry<String> b = entry("b");
+		queue.schedule(a, 10);
+		queue.schedule(b, 20);
+		queue.remove(a);
+		assertEquals(20, queue.nextTime());
+		queue.schedule(a, 5);
+		assertEquals(1, queue.size());
+		// Removed while busy: not queued again when released.
+		assertSame(b, queue.poll(20));
+		queue.remove(b);
+		queue.release(b, 30);
+		assertEquals(0, queue.size());
+		queue.reset(a);
+		queue.schedule(a, 5);
+		assertSame(a, queue.poll(5));
+	}
+
+	@Test
+	public void testRandom() {
+		PeerSendQueue<String> queue = new PeerSendQueue<String>();
+		Random random = new Random(1234);
+		@SuppressWarnings("unchecked")
+		PeerSendQueue.Entry<String>[] entries = (PeerSendQueue.Entry<String>[]) new PeerSendQueue.Entry<?>[200];
+		long[] times = new long[entries.length];
+		for(int i=0;i<entries.length;i++) {
+			entries[i] = entry(Integer.toString(i));
+			times[i] = Long.MAX_VALUE;
+		}
+		for(int i=0;i<2000;i++) {
+			int x = random.nextInt(entries.length);
+			long t = random.nextInt(100000);
+			queue.schedule(entries[x], t);
+			times[x] = Math.min(times[x], t);
+			if(random.nextInt(10) == 0) {
+				queue.remove(entries[x]);
+				queue.reset(entries[x]);
+				times[x] = Long.MAX_VALUE;
+			}
+		}
+		long last = -1;
+		int count = 0;
+		PeerSendQueue.Entry<String> e;
+		while((e = queue.poll(Long.MAX_VALUE - 1)) != null) {
+			long t = times[Integer.parseInt(e.peer)];
+			assertTrue(t >= last);
+			last = t;
+			count++;
+		}
+		int expected = 0;
+		for(long t : times)
+			if(t != Long.MAX_VALUE) expected++;
+		assertEquals(expected, count);
+	}
+
+	@Test(timeout = 10000)
+	public void testTake() throws InterruptedException {
+		final PeerSendQueue<String> queue = new PeerSendQueue<String>();
+		final PeerSendQueue.Entry<String> a = entry("a");
+		queue.schedule(a, System.currentTimeMillis() + 60000);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+				// Wakes up the waiting thread early.
+				queue.schedule(a, System.currentTimeMillis());
+			}
+		};
+		t.start();
+		assertSame(a, queue.take(0));
+		t.join();
+	}
+
+}
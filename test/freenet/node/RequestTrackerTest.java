@@ -0,0 +1,250 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.reflect.Field;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.node.RequestTracker.CountedRequests;
+
+/**
+ * The running totals kept by RequestTracker must always match what we get by looking at every
+ * running request, as the tracker used to do.
+ */
+public class RequestTrackerTest {
+
+	private RequestTracker tracker;
+	private Node node;
+	private PeerNode[] peers;
+	private List<UIDTag> tags;
+	private Random random;
+
+	@Before
+	public void setUp() throws Exception {
+		PeerManager peerManager = mock(PeerManager.class);
+		when(peerManager.myPeers()).thenReturn(new PeerNode[0]);
+		tracker = new RequestTracker(peerManager, null);
+		node = mock(Node.class);
+		when(node.getTracker()).thenReturn(tracker);
+		peers = new PeerNode[5];
+		Field myRef = PeerNode.class.getDeclaredField("myRef");
+		myRef.setAccessible(true);
+		for(int i=0;i<peers.length;i++) {
+			peers[i] = mock(PeerNode.class);
+			myRef.set(peers[i], new WeakReference<PeerNode>(peers[i]));
+		}
+		tags = new ArrayList<UIDTag>();
+		random = new Random(12345);
+	}
+
+	@Test
+	public void testCountsMatchScan() {
+		for(int i=0;i<3000;i++) {
+			if(tags.size() < 50 || random.nextInt(4) == 0)
+				addTag();
+			else
+				changeTag(tags.get(random.nextInt(tags.size())));
+			if(i % 100 == 0) checkCounts();
+		}
+		checkCounts();
+	}
+
+	@Test
+	public void testUnlockedTagsAreNotCounted() {
+		RequestTag tag = new RequestTag(false, RequestTag.START.REMOTE, peers[0], false, 1, node);
+		assertTrue(tracker.lockUID(tag));
+		tag.setAccepted();
+		tag.addRoutedTo(peers[1], false);
+		CountedRequests from = new CountedRequests();
+		tracker.countRequests(peers[0], false, false, false, false, false, false, 1, false, from, new CountedRequests());
+		assertEquals(1, from.total());
+		assertEquals(1, from.expectedTransfersIn());
+		assertEquals(1, from.expectedTransfersOut());
+		CountedRequests to = new CountedRequests();
+		tracker.countRequests(peers[1], true, false, false, false, false, false, 1, true, to, null);
+		assertEquals(1, to.total());
+		tag.unlockHandler();
+		tag.removeRoutingTo(peers[1]);
+		from = new CountedRequests();
+		tracker.countRequests(peers[0], false, false, false, false, false, false, 1, false, from, new CountedRequests());
+		assertEquals(0, from.total());
+		to = new CountedRequests();
+		tracker.countRequests(peers[1], true, false, false, false, false, false, 1, true, to, null);
+		assertEquals(0, to.total());
+	}
+
+	private void addTag() {
+		long uid = random.nextLong();
+		boolean realTime = random.nextBoolean();
+		boolean ssk = random.nextBoolean();
+		PeerNode source = random.nextInt(3) == 0 ? null : randomPeer();
+		UIDTag tag;
+		switch(random.nextInt(3)) {
+		case 0:
+			tag = new RequestTag(ssk, source == null ? RequestTag.START.LOCAL : RequestTag.START.REMOTE, source, realTime, uid, node);
+			break;
+		case 1:
+			tag = new InsertTag(ssk, source == null ? InsertTag.START.LOCAL : InsertTag.START.REMOTE, source, realTime, uid, node);
+			break;
+		default:
+			tag = new OfferReplyTag(ssk, source == null ? randomPeer() : source, realTime, uid, node);
+		}
+		if(tracker.lockUID(tag))
+			tags.add(tag);
+	}
+
+	private void changeTag(UIDTag tag) {
+		PeerNode peer = randomPeer();
+		switch(random.nextInt(12)) {
+		case 0:
+		case 1:
+			tag.setAccepted();
+			break;
+		case 2:
+		case 3:
+			tag.addRoutedTo(peer, random.nextBoolean());
+			break;
+		case 4:
+			tag.removeRoutingTo(peer);
+			break;
+		case 5:
+			tag.removeFetchingOfferedKeyFrom(peer);
+			break;
+		case 6:
+			tag.setNotRoutedOnwards();
+			break;
+		case 7:
+			tracker.reassignTagToSelf(tag);
+			break;
+		case 8:
+			if(random.nextBoolean())
+				tracker.onRestartOrDisconnect(peer);
+			else
+				tag.timedOutToHandlerButContinued();
+			break;
+		case 9:
+			if(tag instanceof RequestTag)
+				((RequestTag)tag).completedDownstreamTransfers();
+			break;
+		case 10:
+			if(tag instanceof RequestTag) {
+				RequestTag rt = (RequestTag) tag;
+				if(random.nextBoolean())
+					rt.waitingForOpennet(peer);
+				else
+					rt.finishedWaitingForOpennet(peer);
+			}
+			break;
+		default:
+			tag.unlockHandler();
+		}
+	}
+
+	private PeerNode randomPeer() {
+		return peers[random.nextInt(peers.length)];
+	}
+
+	private void checkCounts() {
+		List<Long> uids = new ArrayList<Long>();
+		tracker.addRunningUIDs(uids);
+		Set<Long> running = new HashSet<Long>(uids);
+		List<UIDTag> locked = new ArrayList<UIDTag>();
+		for(UIDTag tag : tags)
+			if(running.contains(tag.uid)) locked.add(tag);
+		assertEquals(running.size(), locked.size());
+		List<PeerNode> sources = new ArrayList<PeerNode>();
+		sources.add(null);
+		for(PeerNode pn : peers) sources.add(pn);
+		for(int type=0;type<3;type++) {
+			boolean insert = type == 1;
+			boolean offer = type == 2;
+			for(boolean ssk : new boolean[] { false, true }) {
+				for(boolean realTime : new boolean[] { false, true }) {
+					for(boolean local : new boolean[] { false, true }) {
+						if(offer && local) continue;
+						for(boolean ignore : new boolean[] { false, true }) {
+							for(int transfersPerInsert : new int[] { 1, 3 }) {
+								CountedRequests counter = new CountedRequests();
+								CountedRequests counterSR = new CountedRequests();
+								tracker.countRequests(local, ssk, insert, offer, realTime, transfersPerInsert, ignore, counter, counterSR);
+								CountedRequests expected = new CountedRequests();
+								CountedRequests expectedSR = new CountedRequests();
+								for(UIDTag tag : locked) {
+									if(!matches(tag, ssk, insert, offer, realTime, local)) continue;
+									count(tag, ignore, transfersPerInsert, true, expected, tag.countAsSourceRestarted() ? expectedSR : null);
+								}
+								assertSame(expected, counter);
+								assertSame(expectedSR, counterSR);
+								Map<PeerNode, CountedRequests> bySource = new HashMap<PeerNode, CountedRequests>();
+								tracker.countAllRequestsByIncomingPeer(false, local, ssk, insert, offer, realTime, transfersPerInsert, ignore, bySource);
+								for(PeerNode source : sources) {
+									counter = new CountedRequests();
+									counterSR = new CountedRequests();
+									tracker.countRequests(source, false, local, ssk, insert, offer, realTime, transfersPerInsert, ignore, counter, counterSR);
+									expected = new CountedRequests();
+									expectedSR = new CountedRequests();
+									if(!(source != null && local)) {
+										for(UIDTag tag : locked) {
+											if(!matches(tag, ssk, insert, offer, realTime, local)) continue;
+											if(tag.getSource() != source) continue;
+											count(tag, ignore, transfersPerInsert, true, expected, tag.countAsSourceRestarted() ? expectedSR : null);
+										}
+									}
+									assertSame(expected, counter);
+									assertSame(expectedSR, counterSR);
+									CountedRequests fromMap = bySource.get(source);
+									assertSame(expected, fromMap == null ? new CountedRequests() : fromMap);
+									if(source == null) continue;
+									counter = new CountedRequests();
+									tracker.countRequests(source, true, local, ssk, insert, offer, realTime, transfersPerInsert, ignore, counter, null);
+									expected = new CountedRequests();
+									for(UIDTag tag : locked) {
+										if(!matches(tag, ssk, insert, offer, realTime, local)) continue;
+										if(tag.currentlyFetchingOfferedKeyFrom(source) || tag.currentlyRoutingTo(source))
+											count(tag, ignore, transfersPerInsert, false, expected, null);
+									}
+									assertSame(expected, counter);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean matches(UIDTag tag, boolean ssk, boolean insert, boolean offer, boolean realTime, boolean local) {
+		if(tag.isSSK() != ssk || tag.realTimeFlag != realTime) return false;
+		if(offer) {
+			if(!tag.isOfferReply()) return false;
+		} else {
+			if(tag.isOfferReply() || tag.isInsert() != insert) return false;
+		}
+		return tag.wasLocal() == local;
+	}
+
+	private static void count(UIDTag tag, boolean ignore, int transfersPerInsert, boolean forAccept, CountedRequests counter, CountedRequests counterSR) {
+		int in = tag.expectedTransfersIn(ignore, transfersPerInsert, forAccept);
+		int out = tag.expectedTransfersOut(ignore, transfersPerInsert, forAccept);
+		counter.add(1, in, out);
+		if(counterSR != null) counterSR.add(1, in, out);
+	}
+
+	private static void assertSame(CountedRequests expected, CountedRequests actual) {
+		assertEquals(expected.total(), actual.total());
+		assertEquals(expected.expectedTransfersIn(), actual.expectedTransfersIn());
+		assertEquals(expected.expectedTransfersOut(), actual.expectedTransfersOut());
+	}
+
+}
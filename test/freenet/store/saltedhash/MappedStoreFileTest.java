@@ -0,0 +1,121 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedStoreFileTest {
+
+	private static final int RECORD = 10;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel fc;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("mappedstorefiletest", ".tmp");
+		raf = new RandomAccessFile(file, "rw");
+		fc = raf.getChannel();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		raf.close();
+		file.delete();
+	}
+
+	private static ByteBuffer pattern(int length, int seed) {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		for(int i=0;i<length;i++)
+			buf.put((byte) (seed + i));
+		buf.flip();
+		return buf;
+	}
+
+	@Test
+	public void testReadWriteAcrossSegments() throws IOException {
+		raf.setLength(RECORD * 10);
+		// Segments of 3 records.
+		MappedStoreFile mapped = new MappedStoreFile(fc, RECORD, RECORD * 3 + 5);
+		mapped.remap(raf.length());
+		assertEquals(RECORD * 10, mapped.mappedLength());
+		assertTrue(mapped.write(pattern(RECORD * 5, 7), RECORD * 2));
+		// Visible through the channel.
+		ByteBuffer check = ByteBuffer.allocate(RECORD * 5);
+		fc.read(check, RECORD * 2);
+		check.flip();
+		assertEquals(pattern(RECORD * 5, 7), check);
+		// And through the mapping, across segment boundaries.
+		ByteBuffer buf = ByteBuffer.allocate(RECORD * 4);
+		assertTrue(mapped.read(buf, RECORD * 3));
+		buf.flip();
+		assertEquals(pattern(RECORD * 4, 7 + RECORD), buf);
+	}
+
+	@Test
+	public void testOutsideMapping() throws IOException {
+		raf.setLength(RECORD * 4);
+		MappedStoreFile mapped = new MappedStoreFile(fc, RECORD);
+		mapped.remap(raf.length());
+		ByteBuffer buf = ByteBuffer.allocate(RECORD * 2);
+		assertFalse(mapped.read(buf, RECORD * 3));
+		assertEquals(0, buf.position());
+		assertFalse(mapped.write(pattern(RECORD, 0), RECORD * 4));
+		// Grow.
+		raf.setLength(RECORD * 6);
+		mapped.remap(raf.length());
+		assertTrue(mapped.write(pattern(RECORD, 3), RECORD * 5));
+		buf = ByteBuffer.allocate(RECORD);
+		assertTrue(mapped.read(buf, RECORD * 5));
+		buf.flip();
+		assertEquals(pattern(RECORD, 3), buf);
+		mapped.unmap();
+		assertFalse(mapped.read(ByteBuffer.allocate(1), 0));
+	}
+
+	@Test
+	public void testDisableBeforeShrink() throws IOException {
+		raf.setLength(RECORD * 4);
+		MappedStoreFile mapped = new MappedStoreFile(fc, RECORD);
+		mapped.remap(raf.length());
+		assertTrue(mapped.write(pattern(RECORD, 1), 0));
+		mapped.disable();
+		assertTrue(mapped.isDisabled());
+		raf.setLength(RECORD * 2);
+		assertFalse(mapped.read(ByteBuffer.allocate(RECORD), 0));
+		// Never mapped again, the caller uses the channel.
+		mapped.remap(raf.length());
+		assertEquals(0, mapped.mappedLength());
+		assertFalse(mapped.write(pattern(RECORD, 2), 0));
+		ByteBuffer buf = ByteBuffer.allocate(RECORD);
+		fc.read(buf, 0);
+		buf.flip();
+		assertEquals(pattern(RECORD, 1), buf);
+	}
+
+	@Test
+	public void testStripes() {
+		StripedLockManager locks = new StripedLockManager(8);
+		assertArrayEquals(new int[] { 1, 3, 6 }, locks.stripesFor(new long[] { 9, 6, 3, 1, 14 }, 5));
+		assertArrayEquals(new int[] { 0, 1, 6, 7 }, locks.stripesFor(6, 4));
+		assertEquals(8, locks.stripesFor(0, 100).length);
+		int[] stripes = locks.stripesFor(new long[] { 1, 2 }, 2);
+		assertTrue(locks.lock(stripes));
+		// Reentrant.
+		assertTrue(locks.lock(stripes));
+		locks.unlock(stripes);
+		locks.unlock(stripes);
+		locks.shutdown();
+		assertFalse(locks.lock(stripes));
+	}
+
+}
@@ -102,6 +102,90 @@ public class SaltedHashFreenetStoreTest {
 		saltStore.close();
 	}
 
+	/* CHK store in mmap mode, reopened without it and then grown in mmap mode */
+	@Test
+	public void testMmapCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmapCHK", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+
+		// Same format on disk.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmapCHK", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
+		saltStore.start(null, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+
+		// Resize on start moves everything while mapped.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmapCHK", store, weakPRNG, 40, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+		assertEquals(40, saltStore.getMaxKeys());
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
+	@Test
+	public void testWriteBehindCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreWriteBehindCHK", store, weakPRNG, 40, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		assertEquals(-1, saltStore.getSessionAccessStats().writeQueueDepth());
+		saltStore.setWriteBehind(true, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			// Readable whether or not it has been written yet.
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+		saltStore.testingFlushWrites();
+		assertEquals(0, saltStore.getSessionAccessStats().writeQueueDepth());
+		saltStore.close();
+
+		// Everything was written on close.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreWriteBehindCHK", store, weakPRNG, 40, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	@Test
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
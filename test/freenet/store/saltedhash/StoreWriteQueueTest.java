@@ -0,0 +1,99 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class StoreWriteQueueTest {
+
+	/** Records writes, optionally blocking until released. */
+	private static class RecordingTarget implements StoreWriteQueue.Target {
+		final List<Long> offsets = new ArrayList<Long>();
+		final List<ByteBuffer> hds = new ArrayList<ByteBuffer>();
+		final CountDownLatch release;
+		int forced;
+
+		RecordingTarget(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public void writeSlot(long offset, ByteBuffer metadata, ByteBuffer hd) throws IOException {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			synchronized(this) {
+				offsets.add(offset);
+				hds.add(hd);
+			}
+		}
+
+		@Override
+		public synchronized void force() {
+			forced++;
+		}
+	}
+
+	private static ByteBuffer buf(int value) {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		buf.putInt(0, value);
+		return buf;
+	}
+
+	@Test
+	public void testQueuedWritesVisibleUntilWritten() {
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingTarget target = new RecordingTarget(release);
+		StoreWriteQueue queue = new StoreWriteQueue("test", target, 1, true);
+		queue.start();
+		assertTrue(queue.enqueue(5, buf(1), buf(10)));
+		assertTrue(queue.enqueue(3, buf(2), buf(20)));
+		// Metadata only: keeps the queued data.
+		assertTrue(queue.enqueue(3, buf(3), null));
+		StoreWriteQueue.PendingWrite pending = queue.get(3);
+		assertNotNull(pending);
+		assertEquals(3, pending.metadata().getInt(0));
+		assertEquals(20, pending.hd().getInt(0));
+		assertNull(queue.get(4));
+		release.countDown();
+		queue.flush();
+		assertNull(queue.get(3));
+		assertNull(queue.get(5));
+		assertEquals(0, queue.queueDepth());
+		// Slot 3 may or may not have been written twice.
+		assertTrue(queue.slotsWritten() >= 2);
+		int last = target.offsets.lastIndexOf(3L);
+		assertEquals(20, target.hds.get(last).getInt(0));
+		assertTrue(target.forced > 0);
+		queue.close();
+		assertFalse(queue.enqueue(1, buf(1), null));
+	}
+
+	@Test
+	public void testBatchSortedByOffset() {
+		CountDownLatch release = new CountDownLatch(0);
+		RecordingTarget target = new RecordingTarget(release);
+		StoreWriteQueue queue = new StoreWriteQueue("test", target, 1, false);
+		// Not started, so close() writes everything in one batch.
+		for(long offset : new long[] { 9, 2, 7, 2, 1 })
+			assertTrue(queue.enqueue(offset, buf((int) offset), buf(0)));
+		assertEquals(4, queue.queueDepth());
+		queue.close();
+		assertEquals(0, queue.queueDepth());
+		assertEquals(1, queue.batches());
+		assertEquals(0, target.forced);
+		List<Long> expected = new ArrayList<Long>();
+		for(long offset : new long[] { 1, 2, 7, 9 })
+			expected.add(offset);
+		assertEquals(expected, target.offsets);
+	}
+
+}
@@ -0,0 +1,54 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class CachedDateFormatTest {
+
+	private static void check(String pattern) {
+		SimpleDateFormat df = new SimpleDateFormat(pattern, Locale.ENGLISH);
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		DateFormat reference = (DateFormat) df.clone();
+		CachedDateFormat cached = new CachedDateFormat(df);
+		long[] times = { 0, 7, 42, 999, 1000, 1234567890123L, 1234567890005L, 1234567890050L,
+				1234567891000L, 1234567889999L, 1700000000999L };
+		for(long time : times) {
+			StringBuilder sb = new StringBuilder();
+			cached.append(sb, time);
+			assertEquals(pattern + " at " + time, reference.format(new Date(time)), sb.toString());
+		}
+	}
+
+	@Test
+	public void testPatterns() {
+		check("MMM dd, yyyy HH:mm:ss:SSS");
+		check("yyyy-MM-dd HH:mm:ss");
+		check("HH:mm:ss.S 'Seconds'");
+		check("SS");
+		check("SSSSS z");
+		check("'S'SSS'S'");
+	}
+
+	@Test
+	public void testMoreThanOneMillisField() {
+		check("SSS HH:mm:ss SSS");
+	}
+
+	@Test
+	public void testNotSimpleDateFormat() {
+		DateFormat df = DateFormat.getDateTimeInstance();
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		CachedDateFormat cached = new CachedDateFormat(df);
+		StringBuilder sb = new StringBuilder();
+		cached.append(sb, 1234567890123L);
+		assertEquals(df.format(new Date(1234567890123L)), sb.toString());
+	}
+
+}
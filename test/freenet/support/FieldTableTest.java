@@ -0,0 +1,149 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import freenet.support.io.LineReadingInputStream;
+
+public class FieldTableTest {
+
+	private static final String MESSAGE =
+		"# A header\n" +
+		"# Another header\n" +
+		"Identifier=test\n" +
+		"URI=CHK@abc,def,AAMC--8/file.txt\n" +
+		" Spaced.Key \t=  value with spaces \n" +
+		"Files.0.Name=a.txt\n" +
+		"Files.0.UploadFrom=direct\n" +
+		"Files.1.Name=bé.txt\r\n" +
+		"Files.1.DataLength=10\n" +
+		"Files=top level value\n" +
+		".Dot=leading dot\n" +
+		"\n" +
+		"# a comment\n" +
+		"Empty=\n" +
+		"Equals==notbase64\n" +
+		"Multi=one\n" +
+		"Multi=two\n" +
+		"EndMessage\n" +
+		"Ignored=after the end\n";
+
+	private static SimpleFieldSet expected(String message, boolean allowMultiple, boolean allowBase64) throws IOException {
+		return new SimpleFieldSet(message, allowMultiple, true, allowBase64);
+	}
+
+	private static SimpleFieldSet read(String message, boolean allowMultiple, boolean allowBase64) throws IOException {
+		LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8)));
+		return new SimpleFieldSet(lis, 4096, 128, true, allowMultiple, true, allowBase64);
+	}
+
+	private static SimpleFieldSet parse(String message, boolean allowMultiple, boolean allowBase64) throws IOException {
+		byte[] data = ("xx" + message + "yy").getBytes(StandardCharsets.UTF_8);
+		int length = message.getBytes(StandardCharsets.UTF_8).length;
+		return new SimpleFieldSet(FieldTable.parse(data, 2, length, true, allowMultiple, allowBase64, false), true);
+	}
+
+	private static void checkSame(SimpleFieldSet expected, SimpleFieldSet actual) {
+		Iterator<String> it = expected.keyIterator();
+		while(it.hasNext()) {
+			String key = it.next();
+			assertEquals(key, expected.get(key), actual.get(key));
+		}
+		assertEquals(expected.getEndMarker(), actual.getEndMarker());
+		assertArrayEquals(expected.getHeader(), actual.getHeader());
+		assertEquals(expected.toOrderedString(), actual.toOrderedString());
+	}
+
+	@Test
+	public void testSameAsLineParser() throws IOException {
+		for(boolean allowMultiple : new boolean[] { false, true }) {
+			SimpleFieldSet expected = expected(MESSAGE, allowMultiple, false);
+			checkSame(expected, read(MESSAGE, allowMultiple, false));
+			checkSame(expected, parse(MESSAGE, allowMultiple, false));
+		}
+		SimpleFieldSet fs = parse(MESSAGE, true, false);
+		assertEquals("one;two", fs.get("Multi"));
+		assertEquals("  value with spaces ", fs.get("Spaced.Key"));
+		assertEquals("bé.txt", fs.get("Files.1.Name"));
+		assertEquals("leading dot", fs.get(".Dot"));
+		assertEquals("=notbase64", fs.get("Equals"));
+		assertEquals("", fs.get("Empty"));
+		assertNull(fs.get("Ignored"));
+		assertNull(fs.get("Files.2.Name"));
+		assertEquals("EndMessage", fs.getEndMarker());
+		assertEquals("one", parse(MESSAGE, false, false).get("Multi"));
+	}
+
+	@Test
+	public void testBase64() throws IOException {
+		String message = "Key==" + Base64.encodeUTF8("a=b;c") + "\nOther=x\nEnd\n";
+		SimpleFieldSet fs = parse(message, false, true);
+		assertEquals("a=b;c", fs.get("Key"));
+		checkSame(expected(message, false, true), fs);
+		try {
+			parse("Key==!!!\nEnd\n", false, true);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testNoEndMarker() throws IOException {
+		SimpleFieldSet fs = parse("A=b\nC=d", false, false);
+		assertEquals("d", fs.get("C"));
+		assertNull(fs.getEndMarker());
+		try {
+			parse("", false, false);
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testReadStopsAtEndMarker() throws IOException {
+		byte[] data = "Identifier=x\nData\nraw data".getBytes(StandardCharsets.UTF_8);
+		LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(data));
+		FieldTable table = FieldTable.read(lis, 128, true, false, false, false);
+		assertEquals("Data", table.getEndMarker());
+		assertEquals("x", table.get("Identifier"));
+		assertEquals("raw data", lis.readLine(128, 128, true));
+	}
+
+	@Test
+	public void testCommonKeysAreConstants() throws IOException {
+		FieldTable table = FieldTable.parse("Identifier=x\nEndMessage\n".getBytes(StandardCharsets.UTF_8), 0, 24, true, false, false, false);
+		assertSame("Identifier", table.key(0));
+		assertSame("EndMessage", table.getEndMarker());
+	}
+
+	@Test
+	public void testLazyView() throws IOException {
+		SimpleFieldSet fs = parse(MESSAGE, true, false);
+		assertFalse(fs.isEmpty());
+		// Changes to subsets are seen by the parent, as before.
+		SimpleFieldSet files = fs.subset("Files");
+		SimpleFieldSet file = files.subset("1");
+		assertEquals("10", file.get("DataLength"));
+		file.putOverwrite("DataLength", "11");
+		assertEquals("11", fs.get("Files.1.DataLength"));
+		assertSame(files, fs.subset("Files"));
+		fs.removeSubset("Files.0");
+		assertNull(fs.get("Files.0.Name"));
+		assertEquals("top level value", fs.get("Files"));
+		fs.putSingle("New", "value");
+		assertEquals("value", fs.get("New"));
+		SimpleFieldSet copy = new SimpleFieldSet(parse(MESSAGE, true, false));
+		assertEquals("a.txt", copy.get("Files.0.Name"));
+		assertTrue(parse("End\n", false, false).isEmpty());
+	}
+
+}
@@ -0,0 +1,61 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import freenet.support.Logger.LogLevel;
+
+public class FileLoggerHookTest {
+
+	@Test
+	public void testLogAndClose() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(out, "p: m (h)", "", LogLevel.MINOR);
+		hook.start();
+		Object o = new Object();
+		hook.log(o, FileLoggerHookTest.class, "hello é€😀", null, LogLevel.ERROR);
+		hook.log(o, FileLoggerHookTest.class, "not logged", null, LogLevel.DEBUG);
+		hook.log(null, FileLoggerHookTest.class, "exception", new Exception("test"), LogLevel.NORMAL);
+		hook.close();
+		long deadline = System.currentTimeMillis() + 10000;
+		String s = "";
+		while(System.currentTimeMillis() < deadline) {
+			s = new String(out.toByteArray(), StandardCharsets.UTF_8);
+			if(s.contains("\tat ")) break;
+			Thread.sleep(10);
+		}
+		assertTrue(s, s.contains("ERROR: hello é€😀 (" + Integer.toHexString(o.hashCode()) + ")\n"));
+		assertFalse(s.contains("not logged"));
+		assertTrue(s, s.contains("NORMAL: exception (<none>)\njava.lang.Exception: test\n\tat "));
+		assertEquals(0, hook.getDroppedLines());
+	}
+
+	@Test
+	public void testAppendHex() {
+		int[] values = { 0, 1, 0xf, 0x10, 0x7fffffff, -1, 0x80000000, 0x1234abcd };
+		for(int x : values) {
+			StringBuilder sb = new StringBuilder();
+			FileLoggerHook.appendHex(sb, x);
+			assertEquals(Integer.toHexString(x), sb.toString());
+		}
+	}
+
+	@Test
+	public void testDropsWhenFull() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(out, "m", "", LogLevel.MINOR);
+		hook.setMaxListBytes(4 * LogRingBuffer.SLOT_SIZE);
+		// Not started, so nothing is written.
+		for(int i=0;i<10;i++)
+			hook.log(null, FileLoggerHookTest.class, "line "+i, null, LogLevel.ERROR);
+		assertEquals(6, hook.getDroppedLines());
+		assertEquals(6 * "line 0\n".length(), hook.getDroppedBytes());
+		assertEquals(4 * LogRingBuffer.SLOT_SIZE, hook.listBytes());
+		hook.close();
+	}
+
+}
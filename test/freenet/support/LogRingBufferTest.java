@@ -0,0 +1,116 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class LogRingBufferTest {
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testFullAndWrap() {
+		LogRingBuffer ring = new LogRingBuffer(4);
+		assertEquals(4 * LogRingBuffer.SLOT_SIZE, ring.capacity());
+		byte[] big = new byte[LogRingBuffer.SLOT_SIZE + 1];
+		Arrays.fill(big, (byte) 'x');
+		assertTrue(ring.offer(big, 0, big.length));
+		assertTrue(ring.offer(bytes("a\n"), 0, 2));
+		// Two slots, one slot, only one left.
+		assertFalse(ring.offer(big, 0, big.length));
+		assertEquals(3 * LogRingBuffer.SLOT_SIZE, ring.pendingBytes());
+		byte[] buf = new byte[1024];
+		assertEquals(big.length + 2, ring.drainTo(buf));
+		assertEquals(0, ring.pendingBytes());
+		// This one wraps around the end of the buffer.
+		byte[] wrapped = new byte[2 * LogRingBuffer.SLOT_SIZE];
+		for(int i=0;i<wrapped.length;i++) wrapped[i] = (byte) i;
+		assertTrue(ring.offer(wrapped, 0, wrapped.length));
+		assertEquals(wrapped.length, ring.drainTo(buf));
+		assertArrayEquals(wrapped, Arrays.copyOf(buf, wrapped.length));
+		assertEquals(0, ring.drainTo(buf));
+	}
+
+	@Test
+	public void testLimit() {
+		LogRingBuffer ring = new LogRingBuffer(16);
+		ring.setLimit(2 * LogRingBuffer.SLOT_SIZE);
+		assertEquals(2 * LogRingBuffer.SLOT_SIZE, ring.maxRecordLength());
+		assertTrue(ring.offer(bytes("a"), 0, 1));
+		assertTrue(ring.offer(bytes("b"), 0, 1));
+		assertFalse(ring.offer(bytes("c"), 0, 1));
+	}
+
+	@Test
+	public void testDrainStopsWhenBufferFull() {
+		LogRingBuffer ring = new LogRingBuffer(16);
+		assertTrue(ring.offer(bytes("hello\n"), 0, 6));
+		assertTrue(ring.offer(bytes("world\n"), 0, 6));
+		byte[] buf = new byte[8];
+		assertEquals(6, ring.drainTo(buf));
+		assertEquals("hello\n", new String(buf, 0, 6, StandardCharsets.UTF_8));
+		assertEquals(6, ring.drainTo(buf));
+		assertEquals("world\n", new String(buf, 0, 6, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testManyProducers() throws InterruptedException {
+		final LogRingBuffer ring = new LogRingBuffer(64);
+		final int threads = 4;
+		final int lines = 5000;
+		Thread[] producers = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			final int id = t;
+			producers[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<lines;i++) {
+						// Different lengths, so some lines take several slots.
+						StringBuilder sb = new StringBuilder();
+						sb.append(id).append(' ').append(i).append(' ');
+						for(int j=0;j<i%300;j++) sb.append('.');
+						sb.append('\n');
+						byte[] b = bytes(sb.toString());
+						while(!ring.offer(b, 0, b.length))
+							Thread.yield();
+					}
+				}
+			};
+			producers[t].start();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int[] next = new int[threads];
+		StringBuilder partial = new StringBuilder();
+		int total = 0;
+		while(total < threads * lines) {
+			int n = ring.drainTo(buf);
+			if(n == 0) {
+				Thread.yield();
+				continue;
+			}
+			out.write(buf, 0, n);
+			partial.append(new String(buf, 0, n, StandardCharsets.UTF_8));
+			int nl;
+			while((nl = partial.indexOf("\n")) != -1) {
+				String line = partial.substring(0, nl);
+				partial.delete(0, nl + 1);
+				String[] split = line.split(" ");
+				int id = Integer.parseInt(split[0]);
+				// Each producer's lines arrive in order, and aren't mixed up with other lines.
+				assertEquals(next[id]++, Integer.parseInt(split[1]));
+				assertEquals(Integer.parseInt(split[1]) % 300, split.length > 2 ? split[2].length() : 0);
+				total++;
+			}
+		}
+		for(Thread t : producers) t.join();
+		assertEquals(0, ring.pendingBytes());
+	}
+
+}
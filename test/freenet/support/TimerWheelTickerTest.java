@@ -0,0 +1,224 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.node.FastRunnable;
+
+/** Drives the wheel by hand with tick(), without starting the ticker thread. */
+public class TimerWheelTickerTest {
+
+	private TimerWheelTicker ticker;
+	private long now;
+	private List<Runnable> executed;
+
+	/** Records jobs instead of running them. */
+	private class RecordingExecutor implements Executor {
+
+		@Override
+		public void execute(Runnable job) {
+			executed.add(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName) {
+			executed.add(job);
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			executed.add(job);
+		}
+
+		@Override
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+	}
+
+	private static class CountingJob implements FastRunnable {
+		int count;
+
+		@Override
+		public void run() {
+			count++;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		executed = new ArrayList<Runnable>();
+		ticker = new TimerWheelTicker(new RecordingExecutor(), 0);
+		now = System.currentTimeMillis();
+	}
+
+	@Test
+	public void testRunsInOrderAtTheRightTime() {
+		List<Integer> order = new ArrayList<Integer>();
+		long[] delays = { 5000, 1, 63, 64, 65, 4095, 4096, 300000 };
+		for(int i=0;i<delays.length;i++) {
+			final int x = i;
+			ticker.queueTimedJobAbsolute(new FastRunnable() {
+				@Override
+				public void run() {
+					order.add(x);
+				}
+			}, "test", now + delays[i], true, false);
+		}
+		assertEquals(delays.length, ticker.queuedJobs());
+		assertEquals(0, ticker.tick(now));
+		assertEquals(1, ticker.tick(now + 1));
+		assertEquals(0, ticker.tick(now + 62));
+		assertEquals(3, ticker.tick(now + 65));
+		assertEquals(1, ticker.tick(now + 4095));
+		assertEquals(1, ticker.tick(now + 4096));
+		assertEquals(0, ticker.tick(now + 4999));
+		assertEquals(1, ticker.tick(now + 5000));
+		assertEquals(0, ticker.tick(now + 299999));
+		assertEquals(1, ticker.tick(now + 300000));
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 0, 7), order);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	@Test
+	public void testCatchUpRunsInTimeOrder() {
+		List<Integer> order = new ArrayList<Integer>();
+		for(int i=10;i>0;i--) {
+			final int x = i;
+			ticker.queueTimedJobAbsolute(new FastRunnable() {
+				@Override
+				public void run() {
+					order.add(x);
+				}
+			}, "test", now + x * 1000, true, false);
+		}
+		assertEquals(10, ticker.tick(now + 20000));
+		for(int i=0;i<10;i++)
+			assertEquals(i + 1, (int) order.get(i));
+	}
+
+	@Test
+	public void testRemove() {
+		CountingJob job = new CountingJob();
+		CountingJob other = new CountingJob();
+		ticker.queueTimedJobAbsolute(job, "test", now + 10, true, false);
+		ticker.queueTimedJobAbsolute(other, "other", now + 10, true, false);
+		assertEquals(2, ticker.queuedJobs());
+		ticker.removeQueuedJob(job);
+		assertEquals(1, ticker.queuedJobs());
+		// Removing again is harmless.
+		ticker.removeQueuedJob(job);
+		assertEquals(1, ticker.tick(now + 100));
+		assertEquals(0, job.count);
+		assertEquals(1, other.count);
+		assertEquals(0, ticker.queuedJobs());
+		// Like PrioritizedTicker, only the latest instance of a job can be removed.
+		ticker.queueTimedJobAbsolute(job, "test", now + 110, true, false);
+		ticker.queueTimedJobAbsolute(job, "test", now + 120, true, false);
+		ticker.removeQueuedJob(job);
+		assertEquals(1, ticker.tick(now + 200));
+		assertEquals(1, job.count);
+	}
+
+	@Test
+	public void testRemoveAfterTheWheelHasIt() {
+		CountingJob job = new CountingJob();
+		ticker.queueTimedJobAbsolute(job, "test", now + 1000, true, false);
+		ticker.tick(now);
+		ticker.removeQueuedJob(job);
+		assertEquals(0, ticker.tick(now + 2000));
+		assertEquals(0, job.count);
+	}
+
+	@Test
+	public void testDeduping() {
+		CountingJob job = new CountingJob();
+		ticker.queueTimedJobAbsolute(job, "De-dupe test", now + 10, true, true);
+		ticker.queueTimedJobAbsolute(job, "De-dupe test", now + 11, true, true);
+		assertEquals(1, ticker.queuedJobs());
+		assertEquals(0, ticker.tick(now + 9));
+		assertEquals(1, ticker.tick(now + 20));
+		assertEquals(1, job.count);
+		// Now backwards: the earlier one replaces the later one.
+		ticker.queueTimedJobAbsolute(job, "De-dupe test", now + 100, false, true);
+		ticker.queueTimedJobAbsolute(job, "De-dupe test", now + 50, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		assertEquals(1, ticker.tick(now + 60));
+		assertEquals(2, job.count);
+		assertEquals(0, ticker.tick(now + 200));
+		assertEquals(2, job.count);
+		// Once it has run it can be queued again.
+		ticker.queueTimedJobAbsolute(job, "De-dupe test", now + 300, false, true);
+		assertEquals(1, ticker.queuedJobs());
+	}
+
+	@Test
+	public void testExecutorAndDirect() {
+		Runnable job = new Runnable() {
+			@Override
+			public void run() {
+				fail();
+			}
+		};
+		// Not on the ticker, and due now: passed straight to the executor.
+		ticker.queueTimedJob(job, "test", 0, false, false);
+		assertEquals(1, executed.size());
+		assertEquals(0, ticker.queuedJobs());
+		ticker.queueTimedJobAbsolute(job, "test", now + 5, true, false);
+		assertEquals(1, ticker.tick(now + 5));
+		assertEquals(2, executed.size());
+	}
+
+	@Test
+	public void testFarFuture() {
+		CountingJob job = new CountingJob();
+		CountingJob soon = new CountingJob();
+		ticker.queueTimedJobAbsolute(job, "test", Long.MAX_VALUE, true, false);
+		ticker.queueTimedJobAbsolute(soon, "test", now - 1000, true, false);
+		assertEquals(1, ticker.tick(now));
+		assertEquals(1, soon.count);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.removeQueuedJob(job);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	@Test
+	public void testThread() throws InterruptedException {
+		final Object sync = new Object();
+		final boolean[] ran = new boolean[1];
+		ticker.start();
+		ticker.queueTimedJob(new FastRunnable() {
+			@Override
+			public void run() {
+				synchronized(sync) {
+					ran[0] = true;
+					sync.notifyAll();
+				}
+			}
+		}, "test", 50, true, false);
+		synchronized(sync) {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(!ran[0] && System.currentTimeMillis() < deadline)
+				sync.wait(100);
+		}
+		assertTrue(ran[0]);
+	}
+
+}
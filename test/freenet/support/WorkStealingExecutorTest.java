@@ -0,0 +1,158 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class WorkStealingExecutorTest {
+
+	private static class PrioJob implements PrioRunnable {
+		final int prio;
+		final Runnable job;
+
+		PrioJob(int prio, Runnable job) {
+			this.prio = prio;
+			this.job = job;
+		}
+
+		@Override
+		public void run() {
+			job.run();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	@Test
+	public void testRunsEverythingAtTheRightPriority() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		exec.start();
+		final int jobs = 2000;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final AtomicInteger wrongPriority = new AtomicInteger();
+		for(int i=0;i<jobs;i++) {
+			final int prio = NativeThread.MIN_PRIORITY + (i % NativeThread.MAX_PRIORITY);
+			exec.execute(new PrioJob(prio, new Runnable() {
+				@Override
+				public void run() {
+					if(Thread.currentThread().getPriority() != prio)
+						wrongPriority.incrementAndGet();
+					done.countDown();
+				}
+			}), "test");
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, wrongPriority.get());
+		assertTrue(exec.getAverageJobLatency() >= 0.0);
+		assertTrue(exec.getThreadCreationRate() > 0.0);
+	}
+
+	@Test
+	public void testBlockedJobsDontStarveQueuedJobs() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		exec.start();
+		// Each job queues a child on its own thread and waits for it, so the children can only run
+		// if another thread steals them or more threads are started.
+		final int jobs = 20;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final WorkStealingExecutor e = exec;
+		for(int i=0;i<jobs;i++) {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					final CountDownLatch child = new CountDownLatch(1);
+					e.execute(new Runnable() {
+						@Override
+						public void run() {
+							child.countDown();
+						}
+					}, "child");
+					try {
+						if(child.await(30, TimeUnit.SECONDS))
+							done.countDown();
+					} catch (InterruptedException ex) {
+						// Ignore
+					}
+				}
+			}, "parent");
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, exec.getQueuedJobsCount());
+	}
+
+	@Test
+	public void testReusesThreads() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor();
+		exec.start();
+		// Jobs which arrive when there are no idle threads and no room in the deques get a thread
+		// each, so start one thread first.
+		final CountDownLatch started = new CountDownLatch(1);
+		exec.execute(new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+			}
+		}, "test");
+		assertTrue(started.await(30, TimeUnit.SECONDS));
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		for(int round=0;round<100;round++) {
+			final CountDownLatch done = new CountDownLatch(parallelism);
+			for(int i=0;i<parallelism;i++) {
+				exec.execute(new Runnable() {
+					@Override
+					public void run() {
+						done.countDown();
+					}
+				}, "test");
+			}
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+		}
+		// Short jobs are queued on the threads we have rather than getting a thread each, which
+		// would be over a hundred threads per CPU. A few more may be started when the threads we
+		// have are held up for MAX_QUEUE_DELAY, e.g. on a busy machine.
+		int threads = 0;
+		for(int count : exec.waitingThreads())
+			threads += count;
+		for(int count : exec.runningThreads())
+			threads += count;
+		int max = parallelism + 8;
+		assertTrue("Too many threads: " + threads + " > " + max, threads <= max);
+	}
+
+	@Test
+	public void testVirtualThreads() throws InterruptedException {
+		WorkStealingExecutor exec = new WorkStealingExecutor(true);
+		exec.start();
+		final CountDownLatch done = new CountDownLatch(2);
+		final Thread[] threads = new Thread[2];
+		exec.execute(new PrioJob(NativeThread.LOW_PRIORITY, new Runnable() {
+			@Override
+			public void run() {
+				threads[0] = Thread.currentThread();
+				done.countDown();
+			}
+		}), "low");
+		exec.execute(new PrioJob(NativeThread.HIGH_PRIORITY, new Runnable() {
+			@Override
+			public void run() {
+				threads[1] = Thread.currentThread();
+				done.countDown();
+			}
+		}), "high");
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertTrue(threads[1] instanceof NativeThread);
+		// Without virtual thread support we fall back to pooled threads.
+		assertEquals(!exec.usingVirtualThreads(), threads[0] instanceof NativeThread);
+	}
+
+}
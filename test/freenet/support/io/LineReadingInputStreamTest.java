@@ -6,6 +6,7 @@ package freenet.support.io;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 
@@ -128,4 +129,48 @@ public class LineReadingInputStreamTest {
 		assertNull(lris1.readLine(MAX_LENGTH, BUFFER_SIZE, true));
 		assertNull(lris2.readLineWithoutMarking(MAX_LENGTH, BUFFER_SIZE, true));
 	}
+
+	@Test
+	public void testReadLineBytes() throws Exception {
+		byte[] data = (BLOCK + "last").getBytes(StandardCharsets.ISO_8859_1);
+		// With and without mark/reset.
+		InputStream[] streams = new InputStream[] {
+			new ByteArrayInputStream(data),
+			new FilterInputStream(new ByteArrayInputStream(data)) {
+				@Override
+				public boolean markSupported() {
+					return false;
+				}
+			}
+		};
+		for(InputStream is : streams) {
+			LineReadingInputStream instance = new LineReadingInputStream(is);
+			byte[] buf = new byte[MAX_LENGTH + 5];
+			for(String expectedLine : LINES) {
+				int length = instance.readLineBytes(buf, 3, MAX_LENGTH);
+				assertEquals(expectedLine, new String(buf, 3, length, StandardCharsets.ISO_8859_1));
+			}
+			// The last line doesn't need a \n.
+			assertEquals(4, instance.readLineBytes(buf, 3, MAX_LENGTH));
+			assertEquals(-1, instance.readLineBytes(buf, 3, MAX_LENGTH));
+		}
+
+		LineReadingInputStream instance = new LineReadingInputStream(new ByteArrayInputStream(LENGTH_CHECKING_LINE.getBytes()));
+		try {
+			instance.readLineBytes(new byte[10], 0, LENGTH_CHECKING_LINE_LF - 1);
+			fail();
+		} catch (TooLongException e) {}
+		instance = new LineReadingInputStream(new ByteArrayInputStream(LENGTH_CHECKING_LINE.getBytes()));
+		assertEquals(LENGTH_CHECKING_LINE_LF, instance.readLineBytes(new byte[10], 0, LENGTH_CHECKING_LINE_LF));
+		// The data after the line hasn't been read.
+		assertEquals(-1, instance.read());
+
+		// A buffer which is too small doesn't consume anything.
+		instance = new LineReadingInputStream(new ByteArrayInputStream(data));
+		byte[] buf = new byte[MAX_LENGTH + 2];
+		assertEquals(0, instance.readLineBytes(buf, 0, MAX_LENGTH));
+		assertEquals(LineReadingInputStream.BUFFER_TOO_SMALL, instance.readLineBytes(new byte[4], 0, MAX_LENGTH));
+		int length = instance.readLineBytes(buf, 0, MAX_LENGTH);
+		assertEquals(LINES[1], new String(buf, 0, length, StandardCharsets.ISO_8859_1));
+	}
 }
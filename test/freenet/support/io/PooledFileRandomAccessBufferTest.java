@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -106,6 +107,69 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         b.free();
     }
     
+    @Test
+    public void testGatherWrite() throws IOException {
+        int blockSize = 32768;
+        PooledFileRandomAccessBuffer a = construct(blockSize * 20);
+        Random r = new Random(7713);
+        // Enough adjacent blocks to need several bulk writes.
+        long[] offsets = new long[12];
+        byte[][] bufs = new byte[offsets.length][];
+        for(int i=0;i<offsets.length;i++) {
+            offsets[i] = (i < 10 ? i : i + 5) * (long) blockSize;
+            bufs[i] = new byte[blockSize];
+            r.nextBytes(bufs[i]);
+        }
+        a.pwritev(offsets, bufs);
+        byte[] cmp = new byte[blockSize];
+        for(int i=0;i<offsets.length;i++) {
+            a.pread(offsets[i], cmp, 0, blockSize);
+            assertTrue(Arrays.equals(bufs[i], cmp));
+        }
+        byte[][] read = new byte[offsets.length][blockSize];
+        a.preadv(offsets, read);
+        for(int i=0;i<offsets.length;i++)
+            assertTrue(Arrays.equals(bufs[i], read[i]));
+        try {
+            a.pwritev(new long[] { blockSize * 20 - 1 }, new byte[][] { new byte[2] });
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // Expected.
+        }
+        a.close();
+        a.free();
+    }
+
+    /** Interrupting a thread during I/O closes the channel. Only that thread should fail: the
+     * file is reopened straight away for anyone else using it. */
+    @Test
+    public void testReopenAfterInterrupt() throws IOException {
+        int sz = 1024;
+        fds.setMaxFDs(1);
+        PooledFileRandomAccessBuffer a = construct(sz);
+        byte[] buf = new byte[sz];
+        new Random(4411).nextBytes(buf);
+        a.pwrite(0, buf, 0, sz);
+        byte[] cmp = new byte[sz];
+        RAFLock lock = a.lockOpen();
+        Thread.currentThread().interrupt();
+        try {
+            a.pread(0, cmp, 0, sz);
+            fail("Should have thrown");
+        } catch (ClosedByInterruptException e) {
+            // Expected.
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(a.isOpen());
+        assertEquals(fds.getOpenFDs(), 1);
+        a.pread(0, cmp, 0, sz);
+        assertTrue(Arrays.equals(buf, cmp));
+        lock.unlock();
+        a.close();
+        a.free();
+    }
+
     /** Thanks bertm */
     @Test
     public void testLocksB() throws IOException {
@@ -228,6 +228,41 @@ public abstract class RandomAccessBufferTestBase {
         raf.free();
     }
 
+    @Test
+    public void testScatterGather() throws IOException {
+        Random r = new Random(91824411);
+        for(int size : sizeList)
+            innerTestScatterGather(size, r);
+    }
+
+    /** Read a mixture of adjacent and scattered blocks in one call. */
+    protected void innerTestScatterGather(int len, Random r) throws IOException {
+        if(len < 4) return;
+        byte[] buf = new byte[len];
+        r.nextBytes(buf);
+        RandomAccessBuffer raf = construct(len);
+        raf.pwrite(0L, buf, 0, buf.length);
+        int blockSize = Math.max(1, len / 8);
+        int blocks = len / blockSize;
+        // Each block is adjacent to the previous one in the file, except every third.
+        long[] offsets = new long[blocks];
+        byte[][] bufs = new byte[blocks][];
+        long offset = 0;
+        for(int i=0;i<blocks;i++) {
+            if(i % 3 == 2) offset = r.nextInt(len - blockSize + 1);
+            if(offset + blockSize > len) offset = 0;
+            offsets[i] = offset;
+            bufs[i] = new byte[blockSize];
+            offset += blockSize;
+        }
+        raf.preadv(offsets, bufs);
+        for(int i=0;i<blocks;i++)
+            for(int j=0;j<blockSize;j++)
+                assertEquals(buf[(int)offsets[i]+j], bufs[i][j]);
+        raf.close();
+        raf.free();
+    }
+
     /** Check that the array section equals the read data, then write it and repeat the check. */
     public static void checkArraySectionEqualsReadData(byte[] buf, RandomAccessBuffer raf, int start, int end, boolean readOnly) throws IOException {
         int len = end - start;